@@ -14,11 +14,18 @@ import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
 import edu.columbia.concerns.model.ConcernModelFactory;
+import edu.columbia.concerns.repository.CodeModelImporter;
+import edu.columbia.concerns.repository.CodeModelUpdater;
 import edu.columbia.concerns.repository.ConcernRepository;
+import edu.columbia.concerns.ui.ConcernViewPreferencePage;
 import edu.columbia.concerns.util.ProblemManager;
 
 /**
@@ -26,7 +33,11 @@ import edu.columbia.concerns.util.ProblemManager;
  * 
  * @author vibhav garg
  */
-public class ConcernTagger extends AbstractUIPlugin
+public class ConcernTagger 
+	extends 
+		AbstractUIPlugin
+	implements
+		IPropertyChangeListener
 {
 	/** An ID for the plugin (same as in the plugin.xml file). */
 	public static final String ID_PLUGIN = "edu.columbia.concerns";
@@ -39,6 +50,8 @@ public class ConcernTagger extends AbstractUIPlugin
 
 	// Reference to HSQLDB object
 	private ConcernRepository repository;
+	
+	private CodeModelUpdater codeModelUpdater = null;
 
 	/**
 	 * The constructor. Loads the resource bundle.
@@ -70,17 +83,70 @@ public class ConcernTagger extends AbstractUIPlugin
 	{
 		super.start(context);
 
+		// Must be set before any repository is opened
+		ConcernRepository.setDefaultComponentCacheLimit(getComponentCacheLimit());
+		CodeModelImporter.setDefaultNumThreads(getImportThreads());
+		getPreferenceStore().addPropertyChangeListener(this);
+
 		// Create the default concern model
 		ConcernModelFactory.singleton().getConcernModel(getRepository(), null);
+		
+		// Keep the code model up to date as files are edited
+		codeModelUpdater = new CodeModelUpdater(getRepository());
+		JavaCore.addElementChangedListener(codeModelUpdater, 
+				ElementChangedEvent.POST_CHANGE);
 	}
 
 	@Override
 	public void stop(BundleContext context) throws Exception
 	{
+		if (codeModelUpdater != null)
+			JavaCore.removeElementChangedListener(codeModelUpdater);
+		
+		getPreferenceStore().removePropertyChangeListener(this);
+		
 		repository.shutdown();
 		super.stop(context);
 	}
 	
+	/**
+	 * Applies changes to the component cache limit and the import mode.
+	 * 
+	 * @see org.eclipse.jface.util.IPropertyChangeListener#propertyChange(org.eclipse.jface.util.PropertyChangeEvent)
+	 */
+	public void propertyChange(PropertyChangeEvent event)
+	{
+		if (event.getProperty().equals(ConcernViewPreferencePage.P_COMPONENT_CACHE_LIMIT))
+		{
+			int limit = getComponentCacheLimit();
+			
+			ConcernRepository.setDefaultComponentCacheLimit(limit);
+			if (repository != null)
+				repository.setComponentCacheLimit(limit);
+		}
+		else if (event.getProperty().equals(ConcernViewPreferencePage.P_PARALLEL_IMPORT_ENABLED))
+		{
+			CodeModelImporter.setDefaultNumThreads(getImportThreads());
+		}
+	}
+	
+	private int getComponentCacheLimit()
+	{
+		int limit = getPreferenceStore().getInt(
+				ConcernViewPreferencePage.P_COMPONENT_CACHE_LIMIT);
+		
+		return limit > 0 ? limit : ConcernRepository.DEFAULT_COMPONENT_CACHE_LIMIT;
+	}
+	
+	private int getImportThreads()
+	{
+		if (getPreferenceStore().getBoolean(
+				ConcernViewPreferencePage.P_PARALLEL_IMPORT_ENABLED))
+			return Runtime.getRuntime().availableProcessors();
+		else
+			return 1;
+	}
+	
 	/**
 	 * Returns the shared instance.
 	 * 
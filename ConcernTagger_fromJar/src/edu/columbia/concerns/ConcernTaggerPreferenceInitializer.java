@@ -51,5 +51,15 @@ public class ConcernTaggerPreferenceInitializer extends
 						ConcernViewPreferencePage.P_DECORATION_LIMIT,
 						ConcernTagger
 								.getResourceString("ConcernMapperPreferenceInitializer.DefaultDecorationLimit"));
+		lNode
+				.put(
+						ConcernViewPreferencePage.P_COMPONENT_CACHE_LIMIT,
+						ConcernTagger
+								.getResourceString("ConcernMapperPreferenceInitializer.DefaultComponentCacheLimit"));
+		lNode
+				.put(
+						ConcernViewPreferencePage.P_PARALLEL_IMPORT_ENABLED,
+						ConcernTagger
+								.getResourceString("ConcernMapperPreferenceInitializer.DefaultParallelImportEnabled"));
 	}
 }
@@ -16,6 +16,7 @@ import org.eclipse.swt.widgets.FileDialog;
 import edu.columbia.concerns.ConcernTagger;
 import edu.columbia.concerns.model.IConcernModelProvider;
 import edu.columbia.concerns.util.ConcernAssignmentARFFFile;
+import edu.columbia.concerns.util.SignatureResolver;
 
 /**
  * @author eaddy
@@ -80,17 +81,29 @@ public class LoadAssignmentsAction extends Action
 	private void readAssignmentFiles(final String dir, final String[] fileNames, 
 			IProgressMonitor progressMonitor, IStatusLineManager statusLineManager)
 	{
-		for (String fileName : fileNames)
+		// Share the types found in one file with the rest
+		SignatureResolver resolver = new SignatureResolver();
+		
+		try
 		{
-			String path = dir + java.io.File.separator + fileName;
-
-			ConcernAssignmentARFFFile asf = 
-				new ConcernAssignmentARFFFile(	path, 
-												concernModelProvider.getModel(), 
-												concernModelProvider.getConcernComponentRelation(),
-												progressMonitor,
-												statusLineManager);
-			asf.read();
+			for (String fileName : fileNames)
+			{
+				String path = dir + java.io.File.separator + fileName;
+	
+				ConcernAssignmentARFFFile asf = 
+					new ConcernAssignmentARFFFile(	path, 
+													concernModelProvider.getModel(), 
+													concernModelProvider.getConcernComponentRelation(),
+													progressMonitor,
+													statusLineManager,
+													ConcernAssignmentARFFFile.DEFAULT_IMPORT_BATCH_SIZE,
+													resolver);
+				asf.read();
+			}
+		}
+		finally
+		{
+			resolver.close();
 		}
 	}
 }
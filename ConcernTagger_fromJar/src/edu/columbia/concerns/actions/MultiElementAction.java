@@ -142,7 +142,7 @@ public abstract class MultiElementAction
 		
 		for(ConcernEvent event : events)
 		{
-			if (event.isAssign() || event.isUnassign())
+			if (event.isAssign() || event.isUnassign() || event.isChangedAssignments())
 			{
 				hasAssignOrUnassign = true;
 				break;
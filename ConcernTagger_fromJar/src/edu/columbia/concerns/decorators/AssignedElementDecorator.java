@@ -10,9 +10,8 @@
 
 package edu.columbia.concerns.decorators;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import org.eclipse.jdt.core.IJavaElement;
 import org.eclipse.jface.util.IPropertyChangeListener;
@@ -31,9 +30,6 @@ import edu.columbia.concerns.model.ConcernEvent;
 import edu.columbia.concerns.model.ConcernModel;
 import edu.columbia.concerns.model.ConcernModelFactory;
 import edu.columbia.concerns.model.IConcernListener;
-import edu.columbia.concerns.repository.Component;
-import edu.columbia.concerns.repository.Concern;
-import edu.columbia.concerns.repository.EdgeKind;
 import edu.columbia.concerns.ui.ConcernViewPreferencePage;
 
 /**
@@ -51,7 +47,14 @@ public class AssignedElementDecorator
 	ConcernTagger concernMapper;
 	ConcernModel concernModel;
 
+	// Read when the preferences change rather than on every decorate()
+	volatile boolean isSuffixEnabled;
+	volatile boolean isHighlightingEnabled;
+
 	Font boldFont = null;
+
+	// Filled in the background so decorate() doesn't query the database
+	DecorationCache decorationCache;
 	
 	/**
 	 * Creates the new label decorator.
@@ -59,6 +62,7 @@ public class AssignedElementDecorator
 	public AssignedElementDecorator()
 	{
 		concernMapper = ConcernTagger.singleton();
+		readPreferences();
 		concernMapper.getPreferenceStore().addPropertyChangeListener(this);
 
 		// We want to be notified when the active concern model changes
@@ -66,10 +70,24 @@ public class AssignedElementDecorator
 		
 		concernModel = ConcernModelFactory.singleton().getModel();
 		concernModel.addListener(this);
+
+		decorationCache = new DecorationCache(new DecorationCache.IListener()
+			{
+				public void decorationsChanged(Object[] elements)
+				{
+					refresh(elements);
+				}
+			});
+
+		rebuildCache();
 	}
 
 	/**
 	 * Decorates elements belonging to the concern model in the JDT views.
+	 * <P>
+	 * Only looks up the element in the decoration cache, since this is
+	 * called on the UI thread for every element shown.  Elements that
+	 * can't be assigned are never in the cache.
 	 * 
 	 * @param pElement
 	 *            The element being decorated
@@ -80,61 +98,24 @@ public class AssignedElementDecorator
 	 */
 	public void decorate(Object pElement, IDecoration pDecoration)
 	{
-		boolean isSuffixEnabled = concernMapper.getPreferenceStore().getBoolean(
-				ConcernViewPreferencePage.P_SUFFIX_ENABLED);
-
-		boolean isHighlightingEnabled = concernMapper.getPreferenceStore().getBoolean(
-				ConcernViewPreferencePage.P_BOLD_ENABLED);
-
 		if (!isSuffixEnabled && !isHighlightingEnabled)
 			return;
 		
 		if (!(pElement instanceof IJavaElement))
 			return;
 
-		IJavaElement javaElement = (IJavaElement) pElement;
-		if (/*javaElement.getElementType() != IJavaElement.COMPILATION_UNIT &&*/
-			!Component.isJavaElementAssignable(javaElement))
-		{
+		DecorationCache.Decoration decoration = 
+			decorationCache.get((IJavaElement) pElement);
+		if (decoration == null)
 			return;
-		}
-		
-		EdgeKind concernComponentRelation = ConcernModelFactory.singleton().getConcernComponentRelation();
-		
-		// Get the names of the concerns from the concern model
-		Collection<Concern> assignedConcerns = 
-			concernModel.getAssignedConcerns(javaElement, concernComponentRelation);
 
 		// add the decorations
-		if (isSuffixEnabled && assignedConcerns != null)
-		{
-			StringBuffer buf = new StringBuffer(" ~ ");
-			
-			boolean first = true;
-			
-			for(Concern concern : assignedConcerns)
-			{
-				if (!first)
-					buf.append(", ");
-				
-				buf.append(concern.getShortDisplayName());
-				
-				first = false;
-			}
-			
-			pDecoration.addSuffix(buf.toString());
-		}
+		if (isSuffixEnabled && decoration.suffix != null)
+			pDecoration.addSuffix(decoration.suffix);
 
-		if (!isHighlightingEnabled)
+		if (!isHighlightingEnabled || !decoration.bold)
 			return;
 		
-		if ((assignedConcerns == null || assignedConcerns.size() == 0)/* &&
-			!concernModel.areDescendantComponentsAssigned(javaElement.getHandleIdentifier(), 
-					concernComponentRelation)*/)
-		{
-			return;
-		}
-		
 		if (boldFont == null)
 			boldFont = PlatformUI.getWorkbench().getThemeManager()
 			.getCurrentTheme().getFontRegistry().getBold("Text Font");
@@ -188,31 +169,49 @@ public class AssignedElementDecorator
 		
 		if (	events.isUpdateConcernLabel() || 
 				events.isChangedConcernComponentRelation() ||
-				events.isChangedActiveConcernModel())
+				events.isChangedActiveConcernModel() ||
+				events.isChangedAllConcerns())
 		{
-			refresh(null); // Refresh all Java elements
+			// Recalculate all the decorations, which refreshes all Java
+			// elements when done
+			rebuildCache();
 		}
 		else
 		{
-			// Refresh only the elements affected by the (un)assignment
+			// Recalculate only the elements affected by the (un)assignment
 			
-			List<Object> changedElements = null;
+			Set<IJavaElement> changedElements = null;
 			
 			for(ConcernEvent event : events)
 			{
+				if (event.isChangedAssignments())
+				{
+					// Too many to list, so recalculate everything
+					rebuildCache();
+					return;
+				}
+				
+				if (event.isChangedConcernChildren())
+				{
+					// A removed concern's name may still be in the suffix
+					// of elements assigned to it (or its children)
+					rebuildCache();
+					return;
+				}
+				
 				if (!event.isAssign() && !event.isUnassign())
 					continue;
 				
 				if (changedElements == null)
-					changedElements = new ArrayList<Object>();
+					changedElements = new LinkedHashSet<IJavaElement>();
 				
-				IJavaElement javaElementAssignedOrUnassigned = event.getJavaElement();
-				
-				changedElements.add(javaElementAssignedOrUnassigned);
+				changedElements.add(event.getJavaElement());
 			}
 
+			// Events are delivered in the background, so it's OK to query
+			// the database here.  Refreshes the elements when done.
 			if (changedElements != null)
-				refresh(changedElements.toArray());
+				decorationCache.update(changedElements);
 		}
 	}
 
@@ -229,10 +228,41 @@ public class AssignedElementDecorator
 	 */
 	public void propertyChange(PropertyChangeEvent pEvent)
 	{
+		readPreferences();
 		boldFont = null; // User may have changed the font
 		refresh(null);
 	}
 
+	@Override
+	public void dispose()
+	{
+		concernMapper.getPreferenceStore().removePropertyChangeListener(this);
+		ConcernModelFactory.singleton().removeListener(this);
+		concernModel.removeListener(this);
+		decorationCache.dispose();
+
+		super.dispose();
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private void readPreferences()
+	{
+		isSuffixEnabled = concernMapper.getPreferenceStore().getBoolean(
+				ConcernViewPreferencePage.P_SUFFIX_ENABLED);
+
+		isHighlightingEnabled = concernMapper.getPreferenceStore().getBoolean(
+				ConcernViewPreferencePage.P_BOLD_ENABLED);
+	}
+
+	private void rebuildCache()
+	{
+		decorationCache.rebuild(concernModel, 
+				ConcernModelFactory.singleton().getConcernComponentRelation());
+	}
+
 	private final class RefreshLabelsRunner implements Runnable
 	{
 		AssignedElementDecorator labelProvider;
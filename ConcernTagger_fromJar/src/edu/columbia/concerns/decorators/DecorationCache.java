@@ -0,0 +1,296 @@
+package edu.columbia.concerns.decorators;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.IJavaElement;
+
+import edu.columbia.concerns.model.ConcernModel;
+import edu.columbia.concerns.repository.Component;
+import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.repository.EdgeKind;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
+
+/**
+ * The decorations of the elements assigned to concerns, by Java element
+ * handle, so decorating is a hash lookup rather than a database lookup on
+ * the UI thread.
+ * <P>
+ * The cache is filled by a background job (see {@link #rebuild}) and
+ * patched as elements are assigned and unassigned (see {@link #update}).
+ * Elements that aren't in the cache aren't decorated.
+ */
+class DecorationCache
+{
+	/**
+	 * How to decorate an element.
+	 */
+	static final class Decoration
+	{
+		// The names of the assigned concerns, e.g., " ~ Parsing, Logging"
+		final String suffix;
+
+		// True to show the element in bold
+		final boolean bold;
+
+		Decoration(String suffix, boolean bold)
+		{
+			this.suffix = suffix;
+			this.bold = bold;
+		}
+	}
+
+	/**
+	 * Called when decorations change.
+	 */
+	interface IListener
+	{
+		/**
+		 * @param elements
+		 *            the elements whose decorations changed, or null if
+		 *            they all may have
+		 */
+		void decorationsChanged(Object[] elements);
+	}
+
+	private IListener listener;
+
+	// What the decorations are for
+	private ConcernModel concernModel = null;
+	private EdgeKind concernComponentRelation = null;
+
+	// Handle -> decoration.  Replaced when rebuilt.
+	private volatile ConcurrentHashMap<String, Decoration> decorations =
+		new ConcurrentHashMap<String, Decoration>();
+
+	private RebuildJob rebuildJob = new RebuildJob();
+
+	// Elements updated while rebuilding, since the rebuilt cache may not
+	// include the update
+	private Set<IJavaElement> updatedWhileRebuilding = null;
+
+	DecorationCache(IListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the element's decoration, or null if it isn't decorated
+	 */
+	Decoration get(IJavaElement element)
+	{
+		return decorations.get(element.getHandleIdentifier());
+	}
+
+	/**
+	 * Recalculates all the decorations in a background job.  The current
+	 * decorations are shown until it is done.
+	 */
+	synchronized void rebuild(ConcernModel concernModel,
+			EdgeKind concernComponentRelation)
+	{
+		this.concernModel = concernModel;
+		this.concernComponentRelation = concernComponentRelation;
+
+		rebuildJob.cancel();
+		rebuildJob.schedule();
+	}
+
+	/**
+	 * Recalculates the decorations of elements that were assigned or
+	 * unassigned.  Called on the thread delivering concern model events.
+	 */
+	void update(Collection<IJavaElement> elements)
+	{
+		ConcernModel concernModel;
+		EdgeKind concernComponentRelation;
+
+		synchronized (this)
+		{
+			concernModel = this.concernModel;
+			concernComponentRelation = this.concernComponentRelation;
+
+			if (updatedWhileRebuilding != null)
+				updatedWhileRebuilding.addAll(elements);
+		}
+
+		if (concernModel == null)
+			return;
+
+		ConcurrentHashMap<String, Decoration> decorations = this.decorations;
+
+		for (IJavaElement element : elements)
+		{
+			Decoration decoration = getDecoration(
+					concernModel.getAssignedConcerns(element, concernComponentRelation));
+
+			if (decoration != null)
+				decorations.put(element.getHandleIdentifier(), decoration);
+			else
+				decorations.remove(element.getHandleIdentifier());
+		}
+
+		listener.decorationsChanged(elements.toArray());
+	}
+
+	void dispose()
+	{
+		rebuildJob.cancel();
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private static Decoration getDecoration(List<Concern> assignedConcerns)
+	{
+		if (assignedConcerns == null || assignedConcerns.isEmpty())
+			return null;
+
+		StringBuffer buf = new StringBuffer(" ~ ");
+
+		boolean first = true;
+
+		for(Concern concern : assignedConcerns)
+		{
+			if (!first)
+				buf.append(", ");
+
+			buf.append(concern.getShortDisplayName());
+
+			first = false;
+		}
+
+		return new Decoration(buf.toString(), true);
+	}
+
+	//-----------------------------------------------------
+	// HELPER CLASSES
+	//-----------------------------------------------------
+
+	private final class RebuildJob
+		extends Job
+		implements
+			ISimpleProgressMonitor
+	{
+		IProgressMonitor myProgressMonitor;
+
+		RebuildJob()
+		{
+			super("Calculating concern decorations");
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor progressMonitor)
+		{
+			myProgressMonitor = progressMonitor;
+
+			ConcernModel concernModel;
+			EdgeKind concernComponentRelation;
+
+			synchronized (DecorationCache.this)
+			{
+				concernModel = DecorationCache.this.concernModel;
+				concernComponentRelation = DecorationCache.this.concernComponentRelation;
+				updatedWhileRebuilding = new HashSet<IJavaElement>();
+			}
+
+			try
+			{
+				if (concernModel == null || concernModel.getRoot() == null)
+					return Status.OK_STATUS;
+
+				// Loads the assignments with one query
+				if (!concernModel.preloadAssignments(concernComponentRelation, this))
+					return Status.CANCEL_STATUS;
+
+				Set<Component> assignedComponents = new HashSet<Component>();
+				if (!gatherAssignedComponents(concernModel.getRoot(),
+						concernComponentRelation, assignedComponents))
+				{
+					return Status.CANCEL_STATUS;
+				}
+
+				ConcurrentHashMap<String, Decoration> newDecorations =
+					new ConcurrentHashMap<String, Decoration>(
+							Math.max(16, assignedComponents.size() * 2));
+
+				for (Component component : assignedComponents)
+				{
+					if (isCanceled())
+						return Status.CANCEL_STATUS;
+
+					Decoration decoration = getDecoration(
+							concernModel.getAssignedConcerns(component,
+									concernComponentRelation));
+					if (decoration != null)
+						newDecorations.put(component.getHandle(), decoration);
+				}
+
+				Set<IJavaElement> updated;
+
+				synchronized (DecorationCache.this)
+				{
+					if (isCanceled())
+						return Status.CANCEL_STATUS;
+
+					decorations = newDecorations;
+					updated = updatedWhileRebuilding;
+					updatedWhileRebuilding = null;
+				}
+
+				// Reapply updates that may have been missed
+				if (!updated.isEmpty())
+					update(updated);
+
+				listener.decorationsChanged(null);
+				return Status.OK_STATUS;
+			}
+			finally
+			{
+				synchronized (DecorationCache.this)
+				{
+					updatedWhileRebuilding = null;
+				}
+			}
+		}
+
+		private boolean gatherAssignedComponents(Concern concern,
+				EdgeKind concernComponentRelation,
+				Set<Component> assignedComponents)
+		{
+			if (isCanceled())
+				return false;
+
+			assignedComponents.addAll(concern.getAssignments(concernComponentRelation));
+
+			for (Concern child : concern.getChildren())
+			{
+				if (!gatherAssignedComponents(child, concernComponentRelation,
+						assignedComponents))
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public boolean isCanceled()
+		{
+			if (myProgressMonitor == null)
+				return false;
+			else
+				return myProgressMonitor.isCanceled();
+		}
+	}
+}
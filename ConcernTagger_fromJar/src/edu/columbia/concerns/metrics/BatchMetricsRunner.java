@@ -0,0 +1,618 @@
+package edu.columbia.concerns.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.columbia.concerns.model.ConcernModel;
+import edu.columbia.concerns.model.IConcernModelProvider;
+import edu.columbia.concerns.repository.AssignmentBitmaps;
+import edu.columbia.concerns.repository.ConcernDomain;
+import edu.columbia.concerns.repository.ConcernRepository;
+import edu.columbia.concerns.repository.EdgeKind;
+
+/**
+ * Calculates metrics for many concern databases without user interaction,
+ * e.g., for nightly runs.
+ * <P>
+ * Usage: BatchMetricsRunner [options] database-dir...
+ * <P>
+ * Options:
+ * <UL>
+ * <LI>-domain NAME: concern domain to measure, may be repeated (default:
+ * all domains in each database)
+ * <LI>-relation NAME: concern-component relation (default: Related-To)
+ * <LI>-tables LIST: comma-separated list of concerns, lcbc, and tangling
+ * (default: all)
+ * <LI>-format LIST: comma-separated list of csv, json, and arff (default:
+ * csv)
+ * <LI>-out DIR: output directory (default: current directory)
+ * <LI>-threads N: databases processed at once (default: one per processor)
+ * </UL>
+ * Each table is written to DIR/database/domain-table.format.  A timing
+ * summary is printed and written to DIR/timing.csv.  It ends each
+ * database with the hit rates of its component caches, for tuning the
+ * cache limit.
+ * <P>
+ * Each database is processed by one thread with its own connection.  The
+ * exit code is one of the EXIT_ constants.
+ */
+public class BatchMetricsRunner
+{
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_USAGE = 1;
+	public static final int EXIT_DATABASE_FAILED = 2;
+	public static final int EXIT_OUTPUT_FAILED = 3;
+	public static final int EXIT_INTERNAL_ERROR = 4;
+
+	public enum Table
+	{
+		CONCERNS,
+		LCBC,
+		TANGLING;
+
+		public static Table valueOfIgnoreCase(String name)
+		{
+			for (Table table : values())
+			{
+				if (table.name().equalsIgnoreCase(name))
+					return table;
+			}
+
+			return null;
+		}
+	}
+
+	private List<String> databasePaths = new ArrayList<String>();
+	private List<String> domainNames = new ArrayList<String>();
+	private EdgeKind concernComponentRelation = EdgeKind.RELATED_TO;
+	private Set<Table> tables = EnumSet.allOf(Table.class);
+	private Set<MetricsTableWriter.Format> formats =
+		EnumSet.of(MetricsTableWriter.Format.CSV);
+	private File outputDir = new File(".");
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The time taken to produce one table, or the reason it failed.
+	 */
+	private static class Timing
+	{
+		String database;
+		String domain;
+		String table;
+		long millis;
+		int rows;
+		String status = "ok";
+		int exitCode = EXIT_OK;
+
+		Timing(String database, String domain, String table)
+		{
+			this.database = database;
+			this.domain = domain;
+			this.table = table;
+		}
+
+		void failed(String status, int exitCode)
+		{
+			this.status = status;
+			this.exitCode = exitCode;
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		int exitCode;
+
+		try
+		{
+			BatchMetricsRunner runner = new BatchMetricsRunner();
+
+			String error = runner.parseArgs(args);
+			if (error != null)
+			{
+				System.err.println(error);
+				printUsage();
+				exitCode = EXIT_USAGE;
+			}
+			else
+			{
+				exitCode = runner.run();
+			}
+		}
+		catch (Throwable t)
+		{
+			t.printStackTrace();
+			exitCode = EXIT_INTERNAL_ERROR;
+		}
+
+		System.exit(exitCode);
+	}
+
+	/**
+	 * @return an error message, or null if the arguments are valid
+	 */
+	public String parseArgs(String[] args)
+	{
+		for (int i = 0; i < args.length; ++i)
+		{
+			String arg = args[i];
+
+			if (!arg.startsWith("-"))
+			{
+				databasePaths.add(arg);
+				continue;
+			}
+			else if (i + 1 >= args.length)
+			{
+				return "Missing value for " + arg;
+			}
+
+			String value = args[++i];
+
+			if (arg.equals("-domain"))
+			{
+				domainNames.add(value);
+			}
+			else if (arg.equals("-relation"))
+			{
+				concernComponentRelation = null;
+				for (EdgeKind edgeKind : EdgeKind.values())
+				{
+					if (edgeKind.name().equalsIgnoreCase(value) ||
+						edgeKind.toString().equalsIgnoreCase(value))
+					{
+						concernComponentRelation = edgeKind;
+					}
+				}
+
+				if (concernComponentRelation == null)
+					return "Unknown relation: " + value;
+			}
+			else if (arg.equals("-tables"))
+			{
+				tables.clear();
+				for (String name : value.split(","))
+				{
+					Table table = Table.valueOfIgnoreCase(name.trim());
+					if (table == null)
+						return "Unknown table: " + name;
+
+					tables.add(table);
+				}
+			}
+			else if (arg.equals("-format"))
+			{
+				formats.clear();
+				for (String name : value.split(","))
+				{
+					MetricsTableWriter.Format format =
+						MetricsTableWriter.Format.valueOfIgnoreCase(name.trim());
+					if (format == null)
+						return "Unknown format: " + name;
+
+					formats.add(format);
+				}
+			}
+			else if (arg.equals("-out"))
+			{
+				outputDir = new File(value);
+			}
+			else if (arg.equals("-threads"))
+			{
+				try
+				{
+					numThreads = Integer.parseInt(value);
+				}
+				catch (NumberFormatException e)
+				{
+					return "Invalid thread count: " + value;
+				}
+
+				if (numThreads < 1)
+					return "Invalid thread count: " + value;
+			}
+			else
+			{
+				return "Unknown option: " + arg;
+			}
+		}
+
+		if (databasePaths.isEmpty())
+			return "No databases specified";
+		else if (tables.isEmpty() || formats.isEmpty())
+			return "Nothing to output";
+
+		return null;
+	}
+
+	private static void printUsage()
+	{
+		System.err.println("Usage: BatchMetricsRunner [options] database-dir...");
+		System.err.println("  -domain NAME    concern domain to measure, may be repeated (default: all)");
+		System.err.println("  -relation NAME  concern-component relation (default: Related-To)");
+		System.err.println("  -tables LIST    any of concerns,lcbc,tangling (default: all)");
+		System.err.println("  -format LIST    any of csv,json,arff (default: csv)");
+		System.err.println("  -out DIR        output directory (default: .)");
+		System.err.println("  -threads N      databases processed at once (default: # processors)");
+	}
+
+	/**
+	 * Processes all the databases.
+	 *
+	 * @return the exit code
+	 */
+	public int run()
+	{
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+		{
+			System.err.println("Failed to create output directory: " + outputDir);
+			return EXIT_OUTPUT_FAILED;
+		}
+
+		long start = System.currentTimeMillis();
+
+		List<String> outputNames = getOutputNames();
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(numThreads, databasePaths.size()));
+
+		List<Future<List<Timing>>> results = new ArrayList<Future<List<Timing>>>();
+
+		for (int i = 0; i < databasePaths.size(); ++i)
+		{
+			final String databasePath = databasePaths.get(i);
+			final String outputName = outputNames.get(i);
+
+			results.add(executor.submit(new Callable<List<Timing>>()
+				{
+					public List<Timing> call()
+					{
+						return processDatabase(databasePath, outputName);
+					}
+				}));
+		}
+
+		executor.shutdown();
+
+		// Report in the order the databases were given
+		List<Timing> timings = new ArrayList<Timing>();
+		int exitCode = EXIT_OK;
+
+		for (int i = 0; i < results.size(); ++i)
+		{
+			try
+			{
+				timings.addAll(results.get(i).get());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return EXIT_INTERNAL_ERROR;
+			}
+			catch (ExecutionException e)
+			{
+				e.getCause().printStackTrace();
+
+				Timing timing = new Timing(outputNames.get(i), "", "");
+				timing.failed("internal error: " + e.getCause(), EXIT_INTERNAL_ERROR);
+				timings.add(timing);
+			}
+		}
+
+		for (Timing timing : timings)
+		{
+			exitCode = Math.max(exitCode, timing.exitCode);
+		}
+
+		if (!writeTimings(timings, System.currentTimeMillis() - start))
+			exitCode = Math.max(exitCode, EXIT_OUTPUT_FAILED);
+
+		return exitCode;
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Processes one database.  Called on a worker thread.
+	 */
+	private List<Timing> processDatabase(String databasePath, String outputName)
+	{
+		List<Timing> timings = new ArrayList<Timing>();
+
+		Timing openTiming = new Timing(outputName, "", "open");
+		timings.add(openTiming);
+
+		long start = System.currentTimeMillis();
+
+		ConcernRepository repository = ConcernRepository.openDatabase(databasePath, false);
+		if (repository == null)
+		{
+			openTiming.failed("failed to open database: " + databasePath,
+					EXIT_DATABASE_FAILED);
+			return timings;
+		}
+
+		try
+		{
+			openTiming.millis = System.currentTimeMillis() - start;
+
+			List<String> domainsToMeasure = new ArrayList<String>(domainNames);
+			List<String> domainsInDatabase = new ArrayList<String>();
+
+			for (ConcernDomain concernDomain : repository.getConcernDomains(null))
+			{
+				domainsInDatabase.add(concernDomain.getName());
+			}
+
+			if (domainsToMeasure.isEmpty())
+				domainsToMeasure.addAll(domainsInDatabase);
+
+			File databaseOutputDir = new File(outputDir, outputName);
+			if (!databaseOutputDir.isDirectory() && !databaseOutputDir.mkdirs())
+			{
+				openTiming.failed("failed to create directory: " + databaseOutputDir,
+						EXIT_OUTPUT_FAILED);
+				return timings;
+			}
+
+			for (String domainName : domainsToMeasure)
+			{
+				if (!domainsInDatabase.contains(domainName))
+				{
+					Timing timing = new Timing(outputName, domainName, "");
+					timing.failed("unknown concern domain", EXIT_DATABASE_FAILED);
+					timings.add(timing);
+					continue;
+				}
+
+				processDomain(repository, domainName, outputName,
+						databaseOutputDir, timings);
+			}
+		}
+		finally
+		{
+			Timing cacheTiming = new Timing(outputName, "", "caches");
+			cacheTiming.status = repository.getComponentCacheStatistics();
+			timings.add(cacheTiming);
+
+			repository.shutdown();
+		}
+
+		return timings;
+	}
+
+	private void processDomain(ConcernRepository repository,
+			String domainName, String outputName, File databaseOutputDir,
+			List<Timing> timings)
+	{
+		final ConcernModel concernModel = new ConcernModel(repository, domainName);
+
+		IConcernModelProvider concernModelProvider = new IConcernModelProvider()
+			{
+				public ConcernModel getModel()
+				{
+					return concernModel;
+				}
+
+				public EdgeKind getConcernComponentRelation()
+				{
+					return concernComponentRelation;
+				}
+			};
+
+		MetricsTool metricsTool = new MetricsTool(concernModelProvider);
+
+		for (Table table : tables)
+		{
+			Timing timing = new Timing(outputName, domainName,
+					table.name().toLowerCase());
+			timings.add(timing);
+
+			long start = System.currentTimeMillis();
+
+			// One table failing shouldn't stop the others
+			try
+			{
+				processTable(metricsTool, concernModel, table, domainName,
+						outputName, databaseOutputDir, timing);
+			}
+			catch (RuntimeException e)
+			{
+				e.printStackTrace();
+				timing.failed("internal error: " + e, EXIT_INTERNAL_ERROR);
+			}
+
+			timing.millis = System.currentTimeMillis() - start;
+		}
+	}
+
+	private void processTable(MetricsTool metricsTool,
+			ConcernModel concernModel, Table table, String domainName,
+			String outputName, File databaseOutputDir, Timing timing)
+	{
+		MetricsTable metricsTable;
+
+		switch (table)
+		{
+		case CONCERNS:
+			metricsTable = metricsTool.getMetricsForAllConcerns();
+			break;
+		case LCBC:
+			metricsTable = metricsTool.getCompleteLCbCMetricsTable();
+			break;
+		default:
+			metricsTable = getTanglingTable(concernModel);
+			break;
+		}
+
+		if (metricsTable == null)
+		{
+			timing.failed("failed to calculate metrics", EXIT_DATABASE_FAILED);
+			return;
+		}
+
+		MetricsTableWriter writer = new MetricsTableWriter(metricsTable);
+
+		for (MetricsTableWriter.Format format : formats)
+		{
+			File file = new File(databaseOutputDir, getFileName(domainName) +
+					"-" + timing.table + "." + format.getExtension());
+
+			if (!write(writer, format, outputName + "-" + domainName +
+					"-" + timing.table, file))
+			{
+				timing.failed("failed to write " + file, EXIT_OUTPUT_FAILED);
+			}
+		}
+
+		timing.rows = writer.getNumRows();
+	}
+
+	/**
+	 * Calculates how the domain's concerns are tangled with each other.
+	 */
+	private MetricsTable getTanglingTable(ConcernModel concernModel)
+	{
+		AssignmentBitmaps bitmaps =
+			concernModel.getAssignmentBitmaps(concernComponentRelation);
+		if (bitmaps == null)
+			return null; // Already reported
+
+		TanglingMatrix matrix = new TanglingEngine(bitmaps, bitmaps).calculate(
+				concernModel.getRoot(), concernModel.getRoot(), null);
+		if (matrix == null)
+			return null;
+
+		IntersectionMetricsTable metricsTable = new IntersectionMetricsTable();
+		metricsTable.setMetrics(matrix);
+		return metricsTable;
+	}
+
+	private static boolean write(MetricsTableWriter writer,
+			MetricsTableWriter.Format format, String relationName, File file)
+	{
+		try
+		{
+			PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+			try
+			{
+				writer.write(format, relationName, out);
+				return !out.checkError();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to write " + file + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Prints the timing summary and writes it to timing.csv.
+	 *
+	 * @return false if the summary couldn't be written
+	 */
+	private boolean writeTimings(List<Timing> timings, long totalMillis)
+	{
+		System.out.println(String.format("%-20s %-20s %-10s %8s %8s  %s",
+				"Database", "Domain", "Table", "Rows", "Millis", "Status"));
+
+		for (Timing timing : timings)
+		{
+			System.out.println(String.format("%-20s %-20s %-10s %8d %8d  %s",
+					timing.database, timing.domain, timing.table,
+					timing.rows, timing.millis, timing.status));
+		}
+
+		System.out.println("Total: " + totalMillis + " ms for " +
+				databasePaths.size() + " database(s)");
+
+		File file = new File(outputDir, "timing.csv");
+
+		try
+		{
+			PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+			try
+			{
+				out.println("Database,Domain,Table,Rows,Millis,Status");
+
+				for (Timing timing : timings)
+				{
+					out.println(quoteCsv(timing.database) + "," +
+							quoteCsv(timing.domain) + "," + timing.table + "," +
+							timing.rows + "," + timing.millis + "," +
+							quoteCsv(timing.status));
+				}
+
+				out.println("Total,,,," + totalMillis + ",");
+				return !out.checkError();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to write " + file + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return a unique output directory name for each database
+	 */
+	private List<String> getOutputNames()
+	{
+		List<String> outputNames = new ArrayList<String>();
+		Set<String> used = new HashSet<String>();
+
+		for (String databasePath : databasePaths)
+		{
+			String name = getFileName(new File(databasePath).getAbsoluteFile().getName());
+			if (name.isEmpty())
+				name = "database";
+
+			String uniqueName = name;
+			for (int i = 2; !used.add(uniqueName); ++i)
+			{
+				uniqueName = name + "-" + i;
+			}
+
+			outputNames.add(uniqueName);
+		}
+
+		return outputNames;
+	}
+
+	/**
+	 * @return the name with characters that aren't allowed in file names
+	 *         replaced
+	 */
+	private static String getFileName(String name)
+	{
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	private static String quoteCsv(String value)
+	{
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
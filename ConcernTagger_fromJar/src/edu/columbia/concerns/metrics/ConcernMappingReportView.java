@@ -188,21 +188,8 @@ public class ConcernMappingReportView extends ViewPart
 	
 	public void safeRefresh()
 	{
-		Display display = safeGetDisplay();
-		if (display == null)
-			return;
-		
-		// Once we are finished, we need to refresh the display.
-		// However, this must be done on the UI thread.
-		display.asyncExec(new Runnable() 
-			{
-				public void run() 
-				{
-					aViewer.setInput(concernMappingReportTable);
-					aViewer.refresh();
-				}
-			}
-		);
+		// Coalesced with other refreshes and done on the UI thread
+		RefreshScheduler.singleton().refresh(aViewer, concernMappingReportTable);
 	}
 	
 	// Is there a better way?
@@ -338,12 +325,12 @@ public class ConcernMappingReportView extends ViewPart
 				classesName += c.getName()+"\n";
 //				LCCForComponent lccForComponent = metricsTool.getLCCValue(c);
 				
-				// Once we are finished, we need to refresh the display.
-				// However, this must be done on the UI thread.
-				safeRefresh();
 				if (myProgressMonitor != null)
 					myProgressMonitor.worked(1);				
 			}
+			
+			// Once we are finished, we need to refresh the display
+			safeRefresh();
 			ProblemManager.reportInfo("allClasses from Concern Model "+classesName , null);
 			
 //			int numberMethodsMapped = 0;
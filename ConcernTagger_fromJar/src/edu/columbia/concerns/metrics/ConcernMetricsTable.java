@@ -1,7 +1,6 @@
 package edu.columbia.concerns.metrics;
 
 import java.io.PrintStream;
-import java.util.Set;
 import java.util.TreeSet;
 
 import org.eclipse.swt.SWT;
@@ -14,16 +13,41 @@ public class ConcernMetricsTable
 	private static final String[] columnNames = new String[] { "Concern Name", "DOSC",
 		"DOSM", "CDC", "CDO", "SLOC" };
 
-	private Set<MetricsForConcern> metrics = new TreeSet<MetricsForConcern>();
+	// Guarded by 'this'.  Rows are added by the metrics job while the
+	// incremental updater changes them on the UI thread.
+	private TreeSet<MetricsForConcern> metrics = new TreeSet<MetricsForConcern>();
 
 	public ConcernMetricsTable()
 	{
 		super(columnNames);
 	}
 
-	public void add(MetricsForConcern metricsForConcern)
+	/**
+	 * @return false if the table already has a row for the concern
+	 */
+	public synchronized boolean add(MetricsForConcern metricsForConcern)
 	{
+		return metrics.add(metricsForConcern);
+	}
+
+	/**
+	 * Replaces the measurements of the concern's row, adding the row if
+	 * it doesn't exist.
+	 * 
+	 * @return the updated row, or null if the row was added
+	 */
+	public synchronized MetricsForConcern update(MetricsForConcern metricsForConcern)
+	{
+		MetricsForConcern existing = metrics.ceiling(metricsForConcern);
+		
+		if (existing != null && existing.compareTo(metricsForConcern) == 0)
+		{
+			existing.setMeasurements(metricsForConcern);
+			return existing;
+		}
+		
 		metrics.add(metricsForConcern);
+		return null;
 	}
 
 	// ----------------------------------------------------
@@ -55,13 +79,13 @@ public class ConcernMetricsTable
 	}
 
 	@Override
-	public void clear()
+	public synchronized void clear()
 	{
 		metrics.clear();
 	}
 
 	@Override
-	protected void outputRows(PrintStream out)
+	protected synchronized void outputRows(PrintStream out)
 	{
 		for(MetricsForConcern metricsForConcern : metrics)
 		{
@@ -85,7 +109,7 @@ public class ConcernMetricsTable
 	//	----------------------------------------------------
 
 	@Override
-	public Object[] getElements(Object inputElement)
+	public synchronized Object[] getElements(Object inputElement)
 	{
 		return metrics.toArray();
 	}
@@ -0,0 +1,481 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.columbia.concerns.repository.CodeModelSnapshot;
+import edu.columbia.concerns.repository.Component;
+import edu.columbia.concerns.repository.ComponentKind;
+import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.repository.EdgeKind;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
+
+/**
+ * Calculates the source line contributions of the classes and methods to
+ * every concern in a concern domain at once.
+ * <P>
+ * The rules are the same as MetricsTool.getContributionsForAllComponents():
+ * a component assigned to a concern or one of its child concerns, or whose
+ * ancestor is, contributes all of its lines. Otherwise, a class contributes
+ * the lines of its assigned methods and fields (including those of inner
+ * classes) up to its own line count.
+ * <P>
+ * Instead of walking the ancestors and descendants of every assignment for
+ * every concern, the code model is walked twice:
+ * <OL>
+ * <LI>Top-down (pre-order), collecting for each component the concerns
+ * that cover it, i.e., that are assigned to it or to one of its ancestors.
+ * A component that adds no concerns shares its parent's list.</LI>
+ * <LI>Bottom-up (reverse pre-order), summing for each class the lines of
+ * its assigned methods and fields per concern in a sparse vector, using a
+ * dense accumulator indexed by concern.</LI>
+ * </OL>
+ * So the cost is roughly the size of the code model times the number of
+ * concerns active at each component, rather than the number of concerns
+ * times the size of the code model.
+ * <P>
+ * Concerns are numbered in the same order as
+ * MetricsTool.getMetricsForConcernAndChildren() visits them, starting with
+ * the root. The contributions of each concern are listed in component id
+ * order, the same order MetricsTool uses, so feeding them to
+ * calculateDegreeOfScattering() gives identical results.
+ */
+public class ContributionEngine
+{
+	private static final int[] NO_CONCERNS = new int[0];
+
+	// Check for cancellation every this many components
+	private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+	private CodeModelSnapshot snapshot;
+
+	// Concerns in tree order and the index of their parent concern
+	private List<Concern> concerns = new ArrayList<Concern>();
+	private int[] concernParents;
+
+	// Per concern: the ordinals of the contributing classes and methods
+	// (in ordinal order) and their contributions
+	private int[][] contributingOrdinals;
+	private int[][] contributions;
+	private int[] numContributions;
+
+	public ContributionEngine(CodeModelSnapshot snapshot)
+	{
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Calculates the contributions for the concern and all of its
+	 * descendants.  Must be called on the thread that owns the database
+	 * connection since it loads the concerns' assignments.
+	 *
+	 * @return false if canceled
+	 */
+	public boolean calculate(Concern root,
+			EdgeKind concernComponentRelation,
+			ISimpleProgressMonitor progressMonitor)
+	{
+		concerns.clear();
+
+		List<Integer> parents = new ArrayList<Integer>();
+		numberConcerns(root, -1, parents);
+
+		int numConcerns = concerns.size();
+
+		concernParents = new int[numConcerns];
+		for (int i = 0; i < numConcerns; ++i)
+			concernParents[i] = parents.get(i);
+
+		int[][] assignedConcerns = getAssignedConcerns(concernComponentRelation);
+
+		if (isCanceled(progressMonitor))
+			return false;
+
+		int[][] coveringConcerns = getCoveringConcerns(assignedConcerns,
+				progressMonitor);
+		if (coveringConcerns == null)
+			return false;
+
+		int[][][] classSums = getClassSums(assignedConcerns, progressMonitor);
+		if (classSums == null)
+			return false;
+
+		collectContributions(coveringConcerns, classSums);
+		return true;
+	}
+
+	public int getNumConcerns()
+	{
+		return concerns.size();
+	}
+
+	/**
+	 * @return the concern with the index, in tree order
+	 */
+	public Concern getConcern(int index)
+	{
+		return concerns.get(index);
+	}
+
+	/**
+	 * @return the concern's contributing classes and methods, in component
+	 *         id order
+	 */
+	public Map<Component, Integer> getContributions(int index)
+	{
+		int count = numContributions[index];
+
+		Map<Component, Integer> result =
+			new LinkedHashMap<Component, Integer>(count * 2);
+
+		for (int i = 0; i < count; ++i)
+		{
+			result.put(snapshot.getComponent(contributingOrdinals[index][i]),
+					contributions[index][i]);
+		}
+
+		return result;
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private void numberConcerns(Concern concern, int parent, List<Integer> parents)
+	{
+		int index = concerns.size();
+
+		concerns.add(concern);
+		parents.add(parent);
+
+		for (Concern child : concern.getChildren())
+		{
+			numberConcerns(child, index, parents);
+		}
+	}
+
+	/**
+	 * Builds, for each component, the sorted indices of the concerns it is
+	 * assigned to directly or through a child concern (the same as
+	 * Concern.getAssignmentsRecursive()).
+	 *
+	 * @return per ordinal, the concern indices or null if none
+	 */
+	private int[][] getAssignedConcerns(EdgeKind concernComponentRelation)
+	{
+		int size = snapshot.size();
+		int numConcerns = concerns.size();
+
+		// Direct assignments, per ordinal
+		int[][] direct = new int[size][];
+		int[] numDirect = new int[size];
+
+		for (int concernIndex = 0; concernIndex < numConcerns; ++concernIndex)
+		{
+			for (Component component :
+				concerns.get(concernIndex).getAssignments(concernComponentRelation))
+			{
+				int ordinal = snapshot.getOrdinal(component);
+				if (ordinal == CodeModelSnapshot.NONE)
+					continue; // Not in the code model
+
+				direct[ordinal] = append(direct[ordinal], numDirect[ordinal]++,
+						concernIndex);
+			}
+		}
+
+		// Add the ancestor concerns.  'visited' holds the last ordinal for
+		// which each concern was added, so we don't add it twice.
+
+		int[][] assigned = new int[size][];
+
+		int[] visited = new int[numConcerns];
+		Arrays.fill(visited, -1);
+
+		int[] buffer = new int[numConcerns];
+
+		for (int ordinal = 0; ordinal < size; ++ordinal)
+		{
+			if (numDirect[ordinal] == 0)
+				continue;
+
+			int count = 0;
+
+			for (int i = 0; i < numDirect[ordinal]; ++i)
+			{
+				for (int concernIndex = direct[ordinal][i];
+					concernIndex != -1 && visited[concernIndex] != ordinal;
+					concernIndex = concernParents[concernIndex])
+				{
+					visited[concernIndex] = ordinal;
+					buffer[count++] = concernIndex;
+				}
+			}
+
+			assigned[ordinal] = Arrays.copyOf(buffer, count);
+			Arrays.sort(assigned[ordinal]);
+		}
+
+		return assigned;
+	}
+
+	/**
+	 * Top-down pass: the concerns assigned to each component or to one of
+	 * its ancestors.
+	 *
+	 * @return per ordinal, the sorted concern indices, or null if canceled
+	 */
+	private int[][] getCoveringConcerns(int[][] assignedConcerns,
+			ISimpleProgressMonitor progressMonitor)
+	{
+		int size = snapshot.size();
+
+		int[][] covering = new int[size][];
+
+		// Parents come before their children in pre-order
+		for (int position = 0; position < size; ++position)
+		{
+			if (position % CANCEL_CHECK_INTERVAL == 0 && isCanceled(progressMonitor))
+				return null;
+
+			int ordinal = snapshot.getOrdinalAtPreOrder(position);
+			int parent = snapshot.getParent(ordinal);
+
+			int[] inherited = parent != CodeModelSnapshot.NONE ?
+					covering[parent] : NO_CONCERNS;
+
+			covering[ordinal] = union(inherited, assignedConcerns[ordinal]);
+		}
+
+		return covering;
+	}
+
+	/**
+	 * Bottom-up pass: for each class, the total lines of its assigned
+	 * methods and fields (including those in inner and local classes) per
+	 * concern.  Assigned inner classes don't count toward their outer
+	 * class.
+	 *
+	 * @return per ordinal, { concern indices, sums } for classes (null for
+	 *         other components), or null if canceled
+	 */
+	private int[][][] getClassSums(int[][] assignedConcerns,
+			ISimpleProgressMonitor progressMonitor)
+	{
+		int size = snapshot.size();
+		int numConcerns = concerns.size();
+
+		// What each component passes up to its parent class:
+		// { concern indices, sums }
+		int[][][] passedUp = new int[size][][];
+
+		int[][][] classSums = new int[size][][];
+
+		// Dense accumulator, and the concerns touched in it
+		int[] sums = new int[numConcerns];
+		boolean[] isTouched = new boolean[numConcerns];
+		int[] touched = new int[numConcerns];
+
+		// Children come before their parents in reverse pre-order
+		for (int position = size - 1; position >= 0; --position)
+		{
+			if (position % CANCEL_CHECK_INTERVAL == 0 && isCanceled(progressMonitor))
+				return null;
+
+			int ordinal = snapshot.getOrdinalAtPreOrder(position);
+			int numTouched = 0;
+
+			// Sum what the children passed up
+			int numChildren = snapshot.getNumChildren(ordinal);
+			for (int i = 0; i < numChildren; ++i)
+			{
+				int child = snapshot.getChild(ordinal, i);
+
+				int[][] childSums = passedUp[child];
+				if (childSums == null)
+					continue;
+
+				passedUp[child] = null; // No longer needed
+
+				for (int j = 0; j < childSums[0].length; ++j)
+				{
+					int concernIndex = childSums[0][j];
+					if (!isTouched[concernIndex])
+					{
+						isTouched[concernIndex] = true;
+						touched[numTouched++] = concernIndex;
+					}
+
+					sums[concernIndex] += childSums[1][j];
+				}
+			}
+
+			boolean isClass = snapshot.isKind(ordinal, ComponentKind.CLASS);
+
+			// Only non-class assignments count toward the parent class
+			int[] assigned = assignedConcerns[ordinal];
+			if (!isClass && assigned != null)
+			{
+				int numLines = snapshot.getNumSourceLines(ordinal);
+
+				for (int concernIndex : assigned)
+				{
+					if (!isTouched[concernIndex])
+					{
+						isTouched[concernIndex] = true;
+						touched[numTouched++] = concernIndex;
+					}
+
+					sums[concernIndex] += numLines;
+				}
+			}
+
+			int[][] vector = null;
+
+			if (numTouched > 0)
+			{
+				Arrays.sort(touched, 0, numTouched);
+
+				vector = new int[][] { Arrays.copyOf(touched, numTouched),
+						new int[numTouched] };
+
+				for (int i = 0; i < numTouched; ++i)
+				{
+					int concernIndex = touched[i];
+
+					vector[1][i] = sums[concernIndex];
+
+					sums[concernIndex] = 0;
+					isTouched[concernIndex] = false;
+				}
+			}
+
+			if (isClass)
+				classSums[ordinal] = vector;
+
+			// Sums are only needed up to the outermost class, so don't
+			// pass them on to files, packages, or projects
+			int parent = snapshot.getParent(ordinal);
+			if (vector != null && parent != CodeModelSnapshot.NONE &&
+				!isAboveClassLevel(parent))
+			{
+				passedUp[ordinal] = vector;
+			}
+		}
+
+		return classSums;
+	}
+
+	/**
+	 * Lists each concern's contributing classes and methods in ordinal
+	 * (i.e., component id) order.
+	 */
+	private void collectContributions(int[][] coveringConcerns, int[][][] classSums)
+	{
+		int size = snapshot.size();
+		int numConcerns = concerns.size();
+
+		contributingOrdinals = new int[numConcerns][];
+		contributions = new int[numConcerns][];
+		numContributions = new int[numConcerns];
+
+		for (int ordinal = 0; ordinal < size; ++ordinal)
+		{
+			boolean isClass = snapshot.isKind(ordinal, ComponentKind.CLASS);
+			if (!isClass && !snapshot.isKind(ordinal, ComponentKind.METHOD))
+				continue;
+
+			int numLines = snapshot.getNumSourceLines(ordinal);
+
+			// Covered components contribute all their lines
+			int[] covering = coveringConcerns[ordinal];
+			for (int concernIndex : covering)
+				addContribution(concernIndex, ordinal, numLines);
+
+			if (!isClass || classSums[ordinal] == null)
+				continue;
+
+			// Other classes contribute the lines of their assigned
+			// members, but never more than their own lines
+			int[] sumConcerns = classSums[ordinal][0];
+			int[] sums = classSums[ordinal][1];
+
+			for (int i = 0; i < sumConcerns.length; ++i)
+			{
+				if (Arrays.binarySearch(covering, sumConcerns[i]) < 0)
+				{
+					addContribution(sumConcerns[i], ordinal,
+							Math.min(sums[i], numLines));
+				}
+			}
+		}
+	}
+
+	private boolean isAboveClassLevel(int ordinal)
+	{
+		return snapshot.isKind(ordinal, ComponentKind.FILE) ||
+			snapshot.isKind(ordinal, ComponentKind.PACKAGE) ||
+			snapshot.isKind(ordinal, ComponentKind.PROJECT);
+	}
+
+	private void addContribution(int concernIndex, int ordinal, int contribution)
+	{
+		int count = numContributions[concernIndex]++;
+
+		contributingOrdinals[concernIndex] =
+			append(contributingOrdinals[concernIndex], count, ordinal);
+		contributions[concernIndex] =
+			append(contributions[concernIndex], count, contribution);
+	}
+
+	/**
+	 * Stores the value at the index, growing the array if needed.
+	 */
+	private static int[] append(int[] array, int index, int value)
+	{
+		if (array == null)
+			array = new int[4];
+		else if (index == array.length)
+			array = Arrays.copyOf(array, array.length * 2);
+
+		array[index] = value;
+		return array;
+	}
+
+	/**
+	 * @return the union of two sorted arrays, sharing lhs if rhs adds
+	 *         nothing
+	 */
+	private static int[] union(int[] lhs, int[] rhs)
+	{
+		if (rhs == null || rhs.length == 0)
+			return lhs;
+
+		int[] result = new int[lhs.length + rhs.length];
+		int count = 0;
+		int i = 0, j = 0;
+
+		while (i < lhs.length || j < rhs.length)
+		{
+			if (j == rhs.length || (i < lhs.length && lhs[i] < rhs[j]))
+				result[count++] = lhs[i++];
+			else if (i == lhs.length || rhs[j] < lhs[i])
+				result[count++] = rhs[j++];
+			else
+			{
+				result[count++] = lhs[i++];
+				++j;
+			}
+		}
+
+		return count == lhs.length ? lhs : Arrays.copyOf(result, count);
+	}
+
+	private static boolean isCanceled(ISimpleProgressMonitor progressMonitor)
+	{
+		return progressMonitor != null && progressMonitor.isCanceled();
+	}
+}
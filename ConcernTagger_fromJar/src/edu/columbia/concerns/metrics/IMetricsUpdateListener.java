@@ -0,0 +1,17 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.List;
+
+/**
+ * Interface for views that display metrics maintained by an
+ * IncrementalMetricsUpdater.
+ */
+public interface IMetricsUpdateListener
+{
+	/**
+	 * Called on the updater's job thread with the recalculated rows.
+	 * Either list may be empty.
+	 */
+	public void metricsUpdated(List<MetricsForConcern> concernMetrics,
+			List<LCCForComponent> lccMetrics);
+}
@@ -0,0 +1,272 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.IJavaElement;
+
+import edu.columbia.concerns.model.ConcernEvent;
+import edu.columbia.concerns.model.IConcernModelProvider;
+import edu.columbia.concerns.repository.CodeModelSnapshot;
+import edu.columbia.concerns.repository.Component;
+import edu.columbia.concerns.repository.ComponentKind;
+import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
+
+/**
+ * Keeps a metrics view up to date as concerns are assigned and unassigned,
+ * without recalculating the metrics for every concern.
+ * <P>
+ * Assigning an element to a concern only changes the scattering metrics
+ * of the concern and its ancestors, since a concern's metrics include the
+ * assignments of its children.  It only changes the LCC of the element
+ * itself (if it is a class) and of its declaring class, since LCC only
+ * considers a class's own assignments and those of its direct members.
+ * <P>
+ * Events are queued and handled together after a short delay, so a burst
+ * of assignments (e.g., dropping many elements on a concern) causes a
+ * single update.
+ */
+public class IncrementalMetricsUpdater
+	extends Job
+	implements ISimpleProgressMonitor
+{
+	// How long to wait for more events before updating
+	private static final long COALESCE_DELAY_MS = 50;
+
+	private MetricsTool metricsTool;
+	private IConcernModelProvider concernModelProvider;
+	private IMetricsUpdateListener listener;
+
+	private boolean updateConcernMetrics;
+	private boolean updateLCCMetrics;
+
+	// Pending work, guarded by 'this'
+	private Set<Concern> changedConcerns = new LinkedHashSet<Concern>();
+	private Set<IJavaElement> changedElements = new LinkedHashSet<IJavaElement>();
+
+	private IProgressMonitor myProgressMonitor;
+
+	/**
+	 * @param updateConcernMetrics
+	 *            true to recalculate scattering metrics for assignments
+	 *            using the provider's concern-component relation
+	 * @param updateLCCMetrics
+	 *            true to recalculate LCC for assignments using any
+	 *            relation
+	 */
+	public IncrementalMetricsUpdater(String name,
+			MetricsTool metricsTool,
+			IConcernModelProvider concernModelProvider,
+			IMetricsUpdateListener listener,
+			boolean updateConcernMetrics,
+			boolean updateLCCMetrics)
+	{
+		super(name);
+
+		this.metricsTool = metricsTool;
+		this.concernModelProvider = concernModelProvider;
+		this.listener = listener;
+		this.updateConcernMetrics = updateConcernMetrics;
+		this.updateLCCMetrics = updateLCCMetrics;
+
+		setSystem(true);
+	}
+
+	/**
+	 * Queues the assignments and unassignments in the event for updating.
+	 *
+	 * @return true if the event contained any
+	 */
+	public boolean modelChanged(ConcernEvent events)
+	{
+		boolean queued = false;
+
+		for (ConcernEvent event : events)
+		{
+			if (event.isChangedAssignments())
+			{
+				// Only the concern is known, not the elements
+				synchronized (this)
+				{
+					if (updateConcernMetrics &&
+						event.getRelation() == concernModelProvider.getConcernComponentRelation())
+					{
+						changedConcerns.add(event.getConcern());
+						queued = true;
+					}
+				}
+				
+				continue;
+			}
+			
+			if (!event.isAssign() && !event.isUnassign())
+				continue;
+
+			synchronized (this)
+			{
+				if (updateConcernMetrics &&
+					event.getRelation() == concernModelProvider.getConcernComponentRelation())
+				{
+					changedConcerns.add(event.getConcern());
+					queued = true;
+				}
+
+				if (updateLCCMetrics && event.getJavaElement() != null)
+				{
+					changedElements.add(event.getJavaElement());
+					queued = true;
+				}
+			}
+		}
+
+		if (queued)
+			schedule(COALESCE_DELAY_MS);
+
+		return queued;
+	}
+
+	/**
+	 * Discards any pending updates, e.g., because all the metrics are
+	 * being recalculated.
+	 */
+	public synchronized void clear()
+	{
+		changedConcerns.clear();
+		changedElements.clear();
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor progressMonitor)
+	{
+		myProgressMonitor = progressMonitor;
+
+		List<Concern> concerns;
+		List<IJavaElement> elements;
+
+		synchronized (this)
+		{
+			concerns = new ArrayList<Concern>(changedConcerns);
+			elements = new ArrayList<IJavaElement>(changedElements);
+
+			changedConcerns.clear();
+			changedElements.clear();
+		}
+
+		List<MetricsForConcern> concernMetrics = updateConcernMetrics(concerns);
+		if (concernMetrics == null)
+			return Status.CANCEL_STATUS;
+
+		List<LCCForComponent> lccMetrics = updateLCCMetrics(elements);
+		if (lccMetrics == null)
+			return Status.CANCEL_STATUS;
+
+		if (!concernMetrics.isEmpty() || !lccMetrics.isEmpty())
+			listener.metricsUpdated(concernMetrics, lccMetrics);
+
+		return Status.OK_STATUS;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		if (myProgressMonitor == null)
+			return false;
+		else
+			return myProgressMonitor.isCanceled();
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * @return the recalculated metrics for the concerns and their
+	 *         ancestors, or null if canceled
+	 */
+	private List<MetricsForConcern> updateConcernMetrics(List<Concern> concerns)
+	{
+		// The root concern isn't displayed
+		Set<Concern> affectedConcerns = new LinkedHashSet<Concern>();
+		for (Concern concern : concerns)
+		{
+			for (Concern ancestor = concern;
+				ancestor != null && !ancestor.isRoot();
+				ancestor = ancestor.getParent())
+			{
+				if (!affectedConcerns.add(ancestor))
+					break; // Already added it and its ancestors
+			}
+		}
+
+		List<MetricsForConcern> result = new ArrayList<MetricsForConcern>();
+
+		for (Concern concern : affectedConcerns)
+		{
+			MetricsForConcern metricsForConcern =
+				metricsTool.getMetricsForConcern(concern, this);
+
+			if (isCanceled())
+				return null;
+
+			if (metricsForConcern != null)
+				result.add(metricsForConcern);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return the recalculated LCC for the classes affected by the
+	 *         elements' assignments, or null if canceled
+	 */
+	private List<LCCForComponent> updateLCCMetrics(List<IJavaElement> elements)
+	{
+		List<LCCForComponent> result = new ArrayList<LCCForComponent>();
+		if (elements.isEmpty())
+			return result;
+
+		CodeModelSnapshot snapshot = concernModelProvider.getModel().getCodeModelSnapshot();
+		if (snapshot == null)
+			return result; // Already reported error
+
+		Set<Component> affectedClasses = new LinkedHashSet<Component>();
+		for (IJavaElement element : elements)
+		{
+			Component component = concernModelProvider.getModel().getComponent(
+					element.getHandleIdentifier());
+			if (component == null)
+				continue;
+
+			int ordinal = snapshot.getOrdinal(component);
+			if (ordinal == CodeModelSnapshot.NONE)
+				continue;
+
+			if (snapshot.isKind(ordinal, ComponentKind.CLASS))
+				affectedClasses.add(component);
+
+			int parent = snapshot.getParent(ordinal);
+			if (parent != CodeModelSnapshot.NONE &&
+				snapshot.isKind(parent, ComponentKind.CLASS))
+			{
+				affectedClasses.add(snapshot.getComponent(parent));
+			}
+		}
+
+		for (Component clazz : affectedClasses)
+		{
+			if (isCanceled())
+				return null;
+
+			result.add(metricsTool.getLCCValue(clazz));
+		}
+
+		return result;
+	}
+}
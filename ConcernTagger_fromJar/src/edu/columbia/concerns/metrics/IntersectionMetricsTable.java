@@ -1,34 +1,41 @@
 package edu.columbia.concerns.metrics;
 
 import java.io.PrintStream;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
 
 import edu.columbia.concerns.repository.Concern;
-import edu.columbia.concerns.util.NameWithEmbeddedNumbersComparer;
 
 public class IntersectionMetricsTable
 	extends MetricsTable
 {
+	// The shared components are listed in the same order as the
+	// concerns tangled with
 	private static final String[] columnNames = new String[] { "Concern", "Count",
-		"Concerns Tangled With" };
+		"Concerns Tangled With (Shared Lines)", "Shared Components" };
 	
-	Map<Concern, Set<Concern>> metrics = 
-		new TreeMap<Concern, Set<Concern>>(new NameWithEmbeddedNumbersComparer());
+	TanglingMatrix metrics = new TanglingMatrix();
 
 	public IntersectionMetricsTable()
 	{
 		super(columnNames);
 	}
 
-	public void add(Concern concern, Set<Concern> tangledWithConcerns)
+	public void setMetrics(TanglingMatrix metrics)
 	{
-		metrics.put(concern, tangledWithConcerns);
+		this.metrics = metrics;
+	}
+	
+	public int getNumRows()
+	{
+		return metrics.getNumRows();
+	}
+	
+	public TanglingMatrix.Row getRow(int index)
+	{
+		return metrics.getRow(index);
 	}
 	
 	// ----------------------------------------------------
@@ -48,30 +55,35 @@ public class IntersectionMetricsTable
 		column = new TableColumn(table, SWT.LEFT);
 		column.setText(columnNames[2]);
 		column.setWidth(400);
+		column = new TableColumn(table, SWT.LEFT);
+		column.setText(columnNames[3]);
+		column.setWidth(150);
 	}
 
 	@Override
 	public void clear()
 	{
-		metrics.clear();
+		metrics = new TanglingMatrix();
 	}
 	
 	@Override
 	protected void outputRows(PrintStream out)
 	{
-		for(Map.Entry<Concern, Set<Concern>> concernAndConcernsItsTangledWith : 
-			metrics.entrySet())
+		// Page through the rows rather than copying them all
+		final int pageSize = 256;
+		
+		for(int from = 0; from < metrics.getNumRows(); from += pageSize)
 		{
-			out.print("\"" + 
-					getColumnTextHelper(concernAndConcernsItsTangledWith, true, 0) + 
-					"\"");
-			out.print(',');
-			out.print(
-					getColumnTextHelper(concernAndConcernsItsTangledWith, true, 1));
-			out.print(',');
-			out.println("\"" + 
-					getColumnTextHelper(concernAndConcernsItsTangledWith, true, 2) + 
-					"\"");
+			for(TanglingMatrix.Row row : metrics.getRows(from, pageSize))
+			{
+				out.print("\"" + getColumnTextHelper(row, true, 0) + "\"");
+				out.print(',');
+				out.print(getColumnTextHelper(row, true, 1));
+				out.print(',');
+				out.print("\"" + getColumnTextHelper(row, true, 2) + "\"");
+				out.print(',');
+				out.println("\"" + getColumnTextHelper(row, true, 3) + "\"");
+			}
 		}
 	}
 
@@ -80,10 +92,9 @@ public class IntersectionMetricsTable
 	// ----------------------------------------------------
 	
 	@Override
-	@SuppressWarnings("unchecked")
 	public String getColumnText(Object element, int columnIndex)
 	{
-		return getColumnTextHelper((Map.Entry<Concern, Set<Concern>>) element,
+		return getColumnTextHelper((TanglingMatrix.Row) element,
 				true,
 				columnIndex);
 	}
@@ -95,38 +106,58 @@ public class IntersectionMetricsTable
 	@Override
 	public Object[] getElements(Object inputElement)
 	{
-		return metrics.entrySet().toArray();
+		return metrics.getRows(0, metrics.getNumRows()).toArray();
 	}
 
 	// ----------------------------------------------------
 	// HELPER METHODS
 	// ----------------------------------------------------
 	
-	private String getColumnTextHelper(	Map.Entry<Concern, Set<Concern>> concernAndConcernsItsTangledWith,
+	private String getColumnTextHelper(	TanglingMatrix.Row row,
 	                                   	boolean useShortNamesForTangledConcerns,
 	                                   	int columnIndex)
 	{
 		switch(columnIndex)
 		{
 		case 0: 
-			return concernAndConcernsItsTangledWith.getKey().getDisplayName();
+			return row.getConcern().getDisplayName();
 		case 1: 
-			return String.valueOf(
-					concernAndConcernsItsTangledWith.getValue().size());
+			return String.valueOf(row.getNumTangledConcerns());
 		case 2: 
 			StringBuffer buf = new StringBuffer();
 
-			for(Concern tangledConcern : 
-				concernAndConcernsItsTangledWith.getValue())
+			for(int i = 0; i < row.getNumTangledConcerns(); ++i)
 			{
 				if (buf.length() > 0)
 					buf.append(", ");
 
-				buf.append(tangledConcern.getShortDisplayName());
+				Concern tangledConcern = row.getTangledConcern(i);
+				
+				if (useShortNamesForTangledConcerns)
+					buf.append(tangledConcern.getShortDisplayName());
+				else
+					buf.append(tangledConcern.getDisplayName());
+				
+				buf.append(" (");
+				buf.append(row.getSharedLines(i));
+				buf.append(')');
 			}
 
 			return buf.toString();
 
+		case 3:
+			StringBuffer counts = new StringBuffer();
+
+			for(int i = 0; i < row.getNumTangledConcerns(); ++i)
+			{
+				if (counts.length() > 0)
+					counts.append(", ");
+
+				counts.append(row.getOverlapCount(i));
+			}
+
+			return counts.toString();
+
 		default: 
 			return "<ERROR>";
 		}
@@ -1,10 +1,5 @@
 package edu.columbia.concerns.metrics;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.TreeSet;
-
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
@@ -35,8 +30,7 @@ import edu.columbia.concerns.model.ConcernModel;
 import edu.columbia.concerns.model.ConcernModelFactory;
 import edu.columbia.concerns.model.IConcernListener;
 import edu.columbia.concerns.model.IConcernModelProviderEx;
-import edu.columbia.concerns.repository.Component;
-import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.repository.AssignmentBitmaps;
 import edu.columbia.concerns.repository.ConcernRepository;
 import edu.columbia.concerns.repository.EdgeKind;
 import edu.columbia.concerns.util.ISimpleProgressMonitor;
@@ -259,21 +253,8 @@ public class IntersectionView
 	
 	public void safeRefresh()
 	{
-		Display display = safeGetDisplay();
-		if (display == null)
-			return;
-		
-		// Once we are finished, we need to refresh the display.
-		// However, this must be done on the UI thread.
-		display.asyncExec(new Runnable() 
-			{
-				public void run() 
-				{
-					viewer.setInput(intersectionMetrics);
-					viewer.refresh();
-				}
-			}
-		);
+		// Coalesced with other refreshes and done on the UI thread
+		RefreshScheduler.singleton().refresh(viewer, intersectionMetrics);
 	}
 	
 	@Override
@@ -334,86 +315,31 @@ public class IntersectionView
 			
 			myProgressMonitor = progressMonitor;
 			
-			// Clear the metrics since we are recalculating them
-			intersectionMetrics.clear();
-			
 			if (myProgressMonitor != null)
-				myProgressMonitor.beginTask("Concern", 
-						concernModelLhs.getNumConcerns());
+				myProgressMonitor.beginTask("Tangling", IProgressMonitor.UNKNOWN);
 			
-			IStatus status = processRecursive(concernModelLhs.getRoot());
+			AssignmentBitmaps bitmapsLhs = 
+				concernModelLhs.getAssignmentBitmaps(concernComponentRelationLhs);
+			AssignmentBitmaps bitmapsRhs = 
+				concernModelRhs.getAssignmentBitmaps(concernComponentRelationRhs);
+			if (bitmapsLhs == null || bitmapsRhs == null)
+				return Status.CANCEL_STATUS; // Already reported error
 			
+			// Calculates the tangling of all the concerns at once
+			TanglingMatrix metrics = new TanglingEngine(bitmapsLhs, bitmapsRhs).calculate(
+					concernModelLhs.getRoot(), concernModelRhs.getRoot(), this);
+
 			if (myProgressMonitor != null)
 				myProgressMonitor.done();
 			
-			return status;
-		}
-
-		private IStatus processRecursive(Concern concern)
-		{
-			if (isCanceled())
+			if (metrics == null)
 				return Status.CANCEL_STATUS;
 			
-			if (!concern.isRoot())
-			{
-				if (myProgressMonitor != null)
-					myProgressMonitor.subTask(concern.getDisplayName());
-
-				Set<Concern> tangledConcernsRhs = new TreeSet<Concern>();
-
-				// Concerns A is considered tangled with concern B iff any
-				// component assigned (directly or indirectly, as determined
-				// by the aggregation rules) to A is also assigned (directly
-				// or indirectly) to B.						
-				
-				Set<Component> assignmentsToA = new HashSet<Component>(); 
-				concern.getAssignmentsRecursive(concernComponentRelationLhs,
-						assignmentsToA);
-
-				// Use a set so we don't check the same component twice
-				Set<Component> assignmentsToCheck = new HashSet<Component>();
-				
-				for(Component assignmentToA : assignmentsToA)
-				{
-					// Check all direct assignments to A
-					assignmentsToCheck.add(assignmentToA);
-					
-					// All descendants of components directly assigned to A
-					// are considered indirectly assigned to A
-					assignmentsToCheck.addAll(assignmentToA.getDescendants());
-
-					// Check if any ancestor of the component is directly
-					// assigned to B since this would mean the component
-					// is indirectly assigned to B, and thus tangled with A
-					assignmentsToCheck.addAll(assignmentToA.getAncestors());
-				}
-				
-				for(Component assignmentToCheck : assignmentsToCheck)
-				{
-					Collection<Concern> tangledConcernsForThisAssignment =
-						concernModelRhs.getAssignedConcerns(assignmentToCheck, 
-								concernComponentRelationRhs);
-					
-					if (tangledConcernsForThisAssignment != null)
-						tangledConcernsRhs.addAll(tangledConcernsForThisAssignment);
-				}
+			intersectionMetrics.setMetrics(metrics);
 
-				intersectionMetrics.add(concern, tangledConcernsRhs);
-
-				// Once we are finished, we need to refresh the display.
-				// However, this must be done on the UI thread.
-				safeRefresh();
-
-				if (myProgressMonitor != null)
-					myProgressMonitor.worked(1);
-			}
-			
-			for(Concern child : concern.getChildren())
-			{
-				IStatus status = processRecursive(child);
-				if (!status.isOK())
-					return status;
-			}
+			// Once we are finished, we need to refresh the display.
+			// However, this must be done on the UI thread.
+			safeRefresh();
 			
 			return Status.OK_STATUS;
 		}
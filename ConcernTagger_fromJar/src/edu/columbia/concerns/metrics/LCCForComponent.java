@@ -45,11 +45,38 @@ public class LCCForComponent implements Comparable<LCCForComponent> {
 		}else
 			packagePath = "";
 	}
-	
+
+	/**
+	 * Same as LCCForComponent(Component) except the package path is
+	 * supplied by the caller (e.g., from a CodeModelSnapshot), so the
+	 * Java model is not consulted.
+	 */
+	public LCCForComponent(Component component, String packagePath)
+	{
+		this.component = component;
+		this.packagePath = packagePath;
+		lccValue = 0;
+	}
+
 	public Component getComponent()
 	{
 		return component;
 	}
+
+	/**
+	 * Replaces the measurements with those of a recalculation, keeping
+	 * this object's identity so viewers can update its row in place.
+	 */
+	public void setMeasurements(LCCForComponent recalculated)
+	{
+		lccValue = recalculated.lccValue;
+		isFullyMapped = recalculated.isFullyMapped;
+		assignedConcerns = recalculated.assignedConcerns;
+		numberOfMethods = recalculated.numberOfMethods;
+		numberOfFields = recalculated.numberOfFields;
+		methodsCovered = recalculated.methodsCovered;
+		fieldsCovered = recalculated.fieldsCovered;
+	}
 	
 	public String getPackage(){
 		return packagePath;
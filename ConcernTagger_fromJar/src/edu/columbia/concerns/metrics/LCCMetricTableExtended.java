@@ -1,8 +1,8 @@
 package edu.columbia.concerns.metrics;
 
 import java.io.PrintStream;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Table;
@@ -20,15 +20,43 @@ public class LCCMetricTableExtended extends MetricsTable {
 
 	private static final String[] columnNames = new String[] { "Component", "LCC", "Fully Mapped", "NOA", "Mapped Attributes", "NOM", "Mapped Methods", "Assigned_Concerns"};
 	
-	private Set<LCCForComponent> lccMeasurements = new TreeSet<LCCForComponent>();
+	// One row per component, in the order they were added.  Keyed by
+	// component since LCCForComponent's ordering only compares names.
+	// Guarded by 'this'.  Rows are added by the LCC job while the
+	// incremental updater changes them on the UI thread.
+	private Map<Component, LCCForComponent> rowsByComponent = 
+		new LinkedHashMap<Component, LCCForComponent>();
 	
 	public LCCMetricTableExtended() {
 		super(columnNames);
 	}
 
-	public void add(LCCForComponent lccForComponent)
+	/**
+	 * @return false if the table already has a row for the component
+	 */
+	public synchronized boolean add(LCCForComponent lccForComponent)
 	{
-		lccMeasurements.add(lccForComponent);
+		if (rowsByComponent.containsKey(lccForComponent.getComponent()))
+			return false;
+		
+		rowsByComponent.put(lccForComponent.getComponent(), lccForComponent);
+		return true;
+	}
+	
+	/**
+	 * Replaces the measurements of the component's row, adding the row if
+	 * it doesn't exist.
+	 * 
+	 * @return the updated row, or null if the row was added
+	 */
+	public synchronized LCCForComponent update(LCCForComponent lccForComponent)
+	{
+		if (add(lccForComponent))
+			return null;
+		
+		LCCForComponent existing = rowsByComponent.get(lccForComponent.getComponent());
+		existing.setMeasurements(lccForComponent);
+		return existing;
 	}
 	
 	@Override
@@ -62,9 +90,9 @@ public class LCCMetricTableExtended extends MetricsTable {
 	}
 
 	@Override
-	public void clear()
+	public synchronized void clear()
 	{
-		lccMeasurements.clear();
+		rowsByComponent.clear();
 	}	
 	
 	// Overriding from MetricsTable in order to output also the csv without concern
@@ -85,9 +113,9 @@ public class LCCMetricTableExtended extends MetricsTable {
 	}
 
 	@Override
-	protected void outputRows(PrintStream out)
+	protected synchronized void outputRows(PrintStream out)
 	{
-		for(LCCForComponent lccForComponent : lccMeasurements)
+		for(LCCForComponent lccForComponent : rowsByComponent.values())
 		{
 			out.println(lccForComponent);
 		}
@@ -101,9 +129,9 @@ public class LCCMetricTableExtended extends MetricsTable {
 	}
 
 	@Override
-	public Object[] getElements(Object inputElement)
+	public synchronized Object[] getElements(Object inputElement)
 	{
-		return lccMeasurements.toArray();
+		return rowsByComponent.values().toArray();
 	}	
 
 }
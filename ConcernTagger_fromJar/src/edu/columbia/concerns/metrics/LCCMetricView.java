@@ -35,11 +35,15 @@ import edu.columbia.concerns.util.ISimpleProgressMonitor;
  * 
  */
 public class LCCMetricView extends ViewPart 
-   implements IConcernListener, IRefreshableView, IConcernModelProviderEx
+   implements IConcernListener, IRefreshableView, IConcernModelProviderEx,
+   	IMetricsUpdateListener
 {
 	
 	MetricsJob job = null;
 	
+	// Updates individual rows as concerns are assigned and unassigned
+	IncrementalMetricsUpdater updater = null;
+	
 	private TableViewer aViewer;
 	
 //	protected LCCMetricTable lccMetricTable = new LCCMetricTable();
@@ -104,6 +108,13 @@ public class LCCMetricView extends ViewPart
 
 		metricsTool = new MetricsTool(this);
 
+		if (updater != null)
+			updater.cancel();
+		
+		updater = new IncrementalMetricsUpdater(
+				"Updating LCC metric for '" + concernDomain + "'",
+				metricsTool, this, this, false, true);
+		
 		concernModel.addListener(this);
 
 		updateTitleAndToolTip();
@@ -143,6 +154,10 @@ public class LCCMetricView extends ViewPart
 		if (job != null)
 			job.cancel();
 		
+		// Everything is being recalculated anyway
+		if (updater != null)
+			updater.clear();
+		
 		// Calculate the metrics in a concurrent worker job
 		job = new MetricsJob(
 				"Calculating LCC metric for '" +
@@ -162,27 +177,78 @@ public class LCCMetricView extends ViewPart
 			
 			closeMe();
 		}
+		else if (hasChangedAssignments(event))
+		{
+			// Too many assignments changed to know which classes are
+			// affected
+			refresh();
+		}
+		else if (updater != null)
+		{
+			// Only recalculates the LCC of the affected classes
+			updater.modelChanged(event);
+		}
 	}
 	
-	public void safeRefresh()
+	@Override
+	public void metricsUpdated(List<MetricsForConcern> concernMetrics,
+	                           final List<LCCForComponent> lccMetrics)
 	{
 		Display display = safeGetDisplay();
 		if (display == null)
 			return;
 		
-		// Once we are finished, we need to refresh the display.
-		// However, this must be done on the UI thread.
+		// Update the rows on the UI thread so the table isn't changed
+		// while it is being displayed
 		display.asyncExec(new Runnable() 
 			{
 				public void run() 
 				{
-					aViewer.setInput(lccMetricTableExtended);
-					aViewer.refresh();
+					if (aViewer.getControl().isDisposed())
+						return;
+					
+					RefreshScheduler scheduler = RefreshScheduler.singleton();
+					
+					for (LCCForComponent lccForComponent : lccMetrics)
+					{
+						LCCForComponent row = lccMetricTableExtended.update(lccForComponent);
+						if (row != null)
+							scheduler.update(aViewer, row);
+						else
+							scheduler.add(aViewer, lccForComponent);
+					}
 				}
 			}
 		);
 	}
 	
+	@Override
+	public void dispose()
+	{
+		if (job != null)
+			job.cancel();
+		if (updater != null)
+			updater.cancel();
+		super.dispose();
+	}
+	
+	private static boolean hasChangedAssignments(ConcernEvent events)
+	{
+		for (ConcernEvent event : events)
+		{
+			if (event.isChangedAssignments())
+				return true;
+		}
+		
+		return false;
+	}
+	
+	public void safeRefresh()
+	{
+		// Coalesced with other refreshes and done on the UI thread
+		RefreshScheduler.singleton().refresh(aViewer, lccMetricTableExtended);
+	}
+	
 	// Is there a better way?
 	public void closeMe()
 	{
@@ -278,6 +344,7 @@ public class LCCMetricView extends ViewPart
 			
 			// Clear the metrics since we are recalculating them
 			lccMetricTableExtended.clear();
+			RefreshScheduler.singleton().clear(aViewer);
 			
 			List<Component> allClassesCovered = metricsTool.getAllClassesCovered();
 			
@@ -290,16 +357,17 @@ public class LCCMetricView extends ViewPart
 				if (isCanceled())
 					return Status.CANCEL_STATUS;
 				LCCForComponent lccForComponent = metricsTool.getLCCValue(c);
-				lccMetricTableExtended.add(lccForComponent);
+				if (lccMetricTableExtended.add(lccForComponent))
+					RefreshScheduler.singleton().add(aViewer, lccForComponent);
 				if(lccForComponent.getMeasurement() > 0)
 					numberCompsMapped++;
-				// Once we are finished, we need to refresh the display.
-				// However, this must be done on the UI thread.
-				safeRefresh();
 				if (myProgressMonitor != null)
 					myProgressMonitor.worked(1);				
 			}
 			
+			// Show the rows in order now that we are finished
+			safeRefresh();
+			
 			//Just to show the total of components with at least one concern assignment.
 //		   MessageConsole myConsole = findConsole("ConcernTagger Console");
 //		   MessageConsoleStream out = myConsole.newMessageStream();
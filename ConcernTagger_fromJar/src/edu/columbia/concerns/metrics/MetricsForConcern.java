@@ -2,6 +2,7 @@ package edu.columbia.concerns.metrics;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import edu.columbia.concerns.repository.Concern;
 import edu.columbia.concerns.util.NameWithEmbeddedNumbersComparer;
@@ -33,6 +34,15 @@ public class MetricsForConcern implements Comparable<MetricsForConcern>
 		return metrics;
 	}
 
+	/**
+	 * Replaces the measurements with those of a recalculation, keeping
+	 * this object's identity so viewers can update its row in place.
+	 */
+	public void setMeasurements(MetricsForConcern recalculated)
+	{
+		metrics = recalculated.metrics;
+	}
+
 	public void addMetric(float metric)
 	{
 		if (metrics == null)
@@ -67,7 +77,7 @@ public class MetricsForConcern implements Comparable<MetricsForConcern>
 		if (Float.isNaN(val))
 			return String.valueOf(val);
 		else
-			return String.format("%5.3f", Math.abs(val));
+			return String.format(Locale.US, "%5.3f", Math.abs(val));
 	}
 
 	@Override
@@ -1,6 +1,11 @@
 package edu.columbia.concerns.metrics;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import org.eclipse.jface.viewers.IContentProvider;
 import org.eclipse.jface.viewers.ILabelProviderListener;
@@ -9,10 +14,17 @@ import org.eclipse.jface.viewers.ITableLabelProvider;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.Text;
 
 public abstract class MetricsTable
 	implements 
@@ -22,15 +34,37 @@ public abstract class MetricsTable
 {
 	private final String[] columnNames;
 	
+	// How the rows are shown (see getVisibleRows())
+	private int sortColumn = -1;
+	private boolean sortAscending = true;
+	private String filter = null;
+	
 	public MetricsTable(String[] columnNames)
 	{
 		this.columnNames = columnNames;
 	}
 	
+	/**
+	 * Creates a virtual table viewer, so table items are only created for
+	 * the rows that are shown.  Clicking a column header sorts by that
+	 * column.  Typing in the filter box above the table only shows the
+	 * rows containing the text (see {@link #setFilter(String)}).
+	 */
 	public TableViewer createTableViewer(Composite parent)
 	{
+		GridLayout layout = new GridLayout();
+		layout.numColumns = 1;
+		layout.marginHeight = 0;
+		layout.marginWidth = 0;
+		parent.setLayout(layout);
+		
+		final Text filterText = new Text(parent, 
+				SWT.SINGLE | SWT.BORDER | SWT.SEARCH | SWT.ICON_CANCEL);
+		filterText.setMessage("Filter rows");
+		filterText.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
+		
 		int style = SWT.SINGLE | SWT.BORDER | SWT.H_SCROLL | SWT.V_SCROLL
-			| SWT.FULL_SELECTION | SWT.HIDE_SELECTION;
+			| SWT.FULL_SELECTION | SWT.HIDE_SELECTION | SWT.VIRTUAL;
 
 		Table table = new Table(parent, style);
 		
@@ -44,11 +78,44 @@ public abstract class MetricsTable
 		
 		initializeTable(table);
 		
-		TableViewer viewer = new TableViewer(table);
+		final TableViewer viewer = new TableViewer(table);
+		viewer.setUseHashlookup(true);
 		viewer.setColumnProperties(columnNames);
-		viewer.setContentProvider(this);
+		viewer.setContentProvider(new MetricsTableContentProvider(this));
 		viewer.setLabelProvider(this);
 		
+		TableColumn[] columns = table.getColumns();
+		for (int i = 0; i < columns.length; ++i)
+		{
+			final int columnIndex = i;
+			
+			columns[i].addSelectionListener(new SelectionAdapter()
+				{
+					@Override
+					public void widgetSelected(SelectionEvent e)
+					{
+						// Clicking the sorted column again reverses the order
+						setSortColumn(columnIndex, 
+								columnIndex != sortColumn || !sortAscending);
+						
+						Table table = viewer.getTable();
+						table.setSortColumn(table.getColumn(columnIndex));
+						table.setSortDirection(sortAscending ? SWT.UP : SWT.DOWN);
+						
+						MetricsTableContentProvider.refresh(viewer);
+					}
+				});
+		}
+		
+		filterText.addModifyListener(new ModifyListener()
+			{
+				public void modifyText(ModifyEvent e)
+				{
+					setFilter(filterText.getText());
+					MetricsTableContentProvider.refresh(viewer);
+				}
+			});
+		
 		return viewer;
 	}
 
@@ -75,6 +142,114 @@ public abstract class MetricsTable
 		return columnNames;
 	}
 	
+	// ----------------------------------------------------
+	// Sorting and filtering
+	// ----------------------------------------------------
+	
+	/**
+	 * @param column
+	 *            the column to sort by, or -1 to keep the table's own order
+	 */
+	public synchronized void setSortColumn(int column, boolean ascending)
+	{
+		this.sortColumn = column;
+		this.sortAscending = ascending;
+	}
+
+	public synchronized int getSortColumn()
+	{
+		return sortColumn;
+	}
+	
+	public synchronized boolean isSortAscending()
+	{
+		return sortAscending;
+	}
+	
+	/**
+	 * Only shows the rows with a column containing the text (ignoring
+	 * case).
+	 * 
+	 * @param filter
+	 *            the text, or null to show all rows
+	 */
+	public synchronized void setFilter(String filter)
+	{
+		this.filter = filter == null || filter.isEmpty() ? 
+				null : filter.toLowerCase();
+	}
+	
+	public synchronized String getFilter()
+	{
+		return filter;
+	}
+	
+	/**
+	 * @return true if the row passes the filter
+	 */
+	public synchronized boolean select(Object row)
+	{
+		if (filter == null)
+			return true;
+		
+		for (int column = 0; column < columnNames.length; ++column)
+		{
+			String text = getColumnText(row, column);
+			if (text != null && text.toLowerCase().contains(filter))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return the rows that pass the filter, sorted by the sort column
+	 */
+	public synchronized Object[] getVisibleRows()
+	{
+		Object[] rows = getElements(null);
+		
+		if (filter != null)
+		{
+			List<Object> selected = new ArrayList<Object>();
+			for (Object row : rows)
+			{
+				if (select(row))
+					selected.add(row);
+			}
+			
+			rows = selected.toArray();
+		}
+		
+		if (sortColumn < 0 || sortColumn >= columnNames.length)
+			return rows;
+		
+		// Get each row's sort key once rather than for every comparison
+		
+		SortKey[] keys = new SortKey[rows.length];
+		boolean isNumeric = true;
+		
+		for (int i = 0; i < rows.length; ++i)
+		{
+			keys[i] = new SortKey(rows[i], getColumnText(rows[i], sortColumn));
+			isNumeric &= keys[i].isNumeric;
+		}
+		
+		Comparator<SortKey> comparator = isNumeric ? 
+				SortKey.NUMERIC_ORDER : SortKey.TEXT_ORDER;
+		
+		// Stable, so equal rows keep the table's order
+		Arrays.sort(keys, sortAscending ? 
+				comparator : Collections.reverseOrder(comparator));
+		
+		for (int i = 0; i < rows.length; ++i)
+		{
+			rows[i] = keys[i].row;
+		}
+		
+		return rows;
+	}
+	
 	// Subclasses must implement these
 	abstract protected void initializeTable(Table table);
 	abstract public void clear();
@@ -111,4 +286,62 @@ public abstract class MetricsTable
 	
 	@Override
 	public void inputChanged(Viewer viewer, Object oldInput, Object newInput) { }
+
+	// ----------------------------------------------------
+	// HELPER CLASSES
+	// ----------------------------------------------------
+	
+	private static class SortKey
+	{
+		static final Comparator<SortKey> TEXT_ORDER = new Comparator<SortKey>()
+			{
+				public int compare(SortKey lhs, SortKey rhs)
+				{
+					return lhs.text.compareToIgnoreCase(rhs.text);
+				}
+			};
+		
+		// Missing values (NaN or empty) sort first
+		static final Comparator<SortKey> NUMERIC_ORDER = new Comparator<SortKey>()
+			{
+				public int compare(SortKey lhs, SortKey rhs)
+				{
+					if (Double.isNaN(lhs.number))
+						return Double.isNaN(rhs.number) ? 0 : -1;
+					else if (Double.isNaN(rhs.number))
+						return 1;
+					else
+						return Double.compare(lhs.number, rhs.number);
+				}
+			};
+		
+		final Object row;
+		final String text;
+		final double number;
+		final boolean isNumeric;
+		
+		SortKey(Object row, String text)
+		{
+			this.row = row;
+			this.text = text != null ? text.trim() : "";
+			
+			double number = Double.NaN;
+			boolean isNumeric = true;
+
+			if (!this.text.isEmpty() && !this.text.equals("NaN"))
+			{
+				try
+				{
+					number = Double.parseDouble(this.text);
+				}
+				catch (NumberFormatException e)
+				{
+					isNumeric = false;
+				}
+			}
+			
+			this.number = number;
+			this.isNumeric = isNumeric;
+		}
+	}
 }
@@ -0,0 +1,116 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jface.viewers.ILazyContentProvider;
+import org.eclipse.jface.viewers.TableViewer;
+import org.eclipse.jface.viewers.Viewer;
+
+/**
+ * Provides the rows of a metrics table to a virtual table viewer, which
+ * only asks for the rows that are shown.
+ * <P>
+ * The rows are the table's visible rows (see
+ * {@link MetricsTable#getVisibleRows()}), read when the viewer's input is
+ * set to the table.  When the input is null the viewer is empty, except
+ * for rows appended with add(), so a job can fill the table without the
+ * UI thread reading it (see {@link RefreshScheduler}).
+ * <P>
+ * Only called on the UI thread.
+ */
+class MetricsTableContentProvider implements ILazyContentProvider
+{
+	private MetricsTable table;
+
+	private TableViewer viewer = null;
+
+	// True if the viewer's input is the table
+	private boolean showTable = false;
+
+	private List<Object> rows = new ArrayList<Object>();
+
+	MetricsTableContentProvider(MetricsTable table)
+	{
+		this.table = table;
+	}
+
+	/**
+	 * Rereads the table, e.g., after its sorting or filtering changed.
+	 * Does nothing while the table is being filled, since it will be
+	 * reread when done.
+	 */
+	static void refresh(TableViewer viewer)
+	{
+		if (viewer.getContentProvider() instanceof MetricsTableContentProvider)
+		{
+			MetricsTableContentProvider provider = 
+				(MetricsTableContentProvider) viewer.getContentProvider();
+			if (!provider.showTable)
+				return;
+
+			provider.readRows();
+		}
+
+		viewer.refresh();
+	}
+
+	@Override
+	public void inputChanged(Viewer viewer, Object oldInput, Object newInput)
+	{
+		this.viewer = (TableViewer) viewer;
+		this.showTable = newInput != null;
+
+		readRows();
+	}
+
+	@Override
+	public void updateElement(int index)
+	{
+		if (index < rows.size())
+			viewer.replace(rows.get(index), index);
+	}
+
+	/**
+	 * Appends rows that were added to the table.
+	 */
+	void add(Object[] addedRows)
+	{
+		if (showTable && table.getSortColumn() >= 0)
+		{
+			// Reread so the new rows are sorted
+			refresh(viewer);
+			return;
+		}
+
+		for (Object row : addedRows)
+		{
+			if (table.select(row))
+				rows.add(row);
+		}
+
+		viewer.setItemCount(rows.size());
+	}
+
+	@Override
+	public void dispose()
+	{
+		rows.clear();
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private void readRows()
+	{
+		if (showTable)
+			rows = new ArrayList<Object>(Arrays.asList(table.getVisibleRows()));
+		else
+			rows = new ArrayList<Object>();
+
+		if (viewer != null)
+			viewer.setItemCount(rows.size());
+	}
+}
@@ -0,0 +1,273 @@
+package edu.columbia.concerns.metrics;
+
+import java.io.PrintStream;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a metrics table as CSV, JSON, or ARFF (for Weka).
+ * <P>
+ * CSV is the table's own output (see {@link MetricsTable#output}).  JSON
+ * and ARFF are built from the column names and the column text of each
+ * row, so they work for any table.  A column whose values are all numbers
+ * is written as numeric; NaN and infinite values are written as missing,
+ * since JSON has no literal for them.
+ */
+public class MetricsTableWriter
+{
+	public enum Format
+	{
+		CSV("csv"),
+		JSON("json"),
+		ARFF("arff");
+
+		private String extension;
+
+		private Format(String extension)
+		{
+			this.extension = extension;
+		}
+
+		public String getExtension()
+		{
+			return extension;
+		}
+
+		public static Format valueOfIgnoreCase(String name)
+		{
+			for (Format format : values())
+			{
+				if (format.name().equalsIgnoreCase(name))
+					return format;
+			}
+
+			return null;
+		}
+	}
+
+	// Numbers as JSON and ARFF write them (Double.parseDouble() also
+	// accepts "Infinity", "1f", hex, etc.)
+	private static final Pattern NUMBER =
+		Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+	private MetricsTable table;
+
+	// Row values, trimmed and unquoted
+	private String[][] values;
+
+	private boolean[] isNumeric;
+
+	public MetricsTableWriter(MetricsTable table)
+	{
+		this.table = table;
+	}
+
+	/**
+	 * @param relationName
+	 *            name of the data set (ARFF only)
+	 */
+	public void write(Format format, String relationName, PrintStream out)
+	{
+		switch (format)
+		{
+		case CSV:
+			table.output(out);
+			break;
+		case JSON:
+			writeJson(out);
+			break;
+		case ARFF:
+			writeArff(relationName, out);
+			break;
+		}
+	}
+
+	/**
+	 * @return the number of rows in the table
+	 */
+	public int getNumRows()
+	{
+		return getValues().length;
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private void writeJson(PrintStream out)
+	{
+		String[] columnNames = table.getColumnNames();
+		String[][] rows = getValues();
+
+		out.println('[');
+
+		for (int row = 0; row < rows.length; ++row)
+		{
+			StringBuffer buf = new StringBuffer("  {");
+
+			for (int column = 0; column < columnNames.length; ++column)
+			{
+				if (column > 0)
+					buf.append(", ");
+
+				buf.append(quoteJson(columnNames[column]));
+				buf.append(": ");
+
+				String value = rows[row][column];
+
+				if (!isNumeric[column])
+					buf.append(quoteJson(value));
+				else if (isMissing(value))
+					buf.append("null");
+				else
+					buf.append(value);
+			}
+
+			buf.append(row + 1 < rows.length ? "}," : "}");
+			out.println(buf.toString());
+		}
+
+		out.println(']');
+	}
+
+	private void writeArff(String relationName, PrintStream out)
+	{
+		String[] columnNames = table.getColumnNames();
+		String[][] rows = getValues();
+
+		out.println("@RELATION " + quoteArff(relationName));
+		out.println();
+
+		for (int column = 0; column < columnNames.length; ++column)
+		{
+			out.println("@ATTRIBUTE " + quoteArff(columnNames[column]) +
+					(isNumeric[column] ? " numeric" : " string"));
+		}
+
+		out.println();
+		out.println("@DATA");
+
+		for (String[] row : rows)
+		{
+			StringBuffer buf = new StringBuffer();
+
+			for (int column = 0; column < columnNames.length; ++column)
+			{
+				if (column > 0)
+					buf.append(',');
+
+				String value = row[column];
+
+				if (isMissing(value))
+					buf.append('?');
+				else if (isNumeric[column])
+					buf.append(value);
+				else
+					buf.append(quoteArff(value));
+			}
+
+			out.println(buf.toString());
+		}
+	}
+
+	/**
+	 * Reads the rows once, deciding which columns are numeric.
+	 */
+	private String[][] getValues()
+	{
+		if (values != null)
+			return values;
+
+		int numColumns = table.getColumnNames().length;
+		Object[] elements = table.getElements(null);
+
+		values = new String[elements.length][numColumns];
+
+		isNumeric = new boolean[numColumns];
+		for (int column = 0; column < numColumns; ++column)
+			isNumeric[column] = true;
+
+		for (int row = 0; row < elements.length; ++row)
+		{
+			for (int column = 0; column < numColumns; ++column)
+			{
+				String value = unquote(table.getColumnText(elements[row], column));
+				values[row][column] = value;
+
+				if (isNumeric[column] && !isMissing(value) && !isNumber(value))
+					isNumeric[column] = false;
+			}
+		}
+
+		return values;
+	}
+
+	private static String unquote(String value)
+	{
+		if (value == null)
+			return "";
+
+		value = value.trim();
+
+		if (value.length() >= 2 &&
+			value.charAt(0) == '"' &&
+			value.charAt(value.length() - 1) == '"')
+		{
+			value = value.substring(1, value.length() - 1);
+		}
+
+		return value;
+	}
+
+	private static boolean isMissing(String value)
+	{
+		return value.isEmpty() || value.equals("NaN") || 
+			value.equals("Infinity") || value.equals("-Infinity");
+	}
+
+	private static boolean isNumber(String value)
+	{
+		return NUMBER.matcher(value).matches();
+	}
+
+	private static String quoteJson(String value)
+	{
+		StringBuffer buf = new StringBuffer("\"");
+
+		for (int i = 0; i < value.length(); ++i)
+		{
+			char c = value.charAt(i);
+
+			if (c == '"' || c == '\\')
+				buf.append('\\').append(c);
+			else if (c == '\n')
+				buf.append("\\n");
+			else if (c == '\r')
+				buf.append("\\r");
+			else if (c == '\t')
+				buf.append("\\t");
+			else if (c < ' ')
+				buf.append(String.format("\\u%04x", (int) c));
+			else
+				buf.append(c);
+		}
+
+		return buf.append('"').toString();
+	}
+
+	private static String quoteArff(String value)
+	{
+		StringBuffer buf = new StringBuffer("'");
+
+		for (int i = 0; i < value.length(); ++i)
+		{
+			char c = value.charAt(i);
+
+			if (c == '\'' || c == '\\')
+				buf.append('\\');
+
+			buf.append(c);
+		}
+
+		return buf.append('\'').toString();
+	}
+}
@@ -5,16 +5,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 
 import edu.columbia.concerns.model.ConcernModelFactory;
 import edu.columbia.concerns.model.IConcernModelProvider;
+import edu.columbia.concerns.repository.CodeModelSnapshot;
 import edu.columbia.concerns.repository.Component;
 import edu.columbia.concerns.repository.ComponentKind;
 import edu.columbia.concerns.repository.Concern;
@@ -38,31 +39,53 @@ public class MetricsTool
 	{
 		this.concernModelProvider = concernModelProvider;
 
-		allClasses = concernModelProvider.getModel().getComponents(ComponentKind.CLASS);
-		allMethods = concernModelProvider.getModel().getComponents(ComponentKind.METHOD);
-		allFields = concernModelProvider.getModel().getComponents(ComponentKind.FIELD);
+		allClasses = getComponents(ComponentKind.CLASS);
+		allMethods = getComponents(ComponentKind.METHOD);
+		allFields = getComponents(ComponentKind.FIELD);
 	}
 	
 	/* Created by Bruno: 29/08/2011 */
 	public List<Component> getAllClassesCovered(){
-		allClasses = concernModelProvider.getModel().getComponents(ComponentKind.CLASS);
+		allClasses = getComponents(ComponentKind.CLASS);
 		return allClasses;
 	}
 	
 	/* Created by Bruno: 08/05/2012 */
 	public List<Component> getAllMethodsCovered(){
-		allMethods = concernModelProvider.getModel().getComponents(ComponentKind.METHOD);
+		allMethods = getComponents(ComponentKind.METHOD);
 		return allMethods;
 	}
 	
 	/* Created by Bruno: 08/05/2012 */
 	public List<Component> getAllFieldsCovered(){
-		allFields = concernModelProvider.getModel().getComponents(ComponentKind.FIELD);
+		allFields = getComponents(ComponentKind.FIELD);
 		return allFields;
 	}
 	
+	/**
+	 * Returns the current code model snapshot.  Each calculation should
+	 * fetch the snapshot once and use it throughout so it sees a consistent
+	 * code model even if the model is changed while we are running.
+	 */
+	private CodeModelSnapshot getSnapshot()
+	{
+		return concernModelProvider.getModel().getCodeModelSnapshot();
+	}
+
+	private List<Component> getComponents(ComponentKind kind)
+	{
+		CodeModelSnapshot snapshot = getSnapshot();
+		if (snapshot != null)
+			return snapshot.getComponents(kind);
+		else
+			return concernModelProvider.getModel().getComponents(kind);
+	}
+	
 	/**
 	 * [Bruno / 02-Oct-2014] A more complete LCbC metric table
+	 * <P>
+	 * Only reads the code model snapshot and the concern model, so it also
+	 * works outside Eclipse (e.g., from BatchMetricsRunner).
 	 */
 	public LCCMetricTableExtended getCompleteLCbCMetricsTable()
 	{
@@ -83,8 +106,22 @@ public class MetricsTool
 	{
 		ConcernMetricsTable metricsTable = new ConcernMetricsTable();
 		
-		getMetricsForConcernAndChildren(concernModelProvider.getModel().getRoot(), 
-				metricsTable);
+		CodeModelSnapshot snapshot = getSnapshot();
+		if (snapshot == null)
+			return metricsTable; // Already reported error
+
+		// Calculate the contributions for every concern in one pass over
+		// the code model rather than one pass per concern
+		ContributionEngine engine = new ContributionEngine(snapshot);
+		engine.calculate(concernModelProvider.getModel().getRoot(), 
+				concernModelProvider.getConcernComponentRelation(), 
+				null);
+		
+		for (int i = 0; i < engine.getNumConcerns(); ++i)
+		{
+			metricsTable.add(getMetricsForConcern(engine.getConcern(i), 
+					engine.getContributions(i), snapshot, null));
+		}
 
 		return metricsTable;
 	}
@@ -113,18 +150,64 @@ public class MetricsTool
 		if (progressMonitor != null && progressMonitor.isCanceled())
 			return null;
 		
-		MetricsForConcern metricForConcern = new MetricsForConcern(concern);
+		CodeModelSnapshot snapshot = getSnapshot();
+		if (snapshot == null)
+			return null; // Already reported error
+		
+		return getMetricsForConcern(concern, 
+				getAllAssignedComponents(concern), 
+				snapshot, 
+				progressMonitor);
+	}
 
-		Map<Component, Integer> componentContributionsForConcern =
-			getContributionsForAllComponents(concern, 
-					concernModelProvider.getConcernComponentRelation());
+	/**
+	 * Gets the assignments for the concern and its child concerns.
+	 */
+	Set<Component> getAllAssignedComponents(Concern concern)
+	{
+		Set<Component> allAssignedComponents = new HashSet<Component>();
+		concern.getAssignmentsRecursive(
+				concernModelProvider.getConcernComponentRelation(), 
+				allAssignedComponents);
 		
+		return allAssignedComponents;
+	}
+
+	/**
+	 * Calculates metrics for a concern given its assignments (see
+	 * getAllAssignedComponents()).  This doesn't touch the database so
+	 * it is safe to call from any thread.
+	 */
+	MetricsForConcern getMetricsForConcern(final Concern concern,
+	                                       final Set<Component> allAssignedComponents,
+	                                       final CodeModelSnapshot snapshot,
+	                                       final ISimpleProgressMonitor progressMonitor)
+	{
+		return getMetricsForConcern(concern,
+				getContributionsForAllComponents(allAssignedComponents, snapshot),
+				snapshot,
+				progressMonitor);
+	}
+
+	/**
+	 * Calculates metrics for a concern given its contributions (see
+	 * getContributionsForAllComponents() and ContributionEngine), which
+	 * must be in component id order so the results don't depend on how
+	 * they were calculated.
+	 */
+	MetricsForConcern getMetricsForConcern(final Concern concern,
+	                                       final Map<Component, Integer> componentContributionsForConcern,
+	                                       final CodeModelSnapshot snapshot,
+	                                       final ISimpleProgressMonitor progressMonitor)
+	{
+		MetricsForConcern metricForConcern = new MetricsForConcern(concern);
+
 		// Calculate DOSC, CDC, and SLOCs
 		
 		DOSResult doscResult = calculateDegreeOfScattering(
 				componentContributionsForConcern,
 				ComponentKind.CLASS,
-				allClasses.size(),
+				snapshot.getNumComponents(ComponentKind.CLASS),
 				progressMonitor);
 		
 		metricForConcern.addMetric(doscResult.dos);
@@ -137,7 +220,7 @@ public class MetricsTool
 		DOSResult dosmResult = calculateDegreeOfScattering(
 				componentContributionsForConcern,
 				ComponentKind.METHOD, 
-				allMethods.size(), 
+				snapshot.getNumComponents(ComponentKind.METHOD), 
 				progressMonitor);
 		
 		metricForConcern.addMetric(dosmResult.dos);
@@ -178,20 +261,16 @@ public class MetricsTool
 	 * that we treat its children (methods, fields, and inner types)
 	 * as also being assigned.
 	 *
-	 * @param concern
-	 * @param concernComponentRelation
-	 * @return
+	 * @param allAssignedComponents
+	 *            assignments for the concern and its child concerns
+	 * @param snapshot
+	 *            the code model to walk
+	 * @return the contributions, in component id order
 	 */
 	private static Map<Component, Integer> getContributionsForAllComponents(
-			Concern concern, 
-			EdgeKind concernComponentRelation)
+			Set<Component> allAssignedComponents,
+			CodeModelSnapshot snapshot)
 	{
-		// Get assignments for the concern and its child concerns
-		
-		Set<Component> allAssignedComponents = new HashSet<Component>();
-		concern.getAssignmentsRecursive(concernComponentRelation, 
-				allAssignedComponents);
-
 		// We need to consider components that are directly assigned as
 		// well as component's whose ancestors or descendants are assigned.
 		
@@ -200,12 +279,15 @@ public class MetricsTool
 		// contribution is the sum of the contributions of its children.
 		
 		Map<Component, Integer> componentContributions = 
-			new HashMap<Component, Integer>(allAssignedComponents.size()*2);  
+			new TreeMap<Component, Integer>();  
 		
 		for(Component assignedComponent : allAssignedComponents)
 		{
-			int assignedComponentsSlocs = 
-				assignedComponent.getSourceRange().getNumSourceLines();
+			int assigned = snapshot.getOrdinal(assignedComponent);
+			if (assigned == CodeModelSnapshot.NONE)
+				continue; // Not in the code model
+			
+			int assignedComponentsSlocs = snapshot.getNumSourceLines(assigned);
 
 			// The component is directly assigned so record its contribution
 			Integer assignedComponentsOldContribution = 
@@ -220,10 +302,15 @@ public class MetricsTool
 			// Since we only calculate metrics at or below the type
 			// level, setting the contribution for parents above the
 			// type level is not really necessary
-			for(Component ancestor : assignedComponent.getAncestors())
+			boolean isAssignedComponentAClass = 
+				snapshot.isKind(assigned, ComponentKind.CLASS);
+			
+			for(int ancestor = snapshot.getParent(assigned); 
+				ancestor != CodeModelSnapshot.NONE;
+				ancestor = snapshot.getParent(ancestor))
 			{
-				if (assignedComponent.isKind(ComponentKind.CLASS) &&
-					ancestor.isKind(ComponentKind.CLASS))
+				if (isAssignedComponentAClass &&
+					snapshot.isKind(ancestor, ComponentKind.CLASS))
 				{
 					// Inner types never contribute to their outer
 					// class's contribution; however, they do contribute
@@ -234,7 +321,9 @@ public class MetricsTool
 				// When the declaring type is not assigned its contribution
 				// is the sum of its methods' and fields' contributions
 				
-				Integer parentsOldContribution = componentContributions.get(ancestor);
+				Component ancestorComponent = snapshot.getComponent(ancestor);
+				
+				Integer parentsOldContribution = componentContributions.get(ancestorComponent);
 				
 				int parentsNewContribution = assignedComponentsSlocs;
 				if (parentsOldContribution != null)
@@ -242,27 +331,31 @@ public class MetricsTool
 					parentsNewContribution += parentsOldContribution;
 				}
 				
-				// Children can only contribute to their parent's
-				// contribution if the parent hasn't already contributed
-				// its max amount
+				// The parent's contribution can never exceed its
+				// line count.  (Clamp rather than skip the update so
+				// the result doesn't depend on the order we visit
+				// the assignments.)
 				
-				int parentsSlocs = ancestor.getSourceRange().getNumSourceLines();
-				if (parentsNewContribution <= parentsSlocs)
-				{
-					// Update the parent's contribution
-					componentContributions.put(ancestor, parentsNewContribution);
-				}
+				int parentsSlocs = snapshot.getNumSourceLines(ancestor);
+				componentContributions.put(ancestorComponent, 
+						Math.min(parentsNewContribution, parentsSlocs));
 			}
 
 			// Descendants of an assigned component are also treated
 			// as assigned (including inner types)
 			
-			for(Component descendant : assignedComponent.getDescendants())
+			int lastDescendant = snapshot.getPostOrder(assigned);
+			
+			for(int position = snapshot.getPreOrder(assigned); 
+				position <= lastDescendant; 
+				++position)
 			{
-				int descendantsSlocs = descendant.getSourceRange().getNumSourceLines();
+				int descendant = snapshot.getOrdinalAtPreOrder(position);
+				int descendantsSlocs = snapshot.getNumSourceLines(descendant);
 
 				Integer descendantsOldContribution = 
-					componentContributions.put(descendant, descendantsSlocs);
+					componentContributions.put(snapshot.getComponent(descendant), 
+							descendantsSlocs);
 				
 				// If the descendant's current contribution > 0 but
 				// < descendantSlocs, we've already visited one of
@@ -484,7 +577,13 @@ public class MetricsTool
 	 * */
 	public LCCForComponent getLCCValue(Component comp){
 		
-		LCCForComponent lccForComponent = new LCCForComponent(comp);
+		CodeModelSnapshot snapshot = getSnapshot();
+		int compOrdinal = snapshot != null ? 
+				snapshot.getOrdinal(comp) : CodeModelSnapshot.NONE;
+		
+		LCCForComponent lccForComponent = new LCCForComponent(comp,
+				compOrdinal != CodeModelSnapshot.NONE ? 
+						snapshot.getQualifiedName(compOrdinal) : "");
 		
 		//getting all concerns assignment to this component 
 		//I'm not discriminating the different kinds of relations. Just including the assignments for all relations
@@ -499,11 +598,14 @@ public class MetricsTool
 			lccForComponent.setFullyMapped(true);
 			
 		//obtaining the list of component's children
-		Collection<Component> compChildren = comp.getChildren();
+		int numChildren = compOrdinal != CodeModelSnapshot.NONE ?
+				snapshot.getNumChildren(compOrdinal) : 0;
 		int numberOfMethods = 0 , methodsCovered = 0;
 		int numberOfFields = 0, fieldsCovered = 0;
-		for (Component child: compChildren)
+		for (int i = 0; i < numChildren; ++i)
 		{
+			Component child = snapshot.getComponent(snapshot.getChild(compOrdinal, i));
+			
 			if (child.isKind(ComponentKind.METHOD))
 				numberOfMethods++;
 			else if (child.isKind(ComponentKind.FIELD))
@@ -547,23 +649,54 @@ public class MetricsTool
 
     /**
      * Command-line interface.
+     * <P>
+     * Usage: MetricsTool [-threads N] [workspace-or-database-dir [concern-domain]]
+     * <P>
+     * With -threads N (N > 1), the metrics are calculated by a
+     * ParallelMetricsTool using N worker threads.
+     * <P>
+     * This prompts for missing arguments.  For unattended runs over many
+     * databases, use {@link BatchMetricsRunner}.
      */
 	public static void main(String[] args)
 			throws IOException
 	{
 		String pathToWorkspaceOrDatabase = null;
 		String concernDomainName = null;
+		int numThreads = 1;
 
 		if (args != null)
 		{
-			if (args.length >= 1)
+			List<String> positionalArgs = new ArrayList<String>();
+			
+			for (int i = 0; i < args.length; ++i)
+			{
+				if (args[i].equals("-threads") && i + 1 < args.length)
+				{
+					try
+					{
+						numThreads = Integer.parseInt(args[++i]);
+					}
+					catch (NumberFormatException e)
+					{
+						System.err.println("Invalid thread count: " + args[i]);
+						return;
+					}
+				}
+				else
+				{
+					positionalArgs.add(args[i]);
+				}
+			}
+			
+			if (positionalArgs.size() >= 1)
 			{
-				pathToWorkspaceOrDatabase = args[0];
+				pathToWorkspaceOrDatabase = positionalArgs.get(0);
 			}
 
-			if (args.length >= 2)
+			if (positionalArgs.size() >= 2)
 			{
-				concernDomainName = args[1];
+				concernDomainName = positionalArgs.get(1);
 			}
 		}
 		BufferedReader reader = new BufferedReader(new InputStreamReader(
@@ -610,7 +743,11 @@ public class MetricsTool
 		ConcernModelFactory.singleton().getConcernModel(
 					hsqldb, concernDomainName);
 
-		MetricsTool metricsTool = new MetricsTool(ConcernModelFactory.singleton());
+		MetricsTool metricsTool;
+		if (numThreads > 1)
+			metricsTool = new ParallelMetricsTool(ConcernModelFactory.singleton(), numThreads);
+		else
+			metricsTool = new MetricsTool(ConcernModelFactory.singleton());
 
 		//[Bruno / 02-Oct-2014]: Choose which metric table do you need or all of them.
 //		MetricsTable metricsTable = metricsTool.getMetricsForAllConcerns();
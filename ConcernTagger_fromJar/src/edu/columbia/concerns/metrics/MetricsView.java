@@ -1,5 +1,7 @@
 package edu.columbia.concerns.metrics;
 
+import java.util.List;
+
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
@@ -39,7 +41,8 @@ public class MetricsView
 	extends 
 		ViewPart
 	implements 
-		IConcernListener, IConcernModelProviderEx, IRefreshableView
+		IConcernListener, IConcernModelProviderEx, IRefreshableView,
+		IMetricsUpdateListener
 {
 	private TableViewer aViewer;
 	private MetricsTool metricsTool;
@@ -49,6 +52,9 @@ public class MetricsView
 
 	MetricsJob job = null;
 	
+	// Updates individual rows as concerns are assigned and unassigned
+	IncrementalMetricsUpdater updater = null;
+	
 	ConcernMetricsTable concernMetricsTable = new ConcernMetricsTable();
 
 	// Put this after concernMetricsTable above is instantiated!
@@ -103,6 +109,13 @@ public class MetricsView
 
 		metricsTool = new MetricsTool(this);
 
+		if (updater != null)
+			updater.cancel();
+		
+		updater = new IncrementalMetricsUpdater(
+				"Updating scattering metrics for '" + concernDomain + "'",
+				metricsTool, this, this, true, false);
+		
 		concernModel.addListener(this);
 
 		updateTitleAndToolTip();
@@ -156,6 +169,10 @@ public class MetricsView
 		if (job != null)
 			job.cancel();
 		
+		// Everything is being recalculated anyway
+		if (updater != null)
+			updater.clear();
+		
 		// Calculate the metrics in a concurrent worker job
 		job = new MetricsJob(
 				"Calculating scattering metrics for '" +
@@ -168,6 +185,8 @@ public class MetricsView
 	{
 		if (job != null)
 			job.cancel();
+		if (updater != null)
+			updater.cancel();
 		super.dispose();
 	}
 
@@ -189,21 +208,8 @@ public class MetricsView
 	
 	public void safeRefresh()
 	{
-		Display display = safeGetDisplay();
-		if (display == null)
-			return;
-		
-		// Once we are finished, we need to refresh the display.
-		// However, this must be done on the UI thread.
-		display.asyncExec(new Runnable() 
-			{
-				public void run() 
-				{
-					aViewer.setInput(concernMetricsTable);
-					aViewer.refresh();
-				}
-			}
-		);
+		// Coalesced with other refreshes and done on the UI thread
+		RefreshScheduler.singleton().refresh(aViewer, concernMetricsTable);
 	}
 	
 	@Override
@@ -217,7 +223,44 @@ public class MetricsView
 			// a new one and closing the old one.
 			
 			closeMe();
-		}		
+		}
+		else if (updater != null)
+		{
+			// Only recalculates the metrics for assignment changes
+			updater.modelChanged(event);
+		}
+	}
+
+	@Override
+	public void metricsUpdated(final List<MetricsForConcern> concernMetrics,
+	                           List<LCCForComponent> lccMetrics)
+	{
+		Display display = safeGetDisplay();
+		if (display == null)
+			return;
+		
+		// Update the rows on the UI thread so the table isn't changed
+		// while it is being displayed
+		display.asyncExec(new Runnable() 
+			{
+				public void run() 
+				{
+					if (aViewer.getControl().isDisposed())
+						return;
+					
+					RefreshScheduler scheduler = RefreshScheduler.singleton();
+					
+					for (MetricsForConcern metricsForConcern : concernMetrics)
+					{
+						MetricsForConcern row = concernMetricsTable.update(metricsForConcern);
+						if (row != null)
+							scheduler.update(aViewer, row);
+						else
+							scheduler.add(aViewer, metricsForConcern);
+					}
+				}
+			}
+		);
 	}
 
 	// Is there a better way?
@@ -266,12 +309,16 @@ public class MetricsView
 			
 			// Clear the metrics since we are recalculating them
 			concernMetricsTable.clear();
+			RefreshScheduler.singleton().clear(aViewer);
 			
 			if (myProgressMonitor != null)
 				myProgressMonitor.beginTask("Concern", concernModel.getNumConcerns());
 			
 			IStatus status = processRecursive(concernModel.getRoot());
 			
+			// Show the rows in order now that we are finished
+			safeRefresh();
+			
 			if (myProgressMonitor != null)
 				myProgressMonitor.done();
 			
@@ -291,12 +338,8 @@ public class MetricsView
 				// Calculate concern metrics for this concern
 				MetricsForConcern metrics = metricsTool.getMetricsForConcern(concern, 
 						this);
-				if (metrics != null)
-					concernMetricsTable.add(metrics);
-
-				// Once we are finished, we need to refresh the display.
-				// However, this must be done on the UI thread.
-				safeRefresh();
+				if (metrics != null && concernMetricsTable.add(metrics))
+					RefreshScheduler.singleton().add(aViewer, metrics);
 
 				if (myProgressMonitor != null)
 					myProgressMonitor.worked(1);
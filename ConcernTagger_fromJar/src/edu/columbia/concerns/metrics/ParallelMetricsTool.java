@@ -0,0 +1,226 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import edu.columbia.concerns.model.IConcernModelProvider;
+import edu.columbia.concerns.repository.CodeModelSnapshot;
+import edu.columbia.concerns.repository.Component;
+import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
+import edu.columbia.concerns.util.ProblemManager;
+
+/**
+ * Calculates the concern metrics using a pool of worker threads.
+ * <P>
+ * Once a concern's assignments are known, calculating its metrics only
+ * involves the code model snapshot, which is immutable. So the calling
+ * thread walks the concern tree and loads each concern's assignments (the
+ * database connection isn't thread safe), and the workers calculate the
+ * metrics. Results are added to the table in the same order as
+ * {@link MetricsTool#getMetricsForAllConcerns()}, and the calculation for
+ * each concern is the same, so the results are identical.
+ * <P>
+ * Only a few concerns are queued ahead of the workers, so memory use
+ * doesn't grow with the number of concerns.
+ */
+public class ParallelMetricsTool extends MetricsTool
+{
+	// How long to wait for a result before checking for cancellation
+	private static final long POLL_INTERVAL_MS = 100;
+
+	private int numThreads;
+
+	public ParallelMetricsTool(IConcernModelProvider concernModelProvider,
+			int numThreads)
+	{
+		super(concernModelProvider);
+
+		this.numThreads = Math.max(numThreads, 1);
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Calculates metrics for all concerns in the concern domain
+	 */
+	@Override
+	public ConcernMetricsTable getMetricsForAllConcerns()
+	{
+		return getMetricsForAllConcerns(null);
+	}
+
+	/**
+	 * Calculates metrics for all concerns in the concern domain
+	 *
+	 * @return the metrics, or null if canceled
+	 */
+	public ConcernMetricsTable getMetricsForAllConcerns(
+			final ISimpleProgressMonitor progressMonitor)
+	{
+		CodeModelSnapshot snapshot = concernModelProvider.getModel().getCodeModelSnapshot();
+		if (snapshot == null)
+			return null; // Already reported error
+
+		ConcernMetricsTable metricsTable = new ConcernMetricsTable();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+		LinkedList<Future<MetricsForConcern>> pending =
+			new LinkedList<Future<MetricsForConcern>>();
+
+		try
+		{
+			if (!submitConcernAndChildren(concernModelProvider.getModel().getRoot(),
+					snapshot, executor, pending, metricsTable, progressMonitor))
+			{
+				return null;
+			}
+
+			// Collect the stragglers
+			while (!pending.isEmpty())
+			{
+				if (!addOldestResult(pending, metricsTable, progressMonitor))
+					return null;
+			}
+
+			return metricsTable;
+		}
+		finally
+		{
+			for (Future<MetricsForConcern> future : pending)
+			{
+				future.cancel(true);
+			}
+
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Walks the concern tree in the same order as
+	 * getMetricsForConcernAndChildren() and queues a task for each concern.
+	 *
+	 * @return false if canceled or failed
+	 */
+	private boolean submitConcernAndChildren(Concern concern,
+			CodeModelSnapshot snapshot,
+			ExecutorService executor,
+			LinkedList<Future<MetricsForConcern>> pending,
+			ConcernMetricsTable metricsTable,
+			ISimpleProgressMonitor progressMonitor)
+	{
+		if (progressMonitor != null && progressMonitor.isCanceled())
+			return false;
+
+		// Don't get too far ahead of the workers
+		while (pending.size() >= numThreads * 2)
+		{
+			if (!addOldestResult(pending, metricsTable, progressMonitor))
+				return false;
+		}
+
+		pending.add(executor.submit(new MetricsTask(concern,
+				getAllAssignedComponents(concern), snapshot, progressMonitor)));
+
+		for (Concern child : concern.getChildren())
+		{
+			if (!submitConcernAndChildren(child, snapshot, executor, pending,
+					metricsTable, progressMonitor))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Waits for the oldest task and adds its result to the table.
+	 *
+	 * @return false if canceled or failed
+	 */
+	private boolean addOldestResult(LinkedList<Future<MetricsForConcern>> pending,
+			ConcernMetricsTable metricsTable,
+			ISimpleProgressMonitor progressMonitor)
+	{
+		Future<MetricsForConcern> oldest = pending.getFirst();
+
+		try
+		{
+			while (true)
+			{
+				if (progressMonitor != null && progressMonitor.isCanceled())
+					return false;
+
+				try
+				{
+					MetricsForConcern metricsForConcern =
+						oldest.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+					pending.removeFirst();
+
+					if (metricsForConcern != null)
+						metricsTable.add(metricsForConcern);
+
+					return true;
+				}
+				catch (TimeoutException e)
+				{
+					// Check for cancellation and try again
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			ProblemManager.reportException(e.getCause() instanceof Exception ?
+					(Exception) e.getCause() : e,
+					"Failed to calculate concern metrics.");
+			return false;
+		}
+	}
+
+	private final class MetricsTask implements Callable<MetricsForConcern>
+	{
+		private Concern concern;
+		private Set<Component> allAssignedComponents;
+		private CodeModelSnapshot snapshot;
+		private ISimpleProgressMonitor progressMonitor;
+
+		MetricsTask(Concern concern,
+				Set<Component> allAssignedComponents,
+				CodeModelSnapshot snapshot,
+				ISimpleProgressMonitor progressMonitor)
+		{
+			this.concern = concern;
+			this.allAssignedComponents = allAssignedComponents;
+			this.snapshot = snapshot;
+			this.progressMonitor = progressMonitor;
+		}
+
+		@Override
+		public MetricsForConcern call()
+		{
+			if (progressMonitor != null && progressMonitor.isCanceled())
+				return null;
+
+			return getMetricsForConcern(concern, allAssignedComponents,
+					snapshot, progressMonitor);
+		}
+	}
+}
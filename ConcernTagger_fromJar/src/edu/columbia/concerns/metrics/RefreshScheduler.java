@@ -0,0 +1,238 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jface.viewers.TableViewer;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Coalesces the table updates of the metrics views (see
+ * {@link IRefreshableView}) so that metrics jobs can report every row as
+ * it is calculated without flooding the UI thread.
+ * <P>
+ * Requests can be made from any thread.  They are queued per viewer and
+ * applied together on the UI thread, at most once every
+ * MIN_REFRESH_INTERVAL_MILLIS.  Rows that were added are appended (see
+ * MetricsTableContentProvider.add()) and rows that changed are pushed with
+ * TableViewer.update(); the whole table is only reread when refresh() is
+ * requested, which makes pending adds and updates redundant.
+ * <P>
+ * Jobs filling a table should call clear() first so the viewer stops
+ * reading the table while it is being filled, add() each row, and
+ * refresh() once done so the rows are shown in the table's order.
+ */
+public final class RefreshScheduler
+{
+	public static final int MIN_REFRESH_INTERVAL_MILLIS = 250;
+
+	private static RefreshScheduler singleton = new RefreshScheduler();
+
+	/**
+	 * Changes waiting to be applied to a viewer.
+	 */
+	private static class PendingChanges
+	{
+		// True if the viewer's input must be set (and the table reread)
+		boolean reset = false;
+		Object input = null;
+
+		Set<Object> added = new LinkedHashSet<Object>();
+		Set<Object> changed = new LinkedHashSet<Object>();
+	}
+
+	private Map<TableViewer, PendingChanges> pending =
+		new LinkedHashMap<TableViewer, PendingChanges>();
+
+	private boolean flushScheduled = false;
+	private long lastFlushTime = 0;
+
+	private Runnable flusher = new Runnable()
+		{
+			public void run()
+			{
+				flush();
+			}
+		};
+
+	private RefreshScheduler()
+	{}
+
+	public static RefreshScheduler singleton()
+	{
+		return singleton;
+	}
+
+	/**
+	 * Empties the viewer without reading its table.  Rows added afterwards
+	 * are still shown.
+	 */
+	public void clear(TableViewer viewer)
+	{
+		reset(viewer, null);
+	}
+
+	/**
+	 * Sets the viewer's input and rereads the whole table.
+	 */
+	public void refresh(TableViewer viewer, Object input)
+	{
+		reset(viewer, input);
+	}
+
+	/**
+	 * Appends a row that was added to the viewer's table.
+	 */
+	public synchronized void add(TableViewer viewer, Object row)
+	{
+		PendingChanges changes = getPendingChanges(viewer);
+		if (changes == null || (changes.reset && changes.input != null))
+			return; // Will be shown by the refresh
+
+		changes.changed.remove(row);
+		changes.added.add(row);
+	}
+
+	/**
+	 * Redraws a row whose values changed.
+	 */
+	public synchronized void update(TableViewer viewer, Object row)
+	{
+		PendingChanges changes = getPendingChanges(viewer);
+		if (changes == null || (changes.reset && changes.input != null))
+			return; // Will be shown by the refresh
+
+		if (!changes.added.contains(row))
+			changes.changed.add(row);
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private synchronized void reset(TableViewer viewer, Object input)
+	{
+		PendingChanges changes = getPendingChanges(viewer);
+		if (changes == null)
+			return;
+
+		changes.reset = true;
+		changes.input = input;
+		changes.added.clear();
+		changes.changed.clear();
+	}
+
+	/**
+	 * Gets the viewer's pending changes, scheduling a flush if needed.
+	 * Called with the lock held.
+	 *
+	 * @return the changes, or null if the viewer has been disposed
+	 */
+	private PendingChanges getPendingChanges(TableViewer viewer)
+	{
+		final Display display = getDisplay(viewer);
+		if (display == null)
+			return null;
+
+		PendingChanges changes = pending.get(viewer);
+		if (changes == null)
+		{
+			changes = new PendingChanges();
+			pending.put(viewer, changes);
+		}
+
+		if (!flushScheduled)
+		{
+			flushScheduled = true;
+
+			final int delay = (int) Math.max(0, Math.min(MIN_REFRESH_INTERVAL_MILLIS,
+					lastFlushTime + MIN_REFRESH_INTERVAL_MILLIS - System.currentTimeMillis()));
+
+			// timerExec() must be called on the UI thread
+			display.asyncExec(new Runnable()
+				{
+					public void run()
+					{
+						if (delay == 0)
+							flush();
+						else
+							display.timerExec(delay, flusher);
+					}
+				});
+		}
+
+		return changes;
+	}
+
+	/**
+	 * Applies the pending changes.  Called on the UI thread.
+	 */
+	private void flush()
+	{
+		Map<TableViewer, PendingChanges> toApply;
+
+		synchronized (this)
+		{
+			toApply = pending;
+			pending = new LinkedHashMap<TableViewer, PendingChanges>();
+			flushScheduled = false;
+			lastFlushTime = System.currentTimeMillis();
+		}
+
+		for (Map.Entry<TableViewer, PendingChanges> entry : toApply.entrySet())
+		{
+			TableViewer viewer = entry.getKey();
+			PendingChanges changes = entry.getValue();
+
+			if (getDisplay(viewer) == null)
+				continue; // Disposed
+
+			viewer.getControl().setRedraw(false);
+
+			try
+			{
+				if (changes.reset)
+					viewer.setInput(changes.input);
+
+				if (!changes.added.isEmpty())
+				{
+					if (viewer.getContentProvider() instanceof MetricsTableContentProvider)
+					{
+						// Virtual viewer
+						((MetricsTableContentProvider) viewer.getContentProvider()).add(
+								changes.added.toArray());
+					}
+					else
+					{
+						viewer.add(changes.added.toArray());
+					}
+				}
+
+				if (!changes.changed.isEmpty())
+					viewer.update(changes.changed.toArray(), null);
+			}
+			finally
+			{
+				viewer.getControl().setRedraw(true);
+			}
+		}
+	}
+
+	private static Display getDisplay(TableViewer viewer)
+	{
+		if (viewer == null ||
+			viewer.getControl() == null ||
+			viewer.getControl().isDisposed() ||
+			viewer.getControl().getDisplay() == null ||
+			viewer.getControl().getDisplay().isDisposed())
+		{
+			return null;
+		}
+		else
+		{
+			return viewer.getControl().getDisplay();
+		}
+	}
+}
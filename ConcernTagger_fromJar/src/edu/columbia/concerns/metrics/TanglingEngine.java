@@ -0,0 +1,362 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.columbia.concerns.repository.AssignmentBitmaps;
+import edu.columbia.concerns.repository.CodeModelSnapshot;
+import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.util.CompressedBitmap;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
+import edu.columbia.concerns.util.NameWithEmbeddedNumbersComparer;
+
+/**
+ * Calculates which concerns of one concern domain (the left-hand side) are
+ * tangled with which concerns of another (the right-hand side), for all
+ * the concerns at once.
+ * <P>
+ * Concern A is tangled with concern B iff some component is covered by
+ * both, where a component is covered by A if it or one of its ancestors is
+ * assigned to A or one of A's descendant concerns, and covered by B if it
+ * or one of its ancestors is assigned directly to B.  This is the same as
+ * checking each component assigned to A, its ancestors, and its
+ * descendants for assignments to B.
+ * <P>
+ * The code model is walked once, top-down, collecting the concerns that
+ * cover each component (a component with no assignments shares its
+ * parent's lists).  Since coverage is inherited, a pair of concerns first
+ * covers a component together at a component with an assignment, and then
+ * covers its whole subtree.  So only components with assignments are
+ * examined, and the overlap of each pair is the sum of the subtrees where
+ * it starts.
+ */
+public class TanglingEngine
+{
+	private static final int[] NO_CONCERNS = new int[0];
+
+	// Check for cancellation every this many components
+	private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+	private AssignmentBitmaps bitmapsLhs;
+	private AssignmentBitmaps bitmapsRhs;
+
+	// The left-hand code model; right-hand assignments are mapped to it
+	private CodeModelSnapshot snapshot;
+
+	// Concerns in tree order and the index of their parent concern
+	private List<Concern> concernsLhs = new ArrayList<Concern>();
+	private List<Integer> parentsLhs = new ArrayList<Integer>();
+	private List<Concern> concernsRhs = new ArrayList<Concern>();
+
+	public TanglingEngine(AssignmentBitmaps bitmapsLhs, AssignmentBitmaps bitmapsRhs)
+	{
+		this.bitmapsLhs = bitmapsLhs;
+		this.bitmapsRhs = bitmapsRhs;
+		this.snapshot = bitmapsLhs.getSnapshot();
+	}
+
+	/**
+	 * Calculates the tangling of the left-hand concerns (except the root)
+	 * with the right-hand concerns.
+	 *
+	 * @return the matrix, or null if canceled
+	 */
+	public TanglingMatrix calculate(Concern rootLhs, Concern rootRhs,
+			ISimpleProgressMonitor progressMonitor)
+	{
+		concernsLhs.clear();
+		parentsLhs.clear();
+		concernsRhs.clear();
+
+		numberConcerns(rootLhs, -1, concernsLhs, parentsLhs);
+		numberConcerns(rootRhs, -1, concernsRhs, null);
+
+		int[][] assignedLhs = getAssignedConcerns(bitmapsLhs, concernsLhs, true);
+		int[][] assignedRhs = getAssignedConcerns(bitmapsRhs, concernsRhs, false);
+
+		if (isCanceled(progressMonitor))
+			return null;
+
+		// (lhs << 32 | rhs) -> { overlap count, shared lines }
+		Map<Long, int[]> cells = new HashMap<Long, int[]>();
+
+		int size = snapshot.size();
+
+		int[][] coveringLhs = new int[size][];
+		int[][] coveringRhs = new int[size][];
+
+		// Parents come before their children in pre-order
+		for (int position = 0; position < size; ++position)
+		{
+			if (position % CANCEL_CHECK_INTERVAL == 0 && isCanceled(progressMonitor))
+				return null;
+
+			int ordinal = snapshot.getOrdinalAtPreOrder(position);
+			int parent = snapshot.getParent(ordinal);
+
+			int[] inheritedLhs = parent != CodeModelSnapshot.NONE ?
+					coveringLhs[parent] : NO_CONCERNS;
+			int[] inheritedRhs = parent != CodeModelSnapshot.NONE ?
+					coveringRhs[parent] : NO_CONCERNS;
+
+			coveringLhs[ordinal] = union(inheritedLhs, assignedLhs[ordinal]);
+			coveringRhs[ordinal] = union(inheritedRhs, assignedRhs[ordinal]);
+
+			// Pairs only start covering components where there are
+			// assignments
+			if (assignedLhs[ordinal] == null && assignedRhs[ordinal] == null)
+				continue;
+
+			int subtreeSize = snapshot.getNumDescendants(ordinal);
+			int numLines = snapshot.getCoveredSourceLines(ordinal);
+
+			for (int lhs : coveringLhs[ordinal])
+			{
+				boolean isInheritedLhs = Arrays.binarySearch(inheritedLhs, lhs) >= 0;
+
+				for (int rhs : coveringRhs[ordinal])
+				{
+					// Already covered the parent together?
+					if (isInheritedLhs && Arrays.binarySearch(inheritedRhs, rhs) >= 0)
+						continue;
+
+					Long key = ((long) lhs << 32) | rhs;
+
+					int[] cell = cells.get(key);
+					if (cell == null)
+					{
+						cell = new int[2];
+						cells.put(key, cell);
+					}
+
+					cell[0] += subtreeSize;
+					cell[1] += numLines;
+				}
+			}
+		}
+
+		return buildMatrix(cells);
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private static void numberConcerns(Concern concern, int parent,
+			List<Concern> concerns, List<Integer> parents)
+	{
+		int index = concerns.size();
+
+		concerns.add(concern);
+		if (parents != null)
+			parents.add(parent);
+
+		for (Concern child : concern.getChildren())
+		{
+			numberConcerns(child, index, concerns, parents);
+		}
+	}
+
+	/**
+	 * Builds, for each component in the left-hand code model, the sorted
+	 * indices of the concerns assigned to it.
+	 *
+	 * @param addAncestors
+	 *            true to count an assignment to a concern as an assignment
+	 *            to its ancestor concerns too
+	 * @return per ordinal, the concern indices or null if none
+	 */
+	private int[][] getAssignedConcerns(AssignmentBitmaps bitmaps,
+			List<Concern> concerns, boolean addAncestors)
+	{
+		int size = snapshot.size();
+		int numConcerns = concerns.size();
+
+		CodeModelSnapshot bitmapSnapshot = bitmaps.getSnapshot();
+
+		int[][] assigned = new int[size][];
+		int[] numAssigned = new int[size];
+
+		for (int concernIndex = 0; concernIndex < numConcerns; ++concernIndex)
+		{
+			CompressedBitmap positions =
+				bitmaps.getAssignments(concerns.get(concernIndex).getId());
+
+			for (int position = positions.nextSetBit(0);
+				position >= 0;
+				position = positions.nextSetBit(position + 1))
+			{
+				int ordinal = bitmapSnapshot.getOrdinalAtPreOrder(position);
+
+				// The concern models may use different repositories
+				if (bitmapSnapshot != snapshot)
+				{
+					ordinal = snapshot.getOrdinal(bitmapSnapshot.getId(ordinal));
+					if (ordinal == CodeModelSnapshot.NONE)
+						continue;
+				}
+
+				if (addAncestors)
+				{
+					for (int ancestor = concernIndex;
+						ancestor != -1;
+						ancestor = parentsLhs.get(ancestor))
+					{
+						assigned[ordinal] = append(assigned[ordinal],
+								numAssigned[ordinal]++, ancestor);
+					}
+				}
+				else
+				{
+					assigned[ordinal] = append(assigned[ordinal],
+							numAssigned[ordinal]++, concernIndex);
+				}
+			}
+		}
+
+		for (int ordinal = 0; ordinal < size; ++ordinal)
+		{
+			if (assigned[ordinal] != null)
+				assigned[ordinal] = sortUnique(assigned[ordinal], numAssigned[ordinal]);
+		}
+
+		return assigned;
+	}
+
+	private TanglingMatrix buildMatrix(Map<Long, int[]> cells)
+	{
+		// Group the cells by row
+		Map<Integer, List<Long>> keysByRow = new HashMap<Integer, List<Long>>();
+		for (Long key : cells.keySet())
+		{
+			Integer lhs = (int) (key >>> 32);
+
+			List<Long> keys = keysByRow.get(lhs);
+			if (keys == null)
+			{
+				keys = new ArrayList<Long>();
+				keysByRow.put(lhs, keys);
+			}
+
+			keys.add(key);
+		}
+
+		List<TanglingMatrix.Row> rows = new ArrayList<TanglingMatrix.Row>();
+
+		// The root isn't a row
+		for (int lhs = 1; lhs < concernsLhs.size(); ++lhs)
+		{
+			List<Long> keys = keysByRow.get(lhs);
+			if (keys == null)
+				keys = Collections.emptyList();
+
+			// Sort the tangled concerns like a set of concerns would be
+			List<Concern> tangledConcerns = new ArrayList<Concern>(keys.size());
+			Map<Concern, int[]> cellsByConcern = new HashMap<Concern, int[]>();
+
+			for (Long key : keys)
+			{
+				Concern concernRhs = concernsRhs.get((int) (long) key);
+
+				tangledConcerns.add(concernRhs);
+				cellsByConcern.put(concernRhs, cells.get(key));
+			}
+
+			Collections.sort(tangledConcerns);
+
+			int numTangled = tangledConcerns.size();
+			int[] overlapCounts = new int[numTangled];
+			int[] sharedLines = new int[numTangled];
+
+			for (int i = 0; i < numTangled; ++i)
+			{
+				int[] cell = cellsByConcern.get(tangledConcerns.get(i));
+				overlapCounts[i] = cell[0];
+				sharedLines[i] = cell[1];
+			}
+
+			rows.add(new TanglingMatrix.Row(concernsLhs.get(lhs),
+					tangledConcerns.toArray(new Concern[numTangled]),
+					overlapCounts, sharedLines));
+		}
+
+		Collections.sort(rows, new Comparator<TanglingMatrix.Row>()
+			{
+				public int compare(TanglingMatrix.Row lhs, TanglingMatrix.Row rhs)
+				{
+					return NameWithEmbeddedNumbersComparer.compareTo(
+							lhs.getConcern(), rhs.getConcern());
+				}
+			}
+		);
+
+		return new TanglingMatrix(rows);
+	}
+
+	/**
+	 * Stores the value at the index, growing the array if needed.
+	 */
+	private static int[] append(int[] array, int index, int value)
+	{
+		if (array == null)
+			array = new int[4];
+		else if (index == array.length)
+			array = Arrays.copyOf(array, array.length * 2);
+
+		array[index] = value;
+		return array;
+	}
+
+	private static int[] sortUnique(int[] array, int count)
+	{
+		Arrays.sort(array, 0, count);
+
+		int numUnique = 0;
+		for (int i = 0; i < count; ++i)
+		{
+			if (numUnique == 0 || array[numUnique - 1] != array[i])
+				array[numUnique++] = array[i];
+		}
+
+		return Arrays.copyOf(array, numUnique);
+	}
+
+	/**
+	 * @return the union of two sorted arrays, sharing lhs if rhs adds
+	 *         nothing
+	 */
+	private static int[] union(int[] lhs, int[] rhs)
+	{
+		if (rhs == null || rhs.length == 0)
+			return lhs;
+
+		int[] result = new int[lhs.length + rhs.length];
+		int count = 0;
+		int i = 0, j = 0;
+
+		while (i < lhs.length || j < rhs.length)
+		{
+			if (j == rhs.length || (i < lhs.length && lhs[i] < rhs[j]))
+				result[count++] = lhs[i++];
+			else if (i == lhs.length || rhs[j] < lhs[i])
+				result[count++] = rhs[j++];
+			else
+			{
+				result[count++] = lhs[i++];
+				++j;
+			}
+		}
+
+		return count == lhs.length ? lhs : Arrays.copyOf(result, count);
+	}
+
+	private static boolean isCanceled(ISimpleProgressMonitor progressMonitor)
+	{
+		return progressMonitor != null && progressMonitor.isCanceled();
+	}
+}
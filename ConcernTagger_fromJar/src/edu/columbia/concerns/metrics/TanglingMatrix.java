@@ -0,0 +1,109 @@
+package edu.columbia.concerns.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.columbia.concerns.repository.Concern;
+
+/**
+ * The result of TanglingEngine: a sparse matrix with a row for each
+ * left-hand concern, listing the right-hand concerns it is tangled with.
+ * <P>
+ * Each cell records how much the two concerns overlap: the number of
+ * components covered by both (i.e., assigned to each concern or to one of
+ * the component's ancestors) and the source lines of the topmost such
+ * components, so nested components aren't counted twice.
+ */
+public class TanglingMatrix
+{
+	/**
+	 * A left-hand concern and the concerns it is tangled with, in
+	 * Concern order.
+	 */
+	public static final class Row
+	{
+		private Concern concern;
+		private Concern[] tangledConcerns;
+		private int[] overlapCounts;
+		private int[] sharedLines;
+
+		Row(Concern concern, Concern[] tangledConcerns,
+				int[] overlapCounts, int[] sharedLines)
+		{
+			this.concern = concern;
+			this.tangledConcerns = tangledConcerns;
+			this.overlapCounts = overlapCounts;
+			this.sharedLines = sharedLines;
+		}
+
+		public Concern getConcern()
+		{
+			return concern;
+		}
+
+		public int getNumTangledConcerns()
+		{
+			return tangledConcerns.length;
+		}
+
+		public Concern getTangledConcern(int index)
+		{
+			return tangledConcerns[index];
+		}
+
+		/**
+		 * @return the number of components covered by both concerns
+		 */
+		public int getOverlapCount(int index)
+		{
+			return overlapCounts[index];
+		}
+
+		/**
+		 * @return the source lines covered by both concerns
+		 */
+		public int getSharedLines(int index)
+		{
+			return sharedLines[index];
+		}
+	}
+
+	// Sorted by concern name
+	private List<Row> rows;
+
+	TanglingMatrix(List<Row> rows)
+	{
+		this.rows = rows;
+	}
+
+	/**
+	 * An empty matrix.
+	 */
+	public TanglingMatrix()
+	{
+		this(new ArrayList<Row>());
+	}
+
+	public int getNumRows()
+	{
+		return rows.size();
+	}
+
+	public Row getRow(int index)
+	{
+		return rows.get(index);
+	}
+
+	/**
+	 * @return up to <code>count</code> rows starting at <code>from</code>
+	 */
+	public List<Row> getRows(int from, int count)
+	{
+		if (from >= rows.size())
+			return Collections.emptyList();
+
+		return Collections.unmodifiableList(
+				rows.subList(from, Math.min(rows.size(), from + count)));
+	}
+}
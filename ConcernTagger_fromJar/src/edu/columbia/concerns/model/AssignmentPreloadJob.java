@@ -0,0 +1,57 @@
+package edu.columbia.concerns.model;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import edu.columbia.concerns.repository.EdgeKind;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
+
+/**
+ * Loads the assignments of a newly opened concern domain in the
+ * background, so views and metrics don't have to query them one concern
+ * at a time.
+ */
+class AssignmentPreloadJob
+	extends Job
+	implements ISimpleProgressMonitor
+{
+	private ConcernModel concernModel;
+	private EdgeKind edgeKind;
+
+	private IProgressMonitor myProgressMonitor;
+
+	AssignmentPreloadJob(ConcernModel concernModel, EdgeKind edgeKind)
+	{
+		super("Loading assignments for '" + 
+				concernModel.getConcernDomain() + "'");
+
+		this.concernModel = concernModel;
+		this.edgeKind = edgeKind;
+
+		setSystem(true);
+		setPriority(Job.DECORATE);
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor progressMonitor)
+	{
+		myProgressMonitor = progressMonitor;
+
+		if (!concernModel.preloadAssignments(edgeKind, this) && isCanceled())
+			return Status.CANCEL_STATUS;
+
+		// Failures have already been reported
+		return Status.OK_STATUS;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		if (myProgressMonitor == null)
+			return false;
+		else
+			return myProgressMonitor.isCanceled();
+	}
+}
@@ -9,7 +9,7 @@ import edu.columbia.concerns.repository.EdgeKind;
 
 public class ConcernEvent implements Iterable<ConcernEvent>
 {
-	private enum Reason
+	enum Reason
 	{
 		ASSIGNED,
 		UNASSIGNED,
@@ -20,6 +20,10 @@ public class ConcernEvent implements Iterable<ConcernEvent>
 		CHANGED_DOMAIN_NAME,
 		CHANGED_ACTIVE_CONCERN_MODEL,
 		CHANGED_CONCERN_COMPONENT_RELATION,
+		
+		// Many assignments of the concern changed (see 
+		// ConcernEventCoalescer)
+		CHANGED_ASSIGNMENTS,
 	};
 	
 	Reason reason = null;
@@ -29,6 +33,9 @@ public class ConcernEvent implements Iterable<ConcernEvent>
 
 	ConcernEvent next = null;
 
+	// Last event in the list (or close to it) so adding is constant time
+	private ConcernEvent tail = null;
+	
 	public ConcernEvent()
 	{ }
 	
@@ -39,13 +46,17 @@ public class ConcernEvent implements Iterable<ConcernEvent>
 			this.reason = reason; 
 			return this;
 		}
-		else
-		{
-			if (next == null)
-				next = new ConcernEvent();
 
-			return next.getFreshEvent(reason);
-		}
+		// Events added with addEvent() may have been appended after the tail
+		ConcernEvent last = tail != null ? tail : this;
+		while (last.next != null)
+			last = last.next;
+
+		last.next = new ConcernEvent();
+		last.next.reason = reason;
+
+		tail = last.next;
+		return tail;
 	}
 	
 	public static ConcernEvent createAssignEvent(	Concern concern, 
@@ -111,6 +122,17 @@ public class ConcernEvent implements Iterable<ConcernEvent>
 		ConcernEvent event = new ConcernEvent();
 		return event.addConcernComponentRelationChangedEvent();
 	}
+
+	/**
+	 * @param concernComponentRelation
+	 *            the relation whose assignments changed
+	 */
+	public static ConcernEvent createAssignmentsChangedEvent(Concern concern,
+	                                                         EdgeKind concernComponentRelation)
+	{
+		ConcernEvent event = new ConcernEvent();
+		return event.addAssignmentsChangedEvent(concern, concernComponentRelation);
+	}
 	
 	public ConcernEvent addEvent(ConcernEvent eventToAdd)
 	{
@@ -208,6 +230,27 @@ public class ConcernEvent implements Iterable<ConcernEvent>
 	{
 		return getFreshEvent(Reason.CHANGED_CONCERN_COMPONENT_RELATION);
 	}
+
+	public ConcernEvent addAssignmentsChangedEvent(Concern concern,
+	                                               EdgeKind concernComponentRelation)
+	{
+		ConcernEvent event = getFreshEvent(Reason.CHANGED_ASSIGNMENTS);
+		event.concern = concern;
+		event.concernComponentRelation = concernComponentRelation;
+		return event;
+	}
+
+	ConcernEvent addEvent(Reason reason, 
+	                      Concern concern, 
+	                      IJavaElement element, 
+	                      EdgeKind concernComponentRelation)
+	{
+		ConcernEvent event = getFreshEvent(reason);
+		event.concern = concern;
+		event.element = element;
+		event.concernComponentRelation = concernComponentRelation;
+		return event;
+	}
 	
 	public Concern getConcern()
 	{
@@ -274,6 +317,16 @@ public class ConcernEvent implements Iterable<ConcernEvent>
 		return reason == Reason.CHANGED_CONCERN_COMPONENT_RELATION;
 	}
 
+	/**
+	 * Sent instead of individual assign and unassign events when too many
+	 * of a concern's assignments changed at once.  Listeners must assume any
+	 * of the concern's assignments (for the relation) may have changed.
+	 */
+	public boolean isChangedAssignments()
+	{
+		return reason == Reason.CHANGED_ASSIGNMENTS;
+	}
+
 	@Override
 	public Iterator<ConcernEvent> iterator()
 	{
@@ -0,0 +1,277 @@
+package edu.columbia.concerns.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.core.IJavaElement;
+
+import edu.columbia.concerns.model.ConcernEvent.Reason;
+import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.repository.EdgeKind;
+
+/**
+ * Merges concern events into the net change they describe, e.g., so that
+ * assigning 10,000 elements results in a handful of events.
+ * <UL>
+ * <LI>Duplicate events are dropped.
+ * <LI>Assigning and then unassigning an element (or vice versa) cancel.
+ * <LI>When more than SUBTREE_CHANGED_THRESHOLD of a concern's assignments
+ * change, they are replaced by one "assignments changed" event for the
+ * concern (see {@link ConcernEvent#isChangedAssignments()}).
+ * </UL>
+ * Events that affect everything (e.g., the active concern model changed)
+ * come first, since some listeners only check the first event.  The rest
+ * are grouped by concern in the order the concerns were first seen.
+ * <P>
+ * Not thread safe.
+ */
+class ConcernEventCoalescer
+{
+	static final int SUBTREE_CHANGED_THRESHOLD = 256;
+
+	/**
+	 * The net change to a concern.
+	 */
+	private static class ConcernDelta
+	{
+		// (Element, relation) -> ASSIGNED or UNASSIGNED
+		Map<Assignment, Reason> assignments = new LinkedHashMap<Assignment, Reason>();
+
+		// Relations whose assignments changed wholesale
+		Set<EdgeKind> changedRelations = new LinkedHashSet<EdgeKind>();
+
+		boolean labelChanged = false;
+		boolean childrenChanged = false;
+	}
+
+	private static class Assignment
+	{
+		final IJavaElement element;
+		final EdgeKind relation;
+
+		Assignment(IJavaElement element, EdgeKind relation)
+		{
+			this.element = element;
+			this.relation = relation;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (element != null ? element.hashCode() : 0) * 31 +
+				(relation != null ? relation.hashCode() : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Assignment))
+				return false;
+
+			Assignment rhs = (Assignment) obj;
+			return (element != null ? element.equals(rhs.element) : rhs.element == null) &&
+				relation == rhs.relation;
+		}
+	}
+
+	// Events that aren't about a particular concern or element
+	private Set<Reason> globalEvents = new LinkedHashSet<Reason>();
+
+	private Map<Concern, ConcernDelta> concernDeltas =
+		new LinkedHashMap<Concern, ConcernDelta>();
+
+	private Set<IJavaElement> removedElements = new LinkedHashSet<IJavaElement>();
+	private Set<IJavaElement> elementLabels = new LinkedHashSet<IJavaElement>();
+
+	// Number of events added, for statistics
+	private int numAdded = 0;
+
+	/**
+	 * Adds the event and all the events that follow it.
+	 */
+	void add(ConcernEvent events)
+	{
+		for (ConcernEvent event : events)
+		{
+			if (event.reason == null)
+				continue; // Empty
+
+			++numAdded;
+
+			switch (event.reason)
+			{
+			case ASSIGNED:
+			case UNASSIGNED:
+				addAssignment(event);
+				break;
+
+			case CHANGED_ASSIGNMENTS:
+				addChangedAssignments(event);
+				break;
+
+			case UPDATE_LABEL:
+				if (event.concern != null)
+					getDelta(event.concern).labelChanged = true;
+				else if (event.element != null)
+					elementLabels.add(event.element);
+				break;
+
+			case CHANGED_CONCERN_CHILDREN:
+				getDelta(event.concern).childrenChanged = true;
+				break;
+
+			case REMOVED_ELEMENT:
+				removedElements.add(event.element);
+				break;
+
+			default:
+				globalEvents.add(event.reason);
+				break;
+			}
+		}
+	}
+
+	boolean isEmpty()
+	{
+		return globalEvents.isEmpty() &&
+			concernDeltas.isEmpty() &&
+			removedElements.isEmpty() &&
+			elementLabels.isEmpty();
+	}
+
+	/**
+	 * @return the number of events added since the last clear()
+	 */
+	int getNumAdded()
+	{
+		return numAdded;
+	}
+
+	void clear()
+	{
+		globalEvents.clear();
+		concernDeltas.clear();
+		removedElements.clear();
+		elementLabels.clear();
+		numAdded = 0;
+	}
+
+	/**
+	 * @return the merged events, or null if there are none
+	 */
+	ConcernEvent getEvents()
+	{
+		ConcernEvent events = new ConcernEvent();
+
+		for (Reason reason : globalEvents)
+		{
+			events.addEvent(reason, null, null, null);
+		}
+
+		for (Map.Entry<Concern, ConcernDelta> entry : concernDeltas.entrySet())
+		{
+			Concern concern = entry.getKey();
+			ConcernDelta delta = entry.getValue();
+
+			if (delta.childrenChanged)
+				events.addChildrenChangedEvent(concern);
+
+			if (delta.labelChanged)
+				events.addEvent(Reason.UPDATE_LABEL, concern, null, null);
+
+			for (EdgeKind relation : delta.changedRelations)
+			{
+				events.addAssignmentsChangedEvent(concern, relation);
+			}
+
+			for (Map.Entry<Assignment, Reason> assignment : delta.assignments.entrySet())
+			{
+				events.addEvent(assignment.getValue(), concern,
+						assignment.getKey().element, assignment.getKey().relation);
+			}
+		}
+
+		for (IJavaElement element : removedElements)
+		{
+			events.addRemovalEvent(element);
+		}
+
+		for (IJavaElement element : elementLabels)
+		{
+			events.addUpdateLabelEvent(element);
+		}
+
+		return events.reason != null ? events : null;
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private ConcernDelta getDelta(Concern concern)
+	{
+		ConcernDelta delta = concernDeltas.get(concern);
+		if (delta == null)
+		{
+			delta = new ConcernDelta();
+			concernDeltas.put(concern, delta);
+		}
+
+		return delta;
+	}
+
+	private void addChangedAssignments(ConcernEvent event)
+	{
+		ConcernDelta delta = getDelta(event.concern);
+		if (!delta.changedRelations.add(event.concernComponentRelation))
+			return;
+
+		// The individual changes are covered now
+		Iterator<Assignment> iter = delta.assignments.keySet().iterator();
+		while (iter.hasNext())
+		{
+			if (iter.next().relation == event.concernComponentRelation)
+				iter.remove();
+		}
+	}
+
+	private void addAssignment(ConcernEvent event)
+	{
+		ConcernDelta delta = getDelta(event.concern);
+
+		if (delta.changedRelations.contains(event.concernComponentRelation))
+			return; // Already covered
+
+		Assignment assignment = new Assignment(event.element,
+				event.concernComponentRelation);
+
+		Reason previous = delta.assignments.get(assignment);
+		if (previous == event.reason)
+			return; // Duplicate
+
+		if (previous != null)
+		{
+			// Assigned then unassigned (or vice versa), so nothing changed
+			delta.assignments.remove(assignment);
+			return;
+		}
+
+		delta.assignments.put(assignment, event.reason);
+
+		if (delta.assignments.size() > SUBTREE_CHANGED_THRESHOLD)
+		{
+			// Too many to send individually, so collapse the relations
+			// they belong to
+
+			for (Assignment changed : delta.assignments.keySet())
+			{
+				delta.changedRelations.add(changed.relation);
+			}
+
+			delta.assignments.clear();
+		}
+	}
+}
@@ -10,16 +10,22 @@
 
 package edu.columbia.concerns.model;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jdt.core.IJavaElement;
 
+import edu.columbia.concerns.repository.AssignmentBitmaps;
+import edu.columbia.concerns.repository.CodeModelSnapshot;
 import edu.columbia.concerns.repository.Component;
 import edu.columbia.concerns.repository.ComponentKind;
 import edu.columbia.concerns.repository.Concern;
 import edu.columbia.concerns.repository.ConcernDomain;
 import edu.columbia.concerns.repository.ConcernRepository;
 import edu.columbia.concerns.repository.EdgeKind;
+import edu.columbia.concerns.repository.RepositoryBatch;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
 import edu.columbia.concerns.util.ProblemManager;
 
 /**
@@ -45,6 +51,10 @@ public class ConcernModel
 	{
 		this.repository = hsqldb;
 		initConcernDomain(concernDomainName);
+		
+		// Load the assignments for looking up a component's concerns 
+		// (e.g., for decorating) in one go rather than one at a time
+		repository.preloadAssignedConcerns();
 	}
 
 	public void initConcernDomain(String concernDomainName)
@@ -110,6 +120,19 @@ public class ConcernModel
 		return concernDomain;
 	}
 
+	/**
+	 * Loads the assignments of every concern in the concern domain with a
+	 * single query rather than one query per concern.
+	 * 
+	 * @return false if canceled or the assignments couldn't be loaded
+	 */
+	public boolean preloadAssignments(EdgeKind edgeKind, 
+			ISimpleProgressMonitor progressMonitor)
+	{
+		return repository.preloadAssignments(concernDomain, edgeKind, 
+				progressMonitor);
+	}
+
 	/**
 	 * Returns an array containing all the concerns in the concern model.
 	 * 
@@ -236,11 +259,38 @@ public class ConcernModel
 		return repository.getComponents();
 	}
 	
+	public RepositoryBatch beginBatch(int batchSize)
+	{
+		return repository.beginBatch(batchSize);
+	}
+
+	public CodeModelSnapshot getCodeModelSnapshot()
+	{
+		return repository.getCodeModelSnapshot();
+	}
+	
+	/**
+	 * @return the assignments for the relation as bitmaps over the code
+	 *         model snapshot, or null if they couldn't be loaded
+	 */
+	public AssignmentBitmaps getAssignmentBitmaps(EdgeKind edgeKind)
+	{
+		return repository.getAssignmentBitmaps(edgeKind);
+	}
+	
 	public Component getComponent(String javaElementHandle)
 	{
 		return repository.getComponent(javaElementHandle);
 	}
 
+	/**
+	 * @return handle -> component for the handles that were found
+	 */
+	public Map<String, Component> getComponents(Collection<String> javaElementHandles)
+	{
+		return repository.getComponents(javaElementHandles);
+	}
+
 	public List<Concern> getAssignedConcerns(IJavaElement javaElement, 
 			EdgeKind edgeKind)
 	{
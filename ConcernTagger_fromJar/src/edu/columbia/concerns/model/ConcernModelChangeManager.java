@@ -1,68 +1,197 @@
 package edu.columbia.concerns.model;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import edu.columbia.concerns.util.ProblemManager;
+
+/**
+ * Notifies listeners of changes to the concern model.
+ * <P>
+ * Events are merged (see {@link ConcernEventCoalescer}) and delivered in
+ * batches by a background job, never on the thread that reported them,
+ * so listeners must post any UI work to the UI thread.
+ * While notifications are disabled, events are queued and delivered as
+ * one batch once they are enabled again.
+ * <P>
+ * The time each listener spends handling events is recorded (see
+ * {@link #getListenerStats()}).
+ */
 public class ConcernModelChangeManager
 {
+	// Delay before delivering, so events reported close together are
+	// delivered together
+	private static final long DELIVERY_DELAY_MS = 50;
+
 	private int areNotificationsDisabled = 0;
 	private List<IConcernListener> aListeners =
-		new ArrayList<IConcernListener>();
+		new CopyOnWriteArrayList<IConcernListener>();
+
+	// Guards the events and statistics
+	private final Object lock = new Object();
+
+	// Events reported while notifications are disabled
+	private ConcernEventCoalescer queuedEvents = new ConcernEventCoalescer();
+
+	// Events waiting to be delivered
+	private ConcernEventCoalescer pendingEvents = new ConcernEventCoalescer();
+
+	// Created on first use so models without listeners (e.g., when
+	// running headless) don't need the job manager
+	private DeliveryJob deliveryJob = null;
+
+	// Listener class name -> stats.  Keyed by name so removed listeners
+	// can be garbage collected.
+	private Map<String, ListenerStats> listenerStats =
+		new LinkedHashMap<String, ListenerStats>();
+
+	private long numEventsReported = 0;
+	private long numEventsDelivered = 0;
+
+	/**
+	 * Time spent by the listeners of a class handling events.
+	 */
+	public static class ListenerStats
+	{
+		private String listenerName;
+		private int numDeliveries = 0;
+		private long numEvents = 0;
+		private long totalNanos = 0;
+		private long maxNanos = 0;
+
+		ListenerStats(String listenerName)
+		{
+			this.listenerName = listenerName;
+		}
+
+		ListenerStats(ListenerStats rhs)
+		{
+			this.listenerName = rhs.listenerName;
+			this.numDeliveries = rhs.numDeliveries;
+			this.numEvents = rhs.numEvents;
+			this.totalNanos = rhs.totalNanos;
+			this.maxNanos = rhs.maxNanos;
+		}
+
+		public String getListenerName()
+		{
+			return listenerName;
+		}
+
+		/**
+		 * @return the number of batches delivered to the listener
+		 */
+		public int getNumDeliveries()
+		{
+			return numDeliveries;
+		}
+
+		public long getNumEvents()
+		{
+			return numEvents;
+		}
+
+		public long getTotalMillis()
+		{
+			return totalNanos / 1000000;
+		}
+
+		public long getMaxMillis()
+		{
+			return maxNanos / 1000000;
+		}
+
+		@Override
+		public String toString()
+		{
+			return listenerName + ": " + numDeliveries + " batches, " +
+				numEvents + " events, " + getTotalMillis() + " ms total, " +
+				getMaxMillis() + " ms max";
+		}
+	}
 
-	ConcernEvent queuedEvents = null;
-	
 	public void disableNotifications()
 	{
-		++areNotificationsDisabled;
+		synchronized (lock)
+		{
+			++areNotificationsDisabled;
+		}
 	}
 
 	public void clearQueuedEvents()
 	{
-		queuedEvents = null;
+		synchronized (lock)
+		{
+			queuedEvents.clear();
+		}
 	}
-	
+
 	/**
 	 */
 	public void enableNotifications()
 	{
-		assert areNotificationsDisabled > 0;
-		
-		--areNotificationsDisabled;
-		
-		if (areNotificationsDisabled == 0 && queuedEvents != null)
+		synchronized (lock)
 		{
-			modelChanged(queuedEvents);
-			clearQueuedEvents();
+			assert areNotificationsDisabled > 0;
+
+			--areNotificationsDisabled;
+
+			if (areNotificationsDisabled > 0 || queuedEvents.isEmpty())
+				return;
+
+			ConcernEvent events = queuedEvents.getEvents();
+			numEventsReported += queuedEvents.getNumAdded();
+			queuedEvents.clear();
+
+			if (events == null || aListeners.isEmpty())
+				return; // Changes cancelled out or no one is listening
+
+			pendingEvents.add(events);
 		}
+
+		scheduleDelivery();
 	}
-	
+
 	/**
-	 * Notifies all observers of a change in the model.
-	 * 
+	 * Notifies all observers of a change in the model.  Returns without
+	 * waiting for the observers to be notified.
+	 *
 	 * @param pChange
 	 *            The type of change. See the constants in
 	 *            ConcernModelChangeListener.
 	 */
 	public void modelChanged(ConcernEvent event)
 	{
-		if (areNotificationsDisabled > 0)
-		{
-			if (queuedEvents == null)
-				queuedEvents = new ConcernEvent();
-			
-			queuedEvents.addEvent(event);
-			return;
-		}
-	
-		for (IConcernListener lListener : aListeners)
+		synchronized (lock)
 		{
-			lListener.modelChanged(event);
+			if (areNotificationsDisabled > 0)
+			{
+				queuedEvents.add(event);
+				return;
+			}
+
+			if (aListeners.isEmpty())
+				return;
+
+			int numAdded = pendingEvents.getNumAdded();
+			pendingEvents.add(event);
+			numEventsReported += pendingEvents.getNumAdded() - numAdded;
 		}
+
+		scheduleDelivery();
 	}
 
 	/**
 	 * Adds a listener to the list.
-	 * 
+	 *
 	 * @param pListener
 	 *            The listener to add.
 	 */
@@ -73,7 +202,7 @@ public class ConcernModelChangeManager
 
 	/**
 	 * Removes a Listener from the list.
-	 * 
+	 *
 	 * @param pListener
 	 *            The listener to remove.
 	 */
@@ -81,4 +210,145 @@ public class ConcernModelChangeManager
 	{
 		aListeners.remove(pListener);
 	}
+
+	/**
+	 * @return the time spent by each listener handling events
+	 */
+	public List<ListenerStats> getListenerStats()
+	{
+		synchronized (lock)
+		{
+			List<ListenerStats> result = new ArrayList<ListenerStats>();
+			for (ListenerStats stats : listenerStats.values())
+			{
+				result.add(new ListenerStats(stats));
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * @return the number of events reported, before merging
+	 */
+	public long getNumEventsReported()
+	{
+		synchronized (lock)
+		{
+			return numEventsReported;
+		}
+	}
+
+	/**
+	 * @return the number of events delivered, after merging
+	 */
+	public long getNumEventsDelivered()
+	{
+		synchronized (lock)
+		{
+			return numEventsDelivered;
+		}
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private void scheduleDelivery()
+	{
+		DeliveryJob job;
+
+		synchronized (lock)
+		{
+			if (deliveryJob == null)
+				deliveryJob = new DeliveryJob();
+
+			job = deliveryJob;
+		}
+
+		// If the job is running it will run again, so events are
+		// delivered in order
+		job.schedule(DELIVERY_DELAY_MS);
+	}
+
+	private void deliver()
+	{
+		ConcernEvent events;
+
+		synchronized (lock)
+		{
+			events = pendingEvents.getEvents();
+			pendingEvents.clear();
+		}
+
+		if (events == null)
+			return;
+
+		int numEvents = 0;
+		for (ConcernEvent event : events)
+		{
+			++numEvents;
+		}
+
+		for (IConcernListener listener : aListeners)
+		{
+			long start = System.nanoTime();
+
+			try
+			{
+				listener.modelChanged(events);
+			}
+			catch (RuntimeException e)
+			{
+				// Keep notifying the other listeners
+				ProblemManager.reportException(e,
+						"Failed to notify " + listener.getClass().getName() +
+						" of concern model changes.");
+			}
+
+			long elapsed = System.nanoTime() - start;
+
+			synchronized (lock)
+			{
+				String listenerName = listener.getClass().getName();
+
+				ListenerStats stats = listenerStats.get(listenerName);
+				if (stats == null)
+				{
+					stats = new ListenerStats(listenerName);
+					listenerStats.put(listenerName, stats);
+				}
+
+				++stats.numDeliveries;
+				stats.numEvents += numEvents;
+				stats.totalNanos += elapsed;
+				stats.maxNanos = Math.max(stats.maxNanos, elapsed);
+			}
+		}
+
+		synchronized (lock)
+		{
+			numEventsDelivered += numEvents;
+		}
+	}
+
+	//-----------------------------------------------------
+	// HELPER CLASSES
+	//-----------------------------------------------------
+
+	private final class DeliveryJob extends Job
+	{
+		DeliveryJob()
+		{
+			super("Delivering concern model changes");
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor progressMonitor)
+		{
+			deliver();
+			return Status.OK_STATUS;
+		}
+	}
 }
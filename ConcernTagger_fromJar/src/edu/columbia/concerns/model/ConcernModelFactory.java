@@ -21,6 +21,10 @@ public class ConcernModelFactory
 	static EdgeKind defaultConcernComponentRelation = EdgeKind.RELATED_TO;
 
 	static IConcernModelProvider activeConcernModelProvider = null;
+
+	// Whether to load a concern domain's assignments in the background
+	// when it is opened
+	static boolean preloadAssignments = true;
 	
 	static ConcernModelFactory factorySingleton = new ConcernModelFactory();
 	
@@ -75,6 +79,12 @@ public class ConcernModelFactory
 		concernModel = new ConcernModel(hsqldb, concernDomain);
 			concernModels.put(concernDomain, concernModel);
 
+		if (preloadAssignments)
+		{
+			new AssignmentPreloadJob(concernModel, 
+					getConcernComponentRelation()).schedule();
+		}
+
 		// The first concern model created becomes the default
 		if (defaultConcernModel == null)
 			defaultConcernModel = concernModel;
@@ -82,6 +92,11 @@ public class ConcernModelFactory
 		return concernModel;
 	}
 
+	public void setPreloadAssignments(boolean preload)
+	{
+		preloadAssignments = preload;
+	}
+
 	public ConcernModel getDefaultConcernModel()
 	{
 		return defaultConcernModel;
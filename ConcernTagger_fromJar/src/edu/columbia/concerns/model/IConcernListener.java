@@ -13,6 +13,10 @@ package edu.columbia.concerns.model;
 /**
  * Interface describing objects interested in reacting to changes to the concern
  * model.
+ * <P>
+ * Listeners are called on a background thread (see
+ * ConcernModelChangeManager), so any work touching widgets or the
+ * workbench must be posted to the UI thread with Display.asyncExec().
  */
 public interface IConcernListener
 {
@@ -0,0 +1,194 @@
+package edu.columbia.concerns.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.columbia.concerns.util.CompressedBitmap;
+
+/**
+ * The assignments of one concern-component relation, stored per concern as
+ * a compressed bitmap of the assigned components' pre-order positions in a
+ * code model snapshot.
+ * <P>
+ * Since a component's descendants directly follow it in pre-order, the
+ * components contained in a set of assigned components are a union of
+ * ranges, and set operations over assignments (e.g., for tangling) become
+ * bitmap operations.
+ * <P>
+ * The repository builds one on demand for the current snapshot and keeps
+ * it up to date as concerns are assigned and unassigned.  Bitmaps are
+ * copied before being changed, so the bitmaps returned here never change
+ * and must not be modified.
+ */
+public final class AssignmentBitmaps implements DBConstants
+{
+	private static final CompressedBitmap NO_ASSIGNMENTS = new CompressedBitmap();
+
+	private CodeModelSnapshot snapshot;
+
+	// Concern id -> positions of the components directly assigned to it
+	private Map<Integer, CompressedBitmap> assignments =
+		new HashMap<Integer, CompressedBitmap>();
+
+	// Concern id -> positions of the components assigned to it or its
+	// descendants.  Filled on demand.
+	private Map<Integer, CompressedBitmap> recursiveAssignments =
+		new HashMap<Integer, CompressedBitmap>();
+
+	private AssignmentBitmaps(CodeModelSnapshot snapshot)
+	{
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Loads the assignments for the edge kind with a single query.
+	 */
+	static AssignmentBitmaps load(ConcernRepository repository,
+			CodeModelSnapshot snapshot, EdgeKind edgeKind)
+		throws SQLException
+	{
+		AssignmentBitmaps bitmaps = new AssignmentBitmaps(snapshot);
+
+		PreparedStatement statement = repository.getConnection().prepareStatement(
+				GET_CONCERN_ASSIGNMENTS_FOR_EDGE_KIND);
+
+		try
+		{
+			statement.setInt(1, repository.getEdgeKindId(edgeKind));
+
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				int position = bitmaps.getPosition(resultSet.getInt(2));
+				if (position == CodeModelSnapshot.NONE)
+					continue; // Not in the code model
+
+				Integer concernId = resultSet.getInt(1);
+
+				CompressedBitmap assigned = bitmaps.assignments.get(concernId);
+				if (assigned == null)
+				{
+					assigned = new CompressedBitmap();
+					bitmaps.assignments.put(concernId, assigned);
+				}
+
+				assigned.add(position);
+			}
+			resultSet.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		return bitmaps;
+	}
+
+	/**
+	 * @return the snapshot whose pre-order positions the bitmaps hold
+	 */
+	public CodeModelSnapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * @return the positions of the components directly assigned to the
+	 *         concern
+	 */
+	public synchronized CompressedBitmap getAssignments(int concernId)
+	{
+		CompressedBitmap assigned = assignments.get(concernId);
+		return assigned != null ? assigned : NO_ASSIGNMENTS;
+	}
+
+	/**
+	 * @return the positions of the components assigned to the concern or
+	 *         any of its descendants
+	 */
+	public synchronized CompressedBitmap getAssignmentsRecursive(Concern concern)
+	{
+		CompressedBitmap assigned = recursiveAssignments.get(concern.getId());
+		if (assigned != null)
+			return assigned;
+
+		assigned = new CompressedBitmap(getAssignments(concern.getId()));
+
+		for (Concern child : concern.getChildren())
+		{
+			assigned.or(getAssignmentsRecursive(child));
+		}
+
+		recursiveAssignments.put(concern.getId(), assigned);
+		return assigned;
+	}
+
+	public synchronized boolean isAssigned(int concernId, int position)
+	{
+		return getAssignments(concernId).contains(position);
+	}
+
+	public boolean isAssignedRecursive(Concern concern, int position)
+	{
+		return getAssignmentsRecursive(concern).contains(position);
+	}
+
+	/**
+	 * @return the component's pre-order position, or
+	 *         CodeModelSnapshot.NONE if it isn't in the snapshot
+	 */
+	public int getPosition(int componentId)
+	{
+		int ordinal = snapshot.getOrdinal(componentId);
+		return ordinal != CodeModelSnapshot.NONE ?
+				snapshot.getPreOrder(ordinal) : CodeModelSnapshot.NONE;
+	}
+
+	// -----------------------------------------------------
+	// UPDATES
+	// -----------------------------------------------------
+
+	synchronized void assigned(int concernId, int componentId)
+	{
+		int position = getPosition(componentId);
+		if (position == CodeModelSnapshot.NONE)
+			return; // The new snapshot will include it
+
+		// Copy on write since callers may be using the old bitmap
+		CompressedBitmap assigned = new CompressedBitmap(getAssignments(concernId));
+		if (assigned.add(position))
+		{
+			assignments.put(concernId, assigned);
+			recursiveAssignments.clear();
+		}
+	}
+
+	synchronized void unassigned(int concernId, int componentId)
+	{
+		int position = getPosition(componentId);
+		if (position == CodeModelSnapshot.NONE)
+			return;
+
+		CompressedBitmap assigned = new CompressedBitmap(getAssignments(concernId));
+		if (assigned.remove(position))
+		{
+			if (assigned.isEmpty())
+				assignments.remove(concernId);
+			else
+				assignments.put(concernId, assigned);
+
+			recursiveAssignments.clear();
+		}
+	}
+
+	/**
+	 * Called when the concern tree changes shape.
+	 */
+	synchronized void concernsMoved()
+	{
+		recursiveAssignments.clear();
+	}
+}
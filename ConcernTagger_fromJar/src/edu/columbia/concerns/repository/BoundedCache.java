@@ -0,0 +1,145 @@
+package edu.columbia.concerns.repository;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache that holds at most a fixed number of entries, evicting the least
+ * recently used entry when full.
+ * <P>
+ * Entries can be pinned so they are never evicted, e.g., components
+ * created by a batch that can't be reread from the database until the
+ * batch is flushed.  Pinned entries don't count toward the limit.
+ * <P>
+ * Counts hits, misses, and evictions so the limit can be tuned (see
+ * {@link ConcernRepository#getComponentCacheStatistics()}).
+ */
+class BoundedCache<K, V>
+{
+	private int maxSize;
+
+	// Iterates from least to most recently used
+	private LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+	private Map<K, V> pinnedEntries = new HashMap<K, V>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	BoundedCache(int maxSize)
+	{
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * @return the value, or null if it isn't cached
+	 */
+	synchronized V get(K key)
+	{
+		V value = pinnedEntries.get(key);
+		if (value == null)
+			value = entries.get(key);
+
+		if (value != null)
+			++hits;
+		else
+			++misses;
+
+		return value;
+	}
+
+	synchronized void put(K key, V value)
+	{
+		if (pinnedEntries.containsKey(key))
+		{
+			pinnedEntries.put(key, value);
+			return;
+		}
+
+		entries.put(key, value);
+		trim();
+	}
+
+	/**
+	 * Adds an entry that won't be evicted until it is unpinned.
+	 */
+	synchronized void pin(K key, V value)
+	{
+		entries.remove(key);
+		pinnedEntries.put(key, value);
+	}
+
+	/**
+	 * Makes a pinned entry evictable again.
+	 */
+	synchronized void unpin(K key)
+	{
+		V value = pinnedEntries.remove(key);
+		if (value != null)
+			put(key, value);
+	}
+
+	synchronized void remove(K key)
+	{
+		pinnedEntries.remove(key);
+		entries.remove(key);
+	}
+
+	synchronized void clear()
+	{
+		pinnedEntries.clear();
+		entries.clear();
+	}
+
+	synchronized int size()
+	{
+		return entries.size() + pinnedEntries.size();
+	}
+
+	synchronized int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Changes the limit, evicting entries if the cache is now too big.
+	 */
+	synchronized void setMaxSize(int maxSize)
+	{
+		this.maxSize = Math.max(1, maxSize);
+		trim();
+	}
+
+	/**
+	 * @return the size, limit, hit rate, and number of evictions
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		long lookups = hits + misses;
+
+		return size() + "/" + maxSize + " entries (" +
+			pinnedEntries.size() + " pinned), " +
+			hits + " hits, " + misses + " misses (" +
+			(lookups > 0 ? (100 * hits / lookups) : 0) + "% hit rate), " +
+			evictions + " evictions";
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private void trim()
+	{
+		Iterator<V> iter = entries.values().iterator();
+		while (entries.size() > maxSize && iter.hasNext())
+		{
+			iter.next();
+			iter.remove();
+			++evictions;
+		}
+	}
+}
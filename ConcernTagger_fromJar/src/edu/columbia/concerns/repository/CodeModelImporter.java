@@ -2,10 +2,23 @@ package edu.columbia.concerns.repository;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jdt.core.ICompilationUnit;
@@ -19,9 +32,11 @@ import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.ASTRequestor;
 import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.core.dom.FieldDeclaration;
+import org.eclipse.jdt.core.dom.IMethodBinding;
 import org.eclipse.jdt.core.dom.ITypeBinding;
 import org.eclipse.jdt.core.dom.IVariableBinding;
 import org.eclipse.jdt.core.dom.Initializer;
@@ -51,6 +66,10 @@ import edu.columbia.concerns.util.ProblemManager;
  * using the starting position of the class/method/field name because the char
  * position of the modifiers is not available
  * 
+ * Packages can optionally be parsed by a pool of worker threads. Parsing is
+ * kept separate from writing so the parallel and serial paths write the
+ * same rows in the same order.
+ * 
  * @author Vibhav Garg
  * 
  */
@@ -61,11 +80,56 @@ public class CodeModelImporter
 	private boolean persistAnswer = false;
 	private IJavaProject project = null;
 	private Job job = null;
+	
+	// Rows are written in batches of this size
+	private int batchSize;
+	private RepositoryBatch batch = null;
+	
+	// Number of threads used to parse packages. If 1, packages are parsed 
+	// and written by the job thread.
+	private int numThreads;
+	
+	// Number of threads used by the project importers created from now on
+	private static int defaultNumThreads = 1;
 
 	public CodeModelImporter(ConcernRepository hsqldb, IJavaProject project)
+	{
+		this(hsqldb, project, RepositoryBatch.DEFAULT_BATCH_SIZE, 1);
+	}
+
+	public CodeModelImporter(ConcernRepository hsqldb, IJavaProject project,
+			int batchSize)
+	{
+		this(hsqldb, project, batchSize, 1);
+	}
+
+	/**
+	 * @param batchSize
+	 *            number of rows to write per transaction
+	 * @param numThreads
+	 *            number of threads used to parse packages in parallel
+	 */
+	public CodeModelImporter(ConcernRepository hsqldb, IJavaProject project,
+			int batchSize, int numThreads)
 	{
 		this.repository = hsqldb;
 		this.project = project;
+		this.batchSize = batchSize;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Sets the number of threads used to parse packages by the project
+	 * importers created from now on.  Defaults to 1 (serial import).
+	 */
+	public static void setDefaultNumThreads(int numThreads)
+	{
+		defaultNumThreads = Math.max(1, numThreads);
+	}
+
+	public static int getDefaultNumThreads()
+	{
+		return defaultNumThreads;
 	}
 
 	/**
@@ -114,6 +178,23 @@ public class CodeModelImporter
 
 	private IStatus importProject(	IJavaProject project, 
 									IProgressMonitor monitor)
+	{
+		batch = repository.beginBatch(batchSize);
+		
+		try
+		{
+			return importProjectInBatch(project, monitor);
+		}
+		finally
+		{
+			// Write whatever is left, even if we were canceled
+			batch.close();
+			batch = null;
+		}
+	}
+
+	private IStatus importProjectInBatch(	IJavaProject project, 
+											IProgressMonitor monitor)
 	{
 		Component projectComponent = getOrCreateProjectAndComponentDomain(project);
 		if (projectComponent == null)
@@ -122,7 +203,11 @@ public class CodeModelImporter
 		try
 		{
 			IPackageFragment[] packageFragments = project.getPackageFragments();
-			return importPackages(projectComponent, packageFragments, monitor);
+			
+			if (numThreads > 1)
+				return importPackagesInParallel(projectComponent, packageFragments, monitor);
+			else
+				return importPackages(projectComponent, packageFragments, monitor);
 		}
 		catch (JavaModelException e)
 		{
@@ -142,6 +227,104 @@ public class CodeModelImporter
 	private IStatus importPackages(Component projectComponent,
 			IPackageFragment[] packageFragments,
 			IProgressMonitor monitor)
+	{
+		beginTask(projectComponent, packageFragments, monitor);
+
+		for (IPackageFragment packageFragment : packageFragments)
+		{
+			if (monitor.isCanceled())
+				return Status.CANCEL_STATUS;
+
+			// Files are parsed one at a time as they are written
+			writePackage(projectComponent, new ParsedPackage(packageFragment), 
+					monitor);
+		}
+		
+		monitor.done();
+		
+		return Status.OK_STATUS;
+	}
+
+	/**
+	 * Same as importPackages() except packages are parsed by a pool of
+	 * worker threads. The parsed packages are written by this thread in
+	 * the same order as importPackages() would write them, so both produce
+	 * identical COMPONENT and COMPONENT_EDGE rows.
+	 * 
+	 * @param projectComponent
+	 * @param packageFragments
+	 */
+	private IStatus importPackagesInParallel(Component projectComponent,
+			IPackageFragment[] packageFragments,
+			final IProgressMonitor monitor)
+	{
+		beginTask(projectComponent, packageFragments, monitor);
+
+		ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+		LinkedList<Future<ParsedPackage>> pending = 
+			new LinkedList<Future<ParsedPackage>>();
+		
+		int nextPackage = 0;
+		
+		try
+		{
+			while (true)
+			{
+				// Keep the workers busy but bound the number of parsed
+				// packages waiting to be written
+				while (nextPackage < packageFragments.length &&
+					   pending.size() < numThreads * 2)
+				{
+					final IPackageFragment packageFragment = 
+						packageFragments[nextPackage++];
+					
+					pending.add(workers.submit(new Callable<ParsedPackage>()
+						{
+							@Override
+							public ParsedPackage call()
+							{
+								return parsePackage(packageFragment, monitor);
+							}
+						}));
+				}
+				
+				if (pending.isEmpty())
+					break;
+
+				if (monitor.isCanceled())
+					return Status.CANCEL_STATUS;
+
+				ParsedPackage parsedPackage = pending.removeFirst().get();
+				if (parsedPackage == null)
+					return Status.CANCEL_STATUS; // Canceled while parsing
+				
+				writePackage(projectComponent, parsedPackage, monitor);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			return Status.CANCEL_STATUS;
+		}
+		catch (ExecutionException e)
+		{
+			ProblemManager.reportException(e, 
+					"Failed to parse project " + projectComponent.getName(), true);
+			return new Status(Status.ERROR, ConcernTagger.ID_PLUGIN,
+					"Failed to parse project: " + projectComponent.getName(), e);
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+		
+		monitor.done();
+		
+		return Status.OK_STATUS;
+	}
+
+	private void beginTask(Component projectComponent,
+			IPackageFragment[] packageFragments,
+			IProgressMonitor monitor)
 	{
 		int taskSize = 0;
 		
@@ -152,85 +335,172 @@ public class CodeModelImporter
 		
 		monitor.beginTask("Importing " + projectComponent.getName() + " project", 
 				taskSize);
+	}
+	
+	/**
+	 * Parses all the files in a package using a single batch. Called by
+	 * the worker threads, so this must not touch the database or the
+	 * progress monitor (except to check for cancellation).
+	 * 
+	 * @return the parsed package, or null if canceled
+	 */
+	private ParsedPackage parsePackage(IPackageFragment packageFragment,
+			final IProgressMonitor monitor)
+	{
+		ParsedPackage parsedPackage = new ParsedPackage(packageFragment);
+		
+		if (packageFragment.isDefaultPackage())
+			return parsedPackage;
+		
+		try
+		{
+			parsedPackage.compilationUnits = packageFragment.getCompilationUnits();
+		}
+		catch (JavaModelException e)
+		{
+			parsedPackage.exception = e;
+			return parsedPackage;
+		}
+		
+		if (parsedPackage.compilationUnits.length == 0)
+			return parsedPackage;
 
-		for (IPackageFragment packageFragment : packageFragments)
+		final Map<ICompilationUnit, ParsedFile> parsedFiles = 
+			new HashMap<ICompilationUnit, ParsedFile>();
+		
+		ASTParser parser = ASTParser.newParser(AST.JLS3);
+		parser.setProject(project);
+
+		// Make sure we set resolve bindings to true
+		parser.setResolveBindings(true);
+		
+		try
 		{
-			if (monitor.isCanceled())
-				return Status.CANCEL_STATUS;
-			
-			// Shouldn't we import the default package?  Otherwise,
-			// ConcernTagger won't work with projects that don't
-			// specify a package.
-			if (packageFragment.isDefaultPackage())
-			{
-				monitor.worked(countTypes(packageFragment));
-				continue;
-			}
+			parser.createASTs(parsedPackage.compilationUnits, new String[0], 
+				new ASTRequestor()
+				{
+					@Override
+					public void acceptAST(ICompilationUnit source, CompilationUnit ast)
+					{
+						parsedFiles.put(source, parseFile(source, ast));
+					}
+				},
+				new NullProgressMonitor()
+				{
+					@Override
+					public boolean isCanceled()
+					{
+						return monitor.isCanceled();
+					}
+				});
+		}
+		catch (OperationCanceledException e)
+		{
+			return null;
+		}
 
-			String packageName = packageFragment.getElementName();
-			
-			ICompilationUnit[] compilationUnits = null;
+		// Keep the files in their original order
+		parsedPackage.files = new ArrayList<ParsedFile>();
+		
+		for (ICompilationUnit compilationUnit : parsedPackage.compilationUnits)
+		{
+			ParsedFile parsedFile = parsedFiles.get(compilationUnit);
+			if (parsedFile == null)
+				parsedFile = new ParsedFile(compilationUnit, null);
+				
+			parsedPackage.files.add(parsedFile);
+		}
+		
+		return parsedPackage;
+	}
+	
+	/**
+	 * Persists a package and its files to the database. If the files
+	 * haven't been parsed yet, they are parsed one at a time.
+	 */
+	private void writePackage(Component projectComponent,
+			ParsedPackage parsedPackage,
+			IProgressMonitor monitor)
+	{
+		IPackageFragment packageFragment = parsedPackage.packageFragment;
+		
+		// Shouldn't we import the default package?  Otherwise,
+		// ConcernTagger won't work with projects that don't
+		// specify a package.
+		if (packageFragment.isDefaultPackage())
+		{
+			monitor.worked(countTypes(packageFragment));
+			return;
+		}
+
+		String packageName = packageFragment.getElementName();
+		
+		ICompilationUnit[] compilationUnits = parsedPackage.compilationUnits;
+		
+		try
+		{
+			if (parsedPackage.exception != null)
+				throw parsedPackage.exception;
 			
-			try
-			{
+			if (compilationUnits == null)
 				compilationUnits = packageFragment.getCompilationUnits();
-			}
-			catch (JavaModelException e)
-			{
-				ProblemManager.reportException(e,
-						"Failed to obtain compilation units for package "
-						+ packageName, true);
-				continue;
-			}
+		}
+		catch (JavaModelException e)
+		{
+			ProblemManager.reportException(e,
+					"Failed to obtain compilation units for package "
+					+ packageName, true);
+			return;
+		}
 
-			// Ignore empty packages
-			if (compilationUnits.length == 0)
-				continue;
-			
-			System.out.println("Importing package " + packageName);
+		// Ignore empty packages
+		if (compilationUnits.length == 0)
+			return;
+		
+		System.out.println("Importing package " + packageName);
 
-			// Check if component already exists
-			// Packages aren't considered to have a source range
-			Component packageComponent = getOrCreateComponent(packageFragment);
-			if (packageComponent == null)
-			{
-				// Already reported failure
-				monitor.worked(countTypes(packageFragment));
-				continue;
-			}
+		// Check if component already exists
+		// Packages aren't considered to have a source range
+		Component packageComponent = getOrCreateComponent(packageFragment);
+		if (packageComponent == null)
+		{
+			// Already reported failure
+			monitor.worked(countTypes(packageFragment));
+			return;
+		}
 
-			if (!projectComponent.isConnected(packageComponent))
-			{
-				projectComponent.addChild(packageComponent);
-			}
+		connect(projectComponent, packageComponent);
 
-			// Persist all files in the package
-			importFiles(compilationUnits, packageComponent, monitor);
-		}
-		
-		monitor.done();
-		
-		return Status.OK_STATUS;
+		// Persist all files in the package
+		importFiles(compilationUnits, parsedPackage.files, packageComponent, 
+				monitor);
 	}
 
 	/**
 	 * Persists the files to the database.
 	 * 
 	 * @param compilationUnits
+	 * @param parsedFiles
+	 *            the parsed files, in the same order as compilationUnits, or
+	 *            null to parse each file before writing it
 	 * @param packageComponent
-	 * @throws JavaModelException
-	 * @throws SQLException
 	 */
 	private void importFiles(	ICompilationUnit[] compilationUnits,
+								List<ParsedFile> parsedFiles,
 								Component packageComponent,
 								IProgressMonitor monitor)
 	{
-		for (ICompilationUnit compilationUnit : compilationUnits)
+		for (int i = 0; i < compilationUnits.length; ++i)
 		{
 			if (monitor.isCanceled())
 				return;
 			
-			Component fileComponent = importFile(compilationUnit,  monitor);
+			ICompilationUnit compilationUnit = compilationUnits[i];
+			
+			Component fileComponent = parsedFiles != null ?
+					writeFile(parsedFiles.get(i), monitor) :
+					importFileInBatch(compilationUnit, monitor);
+			
 			if (fileComponent == null)
 			{
 				ProblemManager.reportInfo(
@@ -240,10 +510,7 @@ public class CodeModelImporter
 				continue;
 			}
 			
-			if (!packageComponent.isConnected(fileComponent))
-			{
-				packageComponent.addChild(fileComponent);
-			}
+			connect(packageComponent, fileComponent);
 		}
 	}
 
@@ -267,7 +534,7 @@ public class CodeModelImporter
 		// they should!-ME)
 		SourceRange emptySourceRange = new SourceRange(0,0,0,0,0);
 		
-		return Component.createComponent(repository, 
+		return Component.createComponent(batch, 
 				project,
 				emptySourceRange,
 				project.getElementName(),
@@ -283,6 +550,24 @@ public class CodeModelImporter
 	 * @throws SQLException
 	 */
 	public Component importFile(ICompilationUnit icu, IProgressMonitor monitor)
+	{
+		if (batch != null)
+			return importFileInBatch(icu, monitor);
+
+		batch = repository.beginBatch(batchSize);
+		
+		try
+		{
+			return importFileInBatch(icu, monitor);
+		}
+		finally
+		{
+			batch.close();
+			batch = null;
+		}
+	}
+	
+	private Component importFileInBatch(ICompilationUnit icu, IProgressMonitor monitor)
 	{
 		// Projects aren't considered to have a source range (but
 		// they should!-ME)
@@ -290,8 +575,146 @@ public class CodeModelImporter
 		if (fileComponent == null)
 			return null;
 		
-		// Parse file
+		return writeFile(fileComponent, parseFile(icu, createAST(icu)), monitor);
+	}
+
+	/**
+	 * Brings the code model for the files up to date with their source.
+	 * Components for new members are created, components whose name or
+	 * source range changed are updated, and components for members that
+	 * no longer exist are removed along with their edges and assignments.
+	 * Files that no longer exist are removed entirely, as are removed
+	 * packages and everything in them.
+	 * <P>
+	 * Files whose project hasn't been imported are ignored.
+	 * 
+	 * @param compilationUnits
+	 * @param removedPackageFragments
+	 * @param monitor
+	 */
+	public void updateFiles(Collection<ICompilationUnit> compilationUnits, 
+			Collection<IPackageFragment> removedPackageFragments,
+			IProgressMonitor monitor)
+	{
+		Component projectComponent = getComponent(project);
+		if (projectComponent == null)
+			return; // Never imported
+		
+		monitor.beginTask("Updating " + project.getElementName() + " project", 
+				removedPackageFragments.size() + compilationUnits.size());
+		
+		batch = repository.beginBatch(batchSize);
+		
+		try
+		{
+			for (IPackageFragment packageFragment : removedPackageFragments)
+			{
+				if (monitor.isCanceled())
+					break;
+				
+				removePackage(packageFragment);
+				
+				monitor.worked(1);
+			}
+			
+			for (ICompilationUnit compilationUnit : compilationUnits)
+			{
+				if (monitor.isCanceled())
+					break;
+				
+				monitor.subTask(compilationUnit.getElementName());
+				
+				updateFile(projectComponent, compilationUnit, monitor);
+				
+				monitor.worked(1);
+			}
+		}
+		finally
+		{
+			batch.close();
+			batch = null;
+			
+			monitor.done();
+		}
+	}
+	
+	private void removePackage(IPackageFragment packageFragment)
+	{
+		if (packageFragment.exists())
+			return; // Added back
+		
+		Component packageComponent = getComponent(packageFragment);
+		if (packageComponent == null)
+			return; // Never imported
+		
+		for (Component oldComponent : packageComponent.getDescendants())
+		{
+			batch.removeComponent(oldComponent);
+		}
+	}
+	
+	private void updateFile(Component projectComponent, 
+			ICompilationUnit icu, 
+			IProgressMonitor monitor)
+	{
+		// Remember what we had so we can find out what was removed
+		Collection<Component> oldComponents = new ArrayList<Component>();
+		
+		Component oldFileComponent = getComponent(icu);
+		if (oldFileComponent != null)
+			oldFileComponent.getDescendants(oldComponents);
+		
+		if (!icu.exists())
+		{
+			for (Component oldComponent : oldComponents)
+			{
+				batch.removeComponent(oldComponent);
+			}
+			
+			return;
+		}
+		
+		IPackageFragment packageFragment = (IPackageFragment) icu.getParent();
+		
+		Component packageComponent = getOrCreateComponent(packageFragment);
+		if (packageComponent == null)
+			return; // Already reported error
+		
+		connect(projectComponent, packageComponent);
+		
+		Component fileComponent = getOrCreateComponent(icu);
+		if (fileComponent == null)
+			return; // Already reported error
 
+		ParsedFile parsedFile = parseFile(icu, createAST(icu));
+		
+		if (writeFile(fileComponent, parsedFile, monitor) == null)
+			return; // Failed or canceled
+		
+		connect(packageComponent, fileComponent);
+		
+		// Only remove components if we know we saw all of the members
+		if (!parsedFile.isComplete)
+			return;
+		
+		Set<String> handles = new HashSet<String>();
+		handles.add(icu.getHandleIdentifier());
+		
+		for (ParsedComponent parsedType : parsedFile.types)
+		{
+			if (parsedType != null)
+				parsedType.getHandles(handles);
+		}
+		
+		for (Component oldComponent : oldComponents)
+		{
+			if (!handles.contains(oldComponent.getHandle()))
+				batch.removeComponent(oldComponent);
+		}
+	}
+	
+	private static CompilationUnit createAST(ICompilationUnit icu)
+	{
 		ASTParser parser = ASTParser.newParser(AST.JLS3);
 		parser.setSource(icu);
 
@@ -301,17 +724,129 @@ public class CodeModelImporter
 		// Create AST
 		ASTNode root = parser.createAST(null);
 
-		CompilationUnit cu = (CompilationUnit) root;
+		return (CompilationUnit) root;
+	}
+
+	private Component writeFile(ParsedFile parsedFile, IProgressMonitor monitor)
+	{
+		// Projects aren't considered to have a source range (but
+		// they should!-ME)
+		Component fileComponent = getOrCreateComponent(parsedFile.compilationUnit);
+		if (fileComponent == null)
+			return null;
+
+		return writeFile(fileComponent, parsedFile, monitor);
+	}
+	
+	/**
+	 * Persist all top-level classes of a parsed file.
+	 */
+	private Component writeFile(Component fileComponent, 
+			ParsedFile parsedFile,
+			IProgressMonitor monitor)
+	{
+		if (parsedFile.types == null)
+			return null; // Failed to parse
+
+		for (ParsedComponent parsedType : parsedFile.types)
+		{
+			if (monitor.isCanceled())
+				return null;
+			
+			// Skipped types (e.g., annotations, types without bindings)
+			if (parsedType == null)
+			{
+				monitor.worked(1);
+				continue;
+			}
+			
+			IType javaType = (IType) parsedType.element; 
+
+			monitor.subTask(javaType.getElementName());
+			
+			Component typeComponent = writeType(parsedType);
+			if (typeComponent == null)
+			{
+				parsedFile.isComplete = false;
+				
+				ProblemManager.reportError("Code Model Import Failure", 
+						"Failed to import class: " + javaType.getFullyQualifiedName(),
+						null, true);
+				monitor.worked(1);
+				continue;
+			}
+
+			connect(fileComponent, typeComponent);
+
+			monitor.worked(1);
+		}
+
+		return fileComponent;
+	}
+
+	/**
+	 * Persist a parsed class and its members to the database.
+	 * 
+	 * @return the class component, or null if the class could not be
+	 *         imported
+	 */
+	private Component writeType(ParsedComponent parsedType)
+	{
+		System.out.println("Importing type: " + parsedType.element.getElementName());
+		
+		List<Component> childComponents = new ArrayList<Component>();
 
+		for (ParsedComponent member : parsedType.members)
+		{
+			Component child = member.isType() ?
+					writeType(member) :
+					getOrCreateComponent(member.element, member.sourceRange, 
+							member.name);
+			if (child == null)
+				return null; // Already reported error
+			
+			childComponents.add(child);
+		}
+		
+		if (!parsedType.isComplete)
+			return null; // Already reported error
+		
+		Component typeComponent = getOrCreateComponent(parsedType.element, 
+				parsedType.sourceRange);
+		if (typeComponent == null)
+			return null; // Already reported error
+		
+		for (Component child : childComponents)
+		{
+			System.out.println("Importing: " + child.getName());
+			
+			connect(typeComponent, child);
+		}
+
+		return typeComponent;
+	}
+
+	// -----------------------------------------------------
+	// PARSING METHODS
+	// -----------------------------------------------------
+	
+	// These only look at the AST and Java model so they are safe to call
+	// from the worker threads.
+	
+	/**
+	 * Parse all top-level classes in a file.
+	 */
+	private static ParsedFile parseFile(ICompilationUnit icu, CompilationUnit cu)
+	{
 		LineSet sourceLineCounter = new LineSet(cu);
 		
+		List<ParsedComponent> types = new ArrayList<ParsedComponent>();
+		boolean isComplete = true;
+		
 		// Get all top level classes
 
 		for (Object typeObj : cu.types())
 		{
-			if (monitor.isCanceled())
-				return null;
-			
 			AbstractTypeDeclaration type = (AbstractTypeDeclaration) typeObj;
 			
 			ITypeBinding binding = type.resolveBinding();
@@ -319,15 +854,14 @@ public class CodeModelImporter
 			{
 				ProblemManager.reportInfo( 
 						"Binding for " + type.getName() + " is null", null);
-				monitor.worked(1);
+				types.add(null);
+				isComplete = false;
 				continue;
 			}
 			
 			IType javaType = (IType) binding.getJavaElement();
 			assert javaType != null;
 
-			monitor.subTask(javaType.getElementName());
-			
 			// make sure we only do classes and enums and which have source
 			// code.
 			
@@ -345,61 +879,50 @@ public class CodeModelImporter
 			
 			if (!isAnnotation && !javaType.isBinary())
 			{
-				Component typeComponent = importType(cu, javaType, type, 
-						sourceLineCounter);
-				if (typeComponent == null)
-				{
-					ProblemManager.reportError("Code Model Import Failure", 
-							"Failed to import class: " + javaType.getFullyQualifiedName(),
-							null, true);
-					monitor.worked(1);
-					continue;
-				}
-
-				if (!fileComponent.isConnected(typeComponent))
-				{
-					fileComponent.addChild(typeComponent);
-				}
+				types.add(parseType(cu, javaType, type, sourceLineCounter));
+			}
+			else
+			{
+				types.add(null);
 			}
-
-			monitor.worked(1);
 		}
-
-		return fileComponent;
+		
+		ParsedFile parsedFile = new ParsedFile(icu, types);
+		parsedFile.isComplete = isComplete;
+		return parsedFile;
 	}
-
+	
 	/**
-	 * Persist a class to the database.
+	 * Parse a class and its members.
 	 * 
 	 * @param compilationUnit
 	 * @param typeElement
 	 * @param astType
-	 * @return
-	 * @throws SQLException
-	 * @throws JavaModelException
+	 * @return the parsed class. If the class could not be completely parsed
+	 *         it will be marked incomplete.
 	 */
-	private Component importType(	CompilationUnit compilationUnit,
-	                                IType typeElement, 
-	                                AbstractTypeDeclaration astType,
-	                                LineSet sourceLineCounter)
+	private static ParsedComponent parseType(	CompilationUnit compilationUnit,
+	                                         	IType typeElement, 
+	                                         	AbstractTypeDeclaration astType,
+	                                         	LineSet sourceLineCounter)
 	{
-		System.out.println("Importing type: " + typeElement.getElementName());
+		ParsedComponent parsedType = new ParsedComponent(typeElement, null, null);
+		parsedType.members = new ArrayList<ParsedComponent>();
 		
-		List<Component> childComponents = new ArrayList<Component>();
-
 		int childrenSlocs = 0;
 
 		// Import static constructors
 
-		List<Component> initializerComponents = 
-			importInitializers(compilationUnit, typeElement, sourceLineCounter);
-		if (initializerComponents == null)
-			return null; // Already reported error
+		if (!parseInitializers(compilationUnit, typeElement, sourceLineCounter,
+				parsedType.members))
+		{
+			parsedType.isComplete = false;
+			return parsedType; // Already reported error
+		}
 		
-		for(Component initializerComponent : initializerComponents)
+		for(ParsedComponent initializer : parsedType.members)
 		{
-			childComponents.add(initializerComponent);
-			childrenSlocs += initializerComponent.getSourceRange().getNumSourceLines();
+			childrenSlocs += initializer.getNumSourceLines();
 		}
 		
 		// Import members (fields, methods, and inner classes)
@@ -408,25 +931,31 @@ public class CodeModelImporter
 		{
 			if (bodyDeclaration instanceof MethodDeclaration)
 			{
-				Component method = importMethodComponent(compilationUnit,
+				ParsedComponent method = parseMethod(compilationUnit,
 						(MethodDeclaration) bodyDeclaration, sourceLineCounter);
 				if (method == null)
-					return null; // Already reported error
+				{
+					parsedType.isComplete = false;
+					return parsedType; // Already reported error
+				}
 				
-				childComponents.add(method);
-				childrenSlocs += method.getSourceRange().getNumSourceLines();
+				parsedType.members.add(method);
+				childrenSlocs += method.getNumSourceLines();
 			}
 			else if (bodyDeclaration instanceof FieldDeclaration)
 			{
-				List<Component> fields = importFieldComponents(compilationUnit,
-						(FieldDeclaration) bodyDeclaration, sourceLineCounter);
-				if (fields == null)
-					return null; // Already reported error
+					int firstField = parsedType.members.size();
 				
-				for(Component field : fields)
+				if (!parseFields(compilationUnit, (FieldDeclaration) bodyDeclaration, 
+						sourceLineCounter, parsedType.members))
 				{
-					childComponents.add(field);
-					childrenSlocs += field.getSourceRange().getNumSourceLines();
+					parsedType.isComplete = false;
+					return parsedType; // Already reported error
+				}
+				
+				for (int i = firstField; i < parsedType.members.size(); ++i)
+				{
+					childrenSlocs += parsedType.members.get(i).getNumSourceLines();
 				}
 			}
 			else if (bodyDeclaration instanceof TypeDeclaration)
@@ -438,16 +967,20 @@ public class CodeModelImporter
 				if (!innerClassElem.isBinary())
 				{
 					// recursively persist inner classes.
-					Component innerTypeComponent = importType(compilationUnit, 
+					ParsedComponent innerType = parseType(compilationUnit, 
 							innerClassElem, innerClassDecl, sourceLineCounter);
-					if (innerTypeComponent == null)
-						return null; // Already reported error
 
 					// We don't include inner classes in the line count for
 					// the outer class.  However, keep in mind that inner
 					// classes inherit the assignments of their outer class.
 					
-					childComponents.add(innerTypeComponent);
+					parsedType.members.add(innerType);
+					
+					if (!innerType.isComplete)
+					{
+						parsedType.isComplete = false;
+						return parsedType; // Already reported error
+					}
 				}
 			}
 			// Skip initializers since we already added them
@@ -461,35 +994,25 @@ public class CodeModelImporter
 						true);
 			}
 		}
-
-		SourceRange sourceRange = SourceRange.create(compilationUnit, 
+		
+		parsedType.sourceRange = SourceRange.create(compilationUnit, 
 				astType, childrenSlocs, typeElement.getElementName(), 
 				sourceLineCounter);
 		
-		Component typeComponent = getOrCreateComponent(typeElement, sourceRange);
-		if (typeComponent == null)
-			return null; // Already reported error
-		
-		for (Component child : childComponents)
-		{
-			System.out.println("Importing: " + child.getName());
-			
-			if (!typeComponent.isConnected(child))
-				typeComponent.addChild(child);
-		}
-
-		return typeComponent;
+		return parsedType;
 	}
 
 	/**
-	 * Adds the static initializer components if found in class
+	 * Adds the static initializers found in class
 	 * 
 	 * @param compilationUnit
 	 * @param sourceType
+	 * @return false if the initializers could not be obtained
 	 */
-	private List<Component> importInitializers(	CompilationUnit compilationUnit, 
-												IType typeElement,
-												LineSet sourceLineCounter)
+	private static boolean parseInitializers(	CompilationUnit compilationUnit, 
+	                                         	IType typeElement,
+	                                         	LineSet sourceLineCounter,
+	                                         	List<ParsedComponent> members)
 	{
 		IInitializer[] initializers = null;
 		
@@ -502,11 +1025,9 @@ public class CodeModelImporter
 			ProblemManager.reportException(e,
 					"Failed to retrieve initializers for type: " + 
 					typeElement.getFullyQualifiedName(), true);
-			return null;
+			return false;
 		}
 
-		List<Component> initializerComponents = new ArrayList<Component>();
-		
 		int i = 0;
 
 		for (IInitializer initializerElement : initializers)
@@ -518,15 +1039,11 @@ public class CodeModelImporter
 			SourceRange sourceRange = SourceRange.create(compilationUnit, 
 					initializerElement, initializerName, sourceLineCounter);
 			
-			Component initializerComponent = getOrCreateComponent(initializerElement,
-					sourceRange, initializerName);
-			if (initializerComponent == null)
-				return null; // Already reported error
-			
-			initializerComponents.add(initializerComponent);
+			members.add(new ParsedComponent(initializerElement, sourceRange, 
+					initializerName));
 		}
 		
-		return initializerComponents;
+		return true;
 	}
 
 	/**
@@ -548,13 +1065,13 @@ public class CodeModelImporter
 	 * int i, j;		Multiple fields:  Both fields will get their numLines
 	 * 					set to 1.  The type will not double count though. 
 	 * 
+	 * @return false if a field could not be parsed
 	 */
-	private List<Component> importFieldComponents(CompilationUnit compilationUnit,
+	private static boolean parseFields(CompilationUnit compilationUnit,
 			FieldDeclaration fieldDeclaration,
-			LineSet sourceLineCounter)
+			LineSet sourceLineCounter,
+			List<ParsedComponent> members)
 	{
-		List<Component> fields = new ArrayList<Component>();
-
 		int totalFields = fieldDeclaration.fragments().size();
 		
 		for (Object frag : fieldDeclaration.fragments())
@@ -568,7 +1085,7 @@ public class CodeModelImporter
 				ProblemManager.reportError("Failed to Import Field", 
 						"Failed to import field",  
 						null, true);
-				return null;
+				return false;
 			}
 
 			IJavaElement fieldElement = binding.getJavaElement();
@@ -589,40 +1106,33 @@ public class CodeModelImporter
 					fieldName,
 					sourceLineCounter);
 			
-			Component fieldComponent = getOrCreateComponent(fieldElement, 
-					sourceRange, fieldName); 
-			if (fieldComponent == null)
-				return null; // Already reported error
-			
-			fields.add(fieldComponent);
+			members.add(new ParsedComponent(fieldElement, sourceRange, fieldName));
 		}
 
-		return fields;
+		return true;
 	}
 
 	/**
-	 * Persist the method to the database.
+	 * Parse a method.
 	 * 
 	 * @param compilationUnit
 	 * @param methodDeclaration
-	 * @return
-	 * @throws SQLException
-	 * @throws JavaModelException
+	 * @return the parsed method, or null if it could not be parsed
 	 */
-	private Component importMethodComponent(CompilationUnit compilationUnit,
+	private static ParsedComponent parseMethod(CompilationUnit compilationUnit,
 			MethodDeclaration methodDeclaration,
 			LineSet sourceLineCounter)
 	{
 		// getStatements(methodDeclaration);
-		IMethod methodElement = (IMethod) methodDeclaration.resolveBinding()
-				.getJavaElement();
+		IMethodBinding binding = methodDeclaration.resolveBinding();
+		IMethod methodElement = binding != null ? 
+				(IMethod) binding.getJavaElement() : null;
 		if (methodElement == null)
 		{
 			ProblemManager.reportError("Failed to Import Component", 
 					"Failed to import method " + 
-						methodElement.getParent().getElementName() + 
-						"." + methodElement.getElementName(),  
-					"Handle: " + methodElement.getHandleIdentifier(), true);
+						methodDeclaration.getName().getIdentifier(),  
+					null, true);
 			return null;
 		}
 
@@ -632,7 +1142,7 @@ public class CodeModelImporter
 		SourceRange sourceRange = SourceRange.create(compilationUnit, 
 				methodDeclaration, methodName, sourceLineCounter);
 		
-		return getOrCreateComponent(methodElement, sourceRange, methodName);
+		return new ParsedComponent(methodElement, sourceRange, methodName);
 	}
 
 	private int countTypes(IPackageFragment packageFragment)
@@ -691,7 +1201,7 @@ public class CodeModelImporter
 		Component component = getComponent(element);
 		if (component == null)
 		{
-			component = Component.createComponent(repository, 
+			component = Component.createComponent(batch, 
 				element, sourceRange, name, null);
 
 			if (component == null)
@@ -717,20 +1227,112 @@ public class CodeModelImporter
 
 			if (!component.getName().equals(name))
 			{
-				component.updateName(name);
+				batch.renameComponent(component, name);
 			}
 			
 			if (!component.getSourceRange().equals(sourceRange))
 			{
-				component.updateSourceRange(sourceRange);
+				batch.updateSourceRange(component, sourceRange);
 			}
 		}
 
 		return component;
 	}
 
+	private void connect(Component parent, Component child)
+	{
+		if (!batch.isConnected(parent, child))
+			batch.connectComponents(parent, child, EdgeKind.CONTAINS);
+	}
+
 	public Component getComponent(IJavaElement element)
 	{
 		return repository.getComponent(element.getHandleIdentifier());
 	}
+
+	// -----------------------------------------------------
+	// PARSED COMPONENTS
+	// -----------------------------------------------------
+
+	/**
+	 * A program element that has been parsed but not yet written to the
+	 * database. Classes also hold their members (initializers, methods,
+	 * fields, and inner classes) in the order they were parsed.
+	 */
+	private static class ParsedComponent
+	{
+		IJavaElement element;
+		SourceRange sourceRange;
+		String name;
+		
+		// Only non-null for classes
+		List<ParsedComponent> members = null;
+		
+		// False if parsing stopped after the last member due to an error
+		boolean isComplete = true;
+
+		ParsedComponent(IJavaElement element, SourceRange sourceRange, 
+				String name)
+		{
+			this.element = element;
+			this.sourceRange = sourceRange;
+			this.name = name;
+		}
+		
+		boolean isType()
+		{
+			return members != null;
+		}
+		
+		int getNumSourceLines()
+		{
+			return sourceRange != null ? sourceRange.getNumSourceLines() : 0;
+		}
+		
+		void getHandles(Set<String> handles)
+		{
+			handles.add(element.getHandleIdentifier());
+			
+			if (members != null)
+			{
+				for (ParsedComponent member : members)
+				{
+					member.getHandles(handles);
+				}
+			}
+		}
+	}
+
+	private static class ParsedFile
+	{
+		ICompilationUnit compilationUnit;
+		
+		// Null entries are types that were skipped. Null if the file 
+		// failed to parse.
+		List<ParsedComponent> types;
+		
+		// False if any type could not be parsed or written
+		boolean isComplete = true;
+		
+		ParsedFile(ICompilationUnit compilationUnit, List<ParsedComponent> types)
+		{
+			this.compilationUnit = compilationUnit;
+			this.types = types;
+		}
+	}
+
+	private static class ParsedPackage
+	{
+		IPackageFragment packageFragment;
+		ICompilationUnit[] compilationUnits = null;
+		JavaModelException exception = null;
+		
+		// Null if the files haven't been parsed yet
+		List<ParsedFile> files = null;
+		
+		ParsedPackage(IPackageFragment packageFragment)
+		{
+			this.packageFragment = packageFragment;
+		}
+	}
 }
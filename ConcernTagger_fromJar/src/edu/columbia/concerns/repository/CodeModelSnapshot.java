@@ -0,0 +1,493 @@
+package edu.columbia.concerns.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable, array-based copy of the code model (the COMPONENT table and its
+ * CONTAINS edges) for calculations that walk the component tree many times,
+ * such as the metrics.
+ * <P>
+ * Components are identified by their ordinal, an index in
+ * <code>[0, size())</code>. Ordinals are assigned in component id order.
+ * The tree is stored as a parent array and the children in compressed
+ * sparse row (CSR) form: the children of component <code>i</code> are
+ * <code>children[firstChild[i]]</code> through
+ * <code>children[firstChild[i + 1] - 1]</code>.
+ * <P>
+ * Each component is also given an interval <code>[preOrder, postOrder]</code>,
+ * where <code>preOrder</code> is its position in a pre-order walk of the
+ * tree and <code>postOrder</code> is the pre-order position of its last
+ * descendant. A component's descendants are exactly the components whose
+ * <code>preOrder</code> falls in its interval, so ancestor tests, descendant
+ * lists and subtree line counts are range lookups rather than tree walks.
+ * <P>
+ * Once built, a snapshot never touches the database or the Java model, so
+ * it may be shared freely between threads. The repository builds a new
+ * snapshot when the code model changes (see
+ * {@link ConcernRepository#getCodeModelSnapshot()}); callers holding an
+ * old snapshot keep seeing a consistent view.
+ */
+public final class CodeModelSnapshot
+{
+	public static final int NONE = -1;
+
+	private static final String GET_COMPONENTS_ORDERED_BY_ID =
+		DBConstants.GET_COMPONENTS + " order by component_id_seq";
+
+	private static final String GET_COMPONENT_EDGES_OF_KIND =
+		"select from_id, to_id from component_edge where edge_kind_id=? order by from_id, to_id";
+
+	private static final ComponentKind[] KINDS = ComponentKind.values();
+
+	// Indexed by ordinal
+	private final int[] ids;
+	private final Component[] components;
+	private final byte[] kinds;
+	private final int[] numLines;
+	private final int[] parents;
+
+	// Children in CSR form (see class comment)
+	private final int[] firstChild;
+	private final int[] children;
+
+	// Nested intervals (see class comment). byPreOrder maps a pre-order
+	// position back to the ordinal.
+	private final int[] preOrder;
+	private final int[] postOrder;
+	private final int[] byPreOrder;
+
+	// Indexed by ComponentKind.ordinal()
+	private final int[] numComponentsOfKind = new int[KINDS.length];
+
+	private CodeModelSnapshot(Component[] components, int[] parents,
+			int[] firstChild, int[] children)
+	{
+		int size = components.length;
+
+		this.components = components;
+		this.parents = parents;
+		this.firstChild = firstChild;
+		this.children = children;
+
+		ids = new int[size];
+		kinds = new byte[size];
+		numLines = new int[size];
+
+		for (int i = 0; i < size; ++i)
+		{
+			Component component = components[i];
+
+			ids[i] = component.getId();
+			numLines[i] = component.getSourceRange().getNumSourceLines();
+
+			for (ComponentKind kind : KINDS)
+			{
+				if (component.isKind(kind))
+				{
+					kinds[i] = (byte) kind.ordinal();
+					++numComponentsOfKind[kind.ordinal()];
+					break;
+				}
+			}
+		}
+
+		preOrder = new int[size];
+		postOrder = new int[size];
+		byPreOrder = new int[size];
+
+		numberIntervals();
+	}
+
+	/**
+	 * Assigns the pre-order intervals by walking each tree (there is one
+	 * per project) in ordinal order.
+	 */
+	private void numberIntervals()
+	{
+		int size = ids.length;
+		int position = 0;
+
+		// Holds the ordinals whose subtrees we are in the middle of
+		int[] stack = new int[16];
+
+		// Index of the next child to visit for each ordinal on the stack
+		int[] nextChild = new int[16];
+
+		Arrays.fill(preOrder, NONE);
+
+		for (int root = 0; root < size; ++root)
+		{
+			if (parents[root] != NONE)
+				continue;
+
+			int top = 0;
+			stack[top] = root;
+			nextChild[top] = firstChild[root];
+			preOrder[root] = position;
+			byPreOrder[position++] = root;
+
+			while (top >= 0)
+			{
+				int current = stack[top];
+
+				if (nextChild[top] == firstChild[current + 1])
+				{
+					// Visited all the children
+					postOrder[current] = position - 1;
+					--top;
+					continue;
+				}
+
+				int child = children[nextChild[top]++];
+
+				if (++top == stack.length)
+				{
+					stack = Arrays.copyOf(stack, top * 2);
+					nextChild = Arrays.copyOf(nextChild, top * 2);
+				}
+
+				stack[top] = child;
+				nextChild[top] = firstChild[child];
+				preOrder[child] = position;
+				byPreOrder[position++] = child;
+			}
+		}
+
+		// Components that aren't reachable from a root can only be the
+		// result of a corrupt (cyclic) code model.  Treat them as leaves.
+		for (int ordinal = 0; position < size && ordinal < size; ++ordinal)
+		{
+			if (preOrder[ordinal] != NONE)
+				continue;
+
+			assert false;
+
+			preOrder[ordinal] = postOrder[ordinal] = position;
+			byPreOrder[position++] = ordinal;
+		}
+	}
+
+	/**
+	 * Loads the snapshot using one query for the components and one for
+	 * the CONTAINS edges.
+	 */
+	static CodeModelSnapshot build(ConcernRepository repository)
+		throws SQLException
+	{
+		// Load the components (ordered by id, so the ordinals are too)
+
+		List<Component> componentList = new ArrayList<Component>();
+
+		PreparedStatement statement = repository.getConnection().prepareStatement(
+				GET_COMPONENTS_ORDERED_BY_ID);
+
+		try
+		{
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				componentList.add(repository.getOrCreateComponent(resultSet));
+			}
+			resultSet.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		Component[] components = componentList.toArray(
+				new Component[componentList.size()]);
+
+		int size = components.length;
+
+		int[] ids = new int[size];
+		for (int i = 0; i < size; ++i)
+			ids[i] = components[i].getId();
+
+		// Load the edges (ordered by parent, so we can fill the CSR arrays
+		// in one pass)
+
+		int[] parents = new int[size];
+		Arrays.fill(parents, NONE);
+
+		int[] firstChild = new int[size + 1];
+		int[] children = new int[size];
+		int numChildren = 0;
+
+		statement = repository.getConnection().prepareStatement(
+				GET_COMPONENT_EDGES_OF_KIND);
+
+		try
+		{
+			statement.setInt(1, repository.getEdgeKindId(EdgeKind.CONTAINS));
+
+			int lastParent = NONE;
+
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				int parent = Arrays.binarySearch(ids, resultSet.getInt(1));
+				int child = Arrays.binarySearch(ids, resultSet.getInt(2));
+
+				// Ignore dangling edges and children that already have a
+				// parent (the code model is a tree)
+				if (parent < 0 || child < 0 || parents[child] != NONE)
+					continue;
+
+				assert parent >= lastParent;
+
+				// Close off the child lists of the components between
+				// the last parent and this one
+				while (lastParent < parent)
+					firstChild[++lastParent] = numChildren;
+
+				parents[child] = parent;
+				children[numChildren++] = child;
+			}
+			resultSet.close();
+
+			while (lastParent < size)
+				firstChild[++lastParent] = numChildren;
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		if (numChildren < size)
+			children = Arrays.copyOf(children, numChildren);
+
+		return new CodeModelSnapshot(components, parents, firstChild, children);
+	}
+
+	/**
+	 * @return the number of components
+	 */
+	public int size()
+	{
+		return ids.length;
+	}
+
+	/**
+	 * @return the component's ordinal, or NONE if the component isn't in
+	 *         the snapshot (e.g., it was created after the snapshot)
+	 */
+	public int getOrdinal(int componentId)
+	{
+		int ordinal = Arrays.binarySearch(ids, componentId);
+		return ordinal >= 0 ? ordinal : NONE;
+	}
+
+	public int getOrdinal(Component component)
+	{
+		return getOrdinal(component.getId());
+	}
+
+	public int getId(int ordinal)
+	{
+		return ids[ordinal];
+	}
+
+	public Component getComponent(int ordinal)
+	{
+		return components[ordinal];
+	}
+
+	public ComponentKind getKind(int ordinal)
+	{
+		return KINDS[kinds[ordinal]];
+	}
+
+	public boolean isKind(int ordinal, ComponentKind kind)
+	{
+		return kinds[ordinal] == kind.ordinal();
+	}
+
+	public int getNumSourceLines(int ordinal)
+	{
+		return numLines[ordinal];
+	}
+
+	/**
+	 * @return the parent's ordinal, or NONE for the root of a tree
+	 *         (i.e., a project)
+	 */
+	public int getParent(int ordinal)
+	{
+		return parents[ordinal];
+	}
+
+	public int getNumChildren(int ordinal)
+	{
+		return firstChild[ordinal + 1] - firstChild[ordinal];
+	}
+
+	/**
+	 * @return the ordinal of the component's <code>index</code>'th child
+	 */
+	public int getChild(int ordinal, int index)
+	{
+		assert index < getNumChildren(ordinal);
+		return children[firstChild[ordinal] + index];
+	}
+
+	/**
+	 * @return the ordinals of the component's children
+	 */
+	public int[] getChildren(int ordinal)
+	{
+		return Arrays.copyOfRange(children, firstChild[ordinal],
+				firstChild[ordinal + 1]);
+	}
+
+	/**
+	 * @return the position of the component in a pre-order walk of the
+	 *         code model
+	 */
+	public int getPreOrder(int ordinal)
+	{
+		return preOrder[ordinal];
+	}
+
+	/**
+	 * @return the pre-order position of the component's last descendant
+	 *         (or of the component itself if it has no children)
+	 */
+	public int getPostOrder(int ordinal)
+	{
+		return postOrder[ordinal];
+	}
+
+	/**
+	 * @return the ordinal of the component at the pre-order position
+	 */
+	public int getOrdinalAtPreOrder(int position)
+	{
+		return byPreOrder[position];
+	}
+
+	/**
+	 * @return the ordinals of the component and all of its descendants, in
+	 *         pre-order
+	 */
+	public int[] getDescendants(int ordinal)
+	{
+		return Arrays.copyOfRange(byPreOrder, preOrder[ordinal],
+				postOrder[ordinal] + 1);
+	}
+
+	/**
+	 * @return the number of components in the subtree rooted at the
+	 *         component, including the component itself
+	 */
+	public int getNumDescendants(int ordinal)
+	{
+		return postOrder[ordinal] - preOrder[ordinal] + 1;
+	}
+
+	/**
+	 * @return true if <code>ancestor</code> is a proper ancestor of
+	 *         <code>ordinal</code>
+	 */
+	public boolean isAncestor(int ancestor, int ordinal)
+	{
+		return preOrder[ancestor] < preOrder[ordinal] &&
+			preOrder[ordinal] <= postOrder[ancestor];
+	}
+
+	/**
+	 * @return the source lines of the component or, for components without
+	 *         line info (projects, packages), the total lines of their
+	 *         topmost descendants that have line info.  A type's lines
+	 *         include its members' lines, so they aren't added again.
+	 */
+	public int getCoveredSourceLines(int ordinal)
+	{
+		if (numLines[ordinal] > 0)
+			return numLines[ordinal];
+
+		int total = 0;
+		int end = postOrder[ordinal];
+
+		for (int position = preOrder[ordinal] + 1; position <= end; )
+		{
+			int descendant = byPreOrder[position];
+
+			if (numLines[descendant] > 0)
+			{
+				total += numLines[descendant];
+
+				// Skip the descendant's subtree
+				position = postOrder[descendant] + 1;
+			}
+			else
+			{
+				++position;
+			}
+		}
+
+		return total;
+	}
+
+	public int getNumComponents(ComponentKind kind)
+	{
+		return numComponentsOfKind[kind.ordinal()];
+	}
+
+	public List<Component> getComponents(ComponentKind kind)
+	{
+		List<Component> result = new ArrayList<Component>(getNumComponents(kind));
+
+		for (int i = 0; i < kinds.length; ++i)
+		{
+			if (kinds[i] == kind.ordinal())
+				result.add(components[i]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the same name as <code>IType.getFullyQualifiedName()</code>
+	 * for classes (e.g., "pkg.Outer$Inner") and the package name for
+	 * files and packages, without consulting the Java model.
+	 */
+	public String getQualifiedName(int ordinal)
+	{
+		ComponentKind kind = getKind(ordinal);
+
+		if (kind == ComponentKind.PACKAGE)
+			return components[ordinal].getName();
+
+		if (kind != ComponentKind.CLASS && kind != ComponentKind.FILE)
+			return "";
+
+		StringBuilder typeNames = new StringBuilder();
+
+		int current = ordinal;
+		for (; current != NONE && isKind(current, ComponentKind.CLASS);
+			current = parents[current])
+		{
+			if (typeNames.length() > 0)
+				typeNames.insert(0, '$');
+
+			typeNames.insert(0, components[current].getName());
+		}
+
+		// Skip the file
+		while (current != NONE && !isKind(current, ComponentKind.PACKAGE))
+			current = parents[current];
+
+		if (current == NONE)
+			return typeNames.toString();
+		else if (typeNames.length() == 0)
+			return components[current].getName();
+		else
+			return components[current].getName() + "." + typeNames;
+	}
+}
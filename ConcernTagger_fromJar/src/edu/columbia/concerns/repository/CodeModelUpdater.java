@@ -0,0 +1,266 @@
+package edu.columbia.concerns.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IElementChangedListener;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaElementDelta;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IPackageFragment;
+import org.eclipse.jdt.core.JavaModelException;
+
+import edu.columbia.concerns.util.ProblemManager;
+
+/**
+ * Keeps the code model up to date as compilation units and packages are
+ * saved, added, or removed, so the project doesn't have to be re-imported.
+ * <P>
+ * Changed compilation units and removed packages are collected from Java
+ * element deltas and re-imported by a background job (see
+ * {@link CodeModelImporter#updateFiles}). The job waits a short time after
+ * the last change, so a burst of saves (e.g., a refactoring or a pull)
+ * results in a single update.
+ */
+public class CodeModelUpdater implements IElementChangedListener
+{
+	// How long to wait for more changes before updating
+	private static final long COALESCE_DELAY_MS = 1000;
+
+	private ConcernRepository repository;
+
+	// Compilation units waiting to be updated. Guarded by 'this'.
+	private Set<ICompilationUnit> changedCompilationUnits =
+		new LinkedHashSet<ICompilationUnit>();
+
+	// Packages waiting to be removed. Guarded by 'this'.
+	private Set<IPackageFragment> removedPackageFragments =
+		new LinkedHashSet<IPackageFragment>();
+
+	private Job job;
+
+	public CodeModelUpdater(ConcernRepository repository)
+	{
+		this.repository = repository;
+
+		job = new Job("Updating code model")
+			{
+				@Override
+				protected IStatus run(IProgressMonitor monitor)
+				{
+					return update(monitor);
+				}
+			};
+
+		job.setSystem(true);
+	}
+
+	@Override
+	public void elementChanged(ElementChangedEvent event)
+	{
+		if (event.getType() != ElementChangedEvent.POST_CHANGE)
+			return;
+
+		boolean changed;
+
+		synchronized (this)
+		{
+			changed = collectChangedCompilationUnits(event.getDelta());
+		}
+
+		if (changed)
+		{
+			// Restart the delay so bursts are coalesced.  If we're in the
+			// middle of an update, this runs the job again when it's done.
+			if (job.getState() != Job.RUNNING)
+				job.cancel();
+			
+			job.schedule(COALESCE_DELAY_MS);
+		}
+	}
+
+	/**
+	 * @return true if any compilation units or packages were collected
+	 */
+	private boolean collectChangedCompilationUnits(IJavaElementDelta delta)
+	{
+		IJavaElement element = delta.getElement();
+
+		if (element.getElementType() == IJavaElement.PACKAGE_FRAGMENT)
+		{
+			// Deltas for added and removed packages usually don't list
+			// their compilation units
+			if (delta.getKind() == IJavaElementDelta.ADDED)
+				return collectCompilationUnits((IPackageFragment) element);
+			else if (delta.getKind() == IJavaElementDelta.REMOVED)
+				return collectRemovedPackage((IPackageFragment) element);
+		}
+		else if (element.getElementType() == IJavaElement.COMPILATION_UNIT)
+		{
+			if (delta.getKind() == IJavaElementDelta.CHANGED &&
+				(delta.getFlags() & (IJavaElementDelta.F_CONTENT |
+									 IJavaElementDelta.F_PRIMARY_RESOURCE)) == 0)
+			{
+				return false; // E.g., a working copy was opened or closed
+			}
+
+			ICompilationUnit compilationUnit = (ICompilationUnit) element;
+			changedCompilationUnits.add(compilationUnit.getPrimary());
+			return true;
+		}
+
+		boolean changed = false;
+
+		for (IJavaElementDelta childDelta : delta.getAffectedChildren())
+		{
+			if (collectChangedCompilationUnits(childDelta))
+				changed = true;
+		}
+
+		return changed;
+	}
+
+	private boolean collectCompilationUnits(IPackageFragment packageFragment)
+	{
+		ICompilationUnit[] compilationUnits;
+
+		try
+		{
+			compilationUnits = packageFragment.getCompilationUnits();
+		}
+		catch (JavaModelException e)
+		{
+			ProblemManager.reportException(e,
+					"Failed to get the compilation units of package '" +
+					packageFragment.getElementName() + "'.");
+			return false;
+		}
+
+		for (ICompilationUnit compilationUnit : compilationUnits)
+		{
+			changedCompilationUnits.add(compilationUnit.getPrimary());
+		}
+
+		return compilationUnits.length > 0;
+	}
+
+	private boolean collectRemovedPackage(IPackageFragment packageFragment)
+	{
+		removedPackageFragments.add(packageFragment);
+
+		// The package's components are removed along with it
+		for (Iterator<ICompilationUnit> iter = changedCompilationUnits.iterator();
+			 iter.hasNext(); )
+		{
+			if (iter.next().getParent().equals(packageFragment))
+				iter.remove();
+		}
+
+		return true;
+	}
+
+	private IStatus update(IProgressMonitor monitor)
+	{
+		Map<IJavaProject, List<ICompilationUnit>> compilationUnitsByProject =
+			new HashMap<IJavaProject, List<ICompilationUnit>>();
+
+		Map<IJavaProject, List<IPackageFragment>> removedPackagesByProject =
+			new HashMap<IJavaProject, List<IPackageFragment>>();
+
+		synchronized (this)
+		{
+			for (ICompilationUnit compilationUnit : changedCompilationUnits)
+			{
+				addToProject(compilationUnitsByProject,
+						compilationUnit.getJavaProject(), compilationUnit);
+			}
+
+			for (IPackageFragment packageFragment : removedPackageFragments)
+			{
+				addToProject(removedPackagesByProject,
+						packageFragment.getJavaProject(), packageFragment);
+			}
+
+			changedCompilationUnits.clear();
+			removedPackageFragments.clear();
+		}
+
+		Set<IJavaProject> projects =
+			new LinkedHashSet<IJavaProject>(removedPackagesByProject.keySet());
+		projects.addAll(compilationUnitsByProject.keySet());
+
+		for (IJavaProject project : projects)
+		{
+			if (monitor.isCanceled())
+				break;
+
+			CodeModelImporter importer =
+				new CodeModelImporter(repository, project);
+
+			importer.updateFiles(
+					getForProject(compilationUnitsByProject, project),
+					getForProject(removedPackagesByProject, project),
+					monitor);
+		}
+
+		if (monitor.isCanceled())
+		{
+			// Don't lose the changes. Updating a file twice is harmless.
+			requeue(compilationUnitsByProject, removedPackagesByProject);
+			return Status.CANCEL_STATUS;
+		}
+
+		return Status.OK_STATUS;
+	}
+
+	private void requeue(Map<IJavaProject, List<ICompilationUnit>> compilationUnitsByProject,
+			Map<IJavaProject, List<IPackageFragment>> removedPackagesByProject)
+	{
+		synchronized (this)
+		{
+			for (List<ICompilationUnit> compilationUnits :
+				compilationUnitsByProject.values())
+			{
+				changedCompilationUnits.addAll(compilationUnits);
+			}
+
+			for (List<IPackageFragment> packageFragments :
+				removedPackagesByProject.values())
+			{
+				removedPackageFragments.addAll(packageFragments);
+			}
+		}
+	}
+
+	private static <T> void addToProject(Map<IJavaProject, List<T>> elementsByProject,
+			IJavaProject project, T element)
+	{
+		List<T> elements = elementsByProject.get(project);
+		if (elements == null)
+		{
+			elements = new ArrayList<T>();
+			elementsByProject.put(project, elements);
+		}
+
+		elements.add(element);
+	}
+
+	private static <T> List<T> getForProject(Map<IJavaProject, List<T>> elementsByProject,
+			IJavaProject project)
+	{
+		List<T> elements = elementsByProject.get(project);
+		return elements != null ? elements : Collections.<T>emptyList();
+	}
+}
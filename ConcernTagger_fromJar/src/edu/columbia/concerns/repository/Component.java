@@ -1,5 +1,6 @@
 package edu.columbia.concerns.repository;
 
+import java.lang.ref.SoftReference;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -28,7 +29,9 @@ public class Component implements Comparable<Component>
 	private String handle;
 	private SourceRange sourceRange;
 
-	private IJavaElement javaElement = null;
+	// Softly reachable since Java elements can be large and are easily
+	// recreated from the handle
+	private SoftReference<IJavaElement> javaElement = null;
 
 	private ConcernRepository repository;
 
@@ -60,11 +63,65 @@ public class Component implements Comparable<Component>
 		}
 	}
 	
+	/**
+	 * Creates a component for a row that has been queued in a batch but
+	 * not yet written to the database.
+	 */
+	Component(ConcernRepository hsqldb, int id, String name, int kindId,
+			String handle, SourceRange sourceRange)
+	{
+		this.repository = hsqldb;
+		this.id = id;
+		this.name = name;
+		this.kindId = kindId;
+		this.handle = handle;
+		this.sourceRange = sourceRange;
+	}
+	
 	public static Component createComponent(ConcernRepository repository,
 	                                        IJavaElement element,
 	                                        SourceRange sourceRange,
 	                                        String name,
 	                                        ComponentDomain componentDomain)
+	{
+		ComponentKind componentKind = getComponentKind(element);
+		if (componentKind == null)
+			return null;
+		
+		// This creates a row for the component and sets the id
+		return repository.createComponent(	name, 
+											componentKind,
+											element.getHandleIdentifier(),
+											sourceRange.getBeginLine(),
+											sourceRange.getBeginColumn(),
+											sourceRange.getEndLine(),
+											sourceRange.getEndColumn(),
+											sourceRange.getNumSourceLines(),
+											componentDomain);
+	}
+	
+	/**
+	 * Same as createComponent(ConcernRepository, ...) except the row is
+	 * queued in the batch instead of being committed immediately.
+	 */
+	public static Component createComponent(RepositoryBatch batch,
+	                                        IJavaElement element,
+	                                        SourceRange sourceRange,
+	                                        String name,
+	                                        ComponentDomain componentDomain)
+	{
+		ComponentKind componentKind = getComponentKind(element);
+		if (componentKind == null)
+			return null;
+		
+		return batch.createComponent(name, 
+									 componentKind, 
+									 element.getHandleIdentifier(), 
+									 sourceRange, 
+									 componentDomain);
+	}
+	
+	private static ComponentKind getComponentKind(IJavaElement element)
 	{
 		ComponentKind componentKind;
 		switch(element.getElementType())
@@ -95,16 +152,7 @@ public class Component implements Comparable<Component>
 		}
 		}
 		
-		// This creates a row for the component and sets the id
-		return repository.createComponent(	name, 
-											componentKind,
-											element.getHandleIdentifier(),
-											sourceRange.getBeginLine(),
-											sourceRange.getBeginColumn(),
-											sourceRange.getEndLine(),
-											sourceRange.getEndColumn(),
-											sourceRange.getNumSourceLines(),
-											componentDomain);
+		return componentKind;
 	}
 	
 	public int getId()
@@ -129,6 +177,12 @@ public class Component implements Comparable<Component>
 		repository.renameComponent(id, newName);
 		this.name = newName;
 	}
+	
+	// Called by RepositoryBatch after it queues the rename
+	void setName(String newName)
+	{
+		this.name = newName;
+	}
 
 	public boolean isKind(ComponentKind kind)
 	{
@@ -163,6 +217,12 @@ public class Component implements Comparable<Component>
 		this.sourceRange = sourceRange;
 	}
 
+	// Called by RepositoryBatch after it queues the update
+	void setSourceRange(SourceRange sourceRange)
+	{
+		this.sourceRange = sourceRange;
+	}
+
 	public String getHandle()
 	{
 		return handle;
@@ -170,18 +230,23 @@ public class Component implements Comparable<Component>
 
 	public IJavaElement getJavaElement()
 	{
-		if (javaElement == null)
-			javaElement = JavaCore.create(handle);
+		IJavaElement element = javaElement != null ? javaElement.get() : null;
+		if (element == null)
+		{
+			element = JavaCore.create(handle);
+			javaElement = new SoftReference<IJavaElement>(element);
+		}
 
-		return javaElement;
+		return element;
 	}
 
+	/**
+	 * @return the component that contains this one, or null if this is a
+	 *         top-level component.  Doesn't use the Java model.
+	 */
 	public Component getParent()
 	{
-		IJavaElement parentElement = getJavaElement().getParent();
-		assert parentElement != null;
-		
-		return repository.getComponent(parentElement.getHandleIdentifier());
+		return repository.getParentComponent(this);
 	}
 	
 	public Component addChild(Component child)
@@ -251,12 +316,25 @@ public class Component implements Comparable<Component>
 	}
 	
 	/**
-	 * @see getAssignmentRecursive(IJavaElement, EdgeKind)
+	 * Same as getAssignmentRecursive(Concern, IJavaElement, EdgeKind) but
+	 * uses the component parents instead of the Java model.
 	 */
 	public Collection<Component> getAssignmentsRecursive(	Concern concern,
 															EdgeKind edgeKind)
 	{
-		return getAssignmentRecursive(concern, getJavaElement(), edgeKind);
+		List<Component> nodes = new ArrayList<Component>();
+		
+		for(Component assignedComponent : concern.getAssignments(edgeKind))
+		{
+			// Skip components that are not this one or its children
+			if (assignedComponent.getId() != id &&
+				repository.getParentComponentId(assignedComponent.getId()) != id)
+				continue;
+			
+			nodes.add(assignedComponent);
+		}
+
+		return nodes;
 	}
 	
 	/**
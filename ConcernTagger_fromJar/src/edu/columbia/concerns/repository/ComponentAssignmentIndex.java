@@ -0,0 +1,182 @@
+package edu.columbia.concerns.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.columbia.concerns.util.ProblemManager;
+
+/**
+ * In-memory index of the concerns assigned to each component, the reverse
+ * of the repository's concern-to-components assignment cache.  Concerns
+ * are stored by id; the repository resolves them (and checks their
+ * concern domain) using its in-memory concern tree.
+ * <P>
+ * The index is loaded on first use with a single query.  Single
+ * assignments and unassignments update it in place; bulk changes discard
+ * it so it is reloaded when next needed.
+ */
+class ComponentAssignmentIndex implements DBConstants
+{
+	private static final int[] NO_CONCERNS = new int[0];
+
+	private ConcernRepository repository;
+
+	// Component id -> ids of the concerns assigned to it.  Null until
+	// loaded.
+	private EnumMap<EdgeKind, Map<Integer, int[]>> componentToConcerns = null;
+
+	ComponentAssignmentIndex(ConcernRepository repository)
+	{
+		this.repository = repository;
+	}
+
+	/**
+	 * @return the ids of the concerns assigned to the component (possibly
+	 *         empty), or null if the index couldn't be loaded (which has
+	 *         been reported)
+	 */
+	synchronized int[] getAssignedConcernIds(int componentId, EdgeKind edgeKind)
+	{
+		if (!load())
+			return null;
+
+		int[] concernIds = componentToConcerns.get(edgeKind).get(componentId);
+		return concernIds != null ? concernIds : NO_CONCERNS;
+	}
+
+	synchronized void assigned(int concernId, int componentId, EdgeKind edgeKind)
+	{
+		if (componentToConcerns == null)
+			return; // Not loaded, nothing to update
+
+		add(componentToConcerns.get(edgeKind), componentId, concernId);
+	}
+
+	synchronized void unassigned(int concernId, int componentId, EdgeKind edgeKind)
+	{
+		if (componentToConcerns == null)
+			return; // Not loaded, nothing to update
+
+		Map<Integer, int[]> componentsForEdge = componentToConcerns.get(edgeKind);
+
+		int[] concernIds = componentsForEdge.get(componentId);
+		if (concernIds == null)
+			return;
+
+		for (int i = 0; i < concernIds.length; ++i)
+		{
+			if (concernIds[i] != concernId)
+				continue;
+
+			if (concernIds.length == 1)
+			{
+				componentsForEdge.remove(componentId);
+			}
+			else
+			{
+				// Arrays are shared with callers so never modify one
+				int[] newConcernIds = new int[concernIds.length - 1];
+				System.arraycopy(concernIds, 0, newConcernIds, 0, i);
+				System.arraycopy(concernIds, i + 1, newConcernIds, i,
+						concernIds.length - i - 1);
+				componentsForEdge.put(componentId, newConcernIds);
+			}
+
+			return;
+		}
+	}
+
+	synchronized void preload()
+	{
+		load();
+	}
+
+	synchronized void invalidate()
+	{
+		componentToConcerns = null;
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private static void add(Map<Integer, int[]> componentsForEdge,
+			int componentId, int concernId)
+	{
+		int[] concernIds = componentsForEdge.get(componentId);
+		if (concernIds == null)
+		{
+			componentsForEdge.put(componentId, new int[] { concernId });
+			return;
+		}
+
+		for (int assignedConcernId : concernIds)
+		{
+			if (assignedConcernId == concernId)
+				return; // Already assigned
+		}
+
+		// Arrays are shared with callers so never modify one
+		int[] newConcernIds = Arrays.copyOf(concernIds, concernIds.length + 1);
+		newConcernIds[concernIds.length] = concernId;
+		componentsForEdge.put(componentId, newConcernIds);
+	}
+
+	/**
+	 * @return false if the index couldn't be loaded
+	 */
+	private boolean load()
+	{
+		if (componentToConcerns != null)
+			return true;
+
+		EnumMap<EdgeKind, Map<Integer, int[]>> newComponentToConcerns =
+			new EnumMap<EdgeKind, Map<Integer, int[]>>(EdgeKind.class);
+
+		Map<Integer, EdgeKind> edgeKindsById = new HashMap<Integer, EdgeKind>();
+		for (EdgeKind edgeKind : EdgeKind.values())
+		{
+			newComponentToConcerns.put(edgeKind, new HashMap<Integer, int[]>());
+			edgeKindsById.put(repository.getEdgeKindId(edgeKind), edgeKind);
+		}
+
+		try
+		{
+			PreparedStatement statement = repository.getConnection().prepareStatement(
+					GET_ALL_CONCERN_ASSIGNMENTS);
+
+			try
+			{
+				ResultSet resultSet = statement.executeQuery();
+				while (resultSet.next())
+				{
+					EdgeKind edgeKind = edgeKindsById.get(resultSet.getInt(3));
+					if (edgeKind == null)
+						continue;
+
+					add(newComponentToConcerns.get(edgeKind),
+							resultSet.getInt(2), resultSet.getInt(1));
+				}
+				resultSet.close();
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			ProblemManager.reportException(e,
+					"Failed to load the concern assignments.");
+			return false;
+		}
+
+		componentToConcerns = newComponentToConcerns;
+		return true;
+	}
+}
@@ -58,6 +58,24 @@ public class Concern implements Comparable<Concern>
 		}
 	}
 	
+	/**
+	 * For concerns whose row has already been read or written (e.g.,
+	 * by ConcernTree).
+	 */
+	Concern(ConcernRepository hsqldb,
+	        IConcernListener changeListener,
+	        int id, String name, String shortName, String description, 
+	        String color)
+	{
+		this.repository = hsqldb;
+		this.changeListener = changeListener;
+		this.id = id;
+		setName(name);
+		this.shortName = shortName;
+		this.description = description;
+		this.color = color;
+	}
+	
 	// ----------------------------------------------------
 	// ACCESSORS
 	// ----------------------------------------------------
@@ -157,7 +175,7 @@ public class Concern implements Comparable<Concern>
 		return unescapedName;
 	}
 	
-	private void setName(String name)
+	void setName(String name)
 	{
 		this.name = name;
 		this.unescapedName = ARFFFile.unescape(name);
@@ -205,24 +223,10 @@ public class Concern implements Comparable<Concern>
 	
 	public boolean isInConcernDomain(ConcernDomain concernDomain)
 	{
-		Concern concernDomainRoot = concernDomain.getRoot();
-		
-		Concern parent = this;
-		while (parent != null)
-		{
-			if (parent.equals(concernDomainRoot))
-			{
-				return true;
-			}
-			
-			parent = parent.getParent();
-		}
-		
-		return false;
+		return repository.isInConcernDomain(this, concernDomain);
 	}
 
 	
-	// SLOW!!
 	public Concern getParent()
 	{
 		return repository.getParentConcern(this);
@@ -518,7 +522,19 @@ public class Concern implements Comparable<Concern>
 	
 	public boolean assign(Component component, EdgeKind edgeKind)
 	{
-		boolean success = repository.assign(this, component, edgeKind);
+		return assign(component, edgeKind, null);
+	}
+
+	/**
+	 * Assigns the component, queuing the write in the batch if one is
+	 * provided.
+	 */
+	public boolean assign(Component component, EdgeKind edgeKind, 
+			RepositoryBatch batch)
+	{
+		boolean success = batch != null ?
+				batch.assign(this, component, edgeKind) :
+				repository.assign(this, component, edgeKind);
 
 		if (changeListener != null && success)
 			changeListener.modelChanged(ConcernEvent.createAssignEvent(this, 
@@ -650,6 +666,11 @@ public class Concern implements Comparable<Concern>
 
 	public boolean isAssignedRecursive(EdgeKind edgeKind)
 	{
+		AssignmentBitmaps bitmaps = repository.getAssignmentBitmaps(edgeKind);
+		if (bitmaps != null)
+			return !bitmaps.getAssignmentsRecursive(this).isEmpty();
+		
+		// Couldn't load the bitmaps (already reported), so walk the tree
 		if (isAssigned(edgeKind))
 			return true;
 		else
@@ -674,6 +695,15 @@ public class Concern implements Comparable<Concern>
 	 */
 	public boolean isAssignedRecursive(Component component, EdgeKind edgeKind)
 	{
+		AssignmentBitmaps bitmaps = repository.getAssignmentBitmaps(edgeKind);
+		if (bitmaps != null)
+		{
+			int position = bitmaps.getPosition(component.getId());
+			if (position != CodeModelSnapshot.NONE)
+				return bitmaps.isAssignedRecursive(this, position);
+		}
+		
+		// Not in the code model yet, so walk the tree
 		if (isAssigned(component, edgeKind))
 			return true;
 		else
@@ -705,7 +735,9 @@ public class Concern implements Comparable<Concern>
 			// Lazy instantiation
 			if (codeImporter == null)
 			{
-				codeImporter = new CodeModelImporter(repository, project);
+				codeImporter = new CodeModelImporter(repository, project,
+						RepositoryBatch.DEFAULT_BATCH_SIZE,
+						CodeModelImporter.getDefaultNumThreads());
 			}
 			
 			codeImporter.run();
@@ -741,8 +773,9 @@ public class Concern implements Comparable<Concern>
 	@Override
 	public int hashCode()
 	{
-		// Why not just id?
-		return (name + id).hashCode();
+		// Just the id, since the name changes when the concern is renamed
+		// and concerns are shared (see ConcernTree)
+		return id;
 	}
 	
 	@Override
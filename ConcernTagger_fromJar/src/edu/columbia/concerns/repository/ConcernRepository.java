@@ -9,14 +9,19 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
+import edu.columbia.concerns.model.ConcernEvent;
 import edu.columbia.concerns.model.IConcernListener;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
 import edu.columbia.concerns.util.ProblemManager;
 
 /**
@@ -34,13 +39,54 @@ public class ConcernRepository implements DBConstants
 	// connection to the HSQLDB database.
 	protected Connection con = null;
 
+	// Serializes the transactions of the threads sharing the connection
+	// (e.g., the UI and the code model updater), since a commit or
+	// rollback applies to every uncommitted write on the connection.
+	// Reentrant so writing methods can call each other.
+	private final ReentrantLock transactionLock = new ReentrantLock();
+
 	private EnumMap<EdgeKind, Map<Integer, Set<Component>>> assignmentMap;
 	
-	private Map<String, Component> handleToComponentCache =
-		new HashMap<String, Component>();
+	// Incremented whenever assignmentMap is invalidated or updated,
+	// guarded by assignmentMap
+	private int assignmentCacheGeneration = 0;
+	
+	// The reverse of assignmentMap: component -> assigned concerns
+	private ComponentAssignmentIndex componentAssignmentIndex =
+		new ComponentAssignmentIndex(this);
+	
+	// Each concern's assignments as bitmaps over the code model snapshot,
+	// for set operations.  Built on demand.
+	private EnumMap<EdgeKind, AssignmentBitmaps> assignmentBitmaps =
+		new EnumMap<EdgeKind, AssignmentBitmaps>(EdgeKind.class);
+	
+	// In-memory concern trees, one per change listener (i.e., concern
+	// model).  Loaded on demand.
+	private Map<IConcernListener, ConcernTree> concernTrees =
+		new IdentityHashMap<IConcernListener, ConcernTree>();
+	
+	public static final int DEFAULT_COMPONENT_CACHE_LIMIT = 20000;
+	
+	// Limits the size of the "in (...)" list used for bulk component lookups
+	private static final int MAX_HANDLES_PER_QUERY = 256;
+	
+	// Limit for the component caches of repositories opened from now on
+	private static int defaultComponentCacheLimit = DEFAULT_COMPONENT_CACHE_LIMIT;
+	
+	// Bounded so that browsing a large code base doesn't keep every
+	// component (and its Java element) in memory
+	private BoundedCache<String, Component> handleToComponentCache =
+		new BoundedCache<String, Component>(defaultComponentCacheLimit);
 	
-	private Map<Component, List<Component>> componentToChildrenCache =
-		new HashMap<Component, List<Component>>();
+	private BoundedCache<Component, List<Component>> componentToChildrenCache =
+		new BoundedCache<Component, List<Component>>(defaultComponentCacheLimit);
+	
+	// Hand out ids in blocks reserved from the database sequences
+	private IdAllocator componentIdAllocator;
+	private IdAllocator concernIdAllocator;
+	
+	// Built on demand and discarded when the code model changes
+	private volatile CodeModelSnapshot codeModelSnapshot = null;
 	
 	static
 	{
@@ -68,6 +114,11 @@ public class ConcernRepository implements DBConstants
 		
 		this.assignmentMap = 
 			new EnumMap<EdgeKind, Map<Integer, Set<Component>>>(EdgeKind.class); 
+
+		this.componentIdAllocator = new IdAllocator(this, 
+				"COMPONENT_ID_SEQ", COMPONENT_TABLE, IdAllocator.DEFAULT_BLOCK_SIZE);
+		this.concernIdAllocator = new IdAllocator(this, 
+				"CONCERN_ID_SEQ", CONCERN_TABLE, IdAllocator.DEFAULT_BLOCK_SIZE);
 	}
 
 	public static ConcernRepository openDatabase(String dirToSearch, boolean createIfNeeded)
@@ -80,6 +131,7 @@ public class ConcernRepository implements DBConstants
 			
 			repository.verifyComponentKinds();
 			repository.verifyEdgeKinds();
+			repository.verifySequences();
 			
 			return repository;
 		}
@@ -99,6 +151,7 @@ public class ConcernRepository implements DBConstants
 			
 			repository.verifyComponentKinds();
 			repository.verifyEdgeKinds();
+			repository.verifySequences();
 			
 			return repository;
 		}
@@ -170,6 +223,8 @@ public class ConcernRepository implements DBConstants
 		params.add(description);
 		params.add(kind);
 
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(CONCERN_DOMAIN_SQL, params);
@@ -197,6 +252,10 @@ public class ConcernRepository implements DBConstants
 			
 			return null;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	/**
@@ -207,6 +266,8 @@ public class ConcernRepository implements DBConstants
 	 */
 	public void renameConcernDomain(String oldName, String newName)
 	{
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -220,6 +281,10 @@ public class ConcernRepository implements DBConstants
 			rollback();
 			ProblemManager.reportException(e);
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 	
 	// -----------------------------------------------------
@@ -235,7 +300,7 @@ public class ConcernRepository implements DBConstants
 					concernName);
 			if (resultSet.next())
 			{
-				return new Concern(this, changeListener, resultSet);
+				return internConcern(changeListener, resultSet);
 			}
 			else
 			{
@@ -252,12 +317,16 @@ public class ConcernRepository implements DBConstants
 	public Concern getConcern(Integer concernId,
 			IConcernListener changeListener)
 	{
+		ConcernTree concernTree = getConcernTree(changeListener);
+		if (concernTree != null)
+			return concernTree.getConcern(concernId);
+		
 		try
 		{
 			ResultSet resultSet = executeQuery(GET_CONCERN_FROM_ID, concernId);
 			if (resultSet.next())
 			{
-				return new Concern(this, changeListener, resultSet);
+				return internConcern(changeListener, resultSet);
 			}
 			else
 			{
@@ -283,7 +352,7 @@ public class ConcernRepository implements DBConstants
 			ResultSet resultSet = executeQuery(GET_CONCERNS);
 			while (resultSet.next())
 			{
-				concerns.add(new Concern(this, changeListener, resultSet));
+				concerns.add(internConcern(changeListener, resultSet));
 			}
 		}
 		catch (SQLException ex)
@@ -332,6 +401,10 @@ public class ConcernRepository implements DBConstants
 
 	public Concern getParentConcern(Concern child)
 	{
+		ConcernTree concernTree = getConcernTree(child.getChangeListener());
+		if (concernTree != null)
+			return concernTree.getParent(child.getId());
+		
 		try
 		{
 			ResultSet resultSet = executeQuery(GET_PARENT_CONCERN, 
@@ -339,7 +412,7 @@ public class ConcernRepository implements DBConstants
 					getEdgeKindId(EdgeKind.CONTAINS));
 			if (resultSet.next())
 			{
-				return new Concern(this, child.getChangeListener(), resultSet);
+				return internConcern(child.getChangeListener(), resultSet);
 			}
 			else
 			{
@@ -355,6 +428,10 @@ public class ConcernRepository implements DBConstants
 
 	public List<Concern> getChildConcerns(Concern concern)
 	{
+		ConcernTree concernTree = getConcernTree(concern.getChangeListener());
+		if (concernTree != null)
+			return concernTree.getChildren(concern.getId());
+		
 		List<Concern> children = new ArrayList<Concern>();
 
 		try
@@ -364,8 +441,7 @@ public class ConcernRepository implements DBConstants
 					getEdgeKindId(EdgeKind.CONTAINS));
 			while (resultSet.next())
 			{
-				children.add(new Concern(this, concern.getChangeListener(),
-						resultSet));
+				children.add(internConcern(concern.getChangeListener(), resultSet));
 			}
 		}
 		catch (SQLException e)
@@ -378,6 +454,10 @@ public class ConcernRepository implements DBConstants
 	
 	public boolean hasChildConcerns(Concern concern)
 	{
+		ConcernTree concernTree = getConcernTree(concern.getChangeListener());
+		if (concernTree != null)
+			return concernTree.hasChildren(concern.getId());
+		
 		try
 		{
 			ResultSet resultSet = executeQuery(GET_CHILD_CONCERNS, 
@@ -398,6 +478,8 @@ public class ConcernRepository implements DBConstants
 
 		List<Object> params = new ArrayList<Object>();
 
+		beginTransaction();
+
 		try
 		{
 			// First remove any existing parent edge for this child
@@ -422,6 +504,19 @@ public class ConcernRepository implements DBConstants
 
 			con.commit();
 
+			for (ConcernTree concernTree : getLoadedConcernTrees())
+			{
+				concernTree.concernMoved(child.getId(), parent.getId());
+			}
+			
+			synchronized (assignmentBitmaps)
+			{
+				for (AssignmentBitmaps bitmaps : assignmentBitmaps.values())
+				{
+					bitmaps.concernsMoved();
+				}
+			}
+			
 			return true;
 		}
 		catch (SQLException e)
@@ -430,6 +525,10 @@ public class ConcernRepository implements DBConstants
 			ProblemManager.reportException(e);
 			return false;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	/**
@@ -438,6 +537,8 @@ public class ConcernRepository implements DBConstants
 	public Concern createConcern(IConcernListener changeListener,
 			String name, String shortName, String description, String color)
 	{
+		beginTransaction();
+
 		try
 		{
 			Integer id = getNextSequenceNumber("concern_id_seq", CONCERN_TABLE);
@@ -456,6 +557,11 @@ public class ConcernRepository implements DBConstants
 			
 			con.commit();
 
+			for (ConcernTree concernTree : getLoadedConcernTrees())
+			{
+				concernTree.concernCreated(id, name, shortName, description, color);
+			}
+			
 			return getConcern(id, changeListener);
 		}
 		catch (SQLException e)
@@ -476,6 +582,10 @@ public class ConcernRepository implements DBConstants
 			
 			return null;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	/**
@@ -494,6 +604,8 @@ public class ConcernRepository implements DBConstants
 			numRemoved += removeConcernAndChildren(child);
 		}
 		
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -521,6 +633,12 @@ public class ConcernRepository implements DBConstants
 			invalidateAssignmentCache(concern.getId());
 			
 			con.commit();
+			
+			for (ConcernTree concernTree : getLoadedConcernTrees())
+			{
+				concernTree.concernRemoved(concern.getId());
+			}
+			
 			return 1;
 		}
 		catch (SQLException e)
@@ -529,6 +647,10 @@ public class ConcernRepository implements DBConstants
 			ProblemManager.reportException(e);
 			return 0;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	/**
@@ -536,6 +658,8 @@ public class ConcernRepository implements DBConstants
 	 */
 	public void renameConcern(int concernId, String newName)
 	{
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -543,12 +667,71 @@ public class ConcernRepository implements DBConstants
 			statement.executeUpdate();
 			statement.close();
 			con.commit();
+			
+			for (ConcernTree concernTree : getLoadedConcernTrees())
+			{
+				concernTree.concernRenamed(concernId, newName);
+			}
 		}
 		catch (SQLException e)
 		{
 			rollback();
 			ProblemManager.reportException(e);
 		}
+		finally
+		{
+			endTransaction();
+		}
+	}
+
+	/**
+	 * Returns the tree's object for the concern row so that callers
+	 * sharing a change listener always get the same instance.
+	 */
+	private Concern internConcern(IConcernListener changeListener, 
+			ResultSet resultSet) throws SQLException
+	{
+		ConcernTree concernTree = getConcernTree(changeListener);
+		if (concernTree != null)
+			return concernTree.intern(resultSet);
+		else
+			return new Concern(this, changeListener, resultSet);
+	}
+
+	/**
+	 * Returns the in-memory concern tree for the change listener, loading
+	 * it if needed.
+	 * 
+	 * @return the tree, or null if it couldn't be loaded (already reported)
+	 */
+	private ConcernTree getConcernTree(IConcernListener changeListener)
+	{
+		synchronized (concernTrees)
+		{
+			ConcernTree concernTree = concernTrees.get(changeListener);
+			if (concernTree != null)
+				return concernTree;
+			
+			try
+			{
+				concernTree = ConcernTree.load(this, changeListener);
+				concernTrees.put(changeListener, concernTree);
+				return concernTree;
+			}
+			catch (SQLException e)
+			{
+				ProblemManager.reportException(e);
+				return null;
+			}
+		}
+	}
+
+	private List<ConcernTree> getLoadedConcernTrees()
+	{
+		synchronized (concernTrees)
+		{
+			return new ArrayList<ConcernTree>(concernTrees.values());
+		}
 	}
 
 	// -----------------------------------------------------
@@ -583,6 +766,8 @@ public class ConcernRepository implements DBConstants
 		PreparedStatement statement = null;
 		Integer compSeqNum = null;
 
+		beginTransaction();
+
 		try
 		{
 			compSeqNum = getNextSequenceNumber("COMPONENT_ID_SEQ", COMPONENT_TABLE);
@@ -603,6 +788,8 @@ public class ConcernRepository implements DBConstants
 			statement.executeUpdate();
 			statement.close();
 			con.commit();
+			
+			invalidateCodeModelSnapshot();
 		}
 		catch (SQLException e)
 		{
@@ -621,6 +808,10 @@ public class ConcernRepository implements DBConstants
 
 			return null;
 		}
+		finally
+		{
+			endTransaction();
+		}
 
 		if (componentDomain == null)
 			return getComponent(compSeqNum);
@@ -628,6 +819,9 @@ public class ConcernRepository implements DBConstants
 		assert compSeqNum != null;
 
 		componentDomain.setId(compSeqNum);
+
+		beginTransaction();
+
 		try
 		{
 			statement = createPreparedStatement(COMPONENT_DOMAIN_INSERT, componentDomain
@@ -642,12 +836,18 @@ public class ConcernRepository implements DBConstants
 			ProblemManager.reportException(e);
 			return null;
 		}
+		finally
+		{
+			endTransaction();
+		}
 		
 		return getComponent(compSeqNum);
 	}
 
 	public void renameComponent(Integer componentId, String newName)
 	{
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -661,6 +861,10 @@ public class ConcernRepository implements DBConstants
 			rollback();
 			ProblemManager.reportException(e);
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	public void updateSourceRange(	Integer componentId,
@@ -678,6 +882,8 @@ public class ConcernRepository implements DBConstants
 		params.add(numLines);
 		params.add(componentId);
 		
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -685,12 +891,18 @@ public class ConcernRepository implements DBConstants
 			statement.executeUpdate();
 			statement.close();
 			con.commit();
+			
+			invalidateCodeModelSnapshot();
 		}
 		catch (SQLException e)
 		{
 			rollback();
 			ProblemManager.reportException(e);
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 	
 	/**
@@ -708,6 +920,8 @@ public class ConcernRepository implements DBConstants
 		params.add(to.getId());
 		params.add(getEdgeKindId(edgeKind));
 		
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -715,6 +929,8 @@ public class ConcernRepository implements DBConstants
 			statement.executeUpdate();
 			statement.close();
 			con.commit();
+			
+			invalidateCodeModelSnapshot();
 		}
 		catch (SQLException e)
 		{
@@ -723,6 +939,10 @@ public class ConcernRepository implements DBConstants
 				"Failed to create '" + edgeKind.name() + "' component edge " +
 				"from component " + from.getId() + " to " + to.getId() + ".");
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	/**
@@ -763,6 +983,15 @@ public class ConcernRepository implements DBConstants
 	 */
 	public Component getComponent(Integer componentId)
 	{
+		// Use the snapshot if we have one, but don't build it just for this
+		CodeModelSnapshot snapshot = codeModelSnapshot;
+		if (snapshot != null)
+		{
+			int ordinal = snapshot.getOrdinal(componentId);
+			if (ordinal != CodeModelSnapshot.NONE)
+				return snapshot.getComponent(ordinal);
+		}
+		
 		try
 		{
 			Component component = null;
@@ -785,7 +1014,7 @@ public class ConcernRepository implements DBConstants
 		}
 	}
 	
-	private Component getOrCreateComponent(ResultSet resultSet)
+	Component getOrCreateComponent(ResultSet resultSet)
 	{
 		String handle = Component.getHandleFromResultSet(resultSet);
 		
@@ -799,6 +1028,157 @@ public class ConcernRepository implements DBConstants
 		return component;
 	}
 
+	/**
+	 * Places a component created by a batch in the handle cache so it
+	 * can be found before the batch is flushed.  The component can't be
+	 * evicted until componentFlushed() is called.
+	 */
+	void cacheComponent(Component component)
+	{
+		handleToComponentCache.pin(component.getHandle(), component);
+	}
+
+	/**
+	 * Called once a component created by a batch is in the database.
+	 */
+	void componentFlushed(Component component)
+	{
+		handleToComponentCache.unpin(component.getHandle());
+	}
+
+	/**
+	 * Removes a component created by a failed batch from the caches.
+	 */
+	void uncacheComponent(Component component)
+	{
+		handleToComponentCache.remove(component.getHandle());
+		componentToChildrenCache.remove(component);
+	}
+
+	void invalidateChildrenCache(Component component)
+	{
+		componentToChildrenCache.remove(component);
+	}
+
+	void invalidateChildrenCache()
+	{
+		componentToChildrenCache.clear();
+	}
+
+	// -----------------------------------------------------
+	// COMPONENT CACHE LIMITS
+	// -----------------------------------------------------
+
+	/**
+	 * Sets the maximum number of components (and child lists) cached by
+	 * repositories opened from now on.
+	 */
+	public static void setDefaultComponentCacheLimit(int limit)
+	{
+		defaultComponentCacheLimit = limit;
+	}
+
+	/**
+	 * Sets the maximum number of components (and child lists) cached by
+	 * this repository, evicting the least recently used ones if needed.
+	 */
+	public void setComponentCacheLimit(int limit)
+	{
+		handleToComponentCache.setMaxSize(limit);
+		componentToChildrenCache.setMaxSize(limit);
+	}
+
+	/**
+	 * @return the hit, miss, and eviction counts of the component caches
+	 */
+	public String getComponentCacheStatistics()
+	{
+		return "Components: " + handleToComponentCache + 
+			"; Children: " + componentToChildrenCache;
+	}
+
+	/**
+	 * Returns an immutable copy of the code model for calculations that
+	 * walk the component tree many times.  The snapshot is built with two
+	 * queries the first time it is requested after the code model changes.
+	 * 
+	 * @return the snapshot, or null if it could not be loaded
+	 */
+	public CodeModelSnapshot getCodeModelSnapshot()
+	{
+		CodeModelSnapshot snapshot = codeModelSnapshot;
+		if (snapshot != null)
+			return snapshot;
+		
+		synchronized (this)
+		{
+			if (codeModelSnapshot == null)
+			{
+				try
+				{
+					codeModelSnapshot = CodeModelSnapshot.build(this);
+				}
+				catch (SQLException e)
+				{
+					ProblemManager.reportException(e, 
+							"Failed to load the code model.");
+				}
+			}
+			
+			return codeModelSnapshot;
+		}
+	}
+
+	/**
+	 * Finds the parent in the code model snapshot, so the Java model isn't
+	 * needed.
+	 * 
+	 * @return the component that contains the component, or null if it is
+	 *         a top-level component or isn't in the database yet
+	 */
+	public Component getParentComponent(Component component)
+	{
+		CodeModelSnapshot snapshot = getCodeModelSnapshot();
+		if (snapshot == null)
+			return null; // Already reported error
+		
+		int ordinal = snapshot.getOrdinal(component);
+		if (ordinal == CodeModelSnapshot.NONE)
+			return null;
+		
+		int parent = snapshot.getParent(ordinal);
+		return parent != CodeModelSnapshot.NONE ? snapshot.getComponent(parent) : null;
+	}
+
+	/**
+	 * @return the id of the component that contains the component, or
+	 *         CodeModelSnapshot.NONE if it is a top-level component or isn't
+	 *         in the database yet
+	 */
+	public int getParentComponentId(int componentId)
+	{
+		CodeModelSnapshot snapshot = getCodeModelSnapshot();
+		if (snapshot == null)
+			return CodeModelSnapshot.NONE; // Already reported error
+		
+		int ordinal = snapshot.getOrdinal(componentId);
+		if (ordinal == CodeModelSnapshot.NONE)
+			return CodeModelSnapshot.NONE;
+		
+		int parent = snapshot.getParent(ordinal);
+		return parent != CodeModelSnapshot.NONE ? snapshot.getId(parent) : CodeModelSnapshot.NONE;
+	}
+
+	/**
+	 * Discards the code model snapshot so it is rebuilt the next time it
+	 * is requested.  Must be called whenever components or component
+	 * edges are added, removed, or changed.
+	 */
+	void invalidateCodeModelSnapshot()
+	{
+		codeModelSnapshot = null;
+	}
+
 	/**
 	 * Gets the component associated with the handle.
 	 * 
@@ -834,6 +1214,97 @@ public class ConcernRepository implements DBConstants
 		}
 	}
 
+	/**
+	 * Looks up many components at once.  Components that aren't cached are
+	 * read with one query per {@link #MAX_HANDLES_PER_QUERY} handles.
+	 * 
+	 * @return handle -> component for the handles that were found
+	 */
+	public Map<String, Component> getComponents(Collection<String> handles)
+	{
+		Map<String, Component> components = new HashMap<String, Component>();
+		List<String> uncachedHandles = new ArrayList<String>();
+
+		for (String handle : handles)
+		{
+			Component component = handleToComponentCache.get(handle);
+			if (component != null)
+				components.put(handle, component);
+			else if (!components.containsKey(handle))
+				uncachedHandles.add(handle);
+		}
+
+		PreparedStatement statement = null;
+		int statementSize = 0;
+		
+		try
+		{
+			for (int from = 0; from < uncachedHandles.size(); from += MAX_HANDLES_PER_QUERY)
+			{
+				int count = Math.min(MAX_HANDLES_PER_QUERY, uncachedHandles.size() - from);
+
+				// Only the last chunk needs a different statement
+				if (statement == null || statementSize != count)
+				{
+					if (statement != null)
+						statement.close();
+
+					statement = getConnection().prepareStatement(GET_COMPONENTS_BY_HANDLE +
+							getParameterList(count));
+					statementSize = count;
+				}
+
+				for (int i = 0; i < count; ++i)
+				{
+					statement.setString(i + 1, uncachedHandles.get(from + i));
+				}
+
+				ResultSet resultSet = statement.executeQuery();
+				while (resultSet.next())
+				{
+					Component component = getOrCreateComponent(resultSet);
+					components.put(component.getHandle(), component);
+				}
+				resultSet.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			ProblemManager.reportException(e);
+		}
+		finally
+		{
+			try
+			{
+				if (statement != null)
+					statement.close();
+			}
+			catch (SQLException e)
+			{
+				ProblemManager.reportException(e);
+			}
+		}
+
+		return components;
+	}
+
+	/**
+	 * @return "(?,?,...)" with <code>count</code> parameters
+	 */
+	private static String getParameterList(int count)
+	{
+		StringBuilder buf = new StringBuilder(2 * count + 1);
+		buf.append('(');
+		for (int i = 0; i < count; ++i)
+		{
+			if (i > 0)
+				buf.append(',');
+			buf.append('?');
+		}
+		buf.append(')');
+		return buf.toString();
+	}
+
 	/**
 	 * Return total number of components for a particular component kind
 	 * 
@@ -979,6 +1450,8 @@ public class ConcernRepository implements DBConstants
 		if (isAssigned(concern, component, edgeKind))
 			return false;
 		
+		beginTransaction();
+
 		try
 		{
 			List<Object> params = new ArrayList<Object>();
@@ -995,6 +1468,8 @@ public class ConcernRepository implements DBConstants
 			invalidateAssignmentCache(concern.getId(), edgeKind);
 			
 			con.commit();
+			
+			assignmentAdded(concern.getId(), component.getId(), edgeKind);
 			return true;
 		}
 		catch (SQLException e)
@@ -1003,6 +1478,10 @@ public class ConcernRepository implements DBConstants
 			ProblemManager.reportException(e);
 			return false;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 	
 	/**
@@ -1018,6 +1497,8 @@ public class ConcernRepository implements DBConstants
 		params.add(componentHandle);
 		params.add(getEdgeKindId(edgeKind));
 
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -1030,6 +1511,13 @@ public class ConcernRepository implements DBConstants
 			invalidateAssignmentCache(concern.getId(), edgeKind);
 			
 			con.commit();
+			
+			Component component = handleToComponentCache.get(componentHandle);
+			if (component != null)
+				assignmentRemoved(concern.getId(), component.getId(), edgeKind);
+			else
+				invalidateAssignmentIndexes();
+			
 			return numUnassigned != 0;
 		}
 		catch (SQLException e)
@@ -1038,6 +1526,10 @@ public class ConcernRepository implements DBConstants
 			ProblemManager.reportException(e);
 			return false;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	/**
@@ -1048,6 +1540,8 @@ public class ConcernRepository implements DBConstants
 	 */
 	public int unassign(Concern concern, EdgeKind edgeKind)
 	{
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -1060,6 +1554,7 @@ public class ConcernRepository implements DBConstants
 			
 			// Invalidate the cache so we refetch it
 			invalidateAssignmentCache(concern.getId(), edgeKind);
+			invalidateAssignmentIndexes();
 			
 			con.commit();
 			return numUnassigned;
@@ -1070,6 +1565,10 @@ public class ConcernRepository implements DBConstants
 			ProblemManager.reportException(e);
 			return 0;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 
 	/**
@@ -1080,6 +1579,8 @@ public class ConcernRepository implements DBConstants
 	 */
 	public int unassign(EdgeKind edgeKind)
 	{
+		beginTransaction();
+
 		try
 		{
 			PreparedStatement statement = createPreparedStatement(
@@ -1101,150 +1602,516 @@ public class ConcernRepository implements DBConstants
 			ProblemManager.reportException(e);
 			return 0;
 		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 	
 	public boolean isAssigned(int concernId, EdgeKind edgeKind)
 	{
-		return !getAssignmentsFromCache(concernId, edgeKind).isEmpty();
+		synchronized (assignmentMap)
+		{
+			return !getAssignmentsFromCache(concernId, edgeKind).isEmpty();
+		}
 	}
 	
 	public boolean isAssigned(Concern concern, Component component, EdgeKind edgeKind)
 	{
-		return getAssignmentsFromCache(concern.getId(), edgeKind).contains(component);
+		synchronized (assignmentMap)
+		{
+			return getAssignmentsFromCache(concern.getId(), edgeKind).contains(component);
+		}
 	}
 
+	/**
+	 * @return a snapshot of the assignments, which may be iterated while
+	 *         the cache is being updated on another thread
+	 */
 	public Collection<Component> getAssignments(Concern concern, EdgeKind edgeKind)
 	{
-		return getAssignmentsFromCache(concern.getId(), edgeKind);
+		synchronized (assignmentMap)
+		{
+			return Collections.unmodifiableList(new ArrayList<Component>(
+					getAssignmentsFromCache(concern.getId(), edgeKind)));
+		}
 	}
 	
 	public boolean hasAssignedConcerns(ConcernDomain concernDomain,
 	                                   int componentId, 
 	                                   EdgeKind edgeKind)
 	{
-		try
-		{
-			ResultSet resultSet = executeQuery(GET_CONCERNS_FOR_COMPONENT,
-					componentId, getEdgeKindId(edgeKind));
-			while (resultSet.next())
-			{
-				Concern candidateConcern = 
-					new Concern(this, null, resultSet);
-				
-				if (candidateConcern.isInConcernDomain(concernDomain))
-				{
-					return true;
-				}
-			}
-			
-			return false;
-		}
-		catch (SQLException e)
-		{
-			ProblemManager.reportException(e);
-			return false;
-		}
+		return getAssignedConcerns(concernDomain, componentId, edgeKind, 
+				null) != null;
 	}
 	
+	/**
+	 * Returns the concerns in the domain assigned to the component, or null
+	 * if there are none.
+	 */
 	public List<Concern> getAssignedConcerns(	ConcernDomain concernDomain,
 												int componentId,
 												EdgeKind edgeKind,
 												IConcernListener changeListener)
 	{
+		int[] concernIds = componentAssignmentIndex.getAssignedConcernIds(
+				componentId, edgeKind);
+		if (concernIds == null || concernIds.length == 0)
+			return null; // None, or failed to load (already reported)
+		
+		ConcernTree concernTree = getConcernTree(changeListener);
+		if (concernTree == null)
+			return null; // Already reported
+		
+		int concernDomainRootId = concernDomain.getRoot().getId();
+		
 		List<Concern> assignedConcerns = null;
 		
-		try
+		for (int concernId : concernIds)
 		{
-			ResultSet resultSet = executeQuery(GET_CONCERNS_FOR_COMPONENT,
-					componentId, getEdgeKindId(edgeKind));
-			while (resultSet.next())
+			if (concernTree.isInSubtree(concernId, concernDomainRootId))
 			{
-				Concern candidateConcern = 
-					new Concern(this, changeListener, resultSet);
+				if (assignedConcerns == null)
+					assignedConcerns = new ArrayList<Concern>(concernIds.length);
 				
-				if (candidateConcern.isInConcernDomain(concernDomain))
-				{
-					if (assignedConcerns == null)
-						assignedConcerns = new ArrayList<Concern>();
-					
-					assignedConcerns.add(candidateConcern);
-				}
+				assignedConcerns.add(concernTree.getConcern(concernId));
 			}
-			
-			resultSet = null; // Helps GC?
 		}
-		catch (SQLException e)
+		
+		return assignedConcerns;
+	}
+
+	/**
+	 * Returns true if the concern is the concern domain's root or one of
+	 * its descendants.
+	 */
+	public boolean isInConcernDomain(Concern concern, ConcernDomain concernDomain)
+	{
+		ConcernTree concernTree = getConcernTree(concern.getChangeListener());
+		if (concernTree != null)
 		{
-			ProblemManager.reportException(e);
+			return concernTree.isInSubtree(concern.getId(), 
+					concernDomain.getRoot().getId());
 		}
 		
-		return assignedConcerns;
+		// Couldn't load the tree (already reported), so walk the database
+		Concern concernDomainRoot = concernDomain.getRoot();
+		
+		Concern parent = concern;
+		while (parent != null)
+		{
+			if (parent.equals(concernDomainRoot))
+			{
+				return true;
+			}
+			
+			parent = parent.getParent();
+		}
+		
+		return false;
 	}
 
-	public Collection<Component> getAssignmentsFromCache(Integer concernId, EdgeKind edgeKind)
+	/**
+	 * Loads the component-to-concern assignment index now rather than on
+	 * first use.
+	 */
+	public void preloadAssignedConcerns()
 	{
-		Map<Integer, Set<Component>> assignmentMapForEdge = 
-			assignmentMap.get(edgeKind);
+		componentAssignmentIndex.preload();
+	}
 
-		if (assignmentMapForEdge == null)
+	/**
+	 * Fills the assignment cache for every concern in the concern domain
+	 * with a single query, rather than one query per concern on first
+	 * use.  Also loads the reverse (component-to-concern) index.
+	 * Concerns that are already cached are left alone.
+	 * 
+	 * @return false if canceled or the assignments couldn't be loaded
+	 *         (which has been reported)
+	 */
+	public boolean preloadAssignments(ConcernDomain concernDomain, 
+			EdgeKind edgeKind, ISimpleProgressMonitor progressMonitor)
+	{
+		Concern concernDomainRoot = concernDomain.getRoot();
+		
+		ConcernTree concernTree = getConcernTree(concernDomainRoot.getChangeListener());
+		if (concernTree == null)
+			return false;
+		
+		// Lets us tell if the cache was invalidated while we were loading
+		int generation;
+		synchronized (assignmentMap)
 		{
-			assignmentMapForEdge = new HashMap<Integer, Set<Component>>();
-			assignmentMap.put(edgeKind, assignmentMapForEdge);
+			generation = assignmentCacheGeneration;
 		}
 		
-		// See if we've already cached the assignments for this concern
-		Set<Component> assignedComponents = assignmentMapForEdge.get(concernId);
-		if (assignedComponents != null)
-			return assignedComponents;
-
-		// Cache miss: fill the cache
-		assignedComponents = new TreeSet<Component>();
-		assignmentMapForEdge.put(concernId, assignedComponents);
+		// Concerns without assignments are cached too
+		Map<Integer, Set<Component>> loadedAssignments = 
+			new HashMap<Integer, Set<Component>>();
+		for(Integer concernId : concernTree.getSubtreeIds(concernDomainRoot.getId()))
+		{
+			loadedAssignments.put(concernId, new TreeSet<Component>());
+		}
 		
 		try
 		{
-			ResultSet resultSet = executeQuery(GET_COMPONENTS_FOR_CONCERN,
-					concernId, getEdgeKindId(edgeKind));
-			while (resultSet.next())
+			ResultSet resultSet = executeQuery(GET_ALL_COMPONENTS_FOR_EDGE_KIND,
+					getEdgeKindId(edgeKind));
+			
+			try
 			{
-				Component component = getOrCreateComponent(resultSet);
-				assignedComponents.add(component);					
+				while (resultSet.next())
+				{
+					if (progressMonitor != null && progressMonitor.isCanceled())
+						return false;
+					
+					// Skip concerns in other domains
+					Set<Component> assignedComponents = 
+						loadedAssignments.get(resultSet.getInt("FROM_ID"));
+					if (assignedComponents != null)
+						assignedComponents.add(getOrCreateComponent(resultSet));
+				}
+			}
+			finally
+			{
+				resultSet.close();
 			}
 		}
 		catch (SQLException e)
 		{
-			ProblemManager.reportError("Failed to Access Concern Assignments",
-					null, 
-					"Failed to retrieve components assigned to concern '" +
-					concernId + "'.\n" + e, true);
+			ProblemManager.reportException(e, 
+					"Failed to load the assignments for concern domain '" + 
+					concernDomain.getName() + "'.");
+			return false;
+		}
+		
+		componentAssignmentIndex.preload();
+		
+		synchronized (assignmentMap)
+		{
+			// Stale, let the cache fill lazily
+			if (generation != assignmentCacheGeneration)
+				return true;
+			
+			Map<Integer, Set<Component>> assignmentMapForEdge = 
+				assignmentMap.get(edgeKind);
+	
+			if (assignmentMapForEdge == null)
+			{
+				assignmentMapForEdge = new HashMap<Integer, Set<Component>>();
+				assignmentMap.put(edgeKind, assignmentMapForEdge);
+			}
+			
+			// Don't overwrite sets cached (and possibly updated by a batch)
+			// while we were loading
+			for(Map.Entry<Integer, Set<Component>> entry : loadedAssignments.entrySet())
+			{
+				if (assignmentMapForEdge.get(entry.getKey()) == null)
+					assignmentMapForEdge.put(entry.getKey(), entry.getValue());
+			}
 		}
+		
+		return true;
+	}
 
-		return assignedComponents;
+	/**
+	 * Must be called with the assignmentMap lock held by callers that use
+	 * the returned set, which is the cached set itself.
+	 */
+	private Set<Component> getAssignmentsFromCache(Integer concernId, EdgeKind edgeKind)
+	{
+		synchronized (assignmentMap)
+		{
+			Map<Integer, Set<Component>> assignmentMapForEdge = 
+				assignmentMap.get(edgeKind);
+	
+			if (assignmentMapForEdge == null)
+			{
+				assignmentMapForEdge = new HashMap<Integer, Set<Component>>();
+				assignmentMap.put(edgeKind, assignmentMapForEdge);
+			}
+			
+			// See if we've already cached the assignments for this concern
+			Set<Component> assignedComponents = assignmentMapForEdge.get(concernId);
+			if (assignedComponents != null)
+				return assignedComponents;
+	
+			// Cache miss: fill the cache
+			assignedComponents = new TreeSet<Component>();
+			assignmentMapForEdge.put(concernId, assignedComponents);
+			
+			try
+			{
+				ResultSet resultSet = executeQuery(GET_COMPONENTS_FOR_CONCERN,
+						concernId, getEdgeKindId(edgeKind));
+				while (resultSet.next())
+				{
+					Component component = getOrCreateComponent(resultSet);
+					assignedComponents.add(component);					
+				}
+			}
+			catch (SQLException e)
+			{
+				ProblemManager.reportError("Failed to Access Concern Assignments",
+						null, 
+						"Failed to retrieve components assigned to concern '" +
+						concernId + "'.\n" + e, true);
+			}
+	
+			return assignedComponents;
+		}
 	}
 
 	public void invalidateAssignmentCache(Integer concernId, EdgeKind edgeKind)
 	{
-		Map<Integer, Set<Component>> assignmentsForConcern = 
-			assignmentMap.get(edgeKind);
-		
-		if (assignmentsForConcern != null)
-			assignmentsForConcern.put(concernId, null);
+		synchronized (assignmentMap)
+		{
+			++assignmentCacheGeneration;
+			
+			Map<Integer, Set<Component>> assignmentsForConcern = 
+				assignmentMap.get(edgeKind);
+			
+			if (assignmentsForConcern != null)
+				assignmentsForConcern.put(concernId, null);
+		}
 	}
 
 	public void invalidateAssignmentCache(Integer concernId)
 	{
-		for(Map<Integer, Set<Component>> assignmentsForConcern : assignmentMap.values())
+		invalidateAssignmentIndexes();
+		
+		synchronized (assignmentMap)
 		{
-			if (assignmentsForConcern != null)
-				assignmentsForConcern.remove(concernId);
+			++assignmentCacheGeneration;
+			
+			for(Map<Integer, Set<Component>> assignmentsForConcern : assignmentMap.values())
+			{
+				if (assignmentsForConcern != null)
+					assignmentsForConcern.remove(concernId);
+			}
 		}
 	}
 	
 	public void invalidateAssignmentCache(EdgeKind edgeKind)
 	{
-		assignmentMap.put(edgeKind, null);
+		synchronized (assignmentMap)
+		{
+			++assignmentCacheGeneration;
+			assignmentMap.put(edgeKind, null);
+		}
+		
+		invalidateAssignmentIndexes();
 	}
 	
+	/**
+	 * @return the ids of the concerns assigned to the component (possibly
+	 *         empty), or null if they couldn't be loaded (already reported)
+	 */
+	int[] getAssignedConcernIds(int componentId, EdgeKind edgeKind)
+	{
+		return componentAssignmentIndex.getAssignedConcernIds(componentId, edgeKind);
+	}
+	
+	/**
+	 * Tells the concern models about assignments that were removed along
+	 * with their components, since that doesn't go through
+	 * Concern.unassign().  Called by RepositoryBatch after the removal is
+	 * committed.
+	 * 
+	 * @param removedAssignments
+	 *            removed component -> ids of the concerns that were
+	 *            assigned to it, by edge kind
+	 */
+	void assignmentsRemoved(Map<EdgeKind, Map<Component, int[]>> removedAssignments)
+	{
+		for(ConcernTree concernTree : getLoadedConcernTrees())
+		{
+			IConcernListener changeListener = concernTree.getChangeListener();
+			if (changeListener == null)
+				continue;
+			
+			ConcernEvent events = null;
+			
+			for(Map.Entry<EdgeKind, Map<Component, int[]>> edgeEntry : 
+				removedAssignments.entrySet())
+			{
+				for(Map.Entry<Component, int[]> entry : edgeEntry.getValue().entrySet())
+				{
+					for(int concernId : entry.getValue())
+					{
+						Concern concern = concernTree.getConcern(concernId);
+						if (concern == null)
+							continue; // Not in this model
+						
+						if (events == null)
+							events = new ConcernEvent();
+						
+						events.addUnassignEvent(concern, 
+								entry.getKey().getJavaElement(), edgeEntry.getKey());
+					}
+				}
+			}
+			
+			if (events != null)
+				changeListener.modelChanged(events);
+		}
+	}
+	
+	/**
+	 * Adds a component to the concern's cached assignments.  Called by
+	 * RepositoryBatch when it queues an assignment.
+	 * 
+	 * @return false if the component was already assigned
+	 */
+	boolean addToAssignmentCache(Concern concern, Component component,
+			EdgeKind edgeKind)
+	{
+		synchronized (assignmentMap)
+		{
+			Set<Component> assignments = 
+				getAssignmentsFromCache(concern.getId(), edgeKind);
+			if (assignments.contains(component))
+				return false;
+			
+			// Drops a preload that read the assignments before this one
+			++assignmentCacheGeneration;
+			assignments.add(component);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a component from the concern's cached assignments.  Called by
+	 * RepositoryBatch when it queues an unassignment.
+	 */
+	void removeFromAssignmentCache(Concern concern, Component component,
+			EdgeKind edgeKind)
+	{
+		synchronized (assignmentMap)
+		{
+			++assignmentCacheGeneration;
+			getAssignmentsFromCache(concern.getId(), edgeKind).remove(component);
+		}
+	}
+	
+	/**
+	 * Updates the component-to-concern index for a single assignment
+	 * change made through a RepositoryBatch.
+	 */
+	void updateAssignedConcerns(Concern concern, Component component, 
+			EdgeKind edgeKind, boolean isAssigned)
+	{
+		if (isAssigned)
+			assignmentAdded(concern.getId(), component.getId(), edgeKind);
+		else
+			assignmentRemoved(concern.getId(), component.getId(), edgeKind);
+	}
+	
+	private void assignmentAdded(int concernId, int componentId, EdgeKind edgeKind)
+	{
+		componentAssignmentIndex.assigned(concernId, componentId, edgeKind);
+		
+		synchronized (assignmentBitmaps)
+		{
+			AssignmentBitmaps bitmaps = assignmentBitmaps.get(edgeKind);
+			if (bitmaps != null)
+				bitmaps.assigned(concernId, componentId);
+		}
+	}
+	
+	private void assignmentRemoved(int concernId, int componentId, EdgeKind edgeKind)
+	{
+		componentAssignmentIndex.unassigned(concernId, componentId, edgeKind);
+		
+		synchronized (assignmentBitmaps)
+		{
+			AssignmentBitmaps bitmaps = assignmentBitmaps.get(edgeKind);
+			if (bitmaps != null)
+				bitmaps.unassigned(concernId, componentId);
+		}
+	}
+	
+	private void invalidateAssignmentIndexes()
+	{
+		componentAssignmentIndex.invalidate();
+		
+		synchronized (assignmentBitmaps)
+		{
+			assignmentBitmaps.clear();
+		}
+	}
+	
+	/**
+	 * Returns the assignments for the relation as bitmaps over the current
+	 * code model snapshot, building them with a single query if needed.
+	 * 
+	 * @return the bitmaps, or null if they couldn't be loaded (which has
+	 *         been reported)
+	 */
+	public AssignmentBitmaps getAssignmentBitmaps(EdgeKind edgeKind)
+	{
+		CodeModelSnapshot snapshot = getCodeModelSnapshot();
+		if (snapshot == null)
+			return null; // Already reported
+		
+		synchronized (assignmentBitmaps)
+		{
+			AssignmentBitmaps bitmaps = assignmentBitmaps.get(edgeKind);
+			if (bitmaps != null && bitmaps.getSnapshot() == snapshot)
+				return bitmaps;
+			
+			try
+			{
+				bitmaps = AssignmentBitmaps.load(this, snapshot, edgeKind);
+			}
+			catch (SQLException e)
+			{
+				ProblemManager.reportException(e, 
+						"Failed to load the concern assignments.");
+				return null;
+			}
+			
+			assignmentBitmaps.put(edgeKind, bitmaps);
+			return bitmaps;
+		}
+	}
+	
+	// -----------------------------------------------------
+	// BATCH METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Starts a unit of work for bulk writes.  Rows are committed once
+	 * every <code>batchSize</code> rows instead of once per row.  The
+	 * caller must close the batch when done.
+	 * 
+	 * @param batchSize
+	 * @return
+	 */
+	public RepositoryBatch beginBatch(int batchSize)
+	{
+		return new RepositoryBatch(this, batchSize);
+	}
+
+	// -----------------------------------------------------
+	// TRANSACTION METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Must be called before writing to the database, and followed by
+	 * endTransaction() once the writes are committed or rolled back.
+	 * Blocks while another thread has uncommitted writes.
+	 */
+	void beginTransaction()
+	{
+		transactionLock.lock();
+	}
+
+	void endTransaction()
+	{
+		transactionLock.unlock();
+	}
+
 	// -----------------------------------------------------
 	// HELPER METHODS
 	// -----------------------------------------------------
@@ -1332,12 +2199,35 @@ public class ConcernRepository implements DBConstants
 
 	public void resetDatabase()
 	{
-		// Reset database to its initial state
-		DBReset.resetDatabase(this);
+		beginTransaction();
 		
-		// Invalidate the assignment cache
-		this.assignmentMap = 
-			new EnumMap<EdgeKind, Map<Integer, Set<Component>>>(EdgeKind.class); 
+		try
+		{
+			// Reset database to its initial state
+			DBReset.resetDatabase(this);
+			
+			// Invalidate the assignment cache
+			synchronized (assignmentMap)
+			{
+				++assignmentCacheGeneration;
+				assignmentMap.clear();
+			}
+			invalidateAssignmentIndexes();
+			
+			synchronized (concernTrees)
+			{
+				concernTrees.clear();
+			}
+
+			invalidateCodeModelSnapshot();
+			
+			// The sequences were recreated so our reserved blocks are stale
+			verifySequences();
+		}
+		finally
+		{
+			endTransaction();
+		}
 	}
 	
 	/**
@@ -1606,6 +2496,17 @@ public class ConcernRepository implements DBConstants
 		}
 	}
 
+	/**
+	 * Makes sure the id sequences are ahead of the ids already in use,
+	 * e.g., after a crash or when opening a database created by an older
+	 * version that didn't use the sequences.
+	 */
+	private void verifySequences()
+	{
+		componentIdAllocator.recover();
+		concernIdAllocator.recover();
+	}
+
 	/**
 	 * Gets the database value for a component kind
 	 * 
@@ -1629,31 +2530,20 @@ public class ConcernRepository implements DBConstants
 	}
 
 	/**
-	 * Generates the next integer for the column in a table. It assumes we have
-	 * a single connection. We should change this to use sequences.
+	 * Generates the next id for a table. Ids are handed out from blocks
+	 * reserved from the table's sequence, so this rarely touches the
+	 * database. Safe to call from multiple threads.
 	 * 
-	 * @param con
 	 * @param sequenceName
 	 * @param tableName
-	 * @return
-	 * @throws SQLException
+	 * @return the id, or null if the id could not be allocated
 	 */
 	public Integer getNextSequenceNumber(String sequenceName, String tableName)
 	{
-		try
-		{
-			ResultSet resultSet = executeQuery(
-					"select max(" + sequenceName + ") from " + tableName);
-
-			if (resultSet.next())
-			{
-				return resultSet.getInt(1) + 1;
-			}
-		}
-		catch (SQLException e)
-		{
-			ProblemManager.reportException(e);
-		}
+		if (tableName.equals(COMPONENT_TABLE))
+			return componentIdAllocator.next();
+		else if (tableName.equals(CONCERN_TABLE))
+			return concernIdAllocator.next();
 
 		ProblemManager.reportError("Failed to Create Item", 
 				"Unable to create sequence", tableName);
@@ -0,0 +1,364 @@
+package edu.columbia.concerns.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import edu.columbia.concerns.model.IConcernListener;
+
+/**
+ * In-memory copy of the concern tree (the CONCERN and CONCERN_EDGE
+ * tables), so navigating the tree never touches the database.
+ * <P>
+ * There is one tree per change listener (i.e., per concern model) since
+ * concerns notify their listener when they change and children inherit
+ * their parent's listener.  The tree is also the listener's identity map:
+ * each concern is represented by the same Concern object for the life of
+ * the tree, however it was read (see intern()).  Removed concerns are
+ * dropped, so the tree never holds more than the CONCERN table.
+ * <P>
+ * The repository keeps the tree in sync as concerns are created, moved,
+ * renamed, and removed.
+ */
+class ConcernTree implements DBConstants
+{
+	private static final class Node
+	{
+		Concern concern;
+		Node parent = null;
+		List<Node> children = null;
+
+		// Number of ancestors, and the topmost ancestor (the concern
+		// domain's root concern)
+		int depth = 0;
+		Node domainRoot = this;
+
+		Node(Concern concern)
+		{
+			this.concern = concern;
+		}
+	}
+
+	private ConcernRepository repository;
+	private IConcernListener changeListener;
+
+	// Concern id -> node
+	private Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+
+	private ConcernTree(ConcernRepository repository,
+			IConcernListener changeListener)
+	{
+		this.repository = repository;
+		this.changeListener = changeListener;
+	}
+
+	/**
+	 * Loads the whole concern tree with two queries.
+	 */
+	static ConcernTree load(ConcernRepository repository,
+			IConcernListener changeListener)
+		throws SQLException
+	{
+		ConcernTree tree = new ConcernTree(repository, changeListener);
+
+		PreparedStatement statement = repository.getConnection().prepareStatement(
+				GET_CONCERNS);
+
+		try
+		{
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				Concern concern = new Concern(repository, changeListener, resultSet);
+				tree.nodes.put(concern.getId(), new Node(concern));
+			}
+			resultSet.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		statement = repository.getConnection().prepareStatement(
+				GET_CONCERN_EDGES_FOR_EDGE_KIND);
+
+		try
+		{
+			statement.setInt(1, repository.getEdgeKindId(EdgeKind.CONTAINS));
+
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				Node parent = tree.nodes.get(resultSet.getInt(1));
+				Node child = tree.nodes.get(resultSet.getInt(2));
+
+				// Ignore dangling edges and second parents
+				if (parent != null && child != null && child.parent == null &&
+					!tree.isAncestor(child, parent))
+				{
+					tree.link(parent, child);
+				}
+			}
+			resultSet.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		for (Node node : tree.nodes.values())
+		{
+			if (node.parent == null)
+				tree.updateDepths(node);
+		}
+
+		return tree;
+	}
+
+	IConcernListener getChangeListener()
+	{
+		return changeListener;
+	}
+
+	// -----------------------------------------------------
+	// NAVIGATION
+	// -----------------------------------------------------
+
+	/**
+	 * @return the concern, or null if it doesn't exist
+	 */
+	synchronized Concern getConcern(int concernId)
+	{
+		Node node = nodes.get(concernId);
+		return node != null ? node.concern : null;
+	}
+
+	synchronized Concern getParent(int concernId)
+	{
+		Node node = nodes.get(concernId);
+		return node != null && node.parent != null ? node.parent.concern : null;
+	}
+
+	synchronized List<Concern> getChildren(int concernId)
+	{
+		Node node = nodes.get(concernId);
+		if (node == null || node.children == null)
+			return new ArrayList<Concern>();
+
+		List<Concern> children = new ArrayList<Concern>(node.children.size());
+		for (Node child : node.children)
+		{
+			children.add(child.concern);
+		}
+
+		return children;
+	}
+
+	synchronized boolean hasChildren(int concernId)
+	{
+		Node node = nodes.get(concernId);
+		return node != null && node.children != null && !node.children.isEmpty();
+	}
+
+	/**
+	 * @return true if the concern is the ancestor or one of its
+	 *         descendants
+	 */
+	synchronized boolean isInSubtree(int concernId, int ancestorId)
+	{
+		for (Node node = nodes.get(concernId); node != null; node = node.parent)
+		{
+			if (node.concern.getId() == ancestorId)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the ids of the concern and its descendants, or an empty list
+	 *         if the concern doesn't exist
+	 */
+	synchronized List<Integer> getSubtreeIds(int concernId)
+	{
+		List<Integer> subtreeIds = new ArrayList<Integer>();
+
+		Node subtreeRoot = nodes.get(concernId);
+		if (subtreeRoot == null)
+			return subtreeIds;
+
+		LinkedList<Node> pending = new LinkedList<Node>();
+		pending.add(subtreeRoot);
+
+		while (!pending.isEmpty())
+		{
+			Node node = pending.removeFirst();
+			subtreeIds.add(node.concern.getId());
+
+			if (node.children != null)
+				pending.addAll(node.children);
+		}
+
+		return subtreeIds;
+	}
+
+	/**
+	 * @return the number of ancestors, or -1 if the concern doesn't exist
+	 */
+	synchronized int getDepth(int concernId)
+	{
+		Node node = nodes.get(concernId);
+		return node != null ? node.depth : -1;
+	}
+
+	/**
+	 * @return the topmost ancestor (the root concern of the concern's
+	 *         domain), or null if the concern doesn't exist
+	 */
+	synchronized Concern getDomainRoot(int concernId)
+	{
+		Node node = nodes.get(concernId);
+		return node != null ? node.domainRoot.concern : null;
+	}
+
+	/**
+	 * Returns the tree's Concern object for a row of the CONCERN table,
+	 * so that each concern is represented by a single object.  The
+	 * concern is added to the tree if needed (e.g., if it was created
+	 * outside of the repository).
+	 */
+	synchronized Concern intern(ResultSet resultSet) throws SQLException
+	{
+		int concernId = resultSet.getInt(1);
+
+		Node node = nodes.get(concernId);
+		if (node == null)
+		{
+			node = new Node(new Concern(repository, changeListener, resultSet));
+			nodes.put(concernId, node);
+		}
+
+		return node.concern;
+	}
+
+	// -----------------------------------------------------
+	// UPDATES (called after the change is committed)
+	// -----------------------------------------------------
+
+	synchronized void concernCreated(int concernId, String name,
+			String shortName, String description, String color)
+	{
+		if (nodes.containsKey(concernId))
+			return;
+
+		nodes.put(concernId, new Node(new Concern(repository, changeListener,
+				concernId, name, shortName, description, color)));
+	}
+
+	synchronized void concernMoved(int childId, int parentId)
+	{
+		Node child = nodes.get(childId);
+		Node parent = nodes.get(parentId);
+		if (child == null || parent == null || isAncestor(child, parent))
+			return;
+
+		unlink(child);
+		link(parent, child);
+		updateDepths(child);
+	}
+
+	synchronized void concernRenamed(int concernId, String newName)
+	{
+		Node node = nodes.get(concernId);
+		if (node != null)
+			node.concern.setName(newName);
+	}
+
+	/**
+	 * Removes the concern.  Its children are left without a parent (the
+	 * repository removes them first anyway).
+	 */
+	synchronized void concernRemoved(int concernId)
+	{
+		Node node = nodes.remove(concernId);
+		if (node == null)
+			return;
+
+		unlink(node);
+
+		if (node.children != null)
+		{
+			for (Node child : node.children)
+			{
+				child.parent = null;
+				updateDepths(child);
+			}
+		}
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private void link(Node parent, Node child)
+	{
+		if (parent.children == null)
+			parent.children = new ArrayList<Node>(4);
+
+		parent.children.add(child);
+		child.parent = parent;
+	}
+
+	private void unlink(Node child)
+	{
+		if (child.parent != null)
+			child.parent.children.remove(child);
+
+		child.parent = null;
+	}
+
+	private boolean isAncestor(Node ancestor, Node node)
+	{
+		for (Node cursor = node; cursor != null; cursor = cursor.parent)
+		{
+			if (cursor == ancestor)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Recomputes the depth and domain root of the node and its descendants
+	 * from the node's parent.
+	 */
+	private void updateDepths(Node subtreeRoot)
+	{
+		LinkedList<Node> pending = new LinkedList<Node>();
+		pending.add(subtreeRoot);
+
+		while (!pending.isEmpty())
+		{
+			Node node = pending.removeFirst();
+
+			if (node.parent != null)
+			{
+				node.depth = node.parent.depth + 1;
+				node.domainRoot = node.parent.domainRoot;
+			}
+			else
+			{
+				node.depth = 0;
+				node.domainRoot = node;
+			}
+
+			if (node.children != null)
+				pending.addAll(node.children);
+		}
+	}
+}
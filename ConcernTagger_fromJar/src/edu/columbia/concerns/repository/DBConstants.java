@@ -15,6 +15,7 @@ public interface DBConstants
 
 	static final String GET_COMPONENT_BY_ID 		= "select * from component where component_id_seq=?";
 	static final String GET_COMPONENT_BY_HANDLE 	= "select * from component where handle=?";
+	static final String GET_COMPONENTS_BY_HANDLE 	= "select * from component where handle in ";
 	static final String GET_COMPONENT_CHILDREN 		= "select * from component a, component_edge b where a.component_id_seq = b.to_id and b.from_id=? and b.edge_kind_id=?";
 	static final String GET_COMPONENT_CHILDREN_ORDERED = GET_COMPONENT_CHILDREN + " order by a.begin_line, a.begin_col";
 	static final String GET_COMPONENT_PARENT 		= "select * from component a, component_edge b where a.component_id_seq = b.from_id and b.to_id=? and b.edge_kind_id=?";
@@ -23,6 +24,8 @@ public interface DBConstants
 
 	static final String UPDATE_COMPONENT_NAME 		= "update component set name=? where component_id_seq=?";
 	static final String UPDATE_COMPONENT_SOURCE_RANGE = "update component set begin_line=?, begin_col=?, end_line=?, end_col=?, num_lines=? where component_id_seq=?";
+
+	static final String REMOVE_COMPONENT 			= "delete from component where component_id_seq=?";
 	
 	static final String GET_COMPONENTS_FOR_CONCERN 	= "select * from component a, concern_component_edge b where a.component_id_seq = b.to_id and b.from_id=? and b.edge_kind_id=?";
 	
@@ -34,6 +37,8 @@ public interface DBConstants
 
 	static final String COMPONENT_EDGE_SELECT_SQL 	= "select * from component_edge where from_id=?";
 	static final String CHECK_COMPONENT_EDGE_SQL 	= "select * from component_edge where from_id=? and to_id=?";
+
+	static final String REMOVE_COMPONENT_EDGES 		= "delete from component_edge where from_id=? or to_id=?";
 	
 	// COMPONENT_KIND TABLE
 	
@@ -84,6 +89,8 @@ public interface DBConstants
 	static final String REMOVE_CONCERN_EDGE 		      = "delete from concern_edge where from_id = ? or to_id = ?";
 	static final String REMOVE_CONCERN_EDGE_FOR_EDGE_KIND = "delete from concern_edge where to_id=? and edge_kind_id=?";
 
+	static final String GET_CONCERN_EDGES_FOR_EDGE_KIND = "select from_id, to_id from concern_edge where edge_kind_id=?";
+
 	// CONCERN_COMPONENT_EDGE TABLE
 
 	static final String CONCERN_COMPONENT_EDGE 		= "CONCERN_COMPONENT_EDGE";
@@ -95,10 +102,18 @@ public interface DBConstants
 	static final String REMOVE_CONCERN_COMPONENT_EDGE 					 = "delete from concern_component_edge where from_id=? and to_id=(select component_id_seq from component where handle=?) and edge_kind_id=?";
 	static final String REMOVE_ALL_CONCERN_COMPONENT_EDGES_FOR_EDGE_KIND = "delete from concern_component_edge where edge_kind_id=?";
 	static final String REMOVE_ALL_CONCERN_COMPONENT_EDGES_FOR_CONCERN 	 = "delete from concern_component_edge where from_id=?";
+	static final String REMOVE_ALL_CONCERN_COMPONENT_EDGES_FOR_COMPONENT = "delete from concern_component_edge where to_id=?";
+
+	static final String GET_ALL_CONCERN_ASSIGNMENTS = "select from_id, to_id, edge_kind_id from concern_component_edge";
+	static final String GET_CONCERN_ASSIGNMENTS_FOR_EDGE_KIND = "select from_id, to_id from concern_component_edge where edge_kind_id=?";
+	static final String GET_ALL_COMPONENTS_FOR_EDGE_KIND = "select a.*, b.from_id from component a, concern_component_edge b where a.component_id_seq = b.to_id and b.edge_kind_id=?";
 
 	// MISCELLANEOUS
 
-	static final String SEQUENCE_SQL = "select next value for ";
+	static final String SEQUENCE_SQL = "call next value for ";
+	static final String GET_SEQUENCE_NEXT_VALUE_SQL = "select start_with from information_schema.system_sequences where sequence_name=";
+	static final String RESTART_SEQUENCE_SQL_PREFIX = "alter sequence ";
+	static final String RESTART_SEQUENCE_SQL_SUFFIX = " restart with ";
 	
 	static final String DEFAULT_ROOT_CONCERN_NAME = "<ROOT>";
 	static final String DEFAULT_CONCERN_DOMAIN_NAME = "<default>";
@@ -0,0 +1,185 @@
+package edu.columbia.concerns.repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import edu.columbia.concerns.util.ProblemManager;
+
+/**
+ * Hands out ids for a table from blocks reserved from a database sequence
+ * (hi/lo). Each value taken from the sequence (hi) reserves the ids
+ * <code>[hi * blockSize, (hi + 1) * blockSize)</code>, so only one sequence
+ * round trip is needed per block instead of a <code>max()</code> query per
+ * insert.
+ * <P>
+ * Ids left over in a block when the database is closed (or crashes) are
+ * simply skipped. When the database is opened, {@link #recover()} moves the
+ * sequence past the largest id in the table so a block can never overlap
+ * an existing row, even for databases written by older versions that
+ * didn't use the sequence at all.
+ * <P>
+ * This class is thread safe.
+ */
+class IdAllocator implements DBConstants
+{
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
+	private ConcernRepository repository;
+	private String sequenceName;
+	private String tableName;
+	private int blockSize;
+
+	// The current block is [nextId, endId)
+	private int nextId = 0;
+	private int endId = 0;
+
+	/**
+	 * @param sequenceName
+	 *            name of the sequence, which is also the name of the id
+	 *            column in the table
+	 * @param tableName
+	 */
+	IdAllocator(ConcernRepository repository, String sequenceName,
+			String tableName, int blockSize)
+	{
+		assert blockSize > 0;
+
+		this.repository = repository;
+		this.sequenceName = sequenceName;
+		this.tableName = tableName;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return the next id, or null if a new block could not be reserved
+	 */
+	synchronized Integer next()
+	{
+		if (nextId == endId && !reserveBlock())
+			return null;
+
+		return nextId++;
+	}
+
+	/**
+	 * Discards the current block.  Must be called when the underlying
+	 * sequence is recreated (e.g., after the database is reset).
+	 */
+	synchronized void reset()
+	{
+		nextId = endId = 0;
+	}
+
+	/**
+	 * Restarts the sequence if the next block it hands out would overlap
+	 * an existing row. Must be called before any ids are allocated since
+	 * altering the sequence commits the current transaction.
+	 */
+	synchronized boolean recover()
+	{
+		reset();
+
+		Statement statement = null;
+
+		try
+		{
+			statement = repository.getConnection().createStatement();
+
+			ResultSet resultSet = statement.executeQuery(
+					"select max(" + sequenceName + ") from " + tableName);
+
+			int maxId = resultSet.next() ? resultSet.getInt(1) : 0;
+			resultSet.close();
+
+			resultSet = statement.executeQuery(
+					GET_SEQUENCE_NEXT_VALUE_SQL + "'" + sequenceName.toUpperCase() + "'");
+
+			if (!resultSet.next())
+			{
+				ProblemManager.reportError("Failed to Open Database",
+						"Sequence " + sequenceName + " not found", tableName);
+				return false;
+			}
+
+			long nextHi = resultSet.getLong(1);
+			resultSet.close();
+
+			long minHi = maxId / blockSize + 1;
+
+			if (nextHi < minHi)
+			{
+				statement.execute(RESTART_SEQUENCE_SQL_PREFIX + sequenceName +
+						RESTART_SEQUENCE_SQL_SUFFIX + minHi);
+				repository.getConnection().commit();
+			}
+
+			return true;
+		}
+		catch (SQLException e)
+		{
+			ProblemManager.reportException(e,
+					"Failed to recover sequence " + sequenceName + ".");
+			return false;
+		}
+		finally
+		{
+			close(statement);
+		}
+	}
+
+	private boolean reserveBlock()
+	{
+		Statement statement = null;
+
+		try
+		{
+			statement = repository.getConnection().createStatement();
+
+			ResultSet resultSet = statement.executeQuery(
+					SEQUENCE_SQL + sequenceName);
+
+			if (resultSet.next())
+			{
+				long hi = resultSet.getLong(1);
+				long start = hi * blockSize;
+
+				if (start + blockSize <= Integer.MAX_VALUE)
+				{
+					nextId = (int) start;
+					endId = (int) (start + blockSize);
+					return true;
+				}
+
+				ProblemManager.reportError("Failed to Create Item",
+						"Ran out of ids for " + tableName, sequenceName);
+				return false;
+			}
+		}
+		catch (SQLException e)
+		{
+			ProblemManager.reportException(e);
+		}
+		finally
+		{
+			close(statement);
+		}
+
+		ProblemManager.reportError("Failed to Create Item",
+				"Unable to create sequence", tableName);
+		return false;
+	}
+
+	private static void close(Statement statement)
+	{
+		try
+		{
+			if (statement != null)
+				statement.close();
+		}
+		catch (SQLException e)
+		{
+			ProblemManager.reportException(e, true);
+		}
+	}
+}
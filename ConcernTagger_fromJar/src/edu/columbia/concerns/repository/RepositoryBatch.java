@@ -0,0 +1,608 @@
+package edu.columbia.concerns.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.columbia.concerns.util.ProblemManager;
+
+/**
+ * Unit of work for bulk writes to the concern repository.
+ * <P>
+ * Instead of preparing a statement and committing for every row, rows are
+ * queued against one reusable prepared statement per table using JDBC
+ * <code>addBatch</code>. Once <code>batchSize</code> rows are queued, all
+ * statements are executed with <code>executeBatch</code> and committed in a
+ * single transaction.
+ * <P>
+ * Components created through a batch are placed in the repository's handle
+ * cache immediately, so they can be looked up and connected before the
+ * batch is flushed. Callers must call {@link #close()} when done.
+ * <P>
+ * Rows may be executed before they are committed, so the batch holds the
+ * repository's transaction lock from the first queued row until the rows
+ * are committed or rolled back.  Other threads' writes wait until then.
+ */
+public class RepositoryBatch implements DBConstants
+{
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	// Statements are executed in this order when flushed so that foreign
+	// key constraints are satisfied (e.g., components before their edges).
+	private static final String[] STATEMENT_ORDER =
+	{
+		COMPONENT_INSERT_SQL,
+		COMPONENT_DOMAIN_INSERT,
+		UPDATE_COMPONENT_NAME,
+		UPDATE_COMPONENT_SOURCE_RANGE,
+		COMPONENT_EDGE_SQL,
+		CONCERN_COMPONENT_EDGE_SQL,
+		REMOVE_CONCERN_COMPONENT_EDGE,
+		REMOVE_ALL_CONCERN_COMPONENT_EDGES_FOR_COMPONENT,
+		REMOVE_COMPONENT_EDGES,
+		REMOVE_COMPONENT
+	};
+
+	private ConcernRepository repository;
+	private int batchSize;
+
+	private PreparedStatement[] statements =
+		new PreparedStatement[STATEMENT_ORDER.length];
+	private int[] pendingRows = new int[STATEMENT_ORDER.length];
+	private int numPendingRows = 0;
+
+	// Used to undo cache updates if the batch fails
+	private List<Component> pendingComponents = new ArrayList<Component>();
+	private Set<Component> pendingParents = new HashSet<Component>();
+	private Set<Integer> pendingConcerns = new HashSet<Integer>();
+
+	// Used to answer isConnected() for edges that haven't been flushed
+	private Set<String> pendingEdges = new HashSet<String>();
+
+	// True if components were removed, which invalidates all the
+	// assignment and child caches
+	private boolean pendingRemovals = false;
+
+	// Removed component -> ids of the concerns that were assigned to it,
+	// so the concern models can be told once the removal is committed
+	private EnumMap<EdgeKind, Map<Component, int[]>> pendingRemovedAssignments =
+		new EnumMap<EdgeKind, Map<Component, int[]>>(EdgeKind.class);
+
+	// True if components or component edges were written, which
+	// invalidates the code model snapshot
+	private boolean pendingCodeModelChanges = false;
+
+	// True while we hold the repository's transaction lock
+	private boolean inTransaction = false;
+
+	private boolean closed = false;
+
+	RepositoryBatch(ConcernRepository repository, int batchSize)
+	{
+		assert batchSize > 0;
+
+		this.repository = repository;
+		this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+	}
+
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	// -----------------------------------------------------
+	// COMPONENT METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Queues a component for insertion. If the domain is provided, queues
+	 * the domain too.
+	 *
+	 * @return the new component, or null if it could not be queued
+	 */
+	public Component createComponent(	String name,
+	                                 	ComponentKind componentKind,
+	                                 	String handle,
+	                                 	SourceRange sourceRange,
+	                                 	ComponentDomain componentDomain)
+	{
+		Integer id = repository.getNextSequenceNumber(
+				"COMPONENT_ID_SEQ", COMPONENT_TABLE);
+		if (id == null)
+			return null; // Already reported error
+
+		List<Object> params = new ArrayList<Object>();
+		params.add(id);
+		params.add(name);
+		params.add(repository.getComponentKindId(componentKind));
+		params.add(handle);
+		params.add(sourceRange.getBeginLine());
+		params.add(sourceRange.getBeginColumn());
+		params.add(sourceRange.getEndLine());
+		params.add(sourceRange.getEndColumn());
+		params.add(sourceRange.getNumSourceLines());
+
+		if (!addBatch(COMPONENT_INSERT_SQL, params))
+			return null;
+
+		Component component = new Component(repository, id, name,
+				repository.getComponentKindId(componentKind), handle, sourceRange);
+
+		repository.cacheComponent(component);
+		pendingComponents.add(component);
+		pendingCodeModelChanges = true;
+
+		if (componentDomain != null)
+		{
+			componentDomain.setId(id);
+
+			if (!addBatch(COMPONENT_DOMAIN_INSERT, componentDomain.getValuesAsList()))
+				return null;
+		}
+
+		flushIfFull();
+
+		return component;
+	}
+
+	public void renameComponent(Component component, String newName)
+	{
+		List<Object> params = new ArrayList<Object>();
+		params.add(newName);
+		params.add(component.getId());
+
+		if (addBatch(UPDATE_COMPONENT_NAME, params))
+		{
+			component.setName(newName);
+			flushIfFull();
+		}
+	}
+
+	public void updateSourceRange(Component component, SourceRange sourceRange)
+	{
+		List<Object> params = new ArrayList<Object>();
+		params.add(sourceRange.getBeginLine());
+		params.add(sourceRange.getBeginColumn());
+		params.add(sourceRange.getEndLine());
+		params.add(sourceRange.getEndColumn());
+		params.add(sourceRange.getNumSourceLines());
+		params.add(component.getId());
+
+		if (addBatch(UPDATE_COMPONENT_SOURCE_RANGE, params))
+		{
+			component.setSourceRange(sourceRange);
+			pendingCodeModelChanges = true;
+			flushIfFull();
+		}
+	}
+
+	public void connectComponents(Component from, Component to, EdgeKind edgeKind)
+	{
+		assert(edgeKind != null);
+
+		if (!pendingEdges.add(getEdgeKey(from, to)))
+			return; // Already queued
+
+		List<Object> params = new ArrayList<Object>();
+		params.add(from.getId());
+		params.add(to.getId());
+		params.add(repository.getEdgeKindId(edgeKind));
+
+		if (addBatch(COMPONENT_EDGE_SQL, params))
+		{
+			pendingParents.add(from);
+			pendingCodeModelChanges = true;
+			flushIfFull();
+		}
+	}
+
+	/**
+	 * Queues the removal of a component along with its component edges and
+	 * concern assignments.  The component is removed from the repository's
+	 * handle cache immediately.
+	 */
+	public void removeComponent(Component component)
+	{
+		// Must be looked up before the assignments are gone
+		for(EdgeKind edgeKind : EdgeKind.values())
+		{
+			int[] concernIds = repository.getAssignedConcernIds(
+					component.getId(), edgeKind);
+			if (concernIds == null || concernIds.length == 0)
+				continue;
+
+			Map<Component, int[]> removedAssignments =
+				pendingRemovedAssignments.get(edgeKind);
+			if (removedAssignments == null)
+			{
+				removedAssignments = new LinkedHashMap<Component, int[]>();
+				pendingRemovedAssignments.put(edgeKind, removedAssignments);
+			}
+
+			removedAssignments.put(component, concernIds);
+		}
+
+		List<Object> params = new ArrayList<Object>();
+		params.add(component.getId());
+
+		if (!addBatch(REMOVE_ALL_CONCERN_COMPONENT_EDGES_FOR_COMPONENT, params))
+			return;
+
+		params.add(component.getId());
+
+		if (!addBatch(REMOVE_COMPONENT_EDGES, params))
+			return;
+
+		params.remove(1);
+
+		if (!addBatch(REMOVE_COMPONENT, params))
+			return;
+
+		repository.uncacheComponent(component);
+		pendingRemovals = true;
+		pendingCodeModelChanges = true;
+
+		flushIfFull();
+	}
+
+	/**
+	 * Checks if an edge exists between two components, including edges
+	 * that have been queued but not yet flushed.
+	 */
+	public boolean isConnected(Component from, Component to)
+	{
+		return pendingEdges.contains(getEdgeKey(from, to)) ||
+			repository.isConnected(from, to);
+	}
+
+	// -----------------------------------------------------
+	// ASSIGNMENT METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Queues an assignment.  The repository's assignment cache is updated
+	 * immediately.
+	 *
+	 * @return false if the component is already assigned
+	 */
+	public boolean assign(Concern concern, Component component, EdgeKind edgeKind)
+	{
+		if (repository.isAssigned(concern, component, edgeKind))
+			return false;
+
+		List<Object> params = new ArrayList<Object>();
+		params.add(concern.getId());
+		params.add(component.getId());
+		params.add(repository.getEdgeKindId(edgeKind));
+
+		if (!addBatch(CONCERN_COMPONENT_EDGE_SQL, params))
+			return false;
+
+		repository.addToAssignmentCache(concern, component, edgeKind);
+		pendingConcerns.add(concern.getId());
+		repository.updateAssignedConcerns(concern, component, edgeKind, true);
+
+		flushIfFull();
+		return true;
+	}
+
+	/**
+	 * Queues the removal of an assignment.  The repository's assignment
+	 * cache is updated immediately.
+	 */
+	public void unassign(Concern concern, Component component, EdgeKind edgeKind)
+	{
+		List<Object> params = new ArrayList<Object>();
+		params.add(concern.getId());
+		params.add(component.getHandle());
+		params.add(repository.getEdgeKindId(edgeKind));
+
+		if (!addBatch(REMOVE_CONCERN_COMPONENT_EDGE, params))
+			return;
+
+		repository.removeFromAssignmentCache(concern, component, edgeKind);
+		pendingConcerns.add(concern.getId());
+		repository.updateAssignedConcerns(concern, component, edgeKind, false);
+
+		flushIfFull();
+	}
+
+	// -----------------------------------------------------
+	// FLUSH METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Executes all queued rows and commits them in a single transaction.
+	 *
+	 * @return false if the batch failed and was rolled back
+	 */
+	public boolean flush()
+	{
+		if (numPendingRows == 0)
+		{
+			endTransaction();
+			return true;
+		}
+
+		int numRows = numPendingRows;
+
+		try
+		{
+			executeAll();
+			repository.getConnection().commit();
+			endTransaction();
+
+			for(Component component : pendingComponents)
+			{
+				repository.componentFlushed(component);
+			}
+
+			for(Component parent : pendingParents)
+			{
+				repository.invalidateChildrenCache(parent);
+			}
+
+			if (pendingRemovals)
+				invalidateCachesForRemovals();
+
+			if (pendingCodeModelChanges)
+				repository.invalidateCodeModelSnapshot();
+
+			EnumMap<EdgeKind, Map<Component, int[]>> removedAssignments =
+				pendingRemovedAssignments.isEmpty() ? null : 
+					new EnumMap<EdgeKind, Map<Component, int[]>>(pendingRemovedAssignments);
+
+			clearPending();
+
+			if (removedAssignments != null)
+				repository.assignmentsRemoved(removedAssignments);
+
+			return true;
+		}
+		catch (SQLException e)
+		{
+			rollback();
+			ProblemManager.reportException(e,
+					"Failed to write batch of " + numRows + " rows.", true);
+			return false;
+		}
+	}
+
+	/**
+	 * Flushes the remaining rows and releases the prepared statements.
+	 */
+	public boolean close()
+	{
+		if (closed)
+			return true;
+
+		boolean result = flush();
+
+		for(int i = 0; i < statements.length; ++i)
+		{
+			try
+			{
+				if (statements[i] != null)
+					statements[i].close();
+			}
+			catch (SQLException e)
+			{
+				ProblemManager.reportException(e, true);
+			}
+
+			statements[i] = null;
+		}
+
+		closed = true;
+		return result;
+	}
+
+	private void flushIfFull()
+	{
+		if (numPendingRows >= batchSize)
+			flush();
+	}
+
+	private boolean addBatch(String sql, List<Object> params)
+	{
+		assert !closed;
+
+		int index = getStatementIndex(sql);
+
+		if (!inTransaction)
+		{
+			repository.beginTransaction();
+			inTransaction = true;
+		}
+
+		try
+		{
+			// Preserve the caller's ordering when it conflicts with the
+			// flush order (e.g., unassign followed by assign)
+			executeConflicting(index);
+
+			PreparedStatement statement = statements[index];
+			if (statement == null)
+			{
+				statement = repository.getConnection().prepareStatement(sql);
+				statements[index] = statement;
+			}
+
+			int i = 1;
+			for (Object param : params)
+			{
+				if (param instanceof String)
+				{
+					statement.setString(i, (String) param);
+				}
+				else if (param instanceof Integer)
+				{
+					statement.setInt(i, (Integer) param);
+				}
+				else
+				{
+					assert false;
+					statement.setObject(i, param);
+				}
+
+				++i;
+			}
+
+			statement.addBatch();
+
+			++pendingRows[index];
+			++numPendingRows;
+			return true;
+		}
+		catch (SQLException e)
+		{
+			rollback();
+			ProblemManager.reportException(e,
+					"Failed to queue SQL statement: '" + sql +
+					"' with parameters: '" + params.toString() + "'", true);
+			return false;
+		}
+	}
+
+	/**
+	 * Executes (without committing) all queued rows if any statement that
+	 * comes after <code>index</code> in the flush order has queued rows.
+	 */
+	private void executeConflicting(int index) throws SQLException
+	{
+		for(int i = index + 1; i < STATEMENT_ORDER.length; ++i)
+		{
+			if (pendingRows[i] != 0)
+			{
+				executeAll();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Executes (without committing) all queued rows in flush order.
+	 */
+	private void executeAll() throws SQLException
+	{
+		for(int i = 0; i < STATEMENT_ORDER.length; ++i)
+		{
+			if (pendingRows[i] == 0)
+				continue;
+
+			statements[i].executeBatch();
+			pendingRows[i] = 0;
+		}
+	}
+
+	private void rollback()
+	{
+		try
+		{
+			repository.getConnection().rollback();
+		}
+		catch (SQLException e)
+		{
+			ProblemManager.reportException(e);
+		}
+
+		// Queued but unexecuted rows must be discarded too
+		for(PreparedStatement statement : statements)
+		{
+			try
+			{
+				if (statement != null)
+					statement.clearBatch();
+			}
+			catch (SQLException e)
+			{
+				ProblemManager.reportException(e, true);
+			}
+		}
+
+		// Undo the cache updates we made for the rows we lost
+
+		for(Component component : pendingComponents)
+		{
+			repository.uncacheComponent(component);
+		}
+
+		for(Component parent : pendingParents)
+		{
+			repository.invalidateChildrenCache(parent);
+		}
+
+		for(Integer concernId : pendingConcerns)
+		{
+			repository.invalidateAssignmentCache(concernId);
+		}
+
+		if (pendingRemovals)
+			invalidateCachesForRemovals();
+
+		if (pendingCodeModelChanges)
+			repository.invalidateCodeModelSnapshot();
+
+		clearPending();
+		endTransaction();
+	}
+
+	private void endTransaction()
+	{
+		if (!inTransaction)
+			return;
+
+		inTransaction = false;
+		repository.endTransaction();
+	}
+
+	private void clearPending()
+	{
+		for(int i = 0; i < pendingRows.length; ++i)
+			pendingRows[i] = 0;
+
+		numPendingRows = 0;
+		pendingComponents.clear();
+		pendingParents.clear();
+		pendingConcerns.clear();
+		pendingEdges.clear();
+		pendingRemovals = false;
+		pendingRemovedAssignments.clear();
+		pendingCodeModelChanges = false;
+	}
+
+	private void invalidateCachesForRemovals()
+	{
+		// We don't know which concerns were assigned to the removed
+		// components or who their parents were
+		for(EdgeKind edgeKind : EdgeKind.values())
+		{
+			repository.invalidateAssignmentCache(edgeKind);
+		}
+
+		repository.invalidateChildrenCache();
+	}
+
+	private static int getStatementIndex(String sql)
+	{
+		for(int i = 0; i < STATEMENT_ORDER.length; ++i)
+		{
+			if (STATEMENT_ORDER[i].equals(sql))
+				return i;
+		}
+
+		assert false;
+		return -1;
+	}
+
+	private static String getEdgeKey(Component from, Component to)
+	{
+		return from.getId() + ":" + to.getId();
+	}
+}
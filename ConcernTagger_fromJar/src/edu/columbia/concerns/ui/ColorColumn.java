@@ -1,9 +1,16 @@
 package edu.columbia.concerns.ui;
 
 import java.util.Arrays;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jface.resource.StringConverter;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
@@ -28,7 +35,6 @@ import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Font;
-import org.eclipse.swt.graphics.FontMetrics;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.Point;
@@ -39,11 +45,24 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 
+import edu.columbia.concerns.model.ConcernEvent;
+import edu.columbia.concerns.model.ConcernModel;
+import edu.columbia.concerns.model.ConcernModelFactory;
+import edu.columbia.concerns.model.IConcernListener;
 import edu.columbia.concerns.repository.Component;
 import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.repository.EdgeKind;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
 
 /**
- * Class to implement vertical columns. Currently unused
+ * Ruler column showing the concerns assigned to the code on each line as
+ * colored stripes.
+ * <P>
+ * The concerns of the lines are looked up in a ConcernLineMap built in the
+ * background when the editor opens, and patched as elements of the
+ * compilation unit are assigned and unassigned.  The column is painted
+ * into a buffer and only the parts of the buffer that changed (lines whose
+ * assignments changed, or lines scrolled into view) are repainted.
  * 
  * @author vgarg
  * 
@@ -90,6 +109,10 @@ public class ColorColumn implements IVerticalRulerColumn
 				return;
 			}
 
+			// Lines may have moved
+			if (event.getDocumentEvent() != null)
+				invalidateAll();
+
 			boolean viewerCompletelyShown = isViewerCompletelyShown();
 			if (viewerCompletelyShown || fSensitiveToTextChanges
 					|| event.getDocumentEvent() == null)
@@ -401,6 +424,33 @@ public class ColorColumn implements IVerticalRulerColumn
 	/* @since 3.2 */
 	private MouseHandler fMouseHandler;
 
+	/** Colors of the concern stripes when the concerns don't have one */
+	private static final RGB[] PALETTE = new RGB[] {
+			new RGB(228, 26, 28), new RGB(55, 126, 184), new RGB(77, 175, 74),
+			new RGB(152, 78, 163), new RGB(255, 127, 0), new RGB(166, 86, 40),
+			new RGB(247, 129, 191), new RGB(153, 153, 153) };
+
+	/** The compilation unit shown in the editor, or null */
+	private ICompilationUnit fCompilationUnit;
+	/** The concerns of each line.  Replaced when assignments change. */
+	private volatile ConcernLineMap fLineMap = ConcernLineMap.EMPTY;
+	/** The part of the buffer to repaint, or null if it is up to date */
+	private Rectangle fDirtyRegion;
+	/** The color of each concern.  Only used on the UI thread. */
+	private Map<Concern, Color> fConcernColors = new HashMap<Concern, Color>();
+
+	private ConcernModel fConcernModel;
+	private EdgeKind fConcernComponentRelation;
+	private IConcernListener fConcernListener = new ConcernListener();
+	private BuildLineMapJob fBuildJob = new BuildLineMapJob();
+
+	/** Guards fLineMap, fIsBuilding and fIsRebuildNeeded */
+	private Object fLineMapLock = new Object();
+	/** True while the line map is being built */
+	private boolean fIsBuilding = false;
+	/** True if assignments changed while the line map was being built */
+	private boolean fIsRebuildNeeded = false;
+
 	/**
 	 * Constructs a new vertical ruler column.
 	 */
@@ -409,6 +459,15 @@ public class ColorColumn implements IVerticalRulerColumn
 	// this.hsqldb = hsqldb;
 	}
 
+	/**
+	 * Sets the compilation unit whose concerns are shown.  Must be called
+	 * before createControl().
+	 */
+	public void setCompilationUnit(ICompilationUnit compilationUnit)
+	{
+		fCompilationUnit = compilationUnit;
+	}
+
 	/**
 	 * Sets the foreground color of this column.
 	 * 
@@ -602,7 +661,7 @@ public class ColorColumn implements IVerticalRulerColumn
 			{
 				if (fCachedTextViewer != null)
 				{
-					// doubleBufferPaint(event.gc);
+					doubleBufferPaint(event.gc);
 				}
 			}
 		});
@@ -638,6 +697,20 @@ public class ColorColumn implements IVerticalRulerColumn
 		if (fFont != null)
 			fCanvas.setFont(fFont);
 
+		if (fCompilationUnit != null)
+		{
+			// We want to be notified when the active concern model changes
+			ConcernModelFactory.singleton().addListener(fConcernListener);
+
+			fConcernModel = ConcernModelFactory.singleton().getModel();
+			fConcernModel.addListener(fConcernListener);
+
+			fConcernComponentRelation = 
+				ConcernModelFactory.singleton().getConcernComponentRelation();
+
+			fBuildJob.schedule();
+		}
+
 		// updateNumberOfDigits();
 		// computeIndentations();
 		return fCanvas;
@@ -660,46 +733,94 @@ public class ColorColumn implements IVerticalRulerColumn
 			fBuffer.dispose();
 			fBuffer = null;
 		}
+
+		if (fCompilationUnit != null)
+		{
+			ConcernModelFactory.singleton().removeListener(fConcernListener);
+			fConcernModel.removeListener(fConcernListener);
+			fBuildJob.cancel();
+		}
+
+		disposeConcernColors();
 	}
 
 	/**
-	 * Double buffer drawing.
+	 * Double buffer drawing.  Only the dirty parts of the buffer are
+	 * repainted.  When scrolling, the part of the buffer that is still
+	 * shown is moved and only the lines scrolled into view are painted.
 	 * 
 	 * @param dest
 	 *            the GC to draw into
 	 */
-	/*
-	 * private void doubleBufferPaint(GC dest) {
-	 * 
-	 * IJavaElement javaElement = EditorUtility.getActiveEditorJavaInput(); //
-	 * System.out.println(javaElement);
-	 * 
-	 * Map<Concern, List<Component>> concernMap = ConcernMapper.getDefault().
-	 * getConcernModel().getAssignmentsForClass(javaElement); if (concernMap ==
-	 * null) return;
-	 * 
-	 * Point size = fCanvas.getSize();
-	 * 
-	 * if (size.x <= 0 || size.y <= 0) return;
-	 * 
-	 * if (fBuffer != null) { Rectangle r = fBuffer.getBounds(); if (r.width !=
-	 * size.x || r.height != size.y) { fBuffer.dispose(); fBuffer = null; } } if
-	 * (fBuffer == null) fBuffer = new Image(fCanvas.getDisplay(), size.x,
-	 * size.y);
-	 * 
-	 * GC gc = new GC(fBuffer); // gc.setFont(fCanvas.getFont()); // if
-	 * (fForeground != null) gc.setForeground(fForeground);
-	 * 
-	 * try { //gc.setBackground(getBackground(fCanvas.getDisplay()));
-	 * //gc.fillRectangle(0, 0, size.x, size.y);
-	 * 
-	 * ILineRange visibleLines = JFaceTextUtil
-	 * .getVisibleModelLines(fCachedTextViewer); if (visibleLines == null)
-	 * return; fScrollPos = fCachedTextWidget.getTopPixel(); doPaint(concernMap,
-	 * gc, visibleLines); } finally { gc.dispose(); }
-	 * 
-	 * dest.drawImage(fBuffer, 0, 0); }
-	 */
+	private void doubleBufferPaint(GC dest)
+	{
+		Point size = fCanvas.getSize();
+
+		if (size.x <= 0 || size.y <= 0)
+			return;
+
+		if (fBuffer != null)
+		{
+			Rectangle r = fBuffer.getBounds();
+			if (r.width != size.x || r.height != size.y)
+			{
+				fBuffer.dispose();
+				fBuffer = null;
+			}
+		}
+
+		if (fBuffer == null)
+		{
+			fBuffer = new Image(fCanvas.getDisplay(), size.x, size.y);
+			fDirtyRegion = new Rectangle(0, 0, size.x, size.y);
+		}
+
+		GC gc = new GC(fBuffer);
+
+		try
+		{
+			int scrollPos = fCachedTextWidget.getTopPixel();
+			int delta = scrollPos - fScrollPos;
+
+			if (delta != 0 && Math.abs(delta) < size.y)
+			{
+				// Reuse what is still shown
+				gc.copyArea(0, Math.max(0, delta), size.x, size.y - Math.abs(delta),
+						0, Math.max(0, -delta));
+
+				if (fDirtyRegion != null)
+					fDirtyRegion.y -= delta;
+
+				if (delta > 0)
+					addDirtyRegion(new Rectangle(0, size.y - delta, size.x, delta));
+				else
+					addDirtyRegion(new Rectangle(0, 0, size.x, -delta));
+			}
+			else if (delta != 0)
+			{
+				fDirtyRegion = new Rectangle(0, 0, size.x, size.y);
+			}
+
+			fScrollPos = scrollPos;
+
+			if (fDirtyRegion != null)
+			{
+				Rectangle dirty = fDirtyRegion.intersection(
+						new Rectangle(0, 0, size.x, size.y));
+				fDirtyRegion = null;
+
+				if (!dirty.isEmpty())
+					doPaint(gc, dirty);
+			}
+		}
+		finally
+		{
+			gc.dispose();
+		}
+
+		dest.drawImage(fBuffer, 0, 0);
+	}
+
 	/**
 	 * Returns the view port height in lines.
 	 * 
@@ -727,43 +848,49 @@ public class ColorColumn implements IVerticalRulerColumn
 	}
 
 	/**
-	 * Draws the ruler column.
-	 * 
-	 * @param concernMap
+	 * Draws the concerns of the lines in the region.
 	 * 
 	 * @param gc
 	 *            the GC to draw into
-	 * @param visibleLines
-	 *            the visible model lines
-	 * @since 3.2
+	 * @param dirty
+	 *            the region to draw, relative to the top of the column
 	 */
-	void doPaint(Map<Concern, List<Component>> concernMap, GC gc,
-			ILineRange visibleLines)
+	void doPaint(GC gc, Rectangle dirty)
 	{
 		Display display = fCachedTextWidget.getDisplay();
 
-		// draw diff info
-		int y = -JFaceTextUtil.getHiddenTopLinePixels(fCachedTextWidget);
+		gc.setClipping(dirty);
+		gc.setBackground(getBackground(display));
+		gc.fillRectangle(dirty);
 
-		int lastLine = end(visibleLines);
+		ConcernLineMap lineMap = fLineMap;
+		if (lineMap.isEmpty())
+			return;
 
-		// for (Map.Entry<Concern, List<Component>> entry :
-		// concernMap.entrySet()) {
-		// Concern concernInDB = entry.getKey();
-		// List<Component> comps = entry.getValue();
-		// }
+		// Document lines shown in the region
+		int beginLine = JFaceTextUtil.widgetLine2ModelLine(fCachedTextViewer,
+				JFaceTextUtil.getLineIndex(fCachedTextWidget, dirty.y));
+		int endLine = JFaceTextUtil.widgetLine2ModelLine(fCachedTextViewer,
+				JFaceTextUtil.getLineIndex(fCachedTextWidget, dirty.y + dirty.height - 1));
 
-		for (int line = visibleLines.getStartLine(); line < lastLine; line++)
+		if (beginLine == -1 || endLine == -1)
 		{
-			int widgetLine = JFaceTextUtil.modelLineToWidgetLine(
-					fCachedTextViewer, line);
-			if (widgetLine == -1)
-				continue;
-
-			int lineHeight = fCachedTextWidget.getLineHeight(fCachedTextWidget
-					.getOffsetAtLine(widgetLine));
-			paintLine(line, y, lineHeight, gc, display);
-			y += lineHeight;
+			ILineRange visibleLines = JFaceTextUtil.getVisibleModelLines(fCachedTextViewer);
+			if (visibleLines == null)
+				return;
+
+			beginLine = visibleLines.getStartLine();
+			endLine = end(visibleLines) - 1;
+		}
+
+		for (int i = lineMap.indexOf(beginLine); i < lineMap.getNumSegments(); i++)
+		{
+			ConcernLineMap.Segment segment = lineMap.getSegment(i);
+			if (segment.beginLine > endLine)
+				break;
+
+			paintSegment(segment, Math.max(segment.beginLine, beginLine),
+					Math.min(segment.endLine, endLine), gc, display);
 		}
 	}
 
@@ -789,68 +916,199 @@ public class ColorColumn implements IVerticalRulerColumn
 	}
 
 	/**
-	 * Returns the difference between the baseline of the widget and the
-	 * baseline as specified by the font for <code>gc</code>. When drawing
-	 * line numbers, the returned bias should be added to obtain text lined up
-	 * on the correct base line of the text widget.
+	 * Paints a stripe for each of the segment's concerns next to the
+	 * lines.
 	 * 
+	 * @param segment
+	 *            the lines and their concerns
+	 * @param beginLine
+	 *            the first line of the segment to paint
+	 * @param endLine
+	 *            the last line of the segment to paint
 	 * @param gc
-	 *            the <code>GC</code> to get the font metrics from
-	 * @param widgetLine
-	 *            the widget line
-	 * @return the baseline bias to use when drawing text that is lined up with
-	 *         <code>fCachedTextWidget</code>
-	 * @since 3.2
+	 *            the drawing context
+	 * @param display
+	 *            the display the drawing occurs on
 	 */
-	private int getBaselineBias(GC gc, int widgetLine)
+	private void paintSegment(ConcernLineMap.Segment segment, int beginLine,
+			int endLine, GC gc, Display display)
 	{
-		/*
-		 * https://bugs.eclipse.org/bugs/show_bug.cgi?id=62951 widget line
-		 * height may be more than the font height used for the line numbers,
-		 * since font styles (bold, italics...) can have larger font metrics
-		 * than the simple font used for the numbers.
-		 */
-		int offset = fCachedTextWidget.getOffsetAtLine(widgetLine);
-		int widgetBaseline = fCachedTextWidget.getBaseline(offset);
+		// Skip lines hidden by folding
+		int beginWidgetLine = -1;
+		for (int line = beginLine; line <= endLine && beginWidgetLine == -1; line++)
+			beginWidgetLine = JFaceTextUtil.modelLineToWidgetLine(fCachedTextViewer, line);
+
+		int endWidgetLine = -1;
+		for (int line = endLine; line >= beginLine && endWidgetLine == -1; line--)
+			endWidgetLine = JFaceTextUtil.modelLineToWidgetLine(fCachedTextViewer, line);
+
+		if (beginWidgetLine == -1 || endWidgetLine == -1)
+			return;
+
+		int y = fCachedTextWidget.getLinePixel(beginWidgetLine);
+		int height = fCachedTextWidget.getLinePixel(endWidgetLine) - y +
+			fCachedTextWidget.getLineHeight(fCachedTextWidget.getOffsetAtLine(endWidgetLine));
+
+		int width = getWidth();
+		int stripeWidth = Math.max(1, width / segment.concerns.length);
+
+		for (int i = 0; i < segment.concerns.length; i++)
+		{
+			int x = i * stripeWidth;
+			if (x >= width)
+				break;
+
+			gc.setBackground(getColor(segment.concerns[i], display));
+			gc.fillRectangle(x, y,
+					i == segment.concerns.length - 1 ? width - x : stripeWidth,
+					height);
+		}
+	}
+
+	/**
+	 * @return the concern's color, if it has one, otherwise a color from
+	 *         the palette.  Created once per concern.
+	 */
+	private Color getColor(Concern concern, Display display)
+	{
+		Color color = fConcernColors.get(concern);
+		if (color != null)
+			return color;
+
+		RGB rgb = null;
+		if (concern.getColor() != null)
+			rgb = StringConverter.asRGB(concern.getColor(), null);
+
+		if (rgb == null)
+			rgb = PALETTE[concern.getId() % PALETTE.length];
+
+		color = new Color(display, rgb);
+		fConcernColors.put(concern, color);
+		return color;
+	}
+
+	private void disposeConcernColors()
+	{
+		for (Color color : fConcernColors.values())
+		{
+			color.dispose();
+		}
+
+		fConcernColors.clear();
+	}
+
+	/**
+	 * Discards the cached colors and repaints the column, since a concern's
+	 * color may have changed or the concern may have been removed.  Called
+	 * on any thread.
+	 */
+	private void concernsChanged()
+	{
+		Canvas canvas = fCanvas;
+		if (canvas == null || canvas.isDisposed())
+			return;
+
+		canvas.getDisplay().asyncExec(new Runnable()
+			{
+				public void run()
+				{
+					if (fCanvas == null || fCanvas.isDisposed())
+						return;
+
+					disposeConcernColors();
+					invalidateAll();
+					fCanvas.redraw();
+				}
+			});
+	}
+
+	/**
+	 * Marks the lines for repainting and redraws them.  Called on the UI
+	 * thread.
+	 */
+	private void invalidateLines(int beginLine, int endLine)
+	{
+		if (fCanvas == null || fCanvas.isDisposed() || fCachedTextWidget == null)
+			return;
+
+		int beginWidgetLine = JFaceTextUtil.modelLineToWidgetLine(fCachedTextViewer, beginLine);
+		int endWidgetLine = JFaceTextUtil.modelLineToWidgetLine(fCachedTextViewer, endLine);
+
+		if (beginWidgetLine == -1 || endWidgetLine == -1)
+		{
+			// Partly folded
+			invalidateAll();
+			fCanvas.redraw();
+			return;
+		}
+
+		int y = fCachedTextWidget.getLinePixel(beginWidgetLine);
+		int height = fCachedTextWidget.getLinePixel(endWidgetLine) - y +
+			fCachedTextWidget.getLineHeight(fCachedTextWidget.getOffsetAtLine(endWidgetLine));
+
+		Point size = fCanvas.getSize();
+		Rectangle dirty = new Rectangle(0, y, size.x, height).intersection(
+				new Rectangle(0, 0, size.x, size.y));
 
-		FontMetrics fm = gc.getFontMetrics();
-		int fontBaseline = fm.getAscent() + fm.getLeading();
-		int baselineBias = widgetBaseline - fontBaseline;
-		return Math.max(0, baselineBias);
+		// Lines not shown are painted when scrolled into view
+		if (dirty.isEmpty())
+			return;
+
+		addDirtyRegion(dirty);
+		fCanvas.redraw(dirty.x, dirty.y, dirty.width, dirty.height, false);
 	}
 
 	/**
-	 * Paints the line. After this method is called the line numbers are painted
-	 * on top of the result of this method.
+	 * Marks the whole column for repainting.
+	 */
+	private void invalidateAll()
+	{
+		if (fBuffer != null)
+		{
+			Rectangle r = fBuffer.getBounds();
+			fDirtyRegion = new Rectangle(0, 0, r.width, r.height);
+		}
+	}
+
+	private void addDirtyRegion(Rectangle dirty)
+	{
+		if (fDirtyRegion == null)
+			fDirtyRegion = dirty;
+		else
+			fDirtyRegion = fDirtyRegion.union(dirty);
+	}
+
+	/**
+	 * Replaces the line map and repaints the lines whose concerns changed.
+	 * Called on any thread.
 	 * 
-	 * @param line
-	 *            the line of the document which the ruler is painted for
-	 * @param y
-	 *            the y-coordinate of the box being painted for
-	 *            <code>line</code>, relative to <code>gc</code>
-	 * @param lineheight
-	 *            the height of one line (and therefore of the box being
-	 *            painted)
-	 * @param gc
-	 *            the drawing context the client may choose to draw on.
-	 * @param display
-	 *            the display the drawing occurs on
-	 * @since 3.0
+	 * @param beginLine
+	 *            the first line that changed, or -1 if all may have
 	 */
-	protected void paintLine(int line, int y, int lineheight, GC gc,
-			Display display)
+	private void lineMapChanged(final int beginLine, final int endLine)
 	{
-		int widgetLine = JFaceTextUtil.modelLineToWidgetLine(fCachedTextViewer,
-				line);
-
-		Color color = new Color(display, new RGB(1, 1, 1));
-		// String s= createDisplayString(line);
-		// int indentation= fIndentation[s.length()];
-		int baselineBias = getBaselineBias(gc, widgetLine);
-		gc.setBackground(display.getSystemColor(SWT.COLOR_RED));
-		gc.fillRectangle(0, y + baselineBias, 2, lineheight);
-		color.dispose();
-		// gc.drawString(s, indentation, y + baselineBias, true);
+		Canvas canvas = fCanvas;
+		if (canvas == null || canvas.isDisposed())
+			return;
+
+		canvas.getDisplay().asyncExec(new Runnable()
+			{
+				public void run()
+				{
+					if (fCanvas == null || fCanvas.isDisposed())
+						return;
+
+					if (beginLine == -1)
+					{
+						invalidateAll();
+						fCanvas.redraw();
+					}
+					else
+					{
+						invalidateLines(beginLine, endLine);
+					}
+				}
+			});
 	}
 
 	/**
@@ -892,7 +1150,7 @@ public class ColorColumn implements IVerticalRulerColumn
 				&& !fCanvas.isDisposed())
 		{
 			GC gc = new GC(fCanvas);
-			// doubleBufferPaint(gc);
+			doubleBufferPaint(gc);
 			gc.dispose();
 		}
 	}
@@ -957,6 +1215,196 @@ public class ColorColumn implements IVerticalRulerColumn
 		return -1;
 	}
 
+	//-----------------------------------------------------
+	// HELPER CLASSES
+	//-----------------------------------------------------
+
+	/**
+	 * Builds the line map from the concern model.
+	 */
+	private final class BuildLineMapJob
+		extends Job
+		implements
+			ISimpleProgressMonitor
+	{
+		IProgressMonitor myProgressMonitor;
+
+		BuildLineMapJob()
+		{
+			super("Calculating concern ruler");
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor progressMonitor)
+		{
+			myProgressMonitor = progressMonitor;
+
+			ConcernModel concernModel;
+			EdgeKind concernComponentRelation;
+
+			synchronized (fLineMapLock)
+			{
+				fIsBuilding = true;
+				fIsRebuildNeeded = false;
+				concernModel = fConcernModel;
+				concernComponentRelation = fConcernComponentRelation;
+			}
+
+			ConcernLineMap lineMap = null;
+
+			try
+			{
+				lineMap = ConcernLineMap.create(fCompilationUnit,
+						concernModel, concernComponentRelation, this);
+			}
+			finally
+			{
+				synchronized (fLineMapLock)
+				{
+					fIsBuilding = false;
+
+					if (lineMap != null)
+						fLineMap = lineMap;
+
+					if (fIsRebuildNeeded)
+						schedule();
+				}
+			}
+
+			if (lineMap == null)
+				return Status.CANCEL_STATUS;
+
+			lineMapChanged(-1, -1);
+			return Status.OK_STATUS;
+		}
+
+		@Override
+		public boolean isCanceled()
+		{
+			if (myProgressMonitor == null)
+				return false;
+			else
+				return myProgressMonitor.isCanceled();
+		}
+	}
+
+	/**
+	 * Patches the line map when elements of the compilation unit are
+	 * assigned or unassigned, and rebuilds it when the assignments change
+	 * wholesale.  Called on the thread delivering concern model events.
+	 */
+	private final class ConcernListener implements IConcernListener
+	{
+		@Override
+		public void modelChanged(ConcernEvent events)
+		{
+			if (events.isChangedActiveConcernModel())
+			{
+				fConcernModel.removeListener(this);
+				fConcernModel = ConcernModelFactory.singleton().getModel();
+				fConcernModel.addListener(this);
+			}
+
+			if (	events.isChangedActiveConcernModel() ||
+					events.isChangedConcernComponentRelation() ||
+					events.isChangedAllConcerns())
+			{
+				rebuild();
+				return;
+			}
+
+			for (ConcernEvent event : events)
+			{
+				if (event.isUpdateConcernLabel() || event.isChangedConcernChildren())
+				{
+					concernsChanged();
+					break;
+				}
+			}
+
+			String cuHandle = fCompilationUnit.getHandleIdentifier();
+
+			synchronized (fLineMapLock)
+			{
+				ConcernLineMap lineMap = fLineMap;
+				int beginLine = Integer.MAX_VALUE;
+				int endLine = -1;
+
+				for (ConcernEvent event : events)
+				{
+					if (event.isChangedAssignments() || event.isChangedConcernChildren())
+					{
+						// Too many to patch
+						rebuild();
+						return;
+					}
+
+					if (!event.isAssign() && !event.isUnassign())
+						continue;
+
+					if (event.getRelation() != fConcernComponentRelation)
+						continue;
+
+					IJavaElement element = event.getJavaElement();
+					if (element == null ||
+						!ConcernLineMap.isInCompilationUnit(
+								element.getHandleIdentifier(), cuHandle))
+					{
+						continue;
+					}
+
+					if (fIsBuilding)
+					{
+						// The map being built may not have the change
+						fIsRebuildNeeded = true;
+						return;
+					}
+
+					Component component = fConcernModel.getComponent(
+							element.getHandleIdentifier());
+					if (component == null || component.getSourceRange() == null)
+						continue;
+
+					if (event.isAssign())
+					{
+						lineMap = lineMap.assign(component.getHandle(),
+								component.getSourceRange(), event.getConcern());
+					}
+					else
+					{
+						lineMap = lineMap.unassign(component.getHandle(),
+								event.getConcern());
+					}
+
+					beginLine = Math.min(beginLine,
+							component.getSourceRange().getBeginLine() - 1);
+					endLine = Math.max(endLine,
+							component.getSourceRange().getEndLine() - 1);
+				}
+
+				if (lineMap == fLineMap)
+					return;
+
+				fLineMap = lineMap;
+				lineMapChanged(Math.max(0, beginLine), endLine);
+			}
+		}
+
+		private void rebuild()
+		{
+			synchronized (fLineMapLock)
+			{
+				fConcernComponentRelation = 
+					ConcernModelFactory.singleton().getConcernComponentRelation();
+
+				if (fIsBuilding)
+					fIsRebuildNeeded = true;
+				else
+					fBuildJob.schedule();
+			}
+		}
+	}
 }
 /**
  * Internal listener class.
@@ -0,0 +1,336 @@
+package edu.columbia.concerns.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jdt.core.ICompilationUnit;
+
+import edu.columbia.concerns.model.ConcernModel;
+import edu.columbia.concerns.repository.Component;
+import edu.columbia.concerns.repository.Concern;
+import edu.columbia.concerns.repository.EdgeKind;
+import edu.columbia.concerns.repository.SourceRange;
+import edu.columbia.concerns.util.ISimpleProgressMonitor;
+
+/**
+ * Maps the lines of a compilation unit to the concerns assigned to the
+ * components (types, methods, fields) spanning them, so the concern ruler
+ * can find the concerns of the lines shown without querying the concern
+ * model.
+ * <P>
+ * Built from the source ranges of the assigned components.  Overlapping
+ * ranges (e.g., an assigned method inside an assigned class) are flattened
+ * into disjoint segments when the map is created, so finding the segments
+ * of the lines shown is a binary search.
+ * <P>
+ * Immutable, so it can be built in the background and read on the UI
+ * thread.  assign() and unassign() return a new map.
+ */
+class ConcernLineMap
+{
+	static final ConcernLineMap EMPTY =
+		new ConcernLineMap(new LinkedHashMap<String, Range>());
+
+	/**
+	 * The lines spanned by an assigned component and the concerns assigned
+	 * to it.  Lines are zero-based document lines, like the ruler's.
+	 */
+	private static final class Range
+	{
+		final int beginLine;
+		final int endLine;
+		final List<Concern> concerns;
+
+		Range(int beginLine, int endLine, List<Concern> concerns)
+		{
+			this.beginLine = beginLine;
+			this.endLine = endLine;
+			this.concerns = concerns;
+		}
+	}
+
+	/**
+	 * Lines that all have the same concerns.
+	 */
+	static final class Segment
+	{
+		// Inclusive
+		final int beginLine;
+		final int endLine;
+
+		// Outermost component's concerns first
+		final Concern[] concerns;
+
+		Segment(int beginLine, int endLine, Concern[] concerns)
+		{
+			this.beginLine = beginLine;
+			this.endLine = endLine;
+			this.concerns = concerns;
+		}
+	}
+
+	private static final Comparator<Range> OUTERMOST_FIRST = new Comparator<Range>()
+		{
+			public int compare(Range lhs, Range rhs)
+			{
+				if (lhs.beginLine != rhs.beginLine)
+					return lhs.beginLine - rhs.beginLine;
+				else
+					return rhs.endLine - lhs.endLine;
+			}
+		};
+
+	// Component handle -> lines and concerns
+	private final Map<String, Range> ranges;
+
+	// Sorted and disjoint
+	private final Segment[] segments;
+
+	private ConcernLineMap(Map<String, Range> ranges)
+	{
+		this.ranges = ranges;
+		this.segments = flatten(ranges.values());
+	}
+
+	/**
+	 * Creates the map from the assignments of all the concerns in the model.
+	 *
+	 * @return the map, or null if cancelled
+	 */
+	static ConcernLineMap create(ICompilationUnit compilationUnit,
+			ConcernModel concernModel, EdgeKind concernComponentRelation,
+			ISimpleProgressMonitor progressMonitor)
+	{
+		if (concernModel.getRoot() == null)
+			return EMPTY;
+
+		String cuHandle = compilationUnit.getHandleIdentifier();
+
+		Map<String, Range> ranges = new LinkedHashMap<String, Range>();
+		List<Concern> concerns = new ArrayList<Concern>();
+		concerns.add(concernModel.getRoot());
+
+		for(int i = 0; i < concerns.size(); ++i)
+		{
+			if (progressMonitor.isCanceled())
+				return null;
+
+			Concern concern = concerns.get(i);
+			concerns.addAll(concern.getChildren());
+
+			for(Component component : concern.getAssignments(concernComponentRelation))
+			{
+				if (isInCompilationUnit(component.getHandle(), cuHandle))
+					add(ranges, component.getHandle(), component.getSourceRange(), concern);
+			}
+		}
+
+		return new ConcernLineMap(ranges);
+	}
+
+	/**
+	 * @return true if the Java element handle is the handle of the
+	 *         compilation unit or one of its members
+	 */
+	static boolean isInCompilationUnit(String handle, String cuHandle)
+	{
+		if (!handle.startsWith(cuHandle))
+			return false;
+		else if (handle.length() == cuHandle.length())
+			return true;
+
+		// Don't confuse A.java with A.javax.java
+		char c = handle.charAt(cuHandle.length());
+		return !Character.isJavaIdentifierPart(c) && c != '.';
+	}
+
+	/**
+	 * @return a map with the concern added to the component's lines
+	 */
+	ConcernLineMap assign(String handle, SourceRange sourceRange, Concern concern)
+	{
+		Range range = ranges.get(handle);
+		if (range != null && range.concerns.contains(concern))
+			return this;
+
+		Map<String, Range> newRanges = new LinkedHashMap<String, Range>(ranges);
+		if (!add(newRanges, handle, sourceRange, concern))
+			return this;
+
+		return new ConcernLineMap(newRanges);
+	}
+
+	/**
+	 * @return a map with the concern removed from the component's lines
+	 */
+	ConcernLineMap unassign(String handle, Concern concern)
+	{
+		Range range = ranges.get(handle);
+		if (range == null || !range.concerns.contains(concern))
+			return this;
+
+		Map<String, Range> newRanges = new LinkedHashMap<String, Range>(ranges);
+
+		List<Concern> concerns = new ArrayList<Concern>(range.concerns);
+		concerns.remove(concern);
+
+		if (concerns.isEmpty())
+			newRanges.remove(handle);
+		else
+			newRanges.put(handle, new Range(range.beginLine, range.endLine, concerns));
+
+		return new ConcernLineMap(newRanges);
+	}
+
+	boolean isEmpty()
+	{
+		return segments.length == 0;
+	}
+
+	int getNumSegments()
+	{
+		return segments.length;
+	}
+
+	Segment getSegment(int index)
+	{
+		return segments[index];
+	}
+
+	/**
+	 * @return the index of the first segment ending at or after the line,
+	 *         or getNumSegments() if there is none
+	 */
+	int indexOf(int line)
+	{
+		int low = 0;
+		int high = segments.length;
+
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (segments[mid].endLine < line)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private static boolean add(Map<String, Range> ranges, String handle,
+			SourceRange sourceRange, Concern concern)
+	{
+		Range range = ranges.get(handle);
+		if (range == null)
+		{
+			// Components without line info have an empty range
+			if (sourceRange == null || sourceRange.getBeginLine() <= 0)
+				return false;
+
+			range = new Range(sourceRange.getBeginLine() - 1,
+					sourceRange.getEndLine() - 1, new ArrayList<Concern>(1));
+			ranges.put(handle, range);
+		}
+		else if (range.concerns.contains(concern))
+		{
+			return false;
+		}
+		else
+		{
+			// Don't change a range other maps may share
+			range = new Range(range.beginLine, range.endLine,
+					new ArrayList<Concern>(range.concerns));
+			ranges.put(handle, range);
+		}
+
+		range.concerns.add(concern);
+		return true;
+	}
+
+	/**
+	 * Sweeps over the lines where ranges begin and end, recording the
+	 * concerns of the ranges spanning each stretch of lines.
+	 */
+	private static Segment[] flatten(Collection<Range> unsortedRanges)
+	{
+		if (unsortedRanges.isEmpty())
+			return new Segment[0];
+
+		List<Range> sortedRanges = new ArrayList<Range>(unsortedRanges);
+		Collections.sort(sortedRanges, OUTERMOST_FIRST);
+
+		TreeSet<Integer> boundaries = new TreeSet<Integer>();
+		for(Range range : sortedRanges)
+		{
+			boundaries.add(range.beginLine);
+			boundaries.add(range.endLine + 1);
+		}
+
+		List<Segment> segments = new ArrayList<Segment>();
+		List<Range> active = new ArrayList<Range>();
+		int next = 0;
+
+		Integer[] lines = boundaries.toArray(new Integer[boundaries.size()]);
+
+		for(int i = 0; i < lines.length - 1; ++i)
+		{
+			int beginLine = lines[i];
+			int endLine = lines[i + 1] - 1;
+
+			for(int j = active.size() - 1; j >= 0; --j)
+			{
+				if (active.get(j).endLine < beginLine)
+					active.remove(j);
+			}
+
+			while (next < sortedRanges.size() &&
+				   sortedRanges.get(next).beginLine == beginLine)
+			{
+				active.add(sortedRanges.get(next++));
+			}
+
+			if (active.isEmpty())
+				continue;
+
+			Set<Concern> concerns = new LinkedHashSet<Concern>();
+			for(Range range : active)
+			{
+				concerns.addAll(range.concerns);
+			}
+
+			Concern[] concernArray = concerns.toArray(new Concern[concerns.size()]);
+
+			Segment previous = segments.isEmpty() ?
+					null : segments.get(segments.size() - 1);
+
+			if (previous != null &&
+				previous.endLine == beginLine - 1 &&
+				Arrays.equals(previous.concerns, concernArray))
+			{
+				// Same concerns as the lines above
+				segments.set(segments.size() - 1,
+						new Segment(previous.beginLine, endLine, concernArray));
+			}
+			else
+			{
+				segments.add(new Segment(beginLine, endLine, concernArray));
+			}
+		}
+
+		return segments.toArray(new Segment[segments.size()]);
+	}
+}
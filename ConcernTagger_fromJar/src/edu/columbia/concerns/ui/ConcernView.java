@@ -164,6 +164,8 @@ public class ConcernView
 	 */
 	public void modelChanged(ConcernEvent event)
 	{
+		Display lDisplay = aViewer.getControl().getDisplay();
+
 		if (event.isChangedDomainName())
 		{
 			// Renaming our concern domain is a big deal since is stored in
@@ -171,17 +173,24 @@ public class ConcernView
 			// views on opening.  We have to 'restart' the view by creating
 			// a new one and closing the old one.
 			
-			OpenConcernDomainAction.openConcernDomainHelper(getSite(), 
-					concernModel.getConcernDomain().getName());
-			
-			closeMe();
+			// Events are delivered on a background thread but views
+			// can only be opened on the UI thread
+			lDisplay.asyncExec(new Runnable()
+				{
+					public void run()
+					{
+						OpenConcernDomainAction.openConcernDomainHelper(getSite(), 
+								concernModel.getConcernDomain().getName());
+						
+						closeMe();
+					}
+				}
+			);
 			return;
 		}		
 
 		boolean updateActionState = false;
 
-		Display lDisplay = aViewer.getControl().getDisplay();
-		
 		if (aViewer.getControl().isDisposed() || lDisplay.isDisposed())
 		{
 			updateActionState = true;
@@ -190,8 +199,17 @@ public class ConcernView
 		aViewer.refresh(event);
 		
 		// Updates the action buttons to reflect the state of the plugin
-		if (updateActionState)
-			getViewSite().getActionBars().updateActionBars();
+		if (updateActionState && !lDisplay.isDisposed())
+		{
+			lDisplay.asyncExec(new Runnable()
+				{
+					public void run()
+					{
+						getViewSite().getActionBars().updateActionBars();
+					}
+				}
+			);
+		}
 	}
 
 	// Is there a better way?
@@ -14,6 +14,7 @@ import org.eclipse.jface.preference.BooleanFieldEditor;
 import org.eclipse.jface.preference.FieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.jface.preference.RadioGroupFieldEditor;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.widgets.Composite;
@@ -33,6 +34,8 @@ public class ConcernViewPreferencePage extends FieldEditorPreferencePage
 	public static final String P_BOLD_ENABLED = "BoldEnabledPreference";
 	public static final String P_DECORATION_LIMIT = "DecorationLimitPreference";
 	public static final String P_SUFFIX_ENABLED = "SuffixEnabledPreference";
+	public static final String P_COMPONENT_CACHE_LIMIT = "ComponentCacheLimitPreference";
+	public static final String P_PARALLEL_IMPORT_ENABLED = "ParallelImportEnabledPreference";
 
 	/**
 	 * Creates a new preference page for ConcernMapper.
@@ -102,6 +105,24 @@ public class ConcernViewPreferencePage extends FieldEditorPreferencePage
 				ConcernTagger
 						.getResourceString("ui.ConcernMapperPreferencePage.ParentDecoration"),
 				1, lRadioGroupValues, getFieldEditorParent()));
+
+		// Memory
+		addField(new LabelFieldEditor("Memory:", getFieldEditorParent()));
+		IntegerFieldEditor lCacheLimit = new IntegerFieldEditor(
+				ConcernViewPreferencePage.P_COMPONENT_CACHE_LIMIT,
+				ConcernTagger
+						.getResourceString("ui.ConcernMapperPreferencePage.ComponentCacheLimit"),
+				getFieldEditorParent());
+		lCacheLimit.setValidRange(100, Integer.MAX_VALUE);
+		addField(lCacheLimit);
+
+		// Import
+		addField(new LabelFieldEditor("Import:", getFieldEditorParent()));
+		addField(new BooleanFieldEditor(
+				ConcernViewPreferencePage.P_PARALLEL_IMPORT_ENABLED,
+				ConcernTagger
+						.getResourceString("ui.ConcernMapperPreferencePage.ParallelImportEnabled"),
+				getFieldEditorParent()));
 	}
 
 	/**
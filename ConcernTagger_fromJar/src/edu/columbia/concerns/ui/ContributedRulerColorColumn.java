@@ -1,6 +1,8 @@
 package edu.columbia.concerns.ui;
 
 import org.eclipse.core.runtime.Assert;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.source.CompositeRuler;
@@ -8,19 +10,20 @@ import org.eclipse.jface.text.source.IAnnotationHover;
 import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.jface.text.source.ISharedTextColors;
 import org.eclipse.jface.text.source.ISourceViewer;
-import org.eclipse.jface.text.source.IVerticalRulerColumn;
 import org.eclipse.jface.text.source.IVerticalRulerInfo;
 import org.eclipse.jface.text.source.IVerticalRulerInfoExtension;
 import org.eclipse.jface.text.source.IVerticalRulerListener;
 import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
+import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.editors.text.EditorsUI;
 import org.eclipse.ui.internal.texteditor.PropertyEventDispatcher;
 import org.eclipse.ui.texteditor.rulers.AbstractContributedRulerColumn;
 
 /**
- * Class to implement vertical columns. Currently unused
+ * Contributes the concern ruler column (see {@link ColorColumn}) to text
+ * editors.  The column only shows concerns for Java compilation units.
  * 
  * @author vgarg
  * 
@@ -32,7 +35,7 @@ public class ContributedRulerColorColumn extends AbstractContributedRulerColumn
 	/**
 	 * The delegate and implemenation of the ruler.
 	 */
-	private IVerticalRulerColumn fDelegate;
+	private ColorColumn fDelegate;
 
 	/**
 	 * Preference dispatcher that registers a single listener so we don't have
@@ -56,6 +59,8 @@ public class ContributedRulerColorColumn extends AbstractContributedRulerColumn
 		Assert.isLegal(viewer instanceof ISourceViewer);
 		fViewer = (ISourceViewer) viewer;
 
+		fDelegate.setCompilationUnit(getCompilationUnit());
+
 		initialize();
 		Control control = fDelegate.createControl(parentRuler, parentControl);
 		return control;
@@ -185,6 +190,26 @@ public class ContributedRulerColorColumn extends AbstractContributedRulerColumn
 		}
 	}
 
+	/**
+	 * @return the compilation unit being edited, or null if the editor
+	 *         isn't showing a compilation unit
+	 */
+	private ICompilationUnit getCompilationUnit()
+	{
+		if (getEditor() == null)
+			return null;
+
+		IEditorInput input = getEditor().getEditorInput();
+		if (input == null)
+			return null;
+
+		IJavaElement element = (IJavaElement) input.getAdapter(IJavaElement.class);
+		if (element == null)
+			return null;
+
+		return (ICompilationUnit) element.getAncestor(IJavaElement.COMPILATION_UNIT);
+	}
+
 	private IPreferenceStore getPreferenceStore()
 	{
 		return EditorsUI.getPreferenceStore();
@@ -10,8 +10,10 @@
 
 package edu.columbia.concerns.ui.concerntree;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -29,6 +31,7 @@ import org.eclipse.jface.viewers.ITableFontProvider;
 //import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.ISelectionListener;
 import org.eclipse.ui.IWorkbenchPart;
 import org.eclipse.ui.PlatformUI;
@@ -43,6 +46,7 @@ import edu.columbia.concerns.repository.Concern;
 import edu.columbia.concerns.repository.EdgeKind;
 import edu.columbia.concerns.ui.ConcernView;
 import edu.columbia.concerns.util.Comparer;
+import edu.columbia.concerns.util.CompressedBitmap;
 import edu.columbia.concerns.util.ProblemManager;
 
 // See LightWeightDecorator to see how to allow the user
@@ -346,8 +350,25 @@ public class ConcernTreeLabelProvider
 	}
 	
 	@Override
-	public void modelChanged(ConcernEvent events)
+	public void modelChanged(final ConcernEvent events)
 	{
+		// Events are delivered on a background thread but the selection
+		// is only accessed on the UI thread
+		Display.getDefault().asyncExec(new Runnable()
+			{
+				public void run()
+				{
+					updateSelectedConcerns(events);
+				}
+			}
+		);
+	}
+
+	private void updateSelectedConcerns(ConcernEvent events)
+	{
+		if (currentlySelectedElements == null)
+			return;
+
 		// The label provider's cache of concerns to highlight may
 		// be invalid since the assignments have changed so update
 		// the cache.  This may cause this run() method to be called
@@ -356,7 +377,8 @@ public class ConcernTreeLabelProvider
 		for(ConcernEvent event : events)
 		{
 			if (event.isChangedConcernComponentRelation() ||
-				event.isChangedAllConcerns())
+				event.isChangedAllConcerns() ||
+				event.isChangedAssignments())
 			{
 				selectedConcernsUpdater.asyncUpdate(currentlySelectedElements, 
 						null, true);
@@ -455,7 +477,10 @@ public class ConcernTreeLabelProvider
 		{
 			boolean debug = false;
 			
-			Set<Concern> selectedConcerns = null;
+			// Ids of the concerns common to all the selected elements,
+			// and the concerns themselves
+			CompressedBitmap selectedConcernIds = null;
+			Map<Integer, Concern> concernsById = new HashMap<Integer, Concern>();
 
 			for(int i = 0; 
 				selectedJavaElements != null && 
@@ -504,19 +529,37 @@ public class ConcernTreeLabelProvider
 	
 					// Only select the assigned concerns common to all the
 					// selected elements
-					if (selectedConcerns == null)
-						selectedConcerns = new HashSet<Concern>(concernsAssignedToComponent);
+					CompressedBitmap concernIds = new CompressedBitmap();
+					for(Concern concern : concernsAssignedToComponent)
+					{
+						concernIds.add(concern.getId());
+						
+						if (selectedConcernIds == null)
+							concernsById.put(concern.getId(), concern);
+					}
+					
+					if (selectedConcernIds == null)
+						selectedConcernIds = concernIds;
 					else
-						selectedConcerns.retainAll(concernsAssignedToComponent);
+						selectedConcernIds.and(concernIds);
 				}
 	
 				// If there are no selected concerns at this point
 				// then we can stop looking since the intersection
 				// above won't change
-				if (selectedConcerns == null)
+				if (selectedConcernIds == null || selectedConcernIds.isEmpty())
 					break;
 			}
 
+			Set<Concern> selectedConcerns = null;
+			if (selectedConcernIds != null)
+			{
+				selectedConcerns = new HashSet<Concern>();
+				
+				for(int concernId : selectedConcernIds.toArray())
+					selectedConcerns.add(concernsById.get(concernId));
+			}
+
 			if (debug)
 			{
 				if (selectedConcerns != null)
@@ -551,6 +551,7 @@ public class ConcernTreeViewer
 						
 						if (	event.isAssign() || 
 								event.isUnassign() || 
+								event.isChangedAssignments() ||
 								event.isChangedConcernChildren())
 						{
 							gatherWidgetsAffectedByAssignmentOrMove(cti, 
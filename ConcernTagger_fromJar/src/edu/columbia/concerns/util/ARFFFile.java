@@ -4,10 +4,10 @@
 
 package edu.columbia.concerns.util;
 
+import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.File;
-import java.io.LineNumberReader;
 
 import java.util.List;
 import java.util.ArrayList;
@@ -41,6 +41,17 @@ public class ARFFFile
 	protected IStatusLineManager statusLineManager = null;
 	protected int validInstances = 0;
 
+	// Size of the read buffer.  Assignment files can have millions of rows.
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// Progress is reported every this many lines
+	private static final int PROGRESS_INTERVAL = 1024;
+
+	// Reused for every data instance so reading a row doesn't allocate
+	// anything but the field values
+	private List<String> dataFields = new ArrayList<String>();
+	private StringBuilder fieldBuffer = new StringBuilder();
+
 	public ARFFFile(String path, 
 	                ConcernModel concernModel,
 	                IProgressMonitor progressMonitor,
@@ -79,7 +90,7 @@ public class ARFFFile
 
 		Boolean readyToReadDataInstances = false;
 
-		LineNumberReader br = null;
+		BufferedReader br = null;
 		
 		try
 		{
@@ -87,14 +98,25 @@ public class ARFFFile
 			if (!fr.ready())
 				return false; // Failed to read file
 
-			br = new LineNumberReader(fr);
+			br = new BufferedReader(fr, READ_BUFFER_SIZE);
+
+			currentLine = 0;
+			int charsRead = 0;
 
 			String line;
-			while (!progressMonitor.isCanceled() &&
-					(line = br.readLine()) != null)
+			while (!isCanceled() && (line = br.readLine()) != null)
 			{
-				currentLine = br.getLineNumber();
+				++currentLine;
 				
+				// Report progress in chunks since the monitor may update
+				// the UI
+				charsRead += line.length() + 1;
+				if (currentLine % PROGRESS_INTERVAL == 0 && progressMonitor != null)
+				{
+					progressMonitor.worked(charsRead);
+					charsRead = 0;
+				}
+
 				// Ignore empty and comment lines
 				if (line.isEmpty() || line.charAt(0) == '%')
 				{
@@ -139,14 +161,11 @@ public class ARFFFile
 				// Parse data instances
 				else if (readyToReadDataInstances)
 				{
-					List<String> cols = parseDelimitedAndQuotedString(line, ',');
+					parseDelimitedAndQuotedString(line, ',', dataFields);
 
-					if (!onDataInstance(cols, line))
+					if (!onDataInstance(dataFields, line))
 						return false; // Fatal error
 				}
-				
-				if (progressMonitor != null)
-					progressMonitor.worked(line.length());
 			}
 		}
 		catch (IOException e)
@@ -324,8 +343,29 @@ public class ARFFFile
 	public List<String> parseDelimitedAndQuotedString(String line, char delimiter)
 	{
 		List<String> list = new ArrayList<String>();
+		parseDelimitedAndQuotedString(line, delimiter, list);
+		return list;
+	}
 
-		StringBuffer cur = new StringBuffer();
+	/**
+	 * Same as {@link #parseDelimitedAndQuotedString(String, char)} but
+	 * stores the fields in the list provided, which is cleared first.
+	 * Fields without quotes or escapes are taken directly from the line.
+	 * 
+	 * @return false if the line is malformed, in which case the list is
+	 *         empty
+	 */
+	public boolean parseDelimitedAndQuotedString(String line, char delimiter,
+			List<String> list)
+	{
+		list.clear();
+
+		StringBuilder cur = fieldBuffer;
+		cur.setLength(0);
+
+		// Start of the current field if it hasn't needed the buffer
+		// (i.e., it has no quotes or escapes), otherwise -1
+		int fieldStart = 0;
 
 		boolean inQuote = false;
 
@@ -338,6 +378,27 @@ public class ARFFFile
 			// Note: A delimiter may appear inside a field value either
 			// by quoting the field value or by escaping the delimiter
 			
+			if (c == delimiter && !inQuote)
+			{
+				list.add(endField(line, fieldStart, i));
+				fieldStart = i + 1;
+				continue;
+			}
+			else if (c != '\\' && c != '\"' && c != '\'')
+			{
+				if (fieldStart < 0)
+					cur.append(c);
+				continue;
+			}
+
+			// Switch to the buffer for the rest of the field
+			if (fieldStart >= 0)
+			{
+				cur.setLength(0);
+				cur.append(line, fieldStart, i);
+				fieldStart = -1;
+			}
+
 			// Handle escaped characters: \,
 			if (c == '\\')
 			{
@@ -349,19 +410,14 @@ public class ARFFFile
 							"File: " + path + ", Line: " + currentLine, 
 							true);
 					list.clear();
-					return list;
+					return false;
 				}
 				
 				// Append entire escape sequence
 				cur.append('\\');
 				cur.append(line.charAt(++i));
 			}
-			else if (c == delimiter && !inQuote)
-			{
-				list.add(cur.toString().trim());
-				cur.setLength(0);
-			}
-			else if (c == '\"' || c == '\'')
+			else
 			{
 				if (inQuote && 
 					i + 1 < len &&
@@ -373,15 +429,11 @@ public class ARFFFile
 							"File: " + path + ", Line: " + currentLine, 
 							true);
 					list.clear();
-					return list;
+					return false;
 				}
 
 				inQuote = !inQuote;
 			}
-			else
-			{
-				cur.append(c);
-			}
 		}
 
 		if (inQuote)
@@ -391,14 +443,39 @@ public class ARFFFile
 					"File: " + path + ", Line: " + currentLine, 
 					true);
 			list.clear();
-			return list;
+			return false;
 		}
 
 		// Add the last one
-		list.add(cur.toString().trim());
-		return list;
+		list.add(endField(line, fieldStart, len));
+		return true;
 	}
 
+	/**
+	 * @return the trimmed value of the field ending at <code>end</code>
+	 */
+	private String endField(String line, int fieldStart, int end)
+	{
+		if (fieldStart >= 0)
+		{
+			// Trim without creating an intermediate string
+			while (fieldStart < end && line.charAt(fieldStart) <= ' ')
+				++fieldStart;
+			while (end > fieldStart && line.charAt(end - 1) <= ' ')
+				--end;
+			
+			return line.substring(fieldStart, end);
+		}
+
+		String value = fieldBuffer.toString().trim();
+		fieldBuffer.setLength(0);
+		return value;
+	}
+
+	protected boolean isCanceled()
+	{
+		return progressMonitor != null && progressMonitor.isCanceled();
+	}
 
 	/**
 	 * Escape forward slashes (/) and commas (,) so they are
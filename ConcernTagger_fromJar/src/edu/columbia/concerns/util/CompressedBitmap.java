@@ -0,0 +1,542 @@
+package edu.columbia.concerns.util;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints, meant for dense ordinals such as
+ * code model positions or concern ids.
+ * <P>
+ * Values are split into chunks of 65536 by their high 16 bits (like a
+ * Roaring bitmap).  A chunk with few values is stored as a sorted array of
+ * their low 16 bits, and a chunk with many values as a 65536-bit bitset,
+ * so sparse and dense sets are both small and fast to combine.
+ * <P>
+ * Not thread-safe.
+ */
+public class CompressedBitmap
+{
+	// Array chunks never hold more values than this.  Beyond it a bitset
+	// (1024 longs) is smaller than an array of chars.
+	private static final int MAX_ARRAY_SIZE = 4096;
+
+	private static final int BITSET_WORDS = 1024;
+
+	// High 16 bits of the values in each chunk, sorted
+	private char[] keys;
+
+	// Each chunk is either a char[] (sorted low 16 bits) or a long[]
+	// (bitset)
+	private Object[] chunks;
+
+	// Number of values in each chunk
+	private int[] cardinalities;
+
+	private int numChunks = 0;
+
+	public CompressedBitmap()
+	{
+		keys = new char[4];
+		chunks = new Object[4];
+		cardinalities = new int[4];
+	}
+
+	public CompressedBitmap(CompressedBitmap that)
+	{
+		keys = Arrays.copyOf(that.keys, Math.max(4, that.numChunks));
+		chunks = new Object[keys.length];
+		cardinalities = Arrays.copyOf(that.cardinalities, keys.length);
+		numChunks = that.numChunks;
+
+		for (int i = 0; i < numChunks; ++i)
+		{
+			if (that.chunks[i] instanceof long[])
+				chunks[i] = ((long[]) that.chunks[i]).clone();
+			else
+				chunks[i] = Arrays.copyOf((char[]) that.chunks[i], cardinalities[i]);
+		}
+	}
+
+	// -----------------------------------------------------
+	// SINGLE VALUES
+	// -----------------------------------------------------
+
+	/**
+	 * @return true if the value wasn't already in the set
+	 */
+	public boolean add(int value)
+	{
+		assert value >= 0;
+
+		int i = getOrCreateChunk(value >>> 16);
+		char low = (char) value;
+
+		if (chunks[i] instanceof long[])
+		{
+			long[] bits = (long[]) chunks[i];
+			long mask = 1L << low;
+			if ((bits[low >>> 6] & mask) != 0)
+				return false;
+
+			bits[low >>> 6] |= mask;
+			++cardinalities[i];
+			return true;
+		}
+
+		char[] values = (char[]) chunks[i];
+		int numValues = cardinalities[i];
+
+		int pos = Arrays.binarySearch(values, 0, numValues, low);
+		if (pos >= 0)
+			return false;
+
+		pos = -pos - 1;
+
+		if (numValues == MAX_ARRAY_SIZE)
+		{
+			long[] bits = toBitset(values, numValues);
+			bits[low >>> 6] |= 1L << low;
+			chunks[i] = bits;
+			++cardinalities[i];
+			return true;
+		}
+
+		if (numValues == values.length)
+		{
+			values = Arrays.copyOf(values,
+					Math.min(MAX_ARRAY_SIZE, Math.max(4, numValues * 2)));
+			chunks[i] = values;
+		}
+
+		System.arraycopy(values, pos, values, pos + 1, numValues - pos);
+		values[pos] = low;
+		++cardinalities[i];
+		return true;
+	}
+
+	/**
+	 * @return true if the value was in the set
+	 */
+	public boolean remove(int value)
+	{
+		int i = findChunk(value >>> 16);
+		if (i < 0)
+			return false;
+
+		char low = (char) value;
+
+		if (chunks[i] instanceof long[])
+		{
+			long[] bits = (long[]) chunks[i];
+			long mask = 1L << low;
+			if ((bits[low >>> 6] & mask) == 0)
+				return false;
+
+			bits[low >>> 6] &= ~mask;
+			--cardinalities[i];
+
+			if (cardinalities[i] <= MAX_ARRAY_SIZE)
+				chunks[i] = toArray(bits, cardinalities[i]);
+		}
+		else
+		{
+			char[] values = (char[]) chunks[i];
+			int numValues = cardinalities[i];
+
+			int pos = Arrays.binarySearch(values, 0, numValues, low);
+			if (pos < 0)
+				return false;
+
+			System.arraycopy(values, pos + 1, values, pos, numValues - pos - 1);
+			--cardinalities[i];
+		}
+
+		if (cardinalities[i] == 0)
+			removeChunk(i);
+
+		return true;
+	}
+
+	public boolean contains(int value)
+	{
+		int i = findChunk(value >>> 16);
+		return i >= 0 && chunkContains(i, (char) value);
+	}
+
+	// -----------------------------------------------------
+	// WHOLE SET
+	// -----------------------------------------------------
+
+	public boolean isEmpty()
+	{
+		return numChunks == 0;
+	}
+
+	public int cardinality()
+	{
+		int cardinality = 0;
+		for (int i = 0; i < numChunks; ++i)
+			cardinality += cardinalities[i];
+
+		return cardinality;
+	}
+
+	/**
+	 * @return the smallest value in the set that is greater than or equal
+	 *         to <code>from</code>, or -1 if there isn't one
+	 */
+	public int nextSetBit(int from)
+	{
+		if (from < 0)
+			from = 0;
+
+		int key = from >>> 16;
+
+		for (int i = findChunkAtOrAfter(key); i < numChunks; ++i)
+		{
+			int low = keys[i] == key ? from & 0xFFFF : 0;
+
+			int next = nextInChunk(i, low);
+			if (next >= 0)
+				return (keys[i] << 16) | next;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the values in ascending order
+	 */
+	public int[] toArray()
+	{
+		int[] values = new int[cardinality()];
+		int numValues = 0;
+
+		for (int value = nextSetBit(0); value >= 0; value = nextSetBit(value + 1))
+			values[numValues++] = value;
+
+		return values;
+	}
+
+	/**
+	 * Adds the values in <code>that</code> to this set (union).
+	 */
+	public void or(CompressedBitmap that)
+	{
+		for (int j = 0; j < that.numChunks; ++j)
+		{
+			int i = getOrCreateChunk(that.keys[j]);
+
+			if (that.chunks[j] instanceof long[] && !(chunks[i] instanceof long[]))
+				chunks[i] = toBitset((char[]) chunks[i], cardinalities[i]);
+
+			if (chunks[i] instanceof long[])
+			{
+				long[] bits = (long[]) chunks[i];
+
+				if (that.chunks[j] instanceof long[])
+				{
+					long[] thatBits = (long[]) that.chunks[j];
+					int cardinality = 0;
+
+					for (int word = 0; word < BITSET_WORDS; ++word)
+					{
+						bits[word] |= thatBits[word];
+						cardinality += Long.bitCount(bits[word]);
+					}
+
+					cardinalities[i] = cardinality;
+				}
+				else
+				{
+					char[] thatValues = (char[]) that.chunks[j];
+
+					for (int k = 0; k < that.cardinalities[j]; ++k)
+					{
+						char low = thatValues[k];
+						long mask = 1L << low;
+						if ((bits[low >>> 6] & mask) == 0)
+						{
+							bits[low >>> 6] |= mask;
+							++cardinalities[i];
+						}
+					}
+				}
+			}
+			else
+			{
+				mergeArrays(i, (char[]) that.chunks[j], that.cardinalities[j]);
+			}
+		}
+	}
+
+	/**
+	 * Removes the values that aren't in <code>that</code> from this set
+	 * (intersection).
+	 */
+	public void and(CompressedBitmap that)
+	{
+		int numKept = 0;
+
+		for (int i = 0; i < numChunks; ++i)
+		{
+			int j = that.findChunk(keys[i]);
+			if (j < 0)
+				continue;
+
+			intersectChunk(i, that, j);
+			if (cardinalities[i] == 0)
+				continue;
+
+			keys[numKept] = keys[i];
+			chunks[numKept] = chunks[i];
+			cardinalities[numKept] = cardinalities[i];
+			++numKept;
+		}
+
+		for (int i = numKept; i < numChunks; ++i)
+			chunks[i] = null;
+
+		numChunks = numKept;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuffer buffer = new StringBuffer("{");
+
+		for (int value = nextSetBit(0); value >= 0; value = nextSetBit(value + 1))
+		{
+			if (buffer.length() > 1)
+				buffer.append(", ");
+
+			buffer.append(value);
+		}
+
+		return buffer.append('}').toString();
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	private int findChunk(int key)
+	{
+		return key > Character.MAX_VALUE ? -1 :
+			Arrays.binarySearch(keys, 0, numChunks, (char) key);
+	}
+
+	private int findChunkAtOrAfter(int key)
+	{
+		int i = findChunk(key);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	private int getOrCreateChunk(int key)
+	{
+		int i = findChunk(key);
+		if (i >= 0)
+			return i;
+
+		i = -i - 1;
+
+		if (numChunks == keys.length)
+		{
+			keys = Arrays.copyOf(keys, numChunks * 2);
+			chunks = Arrays.copyOf(chunks, numChunks * 2);
+			cardinalities = Arrays.copyOf(cardinalities, numChunks * 2);
+		}
+
+		System.arraycopy(keys, i, keys, i + 1, numChunks - i);
+		System.arraycopy(chunks, i, chunks, i + 1, numChunks - i);
+		System.arraycopy(cardinalities, i, cardinalities, i + 1, numChunks - i);
+
+		keys[i] = (char) key;
+		chunks[i] = new char[4];
+		cardinalities[i] = 0;
+		++numChunks;
+
+		return i;
+	}
+
+	private void removeChunk(int i)
+	{
+		System.arraycopy(keys, i + 1, keys, i, numChunks - i - 1);
+		System.arraycopy(chunks, i + 1, chunks, i, numChunks - i - 1);
+		System.arraycopy(cardinalities, i + 1, cardinalities, i, numChunks - i - 1);
+
+		--numChunks;
+		chunks[numChunks] = null;
+	}
+
+	private boolean chunkContains(int i, char low)
+	{
+		if (chunks[i] instanceof long[])
+			return (((long[]) chunks[i])[low >>> 6] & (1L << low)) != 0;
+		else
+			return Arrays.binarySearch((char[]) chunks[i], 0, cardinalities[i], low) >= 0;
+	}
+
+	/**
+	 * @return the smallest low value in the chunk that is greater than or
+	 *         equal to <code>low</code>, or -1 if there isn't one
+	 */
+	private int nextInChunk(int i, int low)
+	{
+		if (chunks[i] instanceof long[])
+		{
+			long[] bits = (long[]) chunks[i];
+
+			int word = low >>> 6;
+			long remaining = bits[word] & (~0L << low);
+
+			while (remaining == 0)
+			{
+				if (++word == BITSET_WORDS)
+					return -1;
+
+				remaining = bits[word];
+			}
+
+			return (word << 6) + Long.numberOfTrailingZeros(remaining);
+		}
+		else
+		{
+			char[] values = (char[]) chunks[i];
+
+			int pos = Arrays.binarySearch(values, 0, cardinalities[i], (char) low);
+			if (pos < 0)
+				pos = -pos - 1;
+
+			return pos < cardinalities[i] ? values[pos] : -1;
+		}
+	}
+
+	/**
+	 * Replaces chunk i with its intersection with chunk j of
+	 * <code>that</code>.
+	 */
+	private void intersectChunk(int i, CompressedBitmap that, int j)
+	{
+		if (chunks[i] instanceof long[] && that.chunks[j] instanceof long[])
+		{
+			long[] bits = (long[]) chunks[i];
+			long[] thatBits = (long[]) that.chunks[j];
+			int cardinality = 0;
+
+			for (int word = 0; word < BITSET_WORDS; ++word)
+			{
+				bits[word] &= thatBits[word];
+				cardinality += Long.bitCount(bits[word]);
+			}
+
+			cardinalities[i] = cardinality;
+
+			if (cardinality <= MAX_ARRAY_SIZE)
+				chunks[i] = toArray(bits, cardinality);
+
+			return;
+		}
+
+		// The result is no bigger than the array, so filter it
+		char[] values;
+		int numValues;
+		CompressedBitmap probed;
+		int probedChunk;
+
+		if (chunks[i] instanceof long[])
+		{
+			values = (char[]) that.chunks[j];
+			numValues = that.cardinalities[j];
+			probed = this;
+			probedChunk = i;
+		}
+		else
+		{
+			values = (char[]) chunks[i];
+			numValues = cardinalities[i];
+			probed = that;
+			probedChunk = j;
+		}
+
+		char[] result = new char[Math.max(4, numValues)];
+		int numResults = 0;
+
+		for (int k = 0; k < numValues; ++k)
+		{
+			if (probed.chunkContains(probedChunk, values[k]))
+				result[numResults++] = values[k];
+		}
+
+		chunks[i] = result;
+		cardinalities[i] = numResults;
+	}
+
+	/**
+	 * Merges sorted values into array chunk i, converting it to a bitset if
+	 * it gets too big.
+	 */
+	private void mergeArrays(int i, char[] thatValues, int numThatValues)
+	{
+		char[] values = (char[]) chunks[i];
+		int numValues = cardinalities[i];
+
+		char[] merged = new char[numValues + numThatValues];
+		int numMerged = 0;
+
+		int k = 0;
+		int m = 0;
+		while (k < numValues && m < numThatValues)
+		{
+			if (values[k] < thatValues[m])
+			{
+				merged[numMerged++] = values[k++];
+			}
+			else if (values[k] > thatValues[m])
+			{
+				merged[numMerged++] = thatValues[m++];
+			}
+			else
+			{
+				merged[numMerged++] = values[k++];
+				++m;
+			}
+		}
+
+		while (k < numValues)
+			merged[numMerged++] = values[k++];
+		while (m < numThatValues)
+			merged[numMerged++] = thatValues[m++];
+
+		chunks[i] = numMerged > MAX_ARRAY_SIZE ?
+				toBitset(merged, numMerged) : merged;
+		cardinalities[i] = numMerged;
+	}
+
+	private static long[] toBitset(char[] values, int numValues)
+	{
+		long[] bits = new long[BITSET_WORDS];
+		for (int k = 0; k < numValues; ++k)
+			bits[values[k] >>> 6] |= 1L << values[k];
+
+		return bits;
+	}
+
+	private static char[] toArray(long[] bits, int cardinality)
+	{
+		char[] values = new char[Math.max(4, cardinality)];
+		int numValues = 0;
+
+		for (int word = 0; word < BITSET_WORDS; ++word)
+		{
+			long remaining = bits[word];
+			while (remaining != 0)
+			{
+				values[numValues++] = (char) ((word << 6) +
+						Long.numberOfTrailingZeros(remaining));
+				remaining &= remaining - 1;
+			}
+		}
+
+		return values;
+	}
+}
@@ -3,20 +3,17 @@
  */
 package edu.columbia.concerns.util;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jdt.core.IField;
-import org.eclipse.jdt.core.IJavaElement;
-import org.eclipse.jdt.core.IJavaModel;
-import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.IMember;
 import org.eclipse.jdt.core.IMethod;
 import org.eclipse.jdt.core.IType;
-import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.jdt.core.Signature;
 import org.eclipse.jface.action.IStatusLineManager;
@@ -25,6 +22,7 @@ import edu.columbia.concerns.model.ConcernModel;
 import edu.columbia.concerns.repository.Component;
 import edu.columbia.concerns.repository.Concern;
 import edu.columbia.concerns.repository.EdgeKind;
+import edu.columbia.concerns.repository.RepositoryBatch;
 
 /**
  * Parses AARF files that contain concern assignment data.
@@ -56,22 +54,139 @@ public class ConcernAssignmentARFFFile extends ARFFFile
 	private int concernListCol = -1;
 	private static final String CONCERN_LIST_ATTR_NAME = "concern-list";
 
+	/**
+	 * Number of data instances resolved and written at a time.  Memory use
+	 * depends on this, not on the size of the file.
+	 */
+	public static final int DEFAULT_IMPORT_BATCH_SIZE = 5000;
+
+	// Bounds for the lookup caches
+	private static final int MAX_CACHED_CONCERN_LISTS = 1024;
+
+	// At most this many unresolved data instances are listed when
+	// reporting them
+	private static final int MAX_PROBLEMS_TO_LIST = 1000;
+
 	private String[] entityTypes = null;
 
 	private EdgeKind concernComponentRelationship;
 	
-	private Map<String, IType> typeCache = new HashMap<String, IType>();
+	// Concern path -> concern, or null if it couldn't be created.  Bounded
+	// by the number of concerns.
+	private Map<String, Concern> concernCache = new HashMap<String, Concern>();
 
-	private IJavaModel javaModel = null;
+	// Unparsed concern list -> concerns.  Rows usually share a few lists.
+	private Map<String, Concern[]> concernListCache = 
+		new LruMap<String, Concern[]>(MAX_CACHED_CONCERN_LISTS);
+	
+	private List<String> concernPathFields = new ArrayList<String>();
+	
+	private SignatureResolver resolver;
+	private boolean ownsResolver;
+	
+	// Data instances waiting to be resolved and written
+	private List<DataInstance> pendingInstances = new ArrayList<DataInstance>();
+
+	// Data instances we couldn't resolve, reported all at once at the end
+	private List<String> unresolvedInstances = new ArrayList<String>();
+	private int numUnresolvedInstances = 0;
+	private List<String> skippedInstances = new ArrayList<String>();
+	private int numSkippedInstances = 0;
+	
+	// Assignments are written in batches of this size
+	private int batchSize;
+	private RepositoryBatch batch = null;
 	
 	public ConcernAssignmentARFFFile(	final String path, 
 										final ConcernModel concernModel,
 										final EdgeKind concernComponentRelationship,
 										final IProgressMonitor progressMonitor,
 										final IStatusLineManager statusLineManager)
+	{
+		this(path, concernModel, concernComponentRelationship, 
+				progressMonitor, statusLineManager, 
+				DEFAULT_IMPORT_BATCH_SIZE, null);
+	}
+	
+	public ConcernAssignmentARFFFile(	final String path, 
+										final ConcernModel concernModel,
+										final EdgeKind concernComponentRelationship,
+										final IProgressMonitor progressMonitor,
+										final IStatusLineManager statusLineManager,
+										final int batchSize)
+	{
+		this(path, concernModel, concernComponentRelationship, 
+				progressMonitor, statusLineManager, batchSize, null);
+	}
+	
+	/**
+	 * @param resolver
+	 *            resolves the signatures, so the types it finds can be
+	 *            shared by several files.  If null, the file uses its own.
+	 */
+	public ConcernAssignmentARFFFile(	final String path, 
+										final ConcernModel concernModel,
+										final EdgeKind concernComponentRelationship,
+										final IProgressMonitor progressMonitor,
+										final IStatusLineManager statusLineManager,
+										final int batchSize,
+										final SignatureResolver resolver)
 	{
 		super(path, concernModel, progressMonitor, statusLineManager);
 		this.concernComponentRelationship = concernComponentRelationship;
+		this.batchSize = batchSize;
+		this.resolver = resolver;
+		this.ownsResolver = resolver == null;
+	}
+
+	@Override
+	public boolean read()
+	{
+		if (ownsResolver)
+			resolver = new SignatureResolver();
+		
+		try
+		{
+			return super.read();
+		}
+		finally
+		{
+			// Make sure the last batch is written even if we bailed out early
+			resolvePendingInstances();
+			closeBatch();
+			reportUnresolvedInstances();
+			
+			if (ownsResolver)
+			{
+				resolver.close();
+				resolver = null;
+			}
+		}
+	}
+	
+	@Override
+	public boolean onReadBegin()
+	{
+		batch = concernModel.beginBatch(batchSize);
+		return super.onReadBegin();
+	}
+
+	@Override
+	public boolean onReadEnd()
+	{
+		// Write the remaining assignments before notifying listeners
+		resolvePendingInstances();
+		closeBatch();
+		return super.onReadEnd();
+	}
+	
+	private void closeBatch()
+	{
+		if (batch != null)
+		{
+			batch.close();
+			batch = null;
+		}
 	}
 
 	@Override
@@ -189,150 +304,218 @@ public class ConcernAssignmentARFFFile extends ARFFFile
 			return true; // Continue processing
 		}
 
-		Component component = findComponent(entityName, entityType);
-		if (component == null)
-			return true; // Already reported error, continue processing
-
-		for (String concernPath : parseDelimitedAndQuotedString(concernList, ','))
-		{
-			// If concern path is a hierarchy, this will create multiple
-			// concerns
-			Concern concern = concernModel.createConcern(concernPath, "");
-			if (concern == null)
-			{
-				// See if it's because of an invalid name
-				String reason = Concern.isNameValid(concernPath);
-				if (reason != null)
-				{
-					ProblemManager.reportError("Invalid Concern Name", 
-							"Concern name '" + concernPath + "' is invalid, ignoring.",
-							reason + "\nData instance: " + raw_line + 
-								", File: " + path + ", Line: " + currentLine,
-							true);
-				}
-				else
-				{
-					ProblemManager.reportError("Failed to Create Concern", 
-							"Failed to create concern '" + concernPath + "', ignoring.",
-							"Data instance: " + raw_line + 
-								", File: " + path + ", Line: " + currentLine,
-							true);
-				}				
-				continue; // Skip
-			}
-
-			if (progressMonitor != null)
-				progressMonitor.subTask(concern.getShortName() + " -> " + component);
-			
-			if (concern.assign(component, concernComponentRelationship))
-				++validInstances;
-		}
+		pendingInstances.add(new DataInstance(entityName, entityType, 
+				concernList, raw_line, currentLine));
+		
+		if (pendingInstances.size() >= batchSize)
+			resolvePendingInstances();
 
 		return true;
 	}
 
-	private Component findComponent(String signature, final String entityType)
+	// -----------------------------------------------------
+	// RESOLUTION METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Resolves the pending data instances and queues their assignments.
+	 * <P>
+	 * The signatures are resolved in parallel by the resolver, then the
+	 * components are looked up with a few queries and the assignments are
+	 * queued by this thread, in file order, so the results are the same
+	 * no matter how the resolution was divided up.
+	 */
+	private void resolvePendingInstances()
 	{
-		// Signature may contain escaped characters (e.g.,
-		// String.toString(int\, boolean)) which we must unescape
+		if (pendingInstances.isEmpty())
+			return;
 		
-		signature = unescape(signature);
+		if (progressMonitor != null)
+			progressMonitor.subTask("Resolving " + pendingInstances.size() + 
+					" elements (line " + currentLine + ")...");
+
+		List<SignatureResolver.Element> elements = 
+			new ArrayList<SignatureResolver.Element>(pendingInstances.size());
+		
+		for (DataInstance instance : pendingInstances)
+		{
+			elements.add(instance.element);
+		}
 		
-		JavaElementInfo elementInfo = new JavaElementInfo();
-		if (!elementInfo.parseSignature(signature, entityType))
-			return null;
+		if (!resolver.resolve(elements, progressMonitor))
+		{
+			pendingInstances.clear();
+			return; // Canceled
+		}
 
-		IType type = findType(elementInfo._fullyQualifiedType, signature);
-		if (type == null)
-			return null; // We already reported the error
+		// Find the components
+		
+		List<String> handles = new ArrayList<String>(pendingInstances.size());
 
-		if (elementInfo._isType)
+		for (DataInstance instance : pendingInstances)
 		{
-			return getComponent(type, elementInfo);
+			if (instance.element.handle != null)
+				handles.add(instance.element.handle);
 		}
-		
-		IMember member = elementInfo.findMember(type);
-		if (member == null)
+
+		Map<String, Component> components = concernModel.getComponents(handles);
+
+		// Assign them, in file order
+
+		for (DataInstance instance : pendingInstances)
 		{
-			if (elementInfo._specialConstructorName != null)
+			SignatureResolver.Element element = instance.element;
+			
+			if (element.problem != null)
 			{
-				ProblemManager.reportInfo(
-						elementInfo._specialConstructorName + " constructor for type '" + elementInfo._fullyQualifiedType + "'" +
-						" was not found, ignoring. " +
-						"This can happen if it was generated automatically by the compiler.",
-						"Signature: " + elementInfo._fullSignature +
-							", File: " + path + ", Line: " + currentLine);
+				addUnresolvedInstance(instance, element.problem, element.isInfo);
+				continue;
 			}
-			else
+			else if (element.handle == null)
 			{
-				ProblemManager.reportError("Member Not Found",
-						"Member '" + elementInfo._fullSignature + "'" +
-						" was not found, ignoring.",
-						"File: " + path + ", Line: " + currentLine, 
-						true);
+				continue; // Ignored (e.g., anonymous class)
 			}
 			
-			return null;
+			Component component = components.get(element.handle);
+			if (component == null)
+			{
+				addUnresolvedInstance(instance, "Component for Java element '" + 
+						element.signature + "' was not found (handle: " + 
+						element.handle + ")", false);
+				continue;
+			}
+
+			for (Concern concern : getConcerns(instance))
+			{
+				// Listeners are told about all the changes at once when
+				// we are done
+				if (batch.assign(concern, component, concernComponentRelationship))
+					++validInstances;
+			}
 		}
 		
-		return getComponent(member, elementInfo); 
+		pendingInstances.clear();
+	}
+
+	private void addUnresolvedInstance(DataInstance instance, String problem, 
+			boolean isInfo)
+	{
+		String description = "Line " + instance.lineNumber + ": " + problem;
+		
+		if (isInfo)
+		{
+			if (++numSkippedInstances <= MAX_PROBLEMS_TO_LIST)
+				skippedInstances.add(description);
+		}
+		else
+		{
+			if (++numUnresolvedInstances <= MAX_PROBLEMS_TO_LIST)
+				unresolvedInstances.add(description);
+		}
 	}
 
-	private Component getComponent(final IJavaElement element, 
-	                               final JavaElementInfo elementInfo)
+	/**
+	 * Reports the data instances we couldn't resolve in one message, rather
+	 * than one per instance.
+	 */
+	private void reportUnresolvedInstances()
 	{
-		Component component = concernModel.getComponent(element.getHandleIdentifier());
-		if (component == null)
-		{
-			ProblemManager.reportError("Component Not Found",
-					"Component for Java element '" + elementInfo._fullSignature + "'" +
-					" was not found, ignoring.",
-					"Java element handle: " + element.getHandleIdentifier() +
-						", File: " + path + ", Line: " + currentLine, 
+		if (numUnresolvedInstances > 0)
+		{
+			if (numUnresolvedInstances > unresolvedInstances.size())
+			{
+				unresolvedInstances.add("(" + 
+						(numUnresolvedInstances - unresolvedInstances.size()) + 
+						" more not listed)");
+			}
+			
+			ProblemManager.reportErrors("Elements Not Found",
+					numUnresolvedInstances + " data instance(s) in '" + path + 
+						"' could not be resolved and were ignored.",
+					unresolvedInstances,
 					true);
 		}
 
-		return component;
+		if (numSkippedInstances > 0)
+		{
+			if (numSkippedInstances > skippedInstances.size())
+			{
+				skippedInstances.add("(" + 
+						(numSkippedInstances - skippedInstances.size()) + 
+						" more not listed)");
+			}
+			
+			ProblemManager.reportInfos(numSkippedInstances + 
+					" data instance(s) in '" + path + "' refer to elements " +
+					"generated by the compiler and were ignored.",
+					skippedInstances);
+		}
+		
+		unresolvedInstances.clear();
+		numUnresolvedInstances = 0;
+		skippedInstances.clear();
+		numSkippedInstances = 0;
 	}
 
-	private IType findType(final String fullyQualifiedName, final String signature)
+	/**
+	 * @return the concerns in the instance's concern list, creating them
+	 *         if necessary
+	 */
+	private Concern[] getConcerns(final DataInstance instance)
 	{
-		// Note: We store nulls so we don't have to fail the search again
-		if (typeCache.containsKey(fullyQualifiedName))
-			return typeCache.get(fullyQualifiedName);
+		Concern[] concerns = concernListCache.get(instance.concernList);
+		if (concerns != null)
+			return concerns;
 		
-		// Obtain the code model
-		if (javaModel == null)
-			javaModel = JavaCore.create(ResourcesPlugin.getWorkspace().getRoot());
+		List<Concern> concernList = new ArrayList<Concern>();
 		
-		try
+		parseDelimitedAndQuotedString(instance.concernList, ',', concernPathFields);
+		
+		for (String concernPath : concernPathFields)
 		{
-			// For each project
-			for(IJavaProject project : javaModel.getJavaProjects())
-			{
-				IType type = project.findType(fullyQualifiedName, (IProgressMonitor) null);
-				if (type != null)
-				{
-					typeCache.put(fullyQualifiedName, type);
-					return type;
-				}
-			}
-
-			ProblemManager.reportError("Type Not Found",
-					"Type '" + fullyQualifiedName +
-					"' not found, ignoring.",
-					"Signature: " + signature + ", File: " + path + ", Line: " + currentLine, 
-					true);
+			Concern concern = getConcern(concernPath, instance);
+			if (concern != null && !concernList.contains(concern))
+				concernList.add(concern);
 		}
-		catch (JavaModelException e)
+
+		concerns = concernList.toArray(new Concern[concernList.size()]);
+		concernListCache.put(instance.concernList, concerns);
+		return concerns;
+	}
+
+	private Concern getConcern(final String concernPath, final DataInstance instance)
+	{
+		// Only report a bad concern path once
+		if (concernCache.containsKey(concernPath))
+			return concernCache.get(concernPath);
+		
+		// If concern path is a hierarchy, this will create multiple
+		// concerns
+		Concern concern = concernModel.createConcern(concernPath, "");
+		if (concern == null)
 		{
-			ProblemManager.reportException(e, 
-					"Type '" + fullyQualifiedName +
-					"' not found, ignoring.", true);
+			// See if it's because of an invalid name
+			String reason = Concern.isNameValid(concernPath);
+			if (reason != null)
+			{
+				ProblemManager.reportError("Invalid Concern Name", 
+						"Concern name '" + concernPath + "' is invalid, ignoring.",
+						reason + "\nData instance: " + instance.rawLine + 
+							", " + instance.getLocation(),
+						true);
+			}
+			else
+			{
+				ProblemManager.reportError("Failed to Create Concern", 
+						"Failed to create concern '" + concernPath + "', ignoring.",
+						"Data instance: " + instance.rawLine + 
+							", " + instance.getLocation(),
+						true);
+			}
 		}
 
-		typeCache.put(fullyQualifiedName, null);
-		return null;
+		concernCache.put(concernPath, concern);
+		return concern;
 	}
 	
 	private Boolean IsNullOrEmpty(final String value, 
@@ -368,10 +551,64 @@ public class ConcernAssignmentARFFFile extends ARFFFile
 			return false;
 		}
 	}
+
+	/**
+	 * A data instance waiting to be resolved.
+	 */
+	private final class DataInstance
+	{
+		String concernList;
+		String rawLine;
+		int lineNumber;
+
+		SignatureResolver.Element element;
+		
+		DataInstance(String entityName, String entityType, String concernList,
+				String rawLine, int lineNumber)
+		{
+			this.concernList = concernList;
+			this.rawLine = rawLine;
+			this.lineNumber = lineNumber;
+
+			// Signature may contain escaped characters (e.g.,
+			// String.toString(int\, boolean)) which we must unescape
+			this.element = new SignatureResolver.Element(unescape(entityName), 
+					entityType);
+		}
+		
+		String getLocation()
+		{
+			return "File: " + path + ", Line: " + lineNumber;
+		}
+	}
+
+	/**
+	 * Map that evicts its least recently used entry when full.
+	 */
+	private static class LruMap<K, V> extends LinkedHashMap<K, V>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private int maxSize;
+		
+		LruMap(int maxSize)
+		{
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+		{
+			return size() > maxSize;
+		}
+	}
 }
 
 class JavaElementInfo
 {
+	private static final String STATIC_INITIALIZER_KEY = "<static initializer>";
+
 	public String _packageName;
 	public String _typeName;
 	public String _fullyQualifiedType;
@@ -572,61 +809,76 @@ class JavaElementInfo
 		return false;
 	}
 
-	public IMember findMember(final IType type)
+	/**
+	 * @return the key of the member in the index built by indexMembers()
+	 */
+	public String getMemberKey()
+	{
+		if (_isStaticConstructor)
+			return STATIC_INITIALIZER_KEY;
+		else if (!_isMethod)
+			return _memberName;
+
+		StringBuilder key = new StringBuilder(_memberName);
+		key.append('(');
+		
+		if (_args != null)
+		{
+			for(int i = 0; i < _args.length; ++i)
+			{
+				if (i > 0)
+					key.append(", ");
+				key.append(_args[i]);
+			}
+		}
+		
+		key.append(')');
+		return key.toString();
+	}
+
+	/**
+	 * Indexes the type's members by their member key so that many members
+	 * of the same type can be found without searching the type each time.
+	 */
+	public static Map<String, IMember> indexMembers(final IType type)
+		throws JavaModelException
 	{
+		Map<String, IMember> members = new HashMap<String, IMember>();
+
 		// Don't use IType.getMethod() or IType.getField().
 		// This actually *creates* a new dummy method or field
 		// instead of returning an existing one.
 		
-		try
+		if (type.getInitializers().length > 0)
+			members.put(STATIC_INITIALIZER_KEY, type.getInitializers()[0]);
+
+		for(IMethod method : type.getMethods())
 		{
-			if (_isStaticConstructor)
-			{
-				if (type.getInitializers().length > 0)
-					return type.getInitializers()[0];
-				else
-					return null;
-				
-			}
-			else if (_isMethod)
-			{
-				for(IMethod method : type.getMethods())
-				{
-					if (!method.getElementName().equals(_memberName))
-						continue;
-					
-					String[] methodArgs = method.getParameterTypes();
-
-					int argsLen = _args == null ? 0 : _args.length;
-
-					if (argsLen != methodArgs.length)
-						continue;
-					
-					int i = 0;
-					for(i = 0; i < argsLen; ++i)
-					{
-						if (!_args[i].equals(Signature.toString(methodArgs[i])))
-							break;
-					}
-					
-					if (i == argsLen)
-						return method;
-				}
-			}
-			else
+			String[] methodArgs = method.getParameterTypes();
+
+			StringBuilder key = new StringBuilder(method.getElementName());
+			key.append('(');
+
+			for(int i = 0; i < methodArgs.length; ++i)
 			{
-				for(IField field : type.getFields())
-				{
-					if (field.getElementName().equals(_memberName))
-						return field;
-				}
+				if (i > 0)
+					key.append(", ");
+				key.append(Signature.toString(methodArgs[i]));
 			}
+
+			key.append(')');
+			
+			// Keep the first match, like a linear search would
+			if (!members.containsKey(key.toString()))
+				members.put(key.toString(), method);
 		}
-		catch (JavaModelException e)
+
+		for(IField field : type.getFields())
 		{
-			ProblemManager.reportException(e, true);
+			if (!members.containsKey(field.getElementName()))
+				members.put(field.getElementName(), field);
 		}
 
-		return null;
+		return members;
 	}
 }
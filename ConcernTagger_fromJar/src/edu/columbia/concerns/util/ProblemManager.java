@@ -11,6 +11,7 @@
 package edu.columbia.concerns.util;
 
 import java.util.HashMap;
+import java.util.List;
 
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.MultiStatus;
@@ -94,6 +95,11 @@ public final class ProblemManager
 		// Info messages never cause popups so just pass false
 		reportMsg(null, msg, details, IStatus.INFO, false);
 	}
+
+	public static void reportInfos(final String msg, final List<String> details)
+	{
+		reportMsgs(null, msg, details, IStatus.INFO, false);
+	}
 	
 	public static void reportError(final String title, 
 	                               final String msg, 
@@ -103,6 +109,18 @@ public final class ProblemManager
 		reportMsg(title, msg, details, IStatus.ERROR, limitPopups);
 	}
 
+	/**
+	 * Reports many related problems in one message, with one detail line
+	 * per problem.
+	 */
+	public static void reportErrors(final String title, 
+	                                final String msg, 
+	                                final List<String> details, 
+	                                final boolean limitPopups)
+	{
+		reportMsgs(title, msg, details, IStatus.ERROR, limitPopups);
+	}
+
 	public static void reportError(final String title, 
 	                               final String msg, 
 	                               final String details)
@@ -135,11 +153,36 @@ public final class ProblemManager
 		doMessage(title, msg, status, limitPopups);
 	}
 
-	private static void doMessage(String title, 
+	public static void reportMsgs(final String title, 
 	                              final String msg, 
-	                              final IStatus status,
+	                              final List<String> details, 
+	                              final int severity, 
 	                              final boolean limitPopups)
 	{
+		IStatus[] statuses = new IStatus[details.size()];
+		for (int i = 0; i < statuses.length; ++i)
+		{
+			statuses[i] = new Status(severity, ConcernTagger.ID_PLUGIN, 
+					details.get(i));
+		}
+
+		doMessage(title, msg, new MultiStatus(ConcernTagger.ID_PLUGIN,
+				IStatus.OK, statuses, msg, null), limitPopups);
+	}
+
+	private static synchronized void doMessage(String title, 
+	                                           final String msg, 
+	                                           final IStatus status,
+	                                           final boolean limitPopups)
+	{
+		// Running headless (e.g., BatchMetricsRunner), so there is no log
+		// and no one to show a dialog to
+		if (ConcernTagger.singleton() == null)
+		{
+			printStatus(status, "");
+			return;
+		}
+
 		// Always log the error
 		ConcernTagger.singleton().getLog().log(status);
 
@@ -171,4 +214,25 @@ public final class ProblemManager
 		msgCount.put(title, new Integer(reportedErrors.intValue() + 1));
 		++totalErrorsReported;
 	}
+
+	private static void printStatus(IStatus status, String indent)
+	{
+		String severity;
+		if (status.matches(IStatus.ERROR))
+			severity = "ERROR";
+		else if (status.matches(IStatus.WARNING))
+			severity = "WARNING";
+		else
+			severity = "INFO";
+
+		System.err.println(indent + severity + ": " + status.getMessage());
+
+		for (IStatus child : status.getChildren())
+		{
+			printStatus(child, indent + "  ");
+		}
+
+		if (status.getException() != null)
+			status.getException().printStackTrace();
+	}
 }
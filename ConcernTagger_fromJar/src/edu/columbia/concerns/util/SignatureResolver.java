@@ -0,0 +1,332 @@
+package edu.columbia.concerns.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaModel;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IMember;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
+
+/**
+ * Resolves the signatures in assignment files (e.g.,
+ * <code>java.lang.String.valueOf(int)</code>) to Java element handles on a
+ * pool of worker threads.
+ * <P>
+ * Signatures are grouped by type and each group is resolved by one worker,
+ * so a type is found and its members are indexed once.  The type cache is
+ * shared by the workers and by all the files read with the same resolver.
+ * <P>
+ * Workers only fill in the elements they are given; they never report
+ * problems or touch the concern model, since neither is thread safe.
+ * Callers must call {@link #close()} when done.
+ */
+public class SignatureResolver
+{
+	// Bounds for the caches.  They are cleared when full.
+	private static final int MAX_CACHED_TYPES = 16384;
+	private static final int MAX_CACHED_MEMBER_INDEXES = 256;
+
+	private ExecutorService workers;
+
+	private IJavaModel javaModel = null;
+
+	private ConcurrentHashMap<String, IType> typeCache =
+		new ConcurrentHashMap<String, IType>();
+
+	// Types we failed to find, so we don't search for them again
+	private Set<String> missingTypes =
+		Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	// Type -> member key -> member (see JavaElementInfo.getMemberKey())
+	private ConcurrentHashMap<IType, Map<String, IMember>> memberIndexCache =
+		new ConcurrentHashMap<IType, Map<String, IMember>>();
+
+	/**
+	 * A signature to resolve and, once resolved, its handle or the reason
+	 * it couldn't be resolved.
+	 */
+	static final class Element
+	{
+		final String signature;
+		final String entityType;
+
+		JavaElementInfo elementInfo = null;
+
+		// Exactly one is set after resolution, unless the element is
+		// deliberately ignored (e.g., anonymous classes)
+		String handle = null;
+		String problem = null;
+
+		// True if the problem is expected (e.g., a constructor generated
+		// by the compiler)
+		boolean isInfo = false;
+
+		Element(String signature, String entityType)
+		{
+			this.signature = signature;
+			this.entityType = entityType;
+		}
+	}
+
+	/**
+	 * Creates a resolver with one worker per processor.
+	 */
+	public SignatureResolver()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public SignatureResolver(int numWorkers)
+	{
+		workers = Executors.newFixedThreadPool(Math.max(1, numWorkers),
+				new ThreadFactory()
+				{
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable,
+								"Signature Resolver " + (++count));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Resolves the elements, returning once all of them are resolved.
+	 * Elements are resolved the same way no matter how the work is divided.
+	 *
+	 * @return false if canceled or interrupted, in which case some elements
+	 *         may not be resolved
+	 */
+	boolean resolve(List<Element> elements, final IProgressMonitor progressMonitor)
+	{
+		if (javaModel == null)
+			javaModel = JavaCore.create(ResourcesPlugin.getWorkspace().getRoot());
+
+		// Group by type, in the order the types were first seen
+
+		Map<String, List<Element>> elementsByType =
+			new LinkedHashMap<String, List<Element>>();
+
+		for (Element element : elements)
+		{
+			JavaElementInfo elementInfo = new JavaElementInfo();
+			if (!elementInfo.parseSignature(element.signature, element.entityType))
+				continue; // Ignored
+
+			element.elementInfo = elementInfo;
+
+			List<Element> group = elementsByType.get(elementInfo._fullyQualifiedType);
+			if (group == null)
+			{
+				group = new ArrayList<Element>();
+				elementsByType.put(elementInfo._fullyQualifiedType, group);
+			}
+
+			group.add(element);
+		}
+
+		trimCaches();
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(elementsByType.size());
+
+		for (Map.Entry<String, List<Element>> entry : elementsByType.entrySet())
+		{
+			final String fullyQualifiedName = entry.getKey();
+			final List<Element> group = entry.getValue();
+
+			tasks.add(new Callable<Object>()
+				{
+					public Object call()
+					{
+						if (progressMonitor == null || !progressMonitor.isCanceled())
+							resolveType(fullyQualifiedName, group);
+
+						return null;
+					}
+				});
+		}
+
+		try
+		{
+			for (Future<Object> future : workers.invokeAll(tasks))
+			{
+				future.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			ProblemManager.reportException(
+					e.getCause() instanceof Exception ? (Exception) e.getCause() : e,
+					"Failed to resolve signatures.", true);
+		}
+
+		return progressMonitor == null || !progressMonitor.isCanceled();
+	}
+
+	/**
+	 * Stops the workers.
+	 */
+	public void close()
+	{
+		workers.shutdownNow();
+	}
+
+	// -----------------------------------------------------
+	// HELPER METHODS
+	// -----------------------------------------------------
+
+	/**
+	 * Resolves elements that all belong to the same type.  Called by the
+	 * workers.
+	 */
+	private void resolveType(String fullyQualifiedName, List<Element> elements)
+	{
+		IType type;
+		String problem;
+
+		try
+		{
+			type = findType(fullyQualifiedName);
+			problem = "Type '" + fullyQualifiedName + "' not found";
+		}
+		catch (JavaModelException e)
+		{
+			type = null;
+			problem = "Type '" + fullyQualifiedName + "' not found: " + e.getMessage();
+		}
+
+		if (type == null)
+		{
+			for (Element element : elements)
+			{
+				element.problem = problem;
+			}
+
+			return;
+		}
+
+		Map<String, IMember> memberIndex = null;
+
+		for (Element element : elements)
+		{
+			JavaElementInfo elementInfo = element.elementInfo;
+
+			IJavaElement javaElement;
+
+			if (elementInfo._isType)
+			{
+				javaElement = type;
+			}
+			else
+			{
+				if (memberIndex == null)
+				{
+					try
+					{
+						memberIndex = getMemberIndex(type);
+					}
+					catch (JavaModelException e)
+					{
+						element.problem = "Failed to read the members of type '" +
+							fullyQualifiedName + "': " + e.getMessage();
+						continue;
+					}
+				}
+
+				javaElement = memberIndex.get(elementInfo.getMemberKey());
+			}
+
+			if (javaElement != null)
+			{
+				element.handle = javaElement.getHandleIdentifier();
+			}
+			else if (elementInfo._specialConstructorName != null)
+			{
+				element.problem = elementInfo._specialConstructorName +
+					" constructor for type '" + fullyQualifiedName + "'" +
+					" was not found. This can happen if it was generated " +
+					"automatically by the compiler";
+				element.isInfo = true;
+			}
+			else
+			{
+				element.problem = "Member '" + elementInfo._fullSignature + "'" +
+					" was not found";
+			}
+		}
+	}
+
+	private IType findType(String fullyQualifiedName) throws JavaModelException
+	{
+		IType type = typeCache.get(fullyQualifiedName);
+		if (type != null || missingTypes.contains(fullyQualifiedName))
+			return type;
+
+		// For each project
+		for (IJavaProject project : javaModel.getJavaProjects())
+		{
+			type = project.findType(fullyQualifiedName, (IProgressMonitor) null);
+			if (type != null)
+			{
+				typeCache.put(fullyQualifiedName, type);
+				return type;
+			}
+		}
+
+		missingTypes.add(fullyQualifiedName);
+		return null;
+	}
+
+	private Map<String, IMember> getMemberIndex(IType type) throws JavaModelException
+	{
+		Map<String, IMember> memberIndex = memberIndexCache.get(type);
+		if (memberIndex == null)
+		{
+			memberIndex = JavaElementInfo.indexMembers(type);
+			memberIndexCache.put(type, memberIndex);
+		}
+
+		return memberIndex;
+	}
+
+	/**
+	 * Clears the caches if they are full.  Only called between batches,
+	 * when no workers are running.
+	 */
+	private void trimCaches()
+	{
+		if (typeCache.size() + missingTypes.size() > MAX_CACHED_TYPES)
+		{
+			typeCache.clear();
+			missingTypes.clear();
+		}
+
+		if (memberIndexCache.size() > MAX_CACHED_MEMBER_INDEXES)
+			memberIndexCache.clear();
+	}
+}